@@ -0,0 +1,187 @@
+package net.sf.fakenames.fddemo;
+
+import android.os.ParcelFileDescriptor;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.sf.xfd.EpollLoop;
+import net.sf.xfd.EpollLoopGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class EpollLoopTests {
+    private static final long TIMEOUT = 5;
+
+    private EpollLoopGroup group;
+
+    private ParcelFileDescriptor[] first;
+    private ParcelFileDescriptor[] second;
+
+    @Before
+    public void setUp() throws IOException {
+        group = new EpollLoopGroup(2);
+
+        first = ParcelFileDescriptor.createPipe();
+        second = ParcelFileDescriptor.createPipe();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        group.close();
+
+        for (ParcelFileDescriptor pfd : first) {
+            pfd.close();
+        }
+
+        for (ParcelFileDescriptor pfd : second) {
+            pfd.close();
+        }
+    }
+
+    private static void write(ParcelFileDescriptor[] pipe) throws IOException {
+        new FileOutputStream(pipe[1].getFileDescriptor()).write(1);
+    }
+
+    // consumes one byte per call, so level-triggered registrations fire once per write
+    private static class Reader implements EpollLoop.Task {
+        final BlockingQueue<String> threads = new ArrayBlockingQueue<>(16);
+
+        private final FileInputStream in;
+
+        Reader(ParcelFileDescriptor[] pipe) {
+            in = new FileInputStream(pipe[0].getFileDescriptor());
+        }
+
+        @Override
+        public boolean run() {
+            try {
+                in.read();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+
+            threads.add(Thread.currentThread().getName());
+
+            return true;
+        }
+
+        String next() throws InterruptedException {
+            return threads.poll(TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void loopsServeOwnDescriptors() throws Exception {
+        final EpollLoop loop0 = group.get(0);
+        final EpollLoop loop1 = group.get(1);
+
+        final Reader reader0 = new Reader(first);
+        final Reader reader1 = new Reader(second);
+
+        loop0.register(first[0].getFd(), EpollLoop.EPOLLIN, reader0);
+        loop1.register(second[0].getFd(), EpollLoop.EPOLLIN, reader1);
+
+        assertThat(loop0.getRegistrationCount()).isEqualTo(1);
+        assertThat(loop1.getRegistrationCount()).isEqualTo(1);
+
+        write(first);
+        write(second);
+
+        assertThat(reader0.next()).isEqualTo(loop0.getName());
+        assertThat(reader1.next()).isEqualTo(loop1.getName());
+    }
+
+    @Test
+    @MediumTest
+    public void nextPicksLeastLoaded() throws Exception {
+        final EpollLoop loop0 = group.get(0);
+
+        final EpollLoop.Key key = loop0.register(first[0].getFd(), EpollLoop.EPOLLIN, new Reader(first));
+
+        assertThat(group.next()).isSameAs(group.get(1));
+
+        loop0.unregister(key);
+
+        assertThat(loop0.getRegistrationCount()).isEqualTo(0);
+
+        assertThat(group.forHash(first[0].getFd())).isSameAs(group.forHash(first[0].getFd()));
+    }
+
+    @Test
+    @MediumTest
+    public void executorCallbacksAreRearmed() throws Exception {
+        final EpollLoop loop = group.get(1);
+
+        final Reader reader = new Reader(first);
+
+        loop.register(first[0].getFd(), EpollLoop.EPOLLIN, reader, group.getExecutor());
+
+        for (int i = 0; i < 3; ++i) {
+            write(first);
+
+            // one-shot registration is re-enabled after each callback
+            assertThat(reader.next()).isEqualTo("Epoll callback thread");
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void incompleteTaskIsRetried() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+
+        final Reader reader = new Reader(first) {
+            @Override
+            public boolean run() {
+                return calls.incrementAndGet() == 3 && super.run();
+            }
+        };
+
+        group.get(0).register(first[0].getFd(), EpollLoop.EPOLLIN | EpollLoop.EPOLLET, reader);
+
+        write(first);
+
+        assertThat(reader.next()).isNotNull();
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    @MediumTest
+    public void unregisteredTaskIsNotCalled() throws Exception {
+        final EpollLoop loop0 = group.get(0);
+        final EpollLoop loop1 = group.get(1);
+
+        final Reader reader0 = new Reader(first);
+        final Reader reader1 = new Reader(second);
+
+        final EpollLoop.Key key = loop0.register(first[0].getFd(), EpollLoop.EPOLLIN, reader0);
+        loop1.register(second[0].getFd(), EpollLoop.EPOLLIN, reader1, group.getExecutor());
+
+        loop0.unregister(key);
+        loop0.unregister(key);
+
+        assertThat(key.isValid()).isFalse();
+        assertThat(loop0.getRegistrationCount()).isEqualTo(0);
+
+        write(first);
+        write(second);
+
+        // the other loop keeps working; by the time it's callback runs, the first event is long due
+        assertThat(reader1.next()).isNotNull();
+        assertThat(reader0.threads.poll(100, TimeUnit.MILLISECONDS)).isNull();
+    }
+}
@@ -40,6 +40,30 @@ public class GuardTests {
         assertThat(counter.get()).isEqualTo(RUNS);
     }
 
+    @Test
+    public void liveCountsTracked() {
+        final int before = CloseableGuard.getLiveCounts().getOrDefault(MetaGuard.class, 0);
+
+        // keep referents reachable, so that guards aren't triggered while the test runs
+        final Object[] referents = new Object[RUNS];
+        final MetaGuard[] guards = new MetaGuard[RUNS];
+
+        for (int i = 0; i < RUNS; ++i) {
+            referents[i] = new Object();
+            guards[i] = new MetaGuard(referents[i]);
+        }
+
+        assertThat(CloseableGuard.getLiveCounts().getOrDefault(MetaGuard.class, 0)).isEqualTo(before + RUNS);
+
+        for (MetaGuard guard : guards) {
+            guard.close();
+            guard.close();
+        }
+
+        assertThat(CloseableGuard.getLiveCounts().getOrDefault(MetaGuard.class, 0)).isEqualTo(before);
+        assertThat(referents).hasLength(RUNS);
+    }
+
     private void makeGarbage() {
         for (int i = 0; i < RUNS; ++i) {
             new MetaGuard(new Object());
@@ -11,10 +11,10 @@ import android.support.test.filters.MediumTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import net.sf.xfd.DirFd;
+import net.sf.xfd.EpollLoop;
 import net.sf.xfd.Inotify;
 import net.sf.xfd.InotifyFd;
 import net.sf.xfd.OS;
-import net.sf.xfd.SelectorThread;
 
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -273,7 +273,7 @@ public class InotifyTests {
 
     @Test
     @LargeTest
-    @FlakyTest(detail = "using a SelectorThread, so results may be indeterminate")
+    @FlakyTest(detail = "using an EpollLoop, so results may be indeterminate")
     public void selectorUsage() throws IOException, InterruptedException {
         final class Listener implements Inotify.InotifyListener {
             private volatile int changesDetected = 0;
@@ -290,7 +290,7 @@ public class InotifyTests {
 
         final Listener listener = new Listener();
 
-        try (SelectorThread thread = new SelectorThread()) {
+        try (EpollLoop thread = new EpollLoop()) {
             thread.start();
 
             final File aFile = new File(dir, "testtesttest");
@@ -316,7 +316,7 @@ public class InotifyTests {
 
                 sync(dirDescriptor);
 
-                // give the kernel & SelectorThread some time to process an entry
+                // give the kernel & EpollLoop some time to process an entry
                 Thread.sleep(10);
 
                 instrumentation.waitForIdleSync();
@@ -331,7 +331,7 @@ public class InotifyTests {
 
     @Test
     @LargeTest
-    @FlakyTest(detail = "using a SelectorThread, so results may be indeterminate")
+    @FlakyTest(detail = "using an EpollLoop, so results may be indeterminate")
     public void heavySelectorLoad() throws IOException, InterruptedException {
         int queueMax;
 
@@ -364,7 +364,7 @@ public class InotifyTests {
 
         final Listener listener = new Listener();
 
-        try (SelectorThread thread = new SelectorThread()) {
+        try (EpollLoop thread = new EpollLoop()) {
             thread.start();
             try (Inotify inotify = os.observe(inotifyDescriptor, Looper.getMainLooper())) {
                 instrumentation.runOnMainSync(new Runnable() {
@@ -389,7 +389,7 @@ public class InotifyTests {
 
                 sync(dirDescriptor);
 
-                // give the kernel & SelectorThread some time to process entries
+                // give the kernel & EpollLoop some time to process entries
                 Thread.sleep(10);
 
                 instrumentation.waitForIdleSync();
@@ -410,7 +410,7 @@ public class InotifyTests {
 
     @Test
     @LargeTest
-    @FlakyTest(detail = "using a SelectorThread, so results may be indeterminate")
+    @FlakyTest(detail = "using an EpollLoop, so results may be indeterminate")
     public void headCount() throws IOException, InterruptedException {
         int queueMax;
 
@@ -444,7 +444,7 @@ public class InotifyTests {
         final Listener listener = new Listener();
 
         // create and initialize the main thread to ensure maximum priority
-        final SelectorThread[] t = new SelectorThread[1];
+        final EpollLoop[] t = new EpollLoop[1];
 
         instrumentation.runOnMainSync(new Runnable() {
             @Override
@@ -452,7 +452,7 @@ public class InotifyTests {
                 try {
                     final int uiPriority = Thread.currentThread().getPriority();
 
-                    final SelectorThread s = new SelectorThread();
+                    final EpollLoop s = new EpollLoop();
 
                     s.setPriority(uiPriority);
                     s.start();
@@ -464,7 +464,7 @@ public class InotifyTests {
             }
         });
 
-        try (SelectorThread thread = t[0]) {
+        try (EpollLoop thread = t[0]) {
             try (Inotify inotify = os.observe(inotifyDescriptor, Looper.getMainLooper())) {
                 instrumentation.runOnMainSync(new Runnable() {
                     @Override
@@ -485,7 +485,7 @@ public class InotifyTests {
                         throw new AssertionError("Failed to create test file");
                     }
 
-                    // give the kernel & SelectorThread some time to process each entry
+                    // give the kernel & EpollLoop some time to process each entry
                     Thread.sleep(10);
                 }
 
@@ -11,9 +11,9 @@ import android.os.storage.StorageManager;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import net.sf.xfd.EpollLoop;
 import net.sf.xfd.MountInfo;
 import net.sf.xfd.OS;
-import net.sf.xfd.SelectorThread;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -94,7 +94,7 @@ public class MountsTests {
     public void basicSelectorUse() throws IOException {
         MountInfo mi = os.getMounts();
 
-        try (SelectorThread thread = new SelectorThread()) {
+        try (EpollLoop thread = new EpollLoop()) {
             thread.start();
 
             instrumentation.runOnMainSync(new Runnable() {
@@ -198,7 +198,7 @@ public class MountsTests {
             }
         };
 
-        try (SelectorThread thread = new SelectorThread()) {
+        try (EpollLoop thread = new EpollLoop()) {
             thread.start();
 
             instrumentation.runOnMainSync(new Runnable() {
@@ -207,12 +207,14 @@ public class MountsTests {
                     try {
                         mi.addMountListener(new MountInfo.MountChangeListener() {
                             @Override
-                            public void onMountsChanged() {
+                            public void onMountsChanged(MountInfo.MountDiff diff) {
                                 lock.lock();
                                 try {
-                                    gotIt = true;
+                                    if (!diff.added.isEmpty()) {
+                                        gotIt = true;
 
-                                    ready.signalAll();
+                                        ready.signalAll();
+                                    }
                                 } finally {
                                     lock.unlock();
                                 }
@@ -21,10 +21,10 @@ import android.content.Context;
 import net.sf.fakenames.fddemo.view.DirAdapter;
 import net.sf.xfd.CloseableGuard;
 import net.sf.xfd.DirFd;
+import net.sf.xfd.EpollLoop;
 import net.sf.xfd.Inotify;
 import net.sf.xfd.InotifyFd;
 import net.sf.xfd.OS;
-import net.sf.xfd.SelectorThread;
 import net.sf.xfd.provider.EpollThreadSingleton;
 
 import java.io.IOException;
@@ -32,7 +32,7 @@ import java.io.IOException;
 public final class GuardedState extends CloseableGuard {
     public final Context appContext;
     public final OS os;
-    public final SelectorThread selThread;
+    public final EpollLoop selThread;
     public final Inotify inotify;
     public final BaseDirLayout layout;
 
@@ -41,7 +41,7 @@ public final class GuardedState extends CloseableGuard {
     public final int inotifyFd;
 
     public static GuardedState create(OS os, Context context) throws IOException {
-        final SelectorThread selThread = EpollThreadSingleton.get();
+        final EpollLoop selThread = EpollThreadSingleton.get();
 
         @InotifyFd int inotifyFd = os.inotify_init();
 
@@ -76,7 +76,7 @@ public final class GuardedState extends CloseableGuard {
         return new GuardedState(os, appContext, layout, selThread, inotify, adapter, inotifyFd);
     }
 
-    private GuardedState(OS os, Context appContext, BaseDirLayout layout, SelectorThread selThread, Inotify inotify, DirAdapter adapter, int inotifyFd) {
+    private GuardedState(OS os, Context appContext, BaseDirLayout layout, EpollLoop selThread, Inotify inotify, DirAdapter adapter, int inotifyFd) {
         super(adapter);
 
         this.os = os;
@@ -36,6 +36,7 @@ extern jclass byteArrayClass;
 extern jmethodID iieConstructor;
 extern jmethodID errnoExceptionConstructor;
 extern jmethodID statContainerInit;
+extern jmethodID statContainerInitExtended;
 extern jmethodID limitContainerInit;
 extern jmethodID arenaConstructor;
 
@@ -106,10 +107,20 @@ struct InterruptHandler {
 public:
     atomic_bool interrupted;
 
+    // called by signal handler on the interrupted thread itself, no ordering is needed
     void set_flag() {
         interrupted.store(true, memory_order_relaxed);
     }
 
+    // called by other threads, paired with is_set()
+    void set_flag_release() {
+        interrupted.store(true, memory_order_release);
+    }
+
+    bool is_set() {
+        return interrupted.load(memory_order_acquire);
+    }
+
     void clear_flag() {
         interrupted.store(false, memory_order_relaxed);
     }
@@ -0,0 +1,101 @@
+#include "common.h"
+
+#include "linux_syscall_support.h"
+
+#include <errno.h>
+#include <stdint.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+
+#include "moar_syscalls.h"
+
+// the layout of records, consumed by EpollLoop (struct epoll_event is packed on some architectures)
+struct loop_event {
+    uint64_t token;
+    uint32_t events;
+    uint32_t reserved;
+};
+
+static_assert(sizeof(loop_event) == 16, "event records have unexpected size!");
+
+#define MAX_BATCH 64
+
+extern "C" {
+
+JNIEXPORT jint JNICALL PKG(EpollLoop_nativeCreate)(JNIEnv *env, jclass type) {
+    int epollFd = sys_epoll_create1(EPOLL_CLOEXEC);
+
+    if (epollFd == -1) {
+        handleError(env);
+    }
+
+    return epollFd;
+}
+
+JNIEXPORT jint JNICALL PKG(EpollLoop_nativeCreateWakeup)(JNIEnv *env, jclass type) {
+    int eventFd = sys_eventfd2(0, EFD_CLOEXEC | EFD_NONBLOCK);
+
+    if (eventFd == -1) {
+        handleError(env);
+    }
+
+    return eventFd;
+}
+
+JNIEXPORT void JNICALL PKG(EpollLoop_nativeCtl)(JNIEnv *env, jclass type, jint epollFd, jint op, jint fd, jint events, jlong token) {
+    struct epoll_event event = {};
+
+    event.events = static_cast<uint32_t>(events);
+    event.data.u64 = static_cast<uint64_t>(token);
+
+    if (sys_epoll_ctl(epollFd, op, fd, &event) == -1) {
+        handleError(env);
+    }
+}
+
+JNIEXPORT jint JNICALL PKG(EpollLoop_nativeWait)(JNIEnv *env, jclass type, jint epollFd, jlong buffer, jint maxEvents, jint timeout) {
+    struct epoll_event events[MAX_BATCH];
+
+    if (maxEvents > MAX_BATCH) {
+        maxEvents = MAX_BATCH;
+    }
+
+    int count = sys_epoll_pwait(epollFd, events, maxEvents, timeout);
+
+    if (count == -1) {
+        if (errno == EINTR) {
+            return 0;
+        }
+
+        handleError(env);
+
+        return -1;
+    }
+
+    loop_event* records = reinterpret_cast<loop_event*>(buffer);
+
+    for (int i = 0; i < count; ++i) {
+        records[i].token = events[i].data.u64;
+        records[i].events = events[i].events;
+    }
+
+    return count;
+}
+
+JNIEXPORT void JNICALL PKG(EpollLoop_nativeWakeup)(JNIEnv *env, jclass type, jint eventFd) {
+    uint64_t increment = 1;
+
+    if (TEMP_FAILURE_RETRY(write(eventFd, &increment, sizeof(increment))) == -1 && errno != EAGAIN) {
+        handleError(env);
+    }
+}
+
+JNIEXPORT void JNICALL PKG(EpollLoop_nativeDrain)(JNIEnv *env, jclass type, jint eventFd) {
+    uint64_t counter;
+
+    if (TEMP_FAILURE_RETRY(read(eventFd, &counter, sizeof(counter))) == -1 && errno != EAGAIN) {
+        handleError(env);
+    }
+}
+
+}
@@ -18,6 +18,7 @@ jclass byteArrayClass;
 jmethodID iieConstructor;
 jmethodID errnoExceptionConstructor;
 jmethodID statContainerInit;
+jmethodID statContainerInitExtended;
 jmethodID limitContainerInit;
 jmethodID arenaConstructor;
 
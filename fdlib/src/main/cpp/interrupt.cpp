@@ -131,6 +131,10 @@ JNIEXPORT void JNICALL PKG_SYM(nativeInterrupt)(JNIEnv *env, jclass unused, jlon
     }
 }
 
+JNIEXPORT void JNICALL PKG_SYM(nativeSetFlag)(JNIEnv *env, jclass unused, jlong ptr) {
+    reinterpret_cast<InterruptHandler*>(ptr) -> set_flag_release();
+}
+
 JNIEXPORT jboolean JNICALL PKG_SYM(nativeInterrupted)(JNIEnv *env, jclass unused, jlong ptr) {
     InterruptHandler* handler = reinterpret_cast<InterruptHandler*>(ptr);
 
@@ -78,4 +78,90 @@ static inline int  sys_fadvise(int fd, off64_t offset, off64_t len, int advice)
 #endif
 }
 
+static inline int sys_epoll_create1(int flags) {
+    return syscall(__NR_epoll_create1, flags);
+}
+
+static inline int sys_epoll_ctl(int epfd, int op, int fd, struct epoll_event *event) {
+    return syscall(__NR_epoll_ctl, epfd, op, fd, event);
+}
+
+// 64-bit architectures lack plain epoll_wait, epoll_pwait is available everywhere
+static inline int sys_epoll_pwait(int epfd, struct epoll_event *events, int maxevents, int timeout) {
+    return syscall(__NR_epoll_pwait, epfd, events, maxevents, timeout, NULL, sizeof(kernel_sigset_t));
+}
+
+static inline int sys_eventfd2(unsigned int initval, int flags) {
+    return syscall(__NR_eventfd2, initval, flags);
+}
+
+// statx(2) appeared in Linux 4.11, NDK headers may not know about it yet
+#ifndef __NR_statx
+#if defined(__aarch64__)
+#define __NR_statx 291
+#elif defined(__arm__)
+#define __NR_statx 397
+#elif defined(__x86_64__)
+#define __NR_statx 332
+#elif defined(__i386__)
+#define __NR_statx 383
+#endif
+#endif
+
+struct kernel_statx_timestamp {
+    int64_t tv_sec;
+    uint32_t tv_nsec;
+    int32_t reserved;
+};
+
+struct kernel_statx {
+    uint32_t stx_mask;
+    uint32_t stx_blksize;
+    uint64_t stx_attributes;
+    uint32_t stx_nlink;
+    uint32_t stx_uid;
+    uint32_t stx_gid;
+    uint16_t stx_mode;
+    uint16_t spare0;
+    uint64_t stx_ino;
+    uint64_t stx_size;
+    uint64_t stx_blocks;
+    uint64_t stx_attributes_mask;
+    kernel_statx_timestamp stx_atime;
+    kernel_statx_timestamp stx_btime;
+    kernel_statx_timestamp stx_ctime;
+    kernel_statx_timestamp stx_mtime;
+    uint32_t stx_rdev_major;
+    uint32_t stx_rdev_minor;
+    uint32_t stx_dev_major;
+    uint32_t stx_dev_minor;
+    uint64_t spare2[14];
+};
+
+static inline int sys_statx(int dirfd, const char *filename, int flags, unsigned int mask, kernel_statx* statxbuf) {
+#ifdef __NR_statx
+    return syscall(__NR_statx, dirfd, filename, flags, mask, statxbuf);
+#else
+    errno = ENOSYS;
+    return -1;
+#endif
+}
+
+// openat2(2) appeared in Linux 5.6, it has the same number on all architectures
+#ifndef __NR_openat2
+#define __NR_openat2 437
+#endif
+
+struct kernel_open_how {
+    uint64_t flags;
+    uint64_t mode;
+    uint64_t resolve;
+};
+
+#define KERNEL_RESOLVE_CACHED 0x20
+
+static inline int sys_openat2(int dirfd, const char *filename, kernel_open_how* how) {
+    return syscall(__NR_openat2, dirfd, filename, how, sizeof(kernel_open_how));
+}
+
 #endif
\ No newline at end of file
@@ -8,25 +8,18 @@
 #include <limits>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 
-inline static jint coreio_openat(JNIEnv *env, jint fd, jworkaroundstr name, jint flags, jint mode) {
-    jboolean isArray = env -> IsInstanceOf(name, byteArrayClass);
+// file names are passed from Java as pointers to NUL-terminated UTF-8 strings (see PathBuffer.java)
+#define PATH(ptr) reinterpret_cast<const char*>(ptr)
 
-    const char *utf8Path = getUtf8(env, isArray, name);
-
-    if (utf8Path == NULL) {
-        env->ThrowNew(oomError, "file name buffer");
-        return -1;
-    }
-
-    int newFd = TEMP_FAILURE_RETRY(sys_openat(fd, utf8Path, flags, mode));
+inline static jint coreio_openat(JNIEnv *env, jint fd, jlong name, jint flags, jint mode) {
+    int newFd = TEMP_FAILURE_RETRY(sys_openat(fd, PATH(name), flags, mode));
 
     if (newFd < 0) {
         handleError(env);
     }
 
-    freeUtf8(env, isArray, name, utf8Path);
-
     return newFd;
 }
 
@@ -108,6 +101,11 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
         return -1;
     }
 
+    statContainerInitExtended = env->GetMethodID(statContainer, "initExtended", "(IJJJIIIIIJJJJ)V");
+    if (statContainerInitExtended == NULL) {
+        return -1;
+    }
+
     limitContainer = saveClassRef("net/sf/xfd/Limit", env);
     if (limitContainer == NULL) {
         return -1;
@@ -167,23 +165,43 @@ JNIEXPORT void JNICALL Java_net_sf_xfd_NativeBits_fixConstants(JNIEnv *env, jcla
     }
 }
 
-JNIEXPORT jint JNICALL PKG_SYM(nativeOpenAt)(JNIEnv *env, jclass type, jint fd, jobject path, jint flags, jint mode) {
+JNIEXPORT jint JNICALL PKG_SYM(nativeOpenAt)(JNIEnv *env, jclass type, jint fd, jlong path, jint flags, jint mode) {
     return coreio_openat(env, fd, path, flags | O_LARGEFILE, mode);
 }
 
-JNIEXPORT jint JNICALL PKG_SYM(nativeOpenAt2)(JNIEnv *env, jclass type, jlong token, jint fd, jworkaroundstr path, jint flags, jint mode) {
-    InterruptHandler* handler = reinterpret_cast<InterruptHandler*>(token);
+JNIEXPORT jint JNICALL PKG_SYM(nativeOpenAtResolve)(JNIEnv *env, jclass type, jint fd, jlong path, jint flags, jint mode, jint resolve) {
+    kernel_open_how how = {};
+
+    how.flags = static_cast<uint32_t>(flags | O_LARGEFILE);
+    how.resolve = static_cast<uint32_t>(resolve);
 
-    jboolean isArray = env -> IsInstanceOf(path, byteArrayClass);
+    // unlike open(2), openat2 rejects non-zero mode, unless a file is going to be created
+    if ((flags & O_CREAT) != 0) {
+        how.mode = static_cast<uint32_t>(mode);
+    }
 
-    const char *utf8Path = getUtf8(env, isArray, path);
+    int newFd = TEMP_FAILURE_RETRY(sys_openat2(fd, PATH(path), &how));
 
-    if (utf8Path == NULL) {
-        env->ThrowNew(oomError, "file name buffer");
-        return -1;
+    if (newFd < 0 && errno == EINVAL && (how.resolve & KERNEL_RESOLVE_CACHED) != 0) {
+        // RESOLVE_CACHED is supported since Linux 5.12, proceed with normal lookup
+        how.resolve &= ~KERNEL_RESOLVE_CACHED;
+
+        newFd = TEMP_FAILURE_RETRY(sys_openat2(fd, PATH(path), &how));
     }
 
-    if (handler -> interrupted.load(memory_order_relaxed)) {
+    if (newFd < 0) {
+        handleError(env);
+    }
+
+    return newFd;
+}
+
+JNIEXPORT jint JNICALL PKG_SYM(nativeOpenAt2)(JNIEnv *env, jclass type, jlong token, jint fd, jlong path, jint flags, jint mode) {
+    InterruptHandler* handler = reinterpret_cast<InterruptHandler*>(token);
+
+    const char *utf8Path = PATH(path);
+
+    if (handler -> is_set()) {
         env -> ThrowNew(iIoException, "open");
 
         handler -> clear_flag();
@@ -201,13 +219,13 @@ attempt_open:
 
         if (!eintr) {
             handleError(env);
-            goto cleanup;
+            return newFd;
         }
     } else {
         eintr = false;
     }
 
-    if (handler -> interrupted.load(memory_order_relaxed)) {
+    if (handler -> is_set()) {
         if (newFd >= 0) {
             close(newFd);
         }
@@ -219,9 +237,6 @@ attempt_open:
         goto attempt_open;
     }
 
-cleanup:
-    freeUtf8(env, isArray, path, utf8Path);
-
     return newFd;
 }
 
@@ -262,13 +277,13 @@ JNIEXPORT jobject JNICALL Java_net_sf_xfd_Arena_allocate(JNIEnv *env, jclass typ
     return env -> NewObject(type, arenaConstructor, reinterpret_cast<jlong>(bufferAddress), buffer, guards);
 }
 
-JNIEXPORT void JNICALL PKG_SYM(close)(JNIEnv *env, jclass type, jint fd) {
+JNIEXPORT void JNICALL PKG_SYM(nativeClose)(JNIEnv *env, jclass type, jint fd) {
     if (close(fd) == -1) {
         handleError(env);
     }
 }
 
-JNIEXPORT void JNICALL PKG_SYM(dup2)(JNIEnv *env, jobject instance, jint source, jint dest) {
+JNIEXPORT void JNICALL PKG_SYM(nativeDup2)(JNIEnv *env, jobject instance, jint source, jint dest) {
     if (TEMP_FAILURE_RETRY(dup2(source, dest)) == dest) {
         return;
     }
@@ -300,7 +315,7 @@ JNIEXPORT void JNICALL PKG_SYM(nativeSetrlimit)(JNIEnv *env, jclass clazz, jlong
     }
 }
 
-JNIEXPORT jint JNICALL PKG_SYM(inotify_1init)(JNIEnv *env, jobject instance) {
+JNIEXPORT jint JNICALL PKG_SYM(nativeInotifyInit)(JNIEnv *env, jobject instance) {
     int fd = inotify_init();
 
     if (fd == -1) {
@@ -325,6 +340,10 @@ JNIEXPORT void JNICALL PKG_SYM(free)(JNIEnv *env, jclass unused, jlong pointer)
 static_assert (CHUNK_SIZE < SIZE_MAX, "size_t has unexpected size");
 static_assert (CHUNK_SIZE < SSIZE_MAX, "ssize_t has unexpected size");
 
+// no signal is sent to interrupt copying between regular files (see InterruptibleStageImpl#beginBounded),
+// so sendfile() is issued in chunks of this size to check the flag in between
+#define SENDFILE_CHUNK_SIZE (1024 * 1024)
+
 static jlong dumbCopy(InterruptHandler* handler, char* buf, int64_t* sizeRef, jint fd1, jint fd2) {
     int64_t size = *sizeRef;
 
@@ -355,7 +374,7 @@ static jlong dumbCopy(InterruptHandler* handler, char* buf, int64_t* sizeRef, ji
                 }
         }
 
-        if (handler -> interrupted.load(memory_order_relaxed)) {
+        if (handler -> is_set()) {
             goto bail;
         }
 
@@ -376,7 +395,7 @@ static jlong dumbCopy(InterruptHandler* handler, char* buf, int64_t* sizeRef, ji
 
             remaining -= lastWritten;
 
-            if (handler -> interrupted.load(memory_order_relaxed)) {
+            if (handler -> is_set()) {
                 totalWritten += (written - remaining);
 
                 goto bail;
@@ -410,13 +429,13 @@ JNIEXPORT jlong JNICALL PKG_SYM(doSendfile)(JNIEnv *env, jclass type, jlong buff
 
     totalBytes = remaining = total;
 
-    if (handler -> interrupted.load(memory_order_relaxed)) {
+    if (handler -> is_set()) {
         goto interrupted;
     }
 
     // attempt to do sendfile first
     do {
-        size_t to_send = remaining > SSIZE_MAX ? SSIZE_MAX : (size_t) remaining;
+        size_t to_send = remaining > SENDFILE_CHUNK_SIZE ? SENDFILE_CHUNK_SIZE : (size_t) remaining;
 
         ssize_t sent = sys_sendfile(fd2, fd1, NULL, to_send);
 
@@ -442,7 +461,7 @@ JNIEXPORT jlong JNICALL PKG_SYM(doSendfile)(JNIEnv *env, jclass type, jlong buff
 
         remaining -= sent;
 
-        if (handler -> interrupted.load(memory_order_relaxed)) {
+        if (handler -> is_set()) {
             goto interrupted;
         }
     }
@@ -485,7 +504,7 @@ JNIEXPORT jlong JNICALL PKG_SYM(doSplice)(JNIEnv *env, jclass type, jlong buffer
 
     totalBytes = remaining = total;
 
-    if (handler -> interrupted.load(memory_order_relaxed)) {
+    if (handler -> is_set()) {
         goto interrupted;
     }
 
@@ -515,7 +534,7 @@ JNIEXPORT jlong JNICALL PKG_SYM(doSplice)(JNIEnv *env, jclass type, jlong buffer
 
         remaining -= spliced;
 
-        if (handler -> interrupted.load(memory_order_relaxed)) {
+        if (handler -> is_set()) {
             goto interrupted;
         }
     }
@@ -556,7 +575,7 @@ JNIEXPORT jlong JNICALL PKG_SYM(doDumbCopy)(JNIEnv *env, jclass type, jlong buff
 
     jlong initial = size;
 
-    if (!handler -> interrupted.load(memory_order_relaxed)) {
+    if (!handler -> is_set()) {
         char* b = reinterpret_cast<char*>(buffer);
 
         int64_t res = dumbCopy(handler, b, &size, fd1, fd2);
@@ -727,18 +746,16 @@ static const char *resolve_link(int base, const char* linkpath, size_t *stringSi
     }
 }
 
-JNIEXPORT jworkaroundstr JNICALL PKG_SYM(nativeReadlink)(JNIEnv *env, jclass type, jint fd, jworkaroundstr pathname) {
-    jboolean isArray = env -> IsInstanceOf(pathname, byteArrayClass);
-
-    const char* utfName = getUtf8(env, isArray, pathname);
+JNIEXPORT jworkaroundstr JNICALL PKG_SYM(nativeReadlink)(JNIEnv *env, jclass type, jint fd, jlong pathname) {
+    const char* utfName = PATH(pathname);
 
     size_t stringSize;
 
     const char* resolved = resolve_link(fd, utfName, &stringSize);
 
     if (resolved == utfName) {
-        freeUtf8(env, isArray, pathname, utfName);
-        return pathname;
+        // not a link and already absolute, the caller can reuse the original string
+        return NULL;
     }
 
     if (resolved == NULL) {
@@ -753,81 +770,27 @@ JNIEXPORT jworkaroundstr JNICALL PKG_SYM(nativeReadlink)(JNIEnv *env, jclass typ
     return result;
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeSymlinkAt)(JNIEnv *env, jobject instance, jworkaroundstr name_, jint target, jworkaroundstr newpath_) {
-    jboolean isArray1 = env -> IsInstanceOf(name_, byteArrayClass);
-
-    const char *name = getUtf8(env, isArray1, name_);
-    if (name == NULL) {
-        return;
-    }
-
-    jboolean isArray2 = env -> IsInstanceOf(name_, byteArrayClass);
-
-    const char *newpath = getUtf8(env, isArray2, newpath_);
-    if (newpath == NULL) {
-        return;
-    }
-
-    int rc = TEMP_FAILURE_RETRY(sys_symlinkat(name, target, newpath));
-    int err = errno;
-
-    freeUtf8(env, isArray1, name_, name);
-    freeUtf8(env, isArray2, newpath_, newpath);
-
-    if (rc) {
-        handleError(env, err);
+JNIEXPORT void JNICALL PKG_SYM(nativeSymlinkAt)(JNIEnv *env, jobject instance, jlong name, jint target, jlong newpath) {
+    if (TEMP_FAILURE_RETRY(sys_symlinkat(PATH(name), target, PATH(newpath)))) {
+        handleError(env);
     }
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeUnlinkAt)(JNIEnv *env, jobject instance, jint target, jworkaroundstr name, jint flags) {
-    jboolean isArray = env -> IsInstanceOf(name, byteArrayClass);
-
-    const char* name_ = getUtf8(env, isArray, name);
-    if (name_ == NULL) {
-        return;
-    }
-
-    int rc = TEMP_FAILURE_RETRY(sys_unlinkat(target, name_, flags));
-    int err = errno;
-
-    freeUtf8(env, isArray, name, name_);
-
-    if (rc) {
-        handleError(env, err);
+JNIEXPORT void JNICALL PKG_SYM(nativeUnlinkAt)(JNIEnv *env, jobject instance, jint target, jlong name, jint flags) {
+    if (TEMP_FAILURE_RETRY(sys_unlinkat(target, PATH(name), flags))) {
+        handleError(env);
     }
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeMknodAt)(JNIEnv *env, jclass type, jint target, jworkaroundstr name, jint mode, jint device) {
-    jboolean isArray = env -> IsInstanceOf(name, byteArrayClass);
-
-    const char* name_ = getUtf8(env, isArray, name);
-
-    if (name_ == NULL) {
-        return;
-    }
-
-    int rc = TEMP_FAILURE_RETRY(sys_mknodat(target, name_, static_cast<mode_t>(mode), static_cast<dev_t>(device)));
-    int err = errno;
-
-    freeUtf8(env, isArray, name, name_);
-
-    if (rc) {
-        handleError(env, err);
+JNIEXPORT void JNICALL PKG_SYM(nativeMknodAt)(JNIEnv *env, jclass type, jint target, jlong name, jint mode, jint device) {
+    if (TEMP_FAILURE_RETRY(sys_mknodat(target, PATH(name), static_cast<mode_t>(mode), static_cast<dev_t>(device)))) {
+        handleError(env);
     }
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeMkdirAt)(JNIEnv *env, jclass type, jint target, jworkaroundstr name, jint mode) {
-    jboolean isArray = env -> IsInstanceOf(name, byteArrayClass);
-
-    const char* name_ = getUtf8(env, isArray, name);
-
-    int rc = TEMP_FAILURE_RETRY(sys_mkdirat(target, name_, static_cast<mode_t>(mode)));
-    int err = errno;
-
-    freeUtf8(env, isArray, name, name_);
-
-    if (rc) {
-        handleError(env, err);
+JNIEXPORT void JNICALL PKG_SYM(nativeMkdirAt)(JNIEnv *env, jclass type, jint target, jlong name, jint mode) {
+    if (TEMP_FAILURE_RETRY(sys_mkdirat(target, PATH(name), static_cast<mode_t>(mode)))) {
+        handleError(env);
     }
 }
 
@@ -864,27 +827,10 @@ JNIEXPORT void JNICALL PKG_SYM(fstat)(JNIEnv *env, jobject self, jint fd, jobjec
                             dirStat.st_dev, dirStat.st_ino, dirStat.st_size, dirStat.st_blksize, fileTypeOrdinal);
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeRenameAt)(JNIEnv *env, jclass type, jint fd, jworkaroundstr o, jint fd2, jworkaroundstr o1) {
-    jboolean isArray1 = env -> IsInstanceOf(o, byteArrayClass);
-
-    const char* name_ = getUtf8(env, isArray1, o);
-    if (name_ == NULL) {
-        return;
-    }
-
-    jboolean isArray2 = env -> IsInstanceOf(o1, byteArrayClass);
-
-    const char* name1_ = getUtf8(env, isArray2, o1);
-
-    if (name1_ != NULL) {
-        if (sys_renameat(fd, name_, fd2, name1_) == -1) {
-            handleError(env);
-        }
-
-        freeUtf8(env, isArray2, o1, name1_);
+JNIEXPORT void JNICALL PKG_SYM(nativeRenameAt)(JNIEnv *env, jclass type, jint fd, jlong name, jint fd2, jlong name2) {
+    if (sys_renameat(fd, PATH(name), fd2, PATH(name2)) == -1) {
+        handleError(env);
     }
-
-    freeUtf8(env, isArray1, o, name_);
 }
 
 JNIEXPORT void JNICALL PKG_SYM(readahead)(JNIEnv *env, jclass type, jint fd, jlong off, jint len) {
@@ -920,7 +866,7 @@ JNIEXPORT void JNICALL PKG_SYM(fadvise)(JNIEnv *env, jclass type, jint fd, jlong
     }
 }
 
-JNIEXPORT jint JNICALL PKG_SYM(dup)(JNIEnv *env, jobject instance, jint source) {
+JNIEXPORT jint JNICALL PKG_SYM(nativeDup)(JNIEnv *env, jobject instance, jint source) {
     int result = dup(source);
 
     if (result == -1) {
@@ -930,12 +876,8 @@ JNIEXPORT jint JNICALL PKG_SYM(dup)(JNIEnv *env, jobject instance, jint source)
     return result;
 }
 
-JNIEXPORT jboolean JNICALL PKG_SYM(nativeFaccessAt)(JNIEnv *env, jclass type, jint fd, jworkaroundstr pathname_, jint mode) {
-    jboolean isArray = env -> IsInstanceOf(pathname_, byteArrayClass);
-
-    const char *utf8Path = getUtf8(env, isArray, pathname_);
-
-    int ret = TEMP_FAILURE_RETRY(sys_faccessat(fd, utf8Path, mode));
+JNIEXPORT jboolean JNICALL PKG_SYM(nativeFaccessAt)(JNIEnv *env, jclass type, jint fd, jlong pathname, jint mode) {
+    int ret = TEMP_FAILURE_RETRY(sys_faccessat(fd, PATH(pathname), mode));
     if (ret) {
         switch (errno) {
             case EACCES:
@@ -948,19 +890,17 @@ JNIEXPORT jboolean JNICALL PKG_SYM(nativeFaccessAt)(JNIEnv *env, jclass type, ji
         }
     }
 
-    freeUtf8(env, isArray, pathname_, utf8Path);
-
     return static_cast<jboolean>(ret ? JNI_FALSE : JNI_TRUE);
 }
 
-JNIEXPORT jint JNICALL PKG_SYM(nativeCreat)(JNIEnv *env, jclass type, jobject pathname, jint mode) {
+JNIEXPORT jint JNICALL PKG_SYM(nativeCreat)(JNIEnv *env, jclass type, jlong pathname, jint mode) {
     return coreio_openat(env, -1, pathname, O_CREAT | O_RDWR | O_TRUNC, mode);
 }
 
 JNIEXPORT void JNICALL PKG_SYM(nativeFsync)(JNIEnv *env, jclass type, jlong nativePtr, jint fd) {
     InterruptHandler* handler = reinterpret_cast<InterruptHandler*>(nativePtr);
 
-    if (handler -> interrupted.load(memory_order_relaxed)) {
+    if (handler -> is_set()) {
         env -> ThrowNew(iIoException, "fsync");
 
         handler -> clear_flag();
@@ -980,7 +920,7 @@ JNIEXPORT void JNICALL PKG_SYM(nativeFsync)(JNIEnv *env, jclass type, jlong nati
             }
         }
 
-        if (handler -> interrupted.load(memory_order_relaxed)) {
+        if (handler -> is_set()) {
             env -> ThrowNew(iIoException, "fsync");
 
             handler -> clear_flag();
@@ -990,44 +930,270 @@ JNIEXPORT void JNICALL PKG_SYM(nativeFsync)(JNIEnv *env, jclass type, jlong nati
     } while (eintr);
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeLinkAt)(JNIEnv *env, jclass type, jint oldDirFd, jworkaroundstr o, jint newDirFd, jworkaroundstr o1, jint flags) {
-    jboolean isArray1 = env -> IsInstanceOf(o, byteArrayClass);
+JNIEXPORT void JNICALL PKG_SYM(nativeLinkAt)(JNIEnv *env, jclass type, jint oldDirFd, jlong oldName, jint newDirFd, jlong newName, jint flags) {
+    if (sys_linkat(oldDirFd, PATH(oldName), newDirFd, PATH(newName), flags)) {
+        handleError(env);
+    }
+}
+
+#define STATX_BASIC_STATS 0x07ffU
+
+// same encoding as used by kernel for st_dev of stat64
+static inline uint64_t encode_dev(uint32_t major, uint32_t minor) {
+    return (minor & 0xff) | ((uint64_t) major << 8) | ((uint64_t) (minor & ~0xffU) << 12);
+}
+
+static inline jlong to_millis(int64_t sec, uint32_t nsec) {
+    return (jlong) (sec * 1000 + nsec / 1000000);
+}
+
+static atomic_bool statx_missing(false);
+
+JNIEXPORT void JNICALL PKG_SYM(nativeStatx)(JNIEnv *env, jclass type, jint dir, jlong pathname, jint flags, jint mask, jobject statStruct) {
+    if (!statx_missing.load(memory_order_relaxed)) {
+        kernel_statx result;
+
+        if (TEMP_FAILURE_RETRY(sys_statx(dir, PATH(pathname), flags, static_cast<unsigned int>(mask), &result)) == 0) {
+            env -> CallNonvirtualVoidMethod(statStruct, statContainer, statContainerInitExtended,
+                                            (jint) result.stx_mask,
+                                            (jlong) encode_dev(result.stx_dev_major, result.stx_dev_minor),
+                                            (jlong) result.stx_ino,
+                                            (jlong) result.stx_size,
+                                            (jint) result.stx_blksize,
+                                            (jint) result.stx_mode,
+                                            (jint) result.stx_nlink,
+                                            (jint) result.stx_uid,
+                                            (jint) result.stx_gid,
+                                            (jlong) result.stx_blocks,
+                                            to_millis(result.stx_atime.tv_sec, result.stx_atime.tv_nsec),
+                                            to_millis(result.stx_mtime.tv_sec, result.stx_mtime.tv_nsec),
+                                            to_millis(result.stx_ctime.tv_sec, result.stx_ctime.tv_nsec));
+            return;
+        }
+
+        // seccomp filters may report EPERM for unknown syscalls, older kernels report ENOSYS
+        if (errno != ENOSYS && errno != EPERM) {
+            handleError(env);
+            return;
+        }
+
+        statx_missing.store(true, memory_order_relaxed);
+    }
+
+    kernel_stat64 fdStat;
 
-    const char* name_ = getUtf8(env, isArray1, o);
-    if (name_ == NULL) {
+    if (TEMP_FAILURE_RETRY(sys_fstatat64_fixed(dir, PATH(pathname), &fdStat, flags))) {
+        handleError(env);
         return;
     }
 
-    jboolean isArray2 = env -> IsInstanceOf(o1, byteArrayClass);
+    env -> CallNonvirtualVoidMethod(statStruct, statContainer, statContainerInitExtended,
+                                    (jint) STATX_BASIC_STATS,
+                                    (jlong) fdStat.st_dev,
+                                    (jlong) fdStat.st_ino,
+                                    (jlong) fdStat.st_size,
+                                    (jint) fdStat.st_blksize,
+                                    (jint) fdStat.st_mode,
+                                    (jint) fdStat.st_nlink,
+                                    (jint) fdStat.st_uid,
+                                    (jint) fdStat.st_gid,
+                                    (jlong) fdStat.st_blocks,
+                                    to_millis(fdStat.st_atime_, fdStat.st_atime_nsec_),
+                                    to_millis(fdStat.st_mtime_, fdStat.st_mtime_nsec_),
+                                    to_millis(fdStat.st_ctime_, fdStat.st_ctime_nsec_));
+}
+
+// keep in sync with StatBatch.java
+struct bulk_stat {
+    int64_t dev;
+    int64_t ino;
+    int64_t size;
+    int64_t mtime_ms;
+    int32_t mode;
+    int32_t blksize;
+    int32_t err;
+    int32_t reserved;
+};
 
-    const char* name1_ = getUtf8(env, isArray2, o1);
+static_assert(sizeof(bulk_stat) == 48, "bulk_stat has unexpected size!");
 
-    if (name1_ != NULL) {
-        if (sys_linkat(oldDirFd, name_, newDirFd, name1_, flags)) {
-            handleError(env);
+JNIEXPORT void JNICALL PKG_SYM(nativeFstatAtBulk)(JNIEnv *env, jclass type, jint dir, jlong names, jlong results, jint count, jint flags) {
+    const int32_t* offsets = reinterpret_cast<const int32_t*>(names);
+    bulk_stat* out = reinterpret_cast<bulk_stat*>(results);
+
+    kernel_stat64 fdStat;
+
+    for (int i = 0; i < count; ++i) {
+        bulk_stat* result = out + i;
+
+        // the name could not be encoded, error is already set by caller
+        if (offsets[i] < 0) {
+            continue;
+        }
+
+        const char* name = PATH(names + offsets[i]);
+
+        if (TEMP_FAILURE_RETRY(sys_fstatat64_fixed(dir, name, &fdStat, flags))) {
+            result -> err = errno;
+            continue;
         }
 
-        freeUtf8(env, isArray2, o1, name1_);
+        result -> dev = fdStat.st_dev;
+        result -> ino = fdStat.st_ino;
+        result -> size = fdStat.st_size;
+        result -> mtime_ms = (int64_t) fdStat.st_mtime_ * 1000 + fdStat.st_mtime_nsec_ / 1000000;
+        result -> mode = fdStat.st_mode;
+        result -> blksize = fdStat.st_blksize;
+        result -> err = 0;
     }
+}
 
-    freeUtf8(env, isArray1, o, name_);
+// keep in sync with OpBatch.java
+enum batch_opcode {
+    BATCH_OPENAT = 1,
+    BATCH_MKDIRAT = 2,
+    BATCH_UNLINKAT = 3,
+    BATCH_RENAMEAT = 4,
+    BATCH_FSTATAT = 5,
+    BATCH_FSYNC = 6,
+    BATCH_CLOSE = 7,
+};
+
+struct batch_op {
+    int32_t op;
+    int32_t dir;
+    int32_t dir2;
+    int32_t flags;
+    int32_t mode;
+    int32_t name;
+    int32_t name2;
+    int32_t reserved;
+};
+
+struct batch_result {
+    int64_t value;
+    int32_t err;
+    int32_t reserved;
+};
+
+static_assert(sizeof(batch_op) == 32, "batch_op has unexpected size!");
+static_assert(sizeof(batch_result) == 16, "batch_result has unexpected size!");
+
+// descriptors below this value refer to results of earlier operations
+#define BATCH_REF_BASE -1000
+
+static bool batch_fd(int32_t value, const batch_result* results, int* fd) {
+    if (value > BATCH_REF_BASE) {
+        *fd = value;
+        return true;
+    }
+
+    const batch_result* ref = results + (BATCH_REF_BASE - value);
+
+    if (ref -> err != 0) {
+        errno = ECANCELED;
+        return false;
+    }
+
+    *fd = (int) ref -> value;
+    return true;
 }
 
-JNIEXPORT void JNICALL PKG_SYM(nativeFstatAt)(JNIEnv *env, jclass type, jint dir, jworkaroundstr pathname, jobject statStruct, jint flags) {
-    jboolean isArray = env -> IsInstanceOf(pathname, byteArrayClass);
+JNIEXPORT void JNICALL PKG_SYM(nativeExecute)(JNIEnv *env, jclass type, jlong opsPtr, jlong resultsPtr, jlong statsPtr, jlong names, jint count, jboolean stopOnError) {
+    const batch_op* ops = reinterpret_cast<const batch_op*>(opsPtr);
+    batch_result* results = reinterpret_cast<batch_result*>(resultsPtr);
+    bulk_stat* stats = reinterpret_cast<bulk_stat*>(statsPtr);
 
-    const char *utf8Path = getUtf8(env, isArray, pathname);
-    if (utf8Path == NULL) {
-        return;
+    bool failed = false;
+
+    for (int i = 0; i < count; ++i) {
+        const batch_op* op = ops + i;
+        batch_result* result = results + i;
+        bulk_stat* stat = stats + i;
+
+        memset(stat, 0, sizeof(bulk_stat));
+
+        if (failed && stopOnError == JNI_TRUE) {
+            result -> err = stat -> err = ECANCELED;
+            continue;
+        }
+
+        // the name could not be encoded, error is already set by caller
+        if (result -> err != 0) {
+            stat -> err = result -> err;
+            failed = true;
+            continue;
+        }
+
+        const char* name = op -> name < 0 ? NULL : PATH(names + op -> name);
+        const char* name2 = op -> name2 < 0 ? NULL : PATH(names + op -> name2);
+
+        int fd, fd2;
+
+        int rc = -1;
+
+        if (batch_fd(op -> dir, results, &fd)) {
+            switch (op -> op) {
+                case BATCH_OPENAT:
+                    rc = TEMP_FAILURE_RETRY(sys_openat(fd, name, op -> flags | O_LARGEFILE, op -> mode));
+                    break;
+                case BATCH_MKDIRAT:
+                    rc = TEMP_FAILURE_RETRY(sys_mkdirat(fd, name, static_cast<mode_t>(op -> mode)));
+                    break;
+                case BATCH_UNLINKAT:
+                    rc = TEMP_FAILURE_RETRY(sys_unlinkat(fd, name, op -> flags));
+                    break;
+                case BATCH_RENAMEAT:
+                    if (batch_fd(op -> dir2, results, &fd2)) {
+                        rc = sys_renameat(fd, name, fd2, name2);
+                    }
+                    break;
+                case BATCH_FSTATAT: {
+                    kernel_stat64 fdStat;
+
+                    rc = TEMP_FAILURE_RETRY(sys_fstatat64_fixed(fd, name, &fdStat, op -> flags));
+
+                    if (rc == 0) {
+                        stat -> dev = fdStat.st_dev;
+                        stat -> ino = fdStat.st_ino;
+                        stat -> size = fdStat.st_size;
+                        stat -> mtime_ms = (int64_t) fdStat.st_mtime_ * 1000 + fdStat.st_mtime_nsec_ / 1000000;
+                        stat -> mode = fdStat.st_mode;
+                        stat -> blksize = fdStat.st_blksize;
+                    }
+                    break;
+                }
+                case BATCH_FSYNC:
+                    rc = TEMP_FAILURE_RETRY(fsync(fd));
+                    break;
+                case BATCH_CLOSE:
+                    // Linux releases the descriptor even if close() fails, don't retry
+                    rc = close(fd);
+                    break;
+                default:
+                    errno = EINVAL;
+            }
+        }
+
+        if (rc < 0) {
+            result -> value = 0;
+            result -> err = stat -> err = errno;
+            failed = true;
+        } else {
+            result -> value = op -> op == BATCH_OPENAT ? rc : 0;
+            result -> err = 0;
+        }
     }
+}
 
+JNIEXPORT void JNICALL PKG_SYM(nativeFstatAt)(JNIEnv *env, jclass type, jint dir, jlong pathname, jobject statStruct, jint flags) {
     kernel_stat64 fdStat;
 
     jint fileTypeOrdinal = 0;
 
-    if (TEMP_FAILURE_RETRY(sys_fstatat64_fixed(dir, utf8Path, &fdStat, flags))) {
+    if (TEMP_FAILURE_RETRY(sys_fstatat64_fixed(dir, PATH(pathname), &fdStat, flags))) {
         handleError(env);
-        goto cleanup;
+        return;
     }
 
     if (S_ISBLK(fdStat.st_mode)) {
@@ -1050,9 +1216,6 @@ JNIEXPORT void JNICALL PKG_SYM(nativeFstatAt)(JNIEnv *env, jclass type, jint dir
 
     env -> CallNonvirtualVoidMethod(statStruct, statContainer, statContainerInit,
                                     fdStat.st_dev, fdStat.st_ino, fdStat.st_size, fdStat.st_blksize, fileTypeOrdinal);
-
-    cleanup:
-    freeUtf8(env, isArray, pathname, utf8Path);
 }
 
 }
\ No newline at end of file
@@ -25,11 +25,18 @@ import net.sf.fakenames.fdlib.BuildConfig;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
 
 import static net.sf.xfd.NativeBits.*;
 
 final class Android extends OS {
+    private final ThreadLocal<PathBuffer> pathBuffers = new ThreadLocal<PathBuffer>() {
+        @Override
+        protected PathBuffer initialValue() {
+            return new PathBuffer(GuardFactory.getInstance(Android.this));
+        }
+    };
+
     Android() {}
 
     private static volatile Android instance;
@@ -65,7 +72,11 @@ final class Android extends OS {
     @Override
     @CheckResult
     public int creat(@NonNull CharSequence path, int mode) throws IOException {
-        return nativeCreat(toNative(path), mode);
+        final long pathPtr = pathBuffers.get().first(path);
+
+        FdTracker.beforeOpen();
+
+        return FdTracker.opened(nativeCreat(pathPtr, mode));
     }
 
     @Override
@@ -79,11 +90,65 @@ final class Android extends OS {
     @Override
     @SuppressWarnings("WrongConstant")
     public @Fd int openat(@DirFd int fd, @NonNull CharSequence pathname, int flags, int mode) throws IOException {
+        final long pathPtr = pathBuffers.get().first(pathname);
+
+        FdTracker.beforeOpen();
+
         if ((flags & BLOCKING_FLAGS) != 0) {
-            return nativeOpenAt(fd, toNative(pathname), flags, mode);
+            return FdTracker.opened(nativeOpenAt(fd, pathPtr, flags, mode));
         } else {
-            return blockingOpen(fd, pathname, flags, mode);
+            return FdTracker.opened(blockingOpen(fd, pathPtr, flags, mode));
+        }
+    }
+
+    // app seccomp policy of older Android releases kills the process upon syscalls, unknown to bionic
+    private static final boolean OPENAT2_ALLOWED = Build.VERSION.SDK_INT >= 31;
+
+    private static volatile boolean openat2Missing;
+
+    /**
+     * Use {@code openat2(2)}, if the kernel supports it, otherwise resolve the path in userspace.
+     *
+     * <p/>
+     *
+     * Opening a file, that may block (such as FIFO), is done in two steps: the path is resolved
+     * by {@code openat2} with {@code O_PATH}, then the resulting descriptor is reopened
+     * via {@code /proc/self/fd/} in interruptible way, same as {@link #openat} does it.
+     */
+    @Override
+    @SuppressWarnings("WrongConstant")
+    public @Fd int openat2(@DirFd int fd, @NonNull CharSequence pathname, @NonNull OpenHow how) throws IOException {
+        if (OPENAT2_ALLOWED && !openat2Missing) {
+            final long pathPtr = pathBuffers.get().first(pathname);
+
+            try {
+                if ((how.flags & (BLOCKING_FLAGS | O_PATH | O_CREAT)) != 0) {
+                    FdTracker.beforeOpen();
+
+                    return FdTracker.opened(nativeOpenAtResolve(fd, pathPtr, how.flags, how.mode, how.resolve));
+                }
+
+                final int pathFd = nativeOpenAtResolve(fd, pathPtr, O_PATH | (how.flags & O_NOFOLLOW), 0, how.resolve);
+                try {
+                    return openat(DirFd.AT_FDCWD, "/proc/self/fd/" + pathFd, how.flags & ~O_NOFOLLOW, 0);
+                } finally {
+                    nativeClose(pathFd);
+                }
+            } catch (ErrnoException e) {
+                if (e.code() != ErrnoException.ENOSYS) {
+                    throw e;
+                }
+
+                openat2Missing = true;
+            }
         }
+
+        return super.openat2(fd, pathname, how);
+    }
+
+    @Override
+    public boolean hasNativeOpenat2() {
+        return OPENAT2_ALLOWED && !openat2Missing;
     }
 
     @Override
@@ -95,53 +160,158 @@ final class Android extends OS {
     @Override
     @SuppressWarnings("WrongConstant")
     public @DirFd int opendirat(@DirFd int fd, @NonNull CharSequence name) throws IOException {
-        return nativeOpenAt(fd, toNative(name), O_NOCTTY | O_DIRECTORY, 0);
+        final long pathPtr = pathBuffers.get().first(name);
+
+        FdTracker.beforeOpen();
+
+        return FdTracker.opened(nativeOpenAt(fd, pathPtr, O_NOCTTY | O_DIRECTORY, 0));
     }
 
     @NonNull
     @Override
     public CharSequence readlinkat(@DirFd int fd, @NonNull CharSequence pathname) throws IOException {
-        return fromNative(nativeReadlink(fd, toNative(pathname)));
+        final Object resolved = nativeReadlink(fd, pathBuffers.get().first(pathname));
+
+        return resolved == null ? pathname : fromNative(resolved);
     }
 
     @Override
     public void symlinkat(@NonNull CharSequence name, @DirFd int target, @NonNull CharSequence newpath) throws IOException {
-        nativeSymlinkAt(toNative(name), target, toNative(newpath));
+        final PathBuffer paths = pathBuffers.get();
+
+        nativeSymlinkAt(paths.first(name), target, paths.second(newpath));
     }
 
     @Override
     public void linkat(@DirFd int oldDirFd, @NonNull CharSequence oldName, @DirFd int newDirFd, @NonNull CharSequence newName, @LinkAtFlags int flags) throws IOException {
-        nativeLinkAt(oldDirFd, toNative(oldName), newDirFd, toNative(newName), flags);
+        final PathBuffer paths = pathBuffers.get();
+
+        nativeLinkAt(oldDirFd, paths.first(oldName), newDirFd, paths.second(newName), flags);
     }
 
     @Override
     public void unlinkat(@DirFd int target, @NonNull CharSequence name, @UnlinkAtFlags int flags) throws IOException {
-        nativeUnlinkAt(target, toNative(name), flags);
+        nativeUnlinkAt(target, pathBuffers.get().first(name), flags);
     }
 
     @Override
     public void mknodat(@DirFd int target, @NonNull CharSequence name, @FileTypeFlag int mode, int device) throws IOException {
-        nativeMknodAt(target, toNative(name), mode, device);
+        nativeMknodAt(target, pathBuffers.get().first(name), mode, device);
     }
 
     @Override
     public void mkdirat(@DirFd int target, @NonNull CharSequence name, int mode) throws IOException {
-        nativeMkdirAt(target, toNative(name), mode);
+        nativeMkdirAt(target, pathBuffers.get().first(name), mode);
     }
 
     @Override
     public boolean faccessat(int fd, @NonNull CharSequence pathname, int mode) throws IOException {
-        return nativeFaccessAt(fd, toNative(pathname), mode);
+        return nativeFaccessAt(fd, pathBuffers.get().first(pathname), mode);
     }
 
     @Override
     public void fstatat(int dir, @NonNull CharSequence pathname, @NonNull Stat stat, int flags) throws IOException {
-        nativeFstatAt(dir, toNative(pathname), stat, flags);
+        nativeFstatAt(dir, pathBuffers.get().first(pathname), stat, flags);
+    }
+
+    /**
+     * Retrieve extended file information via {@code statx(2)}. On kernels without statx support
+     * {@code fstatat(2)} is used instead, and all basic fields are filled regardless of requested mask.
+     */
+    @Override
+    public void statx(@DirFd int dir, @NonNull CharSequence pathname, int flags, int mask, @NonNull Stat stat) throws IOException {
+        nativeStatx(dir, pathBuffers.get().first(pathname), flags, mask, stat);
+    }
+
+    @Override
+    public void fstatatBulk(@DirFd int dir, @NonNull CharSequence[] names, int count, @NonNull StatBatch batch, int flags) throws IOException {
+        if (count > names.length || count > batch.capacity()) {
+            throw new IllegalArgumentException("Batch is too small: " + count + " names, capacity " + batch.capacity());
+        }
+
+        // layout: count result structs, count name offsets, NUL-terminated names
+        final int offsetsStart = count * StatBatch.NATIVE_SIZE;
+        final int namesStart = offsetsStart + count * 4;
+
+        int size = namesStart;
+
+        for (int i = 0; i < count; ++i) {
+            size += PathBuffer.maxEncodedSize(names[i]);
+        }
+
+        try (Arena arena = ArenaPool.getInstance(this).obtain(size)) {
+            final ByteBuffer buffer = arena.getBuf();
+
+            int pos = namesStart;
+
+            for (int i = 0; i < count; ++i) {
+                final CharSequence name = names[i];
+
+                final int offsetPos = offsetsStart + i * 4;
+
+                try {
+                    final int end = PathBuffer.encode(buffer, name, pos, pos + PathBuffer.maxEncodedSize(name) - 1);
+
+                    buffer.putInt(offsetPos, pos - offsetsStart);
+
+                    pos = end + 1;
+                } catch (ErrnoException e) {
+                    buffer.putInt(offsetPos, -1);
+
+                    StatBatch.writeError(buffer, i, e.code());
+                }
+            }
+
+            nativeFstatAtBulk(dir, arena.getPtr() + offsetsStart, arena.getPtr(), count, flags);
+
+            batch.read(buffer, count);
+        }
+    }
+
+    /**
+     * Execute the whole batch in one native call. Opening FIFOs or other files, that may block,
+     * within a batch can not be interrupted.
+     */
+    @Override
+    public void execute(@NonNull OpBatch batch) throws IOException {
+        final int count = batch.count;
+
+        if (count == 0) {
+            return;
+        }
+
+        // layout: operations, results, stat structs, NUL-terminated names
+        final int resultsStart = count * OpBatch.OP_SIZE;
+        final int statsStart = resultsStart + count * OpBatch.RESULT_SIZE;
+        final int namesStart = statsStart + count * StatBatch.NATIVE_SIZE;
+
+        for (int i = 0; i < count; ++i) {
+            if (batch.ops[i] == OpBatch.OP_OPENAT) {
+                FdTracker.beforeOpen();
+                break;
+            }
+        }
+
+        try (Arena arena = ArenaPool.getInstance(this).obtain(namesStart + batch.namesSize())) {
+            final ByteBuffer buffer = arena.getBuf();
+
+            batch.write(buffer, 0, resultsStart, namesStart);
+
+            final long ptr = arena.getPtr();
+
+            nativeExecute(ptr, ptr + resultsStart, ptr + statsStart, ptr + namesStart, count, batch.stopOnError);
+
+            batch.read(buffer, resultsStart, statsStart);
+        }
+
+        batch.trackDescriptors();
     }
 
     @Override
     public void renameat(@DirFd int fd, CharSequence name, @DirFd int fd2, CharSequence name2) throws IOException {
-        nativeRenameAt(fd, toNative(name), fd2, toNative(name2));
+        final PathBuffer paths = pathBuffers.get();
+
+        nativeRenameAt(fd, paths.first(name), fd2, paths.second(name2));
     }
 
     @Override
@@ -195,7 +365,7 @@ final class Android extends OS {
         } catch (ErrnoException ignored) {
         }
 
-        final Arena buf = Arena.allocate(size, Arena.PAGE_ALIGN, GuardFactory.getInstance(this));
+        final Arena buf = ArenaPool.getInstance(this).obtain(size);
 
         return new DirectoryImpl(fd, buf);
     }
@@ -213,7 +383,7 @@ final class Android extends OS {
     public Copy copy() {
         int CHUNK_SIZE = 64 * 1024;
 
-        final Arena buf = Arena.allocate(CHUNK_SIZE, Arena.PAGE_ALIGN, GuardFactory.getInstance(this));
+        final Arena buf = ArenaPool.getInstance(this).obtain(CHUNK_SIZE);
 
         return new CopyImpl(buf);
     }
@@ -253,13 +423,29 @@ final class Android extends OS {
         return new InotifyImpl(fd, looper, createBuffer(), this);
     }
 
+    /**
+     * Create a wrapper around inotify descriptor, that dispatches notification callbacks to the
+     * supplied Executor instead of Looper thread. Callbacks for the same watch are never run
+     * concurrently, but callbacks of different watches may be, if the Executor uses multiple threads.
+     *
+     * This method should never throw.
+     *
+     * @param fd inotify descriptor, such as created by {@link #inotify_init}
+     * @param executor the Executor, used for dispatching notification callbacks
+     */
+    @NonNull
+    @Override
+    public Inotify observe(@InotifyFd int fd, @NonNull Executor executor) {
+        return new InotifyImpl(fd, executor, createBuffer(), this);
+    }
+
     private Arena createBuffer() {
         // If https://serverfault.com/a/9548 is to be trusted, the biggest filename length
         // in Linux as of 2026 is 510 bytes (VFAT UCS-2 filenames)
         // Let's go with Binder's favorite size and use 1Mb as upper bound of buffer size
         int MAX_BUF_SIZE = 1024 * 1024;
 
-        return Arena.allocate(MAX_BUF_SIZE, Arena.PAGE_ALIGN, GuardFactory.getInstance(this));
+        return ArenaPool.getInstance(this).obtain(MAX_BUF_SIZE);
     }
 
     /**
@@ -275,12 +461,13 @@ final class Android extends OS {
 
     @Override
     public void fsync(int fd) throws IOException {
-        InterruptibleStageImpl stage = InterruptibleStageImpl.get();
-        try {
-            nativeFsync(stage.i.nativePtr, fd);
-        } finally {
-            stage.end();
+        // fsync() can not be interrupted at all, so the only interruption worth reporting is one,
+        // that happened before the call: check for it instead of installing the interruption hook
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("fsync");
         }
+
+        nativeFsync(InterruptibleStageImpl.get().i.nativePtr, fd);
     }
 
     @Override
@@ -301,68 +488,95 @@ final class Android extends OS {
     public native void fadvise(@Fd int fd, long off, long length, int advice) throws IOException;
 
     @Override
-    public native void dup2(int source, int dest) throws IOException;
+    public void dup2(int source, int dest) throws IOException {
+        FdTracker.beforeOpen();
+
+        nativeDup2(source, dest);
+
+        FdTracker.opened(dest);
+    }
 
     @Override
-    public native int dup(int source) throws IOException;
+    public int dup(int source) throws IOException {
+        FdTracker.beforeOpen();
+
+        return FdTracker.opened(nativeDup(source));
+    }
 
     @Override
-    public native int inotify_init() throws IOException;
+    public int inotify_init() throws IOException {
+        FdTracker.beforeOpen();
+
+        return FdTracker.opened(nativeInotifyInit());
+    }
 
     @Override
     public native void fstat(int dir, @NonNull Stat stat) throws ErrnoException;
 
     @Override
-    public native void close(int fd) throws ErrnoException;
+    public void close(int fd) throws ErrnoException {
+        // Linux releases the descriptor even if close() fails
+        FdTracker.closed(fd);
 
-    private static int blockingOpen(@DirFd int fd, CharSequence pathname, int flags, int mode) throws IOException {
+        nativeClose(fd);
+    }
+
+    private static int blockingOpen(@DirFd int fd, long path, int flags, int mode) throws IOException {
         final InterruptibleStageImpl stage = InterruptibleStageImpl.get();
 
         stage.begin();
         try {
-            return nativeOpenAt2(stage.i.nativePtr, fd, toNative(pathname), flags, mode);
+            return nativeOpenAt2(stage.i.nativePtr, fd, path, flags, mode);
         } finally {
             stage.end();
         }
     }
 
-    private static Object toNative(CharSequence string) {
-        if (string.getClass() == NativeString.class) {
-            return ((NativeString) string).getBytes();
-        }
-
-        final String chars = string.toString();
-
-        return Build.VERSION.SDK_INT >= 23 ? chars : chars.getBytes(StandardCharsets.UTF_8);
-    }
-
     private static CharSequence fromNative(Object string) {
         return string.getClass() == String.class ? (String) string : new NativeString((byte[]) string);
     }
 
-    private static native void nativeFstatAt(@DirFd int dir, Object o, Stat stat, int flags);
+    // All file names below are pointers to NUL-terminated UTF-8 strings, see PathBuffer
+
+    private static native void nativeFstatAt(@DirFd int dir, long pathname, Stat stat, int flags) throws ErrnoException;
+
+    private static native void nativeStatx(@DirFd int dir, long pathname, int flags, int mask, Stat stat) throws ErrnoException;
+
+    private static native void nativeExecute(long ops, long results, long stats, long names, int count, boolean stopOnError);
 
-    private static native void nativeLinkAt(@DirFd int oldDirFd, Object o, @DirFd int newDirFd, Object o1, @LinkAtFlags int flags);
+    private static native void nativeFstatAtBulk(@DirFd int dir, long names, long results, int count, int flags);
 
-    private static native boolean nativeFaccessAt(int fd, Object pathname, int mode) throws ErrnoException;
+    private static native void nativeLinkAt(@DirFd int oldDirFd, long oldName, @DirFd int newDirFd, long newName, @LinkAtFlags int flags);
 
-    private static native void nativeRenameAt(@DirFd int fd, Object o, @DirFd int fd2, Object o1) throws ErrnoException;
+    private static native boolean nativeFaccessAt(int fd, long pathname, int mode) throws ErrnoException;
 
-    private static native void nativeMkdirAt(@DirFd int target, Object name, int mode) throws ErrnoException;
+    private static native void nativeRenameAt(@DirFd int fd, long name, @DirFd int fd2, long name2) throws ErrnoException;
 
-    private static native void nativeMknodAt(@DirFd int target, Object name, int mode, int device) throws ErrnoException;
+    private static native void nativeMkdirAt(@DirFd int target, long name, int mode) throws ErrnoException;
 
-    private static native void nativeUnlinkAt(@DirFd int target, Object name, int flags) throws ErrnoException;
+    private static native void nativeMknodAt(@DirFd int target, long name, int mode, int device) throws ErrnoException;
 
-    private static native void nativeSymlinkAt(Object name, @DirFd int target, Object newpath) throws ErrnoException;
+    private static native void nativeUnlinkAt(@DirFd int target, long name, int flags) throws ErrnoException;
 
-    private static native @Fd int nativeCreat(Object pathname, int mode) throws ErrnoException;
+    private static native void nativeSymlinkAt(long name, @DirFd int target, long newpath) throws ErrnoException;
 
-    private static native int nativeOpenAt(@DirFd int fd, Object pathname, int flags, int mode) throws ErrnoException;
+    private static native @Fd int nativeCreat(long pathname, int mode) throws ErrnoException;
 
-    private static native int nativeOpenAt2(long token, @DirFd int fd, Object pathname, int flags, int mode) throws IOException;
+    private static native int nativeOpenAt(@DirFd int fd, long pathname, int flags, int mode) throws ErrnoException;
 
-    private static native Object nativeReadlink(@DirFd int fd, Object pathname) throws IOException;
+    private static native int nativeOpenAt2(long token, @DirFd int fd, long pathname, int flags, int mode) throws IOException;
+
+    private static native Object nativeReadlink(@DirFd int fd, long pathname) throws IOException;
+
+    private native void nativeDup2(int source, int dest) throws ErrnoException;
+
+    private native int nativeDup(int source) throws ErrnoException;
+
+    private native int nativeInotifyInit() throws ErrnoException;
+
+    private static native void nativeClose(int fd) throws ErrnoException;
+
+    private static native @Fd int nativeOpenAtResolve(@DirFd int fd, long pathname, int flags, int mode, int resolve) throws ErrnoException;
 
     private static native void nativeSetrlimit(long cur, long max, int type) throws ErrnoException;
 
@@ -410,6 +624,8 @@ final class Android extends OS {
 
     static native boolean nativeInterrupted(long nativePtr);
 
+    static native void nativeSetFlag(long nativePtr);
+
     // Used by BlockingGuards
     static native void free(long pointer);
 }
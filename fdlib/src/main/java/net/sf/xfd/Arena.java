@@ -21,6 +21,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A wrapper around ByteBuffer, allocated in native memory.
@@ -29,6 +30,8 @@ import java.nio.ByteOrder;
  *
  * The memory, used by this class, is allocated by malloc/memalign, and
  * as such is *not* initialized.
+ *
+ * Arenas, obtained from {@link ArenaPool}, are returned to the pool when closed.
  */
 public final class Arena implements Closeable {
     public static final int PAGE_ALIGN = -1;
@@ -37,8 +40,14 @@ public final class Arena implements Closeable {
     private ByteBuffer buffer;
     private long pointer;
 
+    // the pool, that currently leased this arena, if any
+    private final AtomicReference<ArenaPool> owner = new AtomicReference<>();
+
+    // once pooled, arenas are freed only by the pool itself
+    private volatile boolean pooled;
+
     @Keep
-    private Arena(long pointer, ByteBuffer buffer, GuardFactory factory) {
+    Arena(long pointer, ByteBuffer buffer, GuardFactory factory) {
         this.pointer = pointer;
 
         this.guard = factory.forMemory(this, pointer);
@@ -56,6 +65,22 @@ public final class Arena implements Closeable {
 
     @Override
     public void close() {
+        final ArenaPool pool = owner.getAndSet(null);
+
+        if (pool != null) {
+            pool.recycle(this);
+        } else if (!pooled) {
+            guard.close();
+        }
+    }
+
+    void lease(ArenaPool pool) {
+        pooled = true;
+
+        owner.set(pool);
+    }
+
+    void dispose() {
         guard.close();
     }
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of page-aligned {@link Arena} instances of several fixed sizes.
+ *
+ * <p/>
+ *
+ * Arenas, obtained from the pool, are returned to it by {@link Arena#close}. Each thread keeps
+ * a few recently closed arenas of every size class; the rest go to a bounded global overflow list,
+ * and are freed once that is full. Arenas, that are never closed, are still freed when collected
+ * by GC, same as unpooled ones.
+ *
+ * <p/>
+ *
+ * The contents of obtained arena are unspecified, just like contents of newly allocated one.
+ */
+public final class ArenaPool {
+    public static final int SMALL = 4 * 1024;
+    public static final int MEDIUM = 64 * 1024;
+    public static final int LARGE = 1024 * 1024;
+
+    private static final int[] CLASS_SIZES = { SMALL, MEDIUM, LARGE };
+
+    // how many arenas of each class are kept by each thread
+    private static final int[] LOCAL_LIMITS = { 8, 2, 1 };
+
+    // how many arenas of each class are kept in global overflow list
+    private static final int[] GLOBAL_LIMITS = { 32, 8, 2 };
+
+    private static volatile ArenaPool instance;
+
+    public static ArenaPool getInstance(OS os) {
+        if (instance == null) {
+            synchronized (ArenaPool.class) {
+                if (instance == null) {
+                    final GuardFactory guards = GuardFactory.getInstance(os);
+
+                    instance = new ArenaPool(size -> Arena.allocate(size, Arena.PAGE_ALIGN, guards));
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Arena>[] global = new ArrayDeque[CLASS_SIZES.length];
+
+    private final ThreadLocal<LocalCache> local = new ThreadLocal<LocalCache>() {
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache();
+        }
+    };
+
+    private final Allocator allocator;
+
+    ArenaPool(Allocator allocator) {
+        this.allocator = allocator;
+
+        for (int i = 0; i < global.length; ++i) {
+            global[i] = new ArrayDeque<>(GLOBAL_LIMITS[i]);
+        }
+    }
+
+    /**
+     * Obtain an arena with capacity of at least {@code size} bytes. The capacity of returned arena
+     * is rounded up to the nearest size class. Requests, bigger than the largest size class, are
+     * served by allocating a new unpooled arena.
+     */
+    public @NonNull Arena obtain(int size) {
+        final int sizeClass = sizeClass(size);
+
+        if (sizeClass == -1) {
+            misses.incrementAndGet();
+
+            return allocator.allocate(size);
+        }
+
+        Arena arena = local.get().poll(sizeClass);
+
+        if (arena == null) {
+            final ArrayDeque<Arena> overflow = global[sizeClass];
+
+            synchronized (overflow) {
+                arena = overflow.pollFirst();
+            }
+        }
+
+        if (arena != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            arena = allocator.allocate(CLASS_SIZES[sizeClass]);
+        }
+
+        arena.lease(this);
+
+        return arena;
+    }
+
+    void recycle(Arena arena) {
+        final int sizeClass = sizeClass(arena.getBuf().capacity());
+
+        if (sizeClass == -1 || CLASS_SIZES[sizeClass] != arena.getBuf().capacity()) {
+            arena.dispose();
+            return;
+        }
+
+        arena.getBuf().clear();
+        arena.getBuf().order(ByteOrder.nativeOrder());
+
+        if (local.get().offer(sizeClass, arena)) {
+            return;
+        }
+
+        final ArrayDeque<Arena> overflow = global[sizeClass];
+
+        synchronized (overflow) {
+            if (overflow.size() < GLOBAL_LIMITS[sizeClass]) {
+                overflow.addFirst(arena);
+                return;
+            }
+        }
+
+        arena.dispose();
+    }
+
+    /**
+     * @return the number of requests, served by reusing previously closed arena
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests, that resulted in new native allocation
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; ++i) {
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // allocates new page-aligned arenas, when there is nothing to reuse
+    interface Allocator {
+        Arena allocate(int size);
+    }
+
+    private static final class LocalCache {
+        private final Arena[][] arenas = new Arena[CLASS_SIZES.length][];
+        private final int[] counts = new int[CLASS_SIZES.length];
+
+        LocalCache() {
+            for (int i = 0; i < arenas.length; ++i) {
+                arenas[i] = new Arena[LOCAL_LIMITS[i]];
+            }
+        }
+
+        Arena poll(int sizeClass) {
+            final int count = counts[sizeClass];
+
+            if (count == 0) {
+                return null;
+            }
+
+            final Arena[] stack = arenas[sizeClass];
+
+            final Arena result = stack[count - 1];
+
+            stack[count - 1] = null;
+
+            counts[sizeClass] = count - 1;
+
+            return result;
+        }
+
+        boolean offer(int sizeClass, Arena arena) {
+            final int count = counts[sizeClass];
+
+            final Arena[] stack = arenas[sizeClass];
+
+            if (count == stack.length) {
+                return false;
+            }
+
+            stack[count] = arena;
+
+            counts[sizeClass] = count + 1;
+
+            return true;
+        }
+    }
+}
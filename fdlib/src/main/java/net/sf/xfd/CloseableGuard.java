@@ -17,56 +17,84 @@ package net.sf.xfd;
 
 import android.util.Log;
 
+import com.carrotsearch.hppc.ObjectIntHashMap;
+import com.carrotsearch.hppc.ObjectIntMap;
+import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A PhantomReference, that invokes {@link #trigger} once the referent becomes phantom-reachable,
+ * unless the guard has been closed earlier.
+ *
+ * <p/>
+ *
+ * Live guards are kept in several independent lists ("shards"), so that threads, creating and
+ * closing guards concurrently, rarely contend for the same lock. Each guard is removed from it's
+ * shard exactly once, either by {@link #remove} or by the reaper thread, which guarantees, that
+ * {@link #trigger} is not invoked after (or concurrently with) explicit close.
+ */
 public abstract class CloseableGuard<T> extends PhantomReference<T> implements Guard {
     private static final String TAG = "CloseableGuard";
 
+    private static final int SHARD_COUNT = 16;
+
     static {
         new CleanerThread().start();
     }
 
     private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
 
-    static private CloseableGuard first = null;
+    private static final Shard[] shards = new Shard[SHARD_COUNT];
 
-    private CloseableGuard next, prev;
+    static {
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new Shard();
+        }
+    }
 
-    private static synchronized void add(CloseableGuard cl) {
-        if (first != null) {
-            cl.next = first;
+    private static final AtomicInteger nextShard = new AtomicInteger();
 
-            first.prev = cl;
-        }
+    private final Shard shard;
 
-        first = cl;
-    }
+    private CloseableGuard next, prev;
 
-    protected static synchronized boolean remove(CloseableGuard cl) {
-        // If already removed, do nothing
-        if (cl.next == cl) return false;
+    protected static boolean remove(CloseableGuard cl) {
+        return cl.shard.remove(cl);
+    }
 
-        cl.clear();
+    /**
+     * @return the number of guards of all types, that are neither closed nor triggered yet
+     */
+    public static int getLiveCount() {
+        int total = 0;
 
-        // Update list
-        if (first == cl) {
-            if (cl.next != null)
-            first = cl.next;
-             else
-            first = cl.prev;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.size;
+            }
         }
 
-        if (cl.next != null) cl.next.prev = cl.prev;
-
-        if (cl.prev != null) cl.prev.next = cl.next;
+        return total;
+    }
 
-        // Indicate removal by pointing the cleaner to itself
+    /**
+     * @return the number of guards, that are neither closed nor triggered yet, by guard class
+     */
+    public static ObjectIntMap<Class<?>> getLiveCounts() {
+        final ObjectIntHashMap<Class<?>> result = new ObjectIntHashMap<>();
 
-        cl.next = cl;
-        cl.prev = cl;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (ObjectIntCursor<Class<?>> count : shard.counts) {
+                    result.addTo(count.key, count.value);
+                }
+            }
+        }
 
-        return true;
+        return result;
     }
 
     protected volatile boolean closed;
@@ -74,7 +102,10 @@ public abstract class CloseableGuard<T> extends PhantomReference<T> implements G
     protected CloseableGuard(T r) {
         super(r, queue);
 
-        add(this);
+        // round-robin distributes guards evenly even if they are created by a single thread
+        this.shard = shards[nextShard.getAndIncrement() & (SHARD_COUNT - 1)];
+
+        shard.add(this);
     }
 
     protected abstract void trigger();
@@ -84,6 +115,59 @@ public abstract class CloseableGuard<T> extends PhantomReference<T> implements G
         remove(this);
     }
 
+    private static final class Shard {
+        private CloseableGuard first;
+
+        private int size;
+
+        private final ObjectIntHashMap<Class<?>> counts = new ObjectIntHashMap<>();
+
+        synchronized void add(CloseableGuard cl) {
+            if (first != null) {
+                cl.next = first;
+
+                first.prev = cl;
+            }
+
+            first = cl;
+
+            ++size;
+
+            counts.addTo(cl.getClass(), 1);
+        }
+
+        synchronized boolean remove(CloseableGuard cl) {
+            // If already removed, do nothing
+            if (cl.next == cl) return false;
+
+            cl.clear();
+
+            // Update list
+            if (first == cl) {
+                first = cl.next;
+            }
+
+            if (cl.next != null) cl.next.prev = cl.prev;
+
+            if (cl.prev != null) cl.prev.next = cl.next;
+
+            // Indicate removal by pointing the cleaner to itself
+
+            cl.next = cl;
+            cl.prev = cl;
+
+            --size;
+
+            final Class<?> type = cl.getClass();
+
+            if (counts.addTo(type, -1) == 0) {
+                counts.remove(type);
+            }
+
+            return true;
+        }
+    }
+
     @SuppressWarnings("InfiniteLoopStatement")
     private static final class CleanerThread extends Thread {
         private CleanerThread() {
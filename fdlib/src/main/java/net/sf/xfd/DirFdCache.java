@@ -0,0 +1,388 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded LRU cache of {@code O_PATH} directory descriptors, keyed by canonical directory path.
+ *
+ * <p/>
+ *
+ * Opening a file by absolute path makes the kernel walk every component of that path. Code, that
+ * repeatedly touches files in the same few directories, can instead {@link #lease} a descriptor
+ * of parent directory and use {@code *at()} calls with a single-component name.
+ *
+ * <p/>
+ *
+ * Directories may be renamed or replaced by other processes, so every cached descriptor is checked
+ * before being handed out: the kernel reports the current location of directory via
+ * {@code /proc/self/fd/}, which costs a single {@code readlink} of procfs instead of walking the
+ * whole path again, and the descriptor is reopened if the directory has moved or got removed.
+ * Mounting over the directory does not change it's location, so the cache registers as
+ * {@link MountInfo.MountChangeListener} and drops everything when mounts change. Call
+ * {@link #invalidate} after changing the directory tree yourself, or upon receiving inotify
+ * notification about such change, to drop the affected entries sooner. The directory may
+ * still change between the check and the use of descriptor, same as with any path lookup.
+ * Entries, that haven't been used for a while, are closed in background, so that cached
+ * descriptors don't keep removable storage busy.
+ *
+ * <p/>
+ *
+ * This class is thread-safe.
+ */
+public final class DirFdCache implements MountInfo.MountChangeListener {
+    private static final int OPEN_FLAGS = NativeBits.O_PATH | NativeBits.O_DIRECTORY;
+
+    private static final long MAX_IDLE_MS = 5000;
+
+    private static volatile ScheduledExecutorService sweeper;
+
+    private static ScheduledExecutorService getSweeper() {
+        if (sweeper == null) {
+            synchronized (DirFdCache.class) {
+                if (sweeper == null) {
+                    sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+                        final Thread thread = new Thread(r, "DirFdCache sweeper");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+
+        return sweeper;
+    }
+
+    private final LinkedHashMap<String, Lease> entries;
+
+    private final Runnable sweep = this::sweep;
+
+    private final Calls calls;
+    private final int capacity;
+
+    // incremented by every invalidation, so that descriptors, opened concurrently with it,
+    // are not put in cache
+    private long generation;
+
+    private boolean sweepScheduled;
+
+    private long hits;
+    private long misses;
+    private long stale;
+
+    public DirFdCache(@NonNull OS os, int capacity) {
+        this(new OsCalls(os), capacity);
+    }
+
+    DirFdCache(Calls calls, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.calls = calls;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Lease>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Lease> eldest) {
+                if (size() <= DirFdCache.this.capacity) {
+                    return false;
+                }
+
+                eldest.getValue().release();
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Obtain a descriptor of specified directory. The returned lease must be closed exactly once,
+     * the descriptor remains valid until then, even if the entry is evicted from cache.
+     *
+     * <p/>
+     *
+     * A cached descriptor is returned only if the directory is still at the location, where it
+     * was opened, otherwise the path is looked up again.
+     *
+     * @param directory canonical absolute path of directory, trailing slash is allowed
+     */
+    public @NonNull Lease lease(@NonNull String directory) throws IOException {
+        final String key = toKey(directory);
+
+        final Lease cached = leaseCached(key);
+
+        if (cached == null) {
+            return open(key);
+        }
+
+        if (isCurrent(cached)) {
+            return cached;
+        }
+
+        cached.close();
+
+        synchronized (this) {
+            ++stale;
+        }
+
+        // the directory has moved together with everything below it
+        invalidate(key);
+
+        return open(key);
+    }
+
+    private boolean isCurrent(Lease lease) {
+        try {
+            return lease.location.equals(calls.location(lease.fd));
+        } catch (IOException e) {
+            // let the caller get the error from fresh lookup
+            return false;
+        }
+    }
+
+    private synchronized Lease leaseCached(String key) {
+        final Lease cached = entries.get(key);
+
+        if (cached != null) {
+            ++hits;
+            ++cached.refs;
+
+            cached.lastUse = System.currentTimeMillis();
+
+            return cached;
+        }
+
+        ++misses;
+
+        return null;
+    }
+
+    private Lease open(String key) throws IOException {
+        final long openedAt;
+
+        synchronized (this) {
+            openedAt = generation;
+        }
+
+        final @DirFd int fd = calls.open(key);
+
+        String location = null;
+
+        try {
+            location = calls.location(fd);
+        } catch (IOException e) {
+            // can't be verified later, use once and close
+        }
+
+        final Lease created = new Lease(this, fd, location);
+
+        synchronized (this) {
+            if (location == null || openedAt != generation || entries.containsKey(key)) {
+                // lost a race, don't cache
+                return created;
+            }
+
+            ++created.refs;
+
+            entries.put(key, created);
+
+            if (!sweepScheduled) {
+                sweepScheduled = true;
+
+                getSweeper().schedule(sweep, MAX_IDLE_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return created;
+    }
+
+    /**
+     * Drop cached descriptors of specified directory and everything below it. Outstanding leases
+     * remain valid.
+     */
+    public synchronized void invalidate(@NonNull CharSequence directory) {
+        ++generation;
+
+        final String prefix = toKey(directory.toString());
+
+        final boolean root = prefix.length() == 1;
+
+        final Iterator<Map.Entry<String, Lease>> i = entries.entrySet().iterator();
+
+        while (i.hasNext()) {
+            final Map.Entry<String, Lease> entry = i.next();
+
+            final String path = entry.getKey();
+
+            if (root || path.startsWith(prefix) &&
+                    (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+                entry.getValue().release();
+
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        ++generation;
+
+        for (Lease lease : entries.values()) {
+            lease.release();
+        }
+
+        entries.clear();
+    }
+
+    @Override
+    public void onMountsChanged(MountInfo.MountDiff diff) {
+        clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of cached descriptors, that were found to refer to moved or removed
+     * directory and reopened
+     */
+    public synchronized long getStaleCount() {
+        return stale;
+    }
+
+    private synchronized void sweep() {
+        final long threshold = System.currentTimeMillis() - MAX_IDLE_MS;
+
+        // access order: least recently used entries come first
+        final Iterator<Lease> i = entries.values().iterator();
+
+        while (i.hasNext()) {
+            final Lease lease = i.next();
+
+            if (lease.lastUse > threshold) {
+                break;
+            }
+
+            lease.release();
+
+            i.remove();
+        }
+
+        if (entries.isEmpty()) {
+            sweepScheduled = false;
+        } else {
+            getSweeper().schedule(sweep, MAX_IDLE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String toKey(String directory) {
+        final int length = directory.length();
+
+        return length > 1 && directory.charAt(length - 1) == '/'
+                ? directory.substring(0, length - 1)
+                : directory;
+    }
+
+    // the system calls, used by cache
+    interface Calls {
+        @DirFd int open(String path) throws IOException;
+
+        // the current absolute path of directory
+        String location(@DirFd int fd) throws IOException;
+
+        void close(@DirFd int fd);
+    }
+
+    private static final class OsCalls implements Calls {
+        private final OS os;
+
+        OsCalls(OS os) {
+            this.os = os;
+        }
+
+        @Override
+        @SuppressWarnings("WrongConstant")
+        public @DirFd int open(String path) throws IOException {
+            return os.openat(DirFd.AT_FDCWD, path, OPEN_FLAGS, 0);
+        }
+
+        @Override
+        public String location(@DirFd int fd) throws IOException {
+            // the descriptor belongs to this process, even if it was opened by privileged helper
+            return OS.getInstance().readlinkat(DirFd.AT_FDCWD, "/proc/self/fd/" + fd).toString();
+        }
+
+        @Override
+        public void close(@DirFd int fd) {
+            os.dispose(fd);
+        }
+    }
+
+    /**
+     * A reference-counted directory descriptor. Instances are shared between concurrent users,
+     * the descriptor is closed after it has been evicted from cache and all leases are closed.
+     */
+    public static final class Lease implements Closeable {
+        public final @DirFd int fd;
+
+        private final DirFdCache cache;
+
+        // the location of directory at the time of opening
+        private final String location;
+
+        // guarded by cache
+        private int refs = 1;
+        private long lastUse = System.currentTimeMillis();
+
+        private Lease(DirFdCache cache, @DirFd int fd, String location) {
+            this.cache = cache;
+            this.fd = fd;
+            this.location = location;
+        }
+
+        @Override
+        public void close() {
+            synchronized (cache) {
+                release();
+            }
+        }
+
+        // must be called with cache lock held
+        private void release() {
+            if (--refs == 0) {
+                cache.calls.close(fd);
+            }
+        }
+    }
+}
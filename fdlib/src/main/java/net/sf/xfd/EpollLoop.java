@@ -0,0 +1,530 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.Nullable;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.ObjectArrayList;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An event loop, built directly on top of Linux {@code epoll (7)}. Unlike {@link SelectorThread}
+ * it accepts raw file descriptors (inotify, /proc/self/mountinfo, pipes, eventfd etc.), so there
+ * is no need to disguise them as {@link java.nio.channels.SelectableChannel}.
+ *
+ * <p/>
+ *
+ * Ready events are fetched in batches and dispatched on the thread of the loop. Registration and
+ * unregistration can be performed from any thread and never wait for the loop to wake up: by the time
+ * {@link #unregister} returns, the descriptor is removed from {@code epoll} interest list and it's
+ * {@link Task} won't be called again (but an invocation, that has already begun, may still be running).
+ *
+ * <p/>
+ *
+ * Callbacks, that may take long time to complete, should be registered with an {@link Executor}
+ * to avoid stalling other descriptors, served by the same loop. See also {@link EpollLoopGroup}.
+ */
+public final class EpollLoop extends Thread implements Closeable {
+    public static final int EPOLLIN = 0x001;
+    public static final int EPOLLPRI = 0x002;
+    public static final int EPOLLOUT = 0x004;
+    public static final int EPOLLERR = 0x008;
+    public static final int EPOLLHUP = 0x010;
+
+    /**
+     * Request edge-triggered notifications. When this flag is used, {@link Task#run} must consume
+     * all available data (or return {@code false} to be called again).
+     */
+    public static final int EPOLLET = 1 << 31;
+
+    private static final int EPOLLONESHOT = 1 << 30;
+
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLL_CTL_MOD = 3;
+
+    private static final int MAX_EVENTS = 64;
+
+    // must match struct loop_event in epoll.cpp
+    private static final int EVENT_SIZE = 16;
+    private static final int EVENT_OFF_TOKEN = 0;
+    private static final int EVENT_OFF_EVENTS = 8;
+
+    private static final long WAKEUP_TOKEN = 0;
+
+    private final Object lock = new Object();
+
+    private final @Fd int epollFd;
+    private final @Fd int wakeupFd;
+    private final Arena arena;
+    private final ByteBuffer eventBuffer;
+    private final long eventPtr;
+
+    private final OS os;
+
+    // slot index -> key, grown under lock; the loop thread reads it without locking
+    private volatile AtomicReferenceArray<Key> slots = new AtomicReferenceArray<>(16);
+
+    private final IntArrayList freeSlots = new IntArrayList();
+
+    private final ObjectArrayList<Key> retried = new ObjectArrayList<>();
+
+    private int slotCount;
+    private int generation;
+    private int registrations;
+
+    // statistics, written by the loop thread only
+    private volatile long wakeups;
+    private volatile long tasksRun;
+    private volatile long callbackNanos;
+    private volatile long waitNanos;
+
+    private volatile boolean done;
+
+    private boolean released;
+
+    public EpollLoop() throws IOException {
+        this("Epoll thread");
+    }
+
+    public EpollLoop(String name) throws IOException {
+        super(name);
+
+        this.os = OS.getInstance();
+
+        this.epollFd = nativeCreate();
+
+        try {
+            this.wakeupFd = nativeCreateWakeup();
+
+            try {
+                nativeCtl(epollFd, EPOLL_CTL_ADD, wakeupFd, EPOLLIN, WAKEUP_TOKEN);
+            } catch (IOException e) {
+                os.dispose(wakeupFd);
+
+                throw e;
+            }
+        } catch (IOException e) {
+            os.dispose(epollFd);
+
+            throw e;
+        }
+
+        this.arena = Arena.allocate(MAX_EVENTS * EVENT_SIZE, 8, GuardFactory.getInstance(os));
+        this.eventPtr = arena.getPtr();
+        this.eventBuffer = arena.getBuf();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!done) {
+                final long waitStart = System.nanoTime();
+
+                final int count = nativeWait(epollFd, eventPtr, MAX_EVENTS, retried.isEmpty() ? -1 : 0);
+
+                waitNanos += System.nanoTime() - waitStart;
+
+                ++wakeups;
+
+                final int retriedCount = retried.size();
+
+                for (int i = 0; i < count; ++i) {
+                    if (done) {
+                        return;
+                    }
+
+                    final int offset = i * EVENT_SIZE;
+
+                    final long token = eventBuffer.getLong(offset + EVENT_OFF_TOKEN);
+
+                    if (token == WAKEUP_TOKEN) {
+                        nativeDrain(wakeupFd);
+                        continue;
+                    }
+
+                    final Key key = lookup(token);
+
+                    if (key != null && !key.retry) {
+                        dispatch(key);
+                    }
+                }
+
+                for (int i = 0; i < retriedCount; ++i) {
+                    if (done) {
+                        return;
+                    }
+
+                    final Key key = retried.get(i);
+
+                    key.retry = false;
+
+                    if (key.valid) {
+                        dispatch(key);
+                    }
+                }
+
+                retried.removeRange(0, retriedCount);
+            }
+        } catch (IOException ioe) {
+            LogUtil.logCautiously("Received exception from epoll", ioe);
+        } finally {
+            synchronized (lock) {
+                done = true;
+
+                release();
+            }
+        }
+    }
+
+    private Key lookup(long token) {
+        final int slot = (int) token;
+        final int keyGeneration = (int) (token >>> 32);
+
+        final AtomicReferenceArray<Key> slots = this.slots;
+
+        if (slot < 0 || slot >= slots.length()) {
+            return null;
+        }
+
+        final Key key = slots.get(slot);
+
+        if (key == null || key.generation != keyGeneration || !key.valid) {
+            // a stale event, queued before the key was unregistered
+            return null;
+        }
+
+        return key;
+    }
+
+    private void dispatch(Key key) {
+        ++tasksRun;
+
+        if (key.executor != null) {
+            key.executor.execute(key);
+            return;
+        }
+
+        final long callbackStart = System.nanoTime();
+
+        final boolean complete = key.invoke();
+
+        callbackNanos += System.nanoTime() - callbackStart;
+
+        if (!complete && key.valid) {
+            key.retry = true;
+
+            retried.add(key);
+        }
+    }
+
+    void rearm(Key key) {
+        synchronized (lock) {
+            if (!key.valid || released) {
+                return;
+            }
+
+            try {
+                nativeCtl(epollFd, EPOLL_CTL_MOD, key.fd, key.events, key.token());
+            } catch (IOException e) {
+                LogUtil.logCautiously("Failed to re-enable " + key.fd, e);
+            }
+        }
+    }
+
+    /**
+     * Start monitoring the specified file descriptor. The descriptor is not owned by the loop and
+     * must be kept open until {@link #unregister} is called.
+     *
+     * @param fd the descriptor to monitor
+     * @param events a combination of {@code EPOLL*} flags, such as {@link #EPOLLIN}
+     * @param onReady the callback to run on this loop's thread, when the descriptor becomes ready.
+     *                If it returns {@code false}, it will be called again shortly
+     *
+     * @throws ClosedSelectorException if the loop has already been closed
+     */
+    public Key register(@Fd int fd, int events, Task onReady) throws IOException {
+        return register(fd, events, onReady, null);
+    }
+
+    /**
+     * Start monitoring the specified file descriptor, running the callback on the supplied Executor.
+     * The descriptor is disabled while the callback runs, so it is never called concurrently
+     * with itself. Use this for callbacks, that may block or take long time to complete.
+     * A callback, returning {@code false}, is resubmitted to the Executor right away, so callbacks,
+     * waiting for a lock or other resource, should block instead of polling for it.
+     *
+     * @see #register(int, int, Task)
+     */
+    public Key register(@Fd int fd, int events, Task onReady, @Nullable Executor executor) throws IOException {
+        if (executor != null) {
+            events |= EPOLLONESHOT;
+        }
+
+        synchronized (lock) {
+            if (done) {
+                throw new ClosedSelectorException();
+            }
+
+            final int slot;
+
+            if (freeSlots.isEmpty()) {
+                slot = slotCount++;
+
+                AtomicReferenceArray<Key> slots = this.slots;
+
+                if (slot == slots.length()) {
+                    final AtomicReferenceArray<Key> newSlots = new AtomicReferenceArray<>(slots.length() * 2);
+
+                    for (int i = 0; i < slots.length(); ++i) {
+                        newSlots.set(i, slots.get(i));
+                    }
+
+                    this.slots = newSlots;
+                }
+            } else {
+                slot = freeSlots.remove(freeSlots.size() - 1);
+            }
+
+            // generation 0 is reserved for the wakeup descriptor
+            if (++generation == 0) {
+                generation = 1;
+            }
+
+            final Key key = new Key(this, fd, events, slot, generation, onReady, executor);
+
+            // publish before epoll_ctl, otherwise the first (edge-triggered) event may be lost
+            slots.set(slot, key);
+
+            try {
+                nativeCtl(epollFd, EPOLL_CTL_ADD, fd, events, key.token());
+            } catch (IOException e) {
+                key.valid = false;
+
+                slots.set(slot, null);
+
+                freeSlots.add(slot);
+
+                throw e;
+            }
+
+            ++registrations;
+
+            return key;
+        }
+    }
+
+    /**
+     * Stop monitoring the descriptor, associated with key. This method does not block. After it
+     * returns, the descriptor can be safely closed or reused.
+     *
+     * <p/>
+     *
+     * This method is idempotent, second and following calls have no effect.
+     */
+    public void unregister(Key key) {
+        synchronized (lock) {
+            if (!key.valid) {
+                return;
+            }
+
+            key.valid = false;
+
+            --registrations;
+
+            if (released) {
+                return;
+            }
+
+            slots.set(key.slot, null);
+
+            freeSlots.add(key.slot);
+
+            try {
+                nativeCtl(epollFd, EPOLL_CTL_DEL, key.fd, 0, 0);
+            } catch (IOException e) {
+                // the descriptor was probably closed before being unregistered, which means,
+                // that the kernel has already removed it from epoll set
+                LogUtil.logCautiously("Failed to unregister " + key.fd, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of descriptors, currently registered with this loop
+     */
+    public int getRegistrationCount() {
+        synchronized (lock) {
+            return registrations;
+        }
+    }
+
+    /**
+     * @return the number of times the loop has returned from {@code epoll_wait}
+     */
+    public long getWakeupCount() {
+        return wakeups;
+    }
+
+    /**
+     * @return the number of callbacks, run (or submitted to Executor) by the loop
+     */
+    public long getTaskCount() {
+        return tasksRun;
+    }
+
+    /**
+     * @return total time, spent by the loop thread in callbacks, in nanoseconds
+     */
+    public long getCallbackTime() {
+        return callbackNanos;
+    }
+
+    /**
+     * @return total time, spent by the loop thread waiting in {@code epoll_wait}, in nanoseconds
+     */
+    public long getWaitTime() {
+        return waitNanos;
+    }
+
+    private void release() {
+        if (released) {
+            return;
+        }
+
+        released = true;
+
+        os.dispose(wakeupFd);
+        os.dispose(epollFd);
+
+        arena.close();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+
+            if (getState() == State.NEW) {
+                release();
+            } else {
+                try {
+                    nativeWakeup(wakeupFd);
+                } catch (IOException e) {
+                    LogUtil.logCautiously("Failed to wake up epoll thread", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A registration of file descriptor with {@link EpollLoop}.
+     */
+    public static final class Key implements Runnable {
+        private final EpollLoop loop;
+        private final int fd;
+        private final int events;
+        private final int slot;
+        private final int generation;
+        private final Task task;
+        private final Executor executor;
+
+        private volatile boolean valid = true;
+
+        // accessed only by the loop thread
+        private boolean retry;
+
+        private Key(EpollLoop loop, @Fd int fd, int events, int slot, int generation, Task task, Executor executor) {
+            this.loop = loop;
+            this.fd = fd;
+            this.events = events;
+            this.slot = slot;
+            this.generation = generation;
+            this.task = task;
+            this.executor = executor;
+        }
+
+        private boolean invoke() {
+            try {
+                return task.run();
+            } catch (Exception e) {
+                LogUtil.logCautiously("Received exception from polled resource", e);
+
+                return true;
+            }
+        }
+
+        // runs on the Executor
+        @Override
+        public void run() {
+            if (!valid) {
+                return;
+            }
+
+            if (invoke()) {
+                loop.rearm(this);
+            } else {
+                executor.execute(this);
+            }
+        }
+
+        private long token() {
+            return ((long) generation << 32) | (slot & 0xffffffffL);
+        }
+
+        public EpollLoop loop() {
+            return loop;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    public interface Task {
+        boolean run();
+    }
+
+    private static native @Fd int nativeCreate() throws ErrnoException;
+
+    private static native @Fd int nativeCreateWakeup() throws ErrnoException;
+
+    private static native void nativeCtl(@Fd int epollFd, int op, @Fd int fd, int events, long token) throws ErrnoException;
+
+    private static native int nativeWait(@Fd int epollFd, long buffer, int maxEvents, int timeout) throws ErrnoException;
+
+    private static native void nativeWakeup(@Fd int eventFd) throws ErrnoException;
+
+    private static native void nativeDrain(@Fd int eventFd) throws ErrnoException;
+
+    static {
+        try {
+            Android.loadLibraries();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of {@link EpollLoop} threads, sharing the load of monitored descriptors, and an
+ * auxiliary Executor for callbacks, that are too slow to run on the loop thread itself.
+ *
+ * <p/>
+ *
+ * Loops are started upon creation of group and stopped by {@link #close}.
+ */
+public final class EpollLoopGroup implements Closeable {
+    private final EpollLoop[] loops;
+
+    private final ThreadPoolExecutor callbackExecutor;
+
+    public EpollLoopGroup(int loopCount) throws IOException {
+        if (loopCount <= 0) {
+            throw new IllegalArgumentException("Loop count must be positive");
+        }
+
+        loops = new EpollLoop[loopCount];
+
+        try {
+            for (int i = 0; i < loopCount; ++i) {
+                loops[i] = new EpollLoop("Epoll thread #" + i);
+            }
+        } catch (IOException e) {
+            for (EpollLoop loop : loops) {
+                if (loop != null) {
+                    loop.close();
+                }
+            }
+
+            throw e;
+        }
+
+        for (EpollLoop loop : loops) {
+            loop.start();
+        }
+
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        callbackExecutor = new ThreadPoolExecutor(threads, threads, 20L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "Epoll callback thread"));
+
+        callbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the loop with least number of registered descriptors
+     */
+    public EpollLoop next() {
+        EpollLoop best = loops[0];
+
+        int bestCount = best.getRegistrationCount();
+
+        for (int i = 1; i < loops.length && bestCount != 0; ++i) {
+            final int count = loops[i].getRegistrationCount();
+
+            if (count < bestCount) {
+                best = loops[i];
+                bestCount = count;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * @return the loop, assigned to specified hash value. Repeated calls with the same hash always
+     * return the same loop
+     */
+    public EpollLoop forHash(int hash) {
+        // spread the bits a little, in case the hash is a descriptor number
+        hash ^= (hash >>> 16);
+
+        return loops[(hash & 0x7fffffff) % loops.length];
+    }
+
+    /**
+     * @return the Executor for use with {@link EpollLoop#register(int, int, EpollLoop.Task, Executor)}
+     */
+    public Executor getExecutor() {
+        return callbackExecutor;
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public EpollLoop get(int index) {
+        return loops[index];
+    }
+
+    @Override
+    public void close() {
+        for (EpollLoop loop : loops) {
+            loop.close();
+        }
+
+        callbackExecutor.shutdown();
+    }
+}
@@ -27,6 +27,14 @@ public final class ErrnoException extends IOException {
     public static final int EAGAIN = 11;
     public static final int EINVAL = 22;
     public static final int ENOTEMPTY = 39;
+    public static final int ENAMETOOLONG = 36;
+    public static final int EXDEV = 18;
+    public static final int ELOOP = 40;
+    public static final int ENOSYS = 38;
+    public static final int ECANCELED = 125;
+    public static final int ETIMEDOUT = 110;
+    public static final int EACCES = 13;
+    public static final int EPERM = 1;
 
     private final int errno;
 
@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * An opt-in bookkeeper of file descriptors, opened via {@link OS}.
+ *
+ * <p/>
+ *
+ * When enabled, it remembers the stack trace of every descriptor, returned by {@link OS} methods,
+ * until the descriptor is closed via {@link OS#close}/{@link OS#dispose}. The outstanding descriptors
+ * can be printed with {@link #dump}.
+ *
+ * <p/>
+ *
+ * The tracker also enforces a soft limit on number of open descriptors: once the limit is reached,
+ * threads, that open new descriptors, wait for other threads to close theirs. The wait is bounded,
+ * so a thread, that holds all descriptors itself, merely slows down instead of hanging.
+ *
+ * <p/>
+ *
+ * Descriptors, whose ownership is passed elsewhere (for example, via
+ * {@link android.os.ParcelFileDescriptor#adoptFd}), should be excluded with {@link #forget}.
+ *
+ * <p/>
+ *
+ * When disabled (the default), the bookkeeping costs a single volatile read per call.
+ */
+public final class FdTracker {
+    private static final String TAG = "FdTracker";
+
+    // how long to wait for descriptors to be closed, once budget is exhausted
+    private static final long BUDGET_WAIT_MS = 2000;
+
+    private static volatile FdTracker instance;
+
+    /**
+     * @return current tracker instance or {@code null}, if tracking is disabled
+     */
+    public static @Nullable FdTracker get() {
+        return instance;
+    }
+
+    /**
+     * Start tracking descriptors with budget of 3/4 of current {@code RLIMIT_NOFILE}.
+     */
+    public static @NonNull FdTracker enable(@NonNull OS os) throws IOException {
+        final Limit limit = new Limit();
+
+        os.getrlimit(NativeBits.RLIMIT_NOFILE, limit);
+
+        final long budget = limit.current <= 0 || limit.current > Integer.MAX_VALUE
+                ? Integer.MAX_VALUE
+                : limit.current * 3 / 4;
+
+        return enable((int) budget);
+    }
+
+    /**
+     * Start tracking descriptors with specified budget. Descriptors, opened before this call,
+     * are not tracked.
+     */
+    public static synchronized @NonNull FdTracker enable(int budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+
+        final FdTracker tracker = new FdTracker(budget);
+
+        instance = tracker;
+
+        return tracker;
+    }
+
+    public static synchronized void disable() {
+        final FdTracker tracker = instance;
+
+        if (tracker != null) {
+            instance = null;
+
+            // wake up anyone, still waiting for budget
+            synchronized (tracker) {
+                tracker.notifyAll();
+            }
+        }
+    }
+
+    static void beforeOpen() {
+        final FdTracker tracker = instance;
+
+        if (tracker != null) {
+            tracker.awaitBudget();
+        }
+    }
+
+    static @Fd int opened(@Fd int fd) {
+        final FdTracker tracker = instance;
+
+        if (tracker != null) {
+            tracker.add(fd);
+        }
+
+        return fd;
+    }
+
+    static void closed(@Fd int fd) {
+        final FdTracker tracker = instance;
+
+        if (tracker != null) {
+            tracker.remove(fd);
+        }
+    }
+
+    /**
+     * Stop tracking the descriptor without closing it, for example because it's ownership has been
+     * transferred to other code. Does nothing, if tracking is disabled.
+     */
+    public static void forget(@Fd int fd) {
+        closed(fd);
+    }
+
+    private final IntObjectHashMap<OpenSite> open = new IntObjectHashMap<>();
+
+    private final int budget;
+
+    private int peak;
+
+    private long budgetWaits;
+
+    private FdTracker(int budget) {
+        this.budget = budget;
+    }
+
+    private synchronized void awaitBudget() {
+        if (open.size() < budget) {
+            return;
+        }
+
+        ++budgetWaits;
+
+        final long deadline = System.currentTimeMillis() + BUDGET_WAIT_MS;
+
+        long remaining = BUDGET_WAIT_MS;
+
+        try {
+            while (open.size() >= budget && instance == this && remaining > 0) {
+                wait(remaining);
+
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (open.size() >= budget) {
+            Log.w(TAG, "Descriptor budget of " + budget + " exceeded, proceeding anyway");
+        }
+    }
+
+    private synchronized void add(@Fd int fd) {
+        open.put(fd, new OpenSite(fd));
+
+        if (open.size() > peak) {
+            peak = open.size();
+        }
+    }
+
+    private synchronized void remove(@Fd int fd) {
+        if (open.remove(fd) != null && open.size() == budget - 1) {
+            notifyAll();
+        }
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    /**
+     * @return the biggest number of simultaneously open descriptors, seen by this tracker
+     */
+    public synchronized int getPeakCount() {
+        return peak;
+    }
+
+    /**
+     * @return how many times threads had to wait for descriptors to be closed
+     */
+    public synchronized long getBudgetWaitCount() {
+        return budgetWaits;
+    }
+
+    /**
+     * Print all outstanding descriptors together with stack traces of code, that opened them.
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        final OpenSite[] sites;
+
+        synchronized (this) {
+            sites = new OpenSite[open.size()];
+
+            int i = 0;
+
+            for (IntObjectCursor<OpenSite> site : open) {
+                sites[i++] = site.value;
+            }
+        }
+
+        Arrays.sort(sites, (s1, s2) -> s1.fd - s2.fd);
+
+        writer.append(String.valueOf(sites.length)).append(" descriptor(s) open, budget ")
+                .append(String.valueOf(budget)).append('\n');
+
+        for (OpenSite site : sites) {
+            site.printStackTrace(writer);
+        }
+
+        writer.flush();
+    }
+
+    public String dump() {
+        final StringWriter sw = new StringWriter();
+
+        dump(new PrintWriter(sw));
+
+        return sw.toString();
+    }
+
+    private static final class OpenSite extends Throwable {
+        final int fd;
+
+        OpenSite(int fd) {
+            super("Descriptor " + fd + " opened by " + Thread.currentThread().getName());
+
+            this.fd = fd;
+        }
+    }
+}
@@ -56,6 +56,17 @@ public enum FsType {
         }
     }
 
+    /**
+     * @return the file type bits of {@code st_mode}, corresponding to this type
+     */
+    int toMode() {
+        return nativeType << 12;
+    }
+
+    static FsType forMode(int st_mode) {
+        return forDirentType((st_mode >>> 12) & 0xf);
+    }
+
     private static final FsType[] VALUES = values();
 
     static FsType forDirentType(int nativeType) {
@@ -15,11 +15,9 @@
  */
 package net.sf.xfd;
 
-import android.Manifest;
 import android.support.annotation.AnyThread;
 import android.support.annotation.CheckResult;
 import android.support.annotation.MainThread;
-import android.support.annotation.RequiresPermission;
 import android.support.annotation.WorkerThread;
 
 import java.io.Closeable;
@@ -41,10 +39,10 @@ import java.io.IOException;
  * <p/>
  *
  * Thus class can be used in two modes: 1) direct reading from inotify descriptor using thread of
- * your choice and 2) monitoring inotify events from shared {@link SelectorThread}. To implement
+ * your choice and 2) monitoring inotify events from shared {@link EpollLoop}. To implement
  * the first mode simply call {@link #read} in a loop (depending on properties of inotify descriptor,
  * that may block until new events are ready or return immediately if no new events exist).
- * To use this class in second mode start a {@link SelectorThread} and pass it to {@link #setSelector}.
+ * To use this class in second mode start an {@link EpollLoop} and pass it to {@link #setSelector}.
  *
  * <p/>
  *
@@ -69,30 +67,34 @@ import java.io.IOException;
  *
  * <p/>
  *
- * Only {@link #read} and {@link #close} are thread-safe: {@link #subscribe} and {@link #setSelector}
- * must be called from the same Looper thread as one used to dispatch {@link InotifyListener}.
+ * Callbacks of {@link InotifyListener} are dispatched either to a Looper thread or to an
+ * {@link java.util.concurrent.Executor}, depending on which overload of {@link OS#observe} was
+ * used to create the instance. In Looper mode only {@link #read} and {@link #close} are thread-safe:
+ * {@link #subscribe} and {@link #setSelector} must be called from the same Looper thread as one used
+ * to dispatch {@link InotifyListener}. In Executor mode all methods are thread-safe. In either mode
+ * adding and removing watches never blocks reading of events.
  */
 public interface Inotify extends Closeable {
     /**
      * Linux inotify descriptors support {@code epoll} — a mechanism, that allows to efficiently
      * monitor multiple file descriptors for new data without creating dedicated a thread for each.
-     * To use it with this class, create and start a SelectorThread. If you pass the
-     * Selector to this method, you don't have to call {@link #read} yourself.
+     * To use it with this class, create and start an {@link EpollLoop}. If you pass the
+     * loop to this method, you don't have to call {@link #read} yourself.
      *
      * <p/>
      *
-     * Requires Internet permission due to the way Android Selector API works.
+     * The inotify descriptor is registered with the loop directly and is unregistered by
+     * {@link #close}, so it must remain open until then.
      *
      * @param selector a shared Thread, used to poll all inotify descriptors, or {@code null} to stop the polling
      */
     @MainThread
-    @RequiresPermission(Manifest.permission.INTERNET)
-    void setSelector(SelectorThread selector) throws IOException;
+    void setSelector(EpollLoop selector) throws IOException;
 
     /**
      * Read next batch of events from inotify descriptor until no more remain.
      * This method must be called in loop to continuously monitor for new inotify events.
-     * Alternatively, you can pass a pre-configured {@link SelectorThread} to {@link #setSelector}
+     * Alternatively, you can pass a pre-configured {@link EpollLoop} to {@link #setSelector}
      * and let it take care of monitoring.
      *
      * @return {@code true}, if the read was successful, {@code false} if the attempt should be repeated shortly
@@ -113,7 +115,7 @@ public interface Inotify extends Closeable {
      *
      * @throws IOException if process exceeds /proc/sys/fs/inotify/max_user_watches or other IO error happens
      */
-    @MainThread
+    @AnyThread
     @CheckResult
     InotifyWatch subscribe(@Fd int fd, InotifyListener callback) throws IOException;
 
@@ -17,25 +17,21 @@ package net.sf.xfd;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
-import android.os.ParcelFileDescriptor;
 import android.support.annotation.Keep;
 import android.support.annotation.Nullable;
 
 import com.carrotsearch.hppc.IntObjectHashMap;
-import com.carrotsearch.hppc.IntObjectMap;
-import com.carrotsearch.hppc.ObjectArrayList;
 import com.carrotsearch.hppc.ObjectIdentityHashSet;
 import com.carrotsearch.hppc.cursors.ObjectCursor;
 import com.carrotsearch.hppc.procedures.ObjectProcedure;
 
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedChannelException;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -49,8 +45,10 @@ public class InotifyImpl implements Inotify {
     @Keep
     private static int MASK_IGNORED;
 
-    private static final int NEXT = 0;
-    private static final int CANCEL = 1;
+    // pending event bits of Watch
+    private static final int NEXT = 1;
+    private static final int CANCEL = 1 << 1;
+    private static final int SCHEDULED = 1 << 2;
 
     static {
         nativeInit();
@@ -63,25 +61,33 @@ public class InotifyImpl implements Inotify {
 
     private volatile boolean done;
 
-    private final IntObjectMap<Watch> subscriptions =  new IntObjectHashMap<>();
+    // Copy-on-write: the map is never modified after publication, so the selector thread can look up
+    // watches without locking. Replaced under subscriptionLock by subscribe() and Watch#dispose()
+    private volatile IntObjectHashMap<Watch> subscriptions = new IntObjectHashMap<>();
+
+    private final Object subscriptionLock = new Object();
 
     private final @InotifyFd int fd;
     private final Arena arena;
     private final ByteBuffer readBuffer;
     private final long nativePtr;
-    private final Looper looper;
+    private final @Nullable Looper looper;
+    private final Executor dispatcher;
 
-    // a "channel" created specifically for purpose of using Selector API with inotify descriptors
-    private DatagramChannel fake;
-    // a bridge to connect the fake "channel" with Android and unix descriptor API
-    private ParcelFileDescriptor fakeHolder;
+    public InotifyImpl(@InotifyFd int fd, @Nullable Looper looper, Arena arena, OS os) {
+        this(fd, looper != null ? looper : Looper.getMainLooper(), null, arena, os);
+    }
 
-    private SelectionKey selectionKey;
+    public InotifyImpl(@InotifyFd int fd, Executor executor, Arena arena, OS os) {
+        this(fd, null, executor, arena, os);
+    }
 
-    public InotifyImpl(@InotifyFd int fd, @Nullable Looper looper, Arena arena, OS os) {
+    private InotifyImpl(@InotifyFd int fd, @Nullable Looper looper, @Nullable Executor executor, Arena arena, OS os) {
         this.fd = fd;
 
-        this.looper = looper != null ? looper : Looper.getMainLooper();
+        this.looper = looper;
+
+        this.dispatcher = looper == null ? executor : new Handler(looper)::post;
 
         this.os = os;
 
@@ -90,6 +96,12 @@ public class InotifyImpl implements Inotify {
         this.readBuffer = arena.getBuf();
     }
 
+    private void checkThread(String s) {
+        if (looper != null) {
+            DebugAsserts.thread(looper, s);
+        }
+    }
+
     // bindings for inotify_add_watch/inotify_rm_watch
     protected native int addSubscription(@InotifyFd int fd, int watchedFd) throws IOException;
     protected native void removeSubscription(@InotifyFd int fd, int watchDesc) throws ErrnoException;
@@ -107,10 +119,10 @@ public class InotifyImpl implements Inotify {
     // a specialized binding for read (2), that can handle EAGAIN/EWOULDBLOCK without throwing
     private static native int read(@InotifyFd int fd, long memAddress, int byteCount) throws ErrnoException;
 
-    private WeakReference<SelectorThread> selector;
+    private EpollLoop.Key selectionKey;
 
-    public synchronized void setSelector(SelectorThread selector) throws IOException {
-        DebugAsserts.thread(looper, "setSelector");
+    public synchronized void setSelector(EpollLoop selector) throws IOException {
+        checkThread("setSelector");
 
         primaryLock.lock();
         try {
@@ -118,31 +130,14 @@ public class InotifyImpl implements Inotify {
                 throw new ClosedChannelException();
             }
 
-            if (fake == null) {
-                fake = DatagramChannel.open();
-                fakeHolder = ParcelFileDescriptor.fromDatagramSocket(fake.socket());
-            }
-
             if (selectionKey != null) {
-                final SelectorThread oldSelector = this.selector.get();
-
-                if (oldSelector != null) {
-                    oldSelector.unregister(selectionKey);
-                }
+                selectionKey.loop().unregister(selectionKey);
 
                 selectionKey = null;
             }
 
             if (selector != null) {
-                os.dup2(fd, fakeHolder.getFd());
-
-                // DatagramChannel caches the flag, make sure that it is reset either way
-                fake.configureBlocking(true);
-                fake.configureBlocking(false);
-
-                selectionKey = selector.register(fake, SelectionKey.OP_READ, this::read);
-
-                this.selector = new WeakReference<>(selector);
+                selectionKey = selector.register(fd, EpollLoop.EPOLLIN, this::read);
             }
         } finally {
             primaryLock.unlock();
@@ -160,6 +155,7 @@ public class InotifyImpl implements Inotify {
 
     private final ObjectProcedure<Watch> notify = Watch::onChanges;
 
+    // serializes draining of the descriptor, subscribing and unsubscribing do not take this lock
     private final Lock primaryLock = new ReentrantLock();
 
     @Override
@@ -272,30 +268,10 @@ public class InotifyImpl implements Inotify {
                     observers.value.onReset();
                 }
 
-                if (selectionKey != null && selector != null) {
-                    final SelectorThread thread = selector.get();
-                    if (thread != null) {
-                        thread.unregister(selectionKey);
-                    }
-                }
-
-                if (fake != null) {
-                    try {
-                        fake.close();
-                    } catch (IOException e) {
-                        throw new WrappedIOException(e);
-                    }
-                }
+                if (selectionKey != null) {
+                    selectionKey.loop().unregister(selectionKey);
 
-                if (fakeHolder != null) {
-                    // the fd is owned by DatagramSocket and we have already closed it
-                    // make sure, that ParcelFileDescriptor does not mess anything up
-                    try {
-                        fakeHolder.detachFd();
-                        fakeHolder.close();
-                    } catch (IOException e) {
-                        throw new WrappedIOException(e);
-                    }
+                    selectionKey = null;
                 }
             }
         } finally {
@@ -304,49 +280,57 @@ public class InotifyImpl implements Inotify {
     }
 
     public Watch subscribe(@DirFd int watched, InotifyListener callback) throws IOException {
-        DebugAsserts.thread(looper, "subscribe");
+        checkThread("subscribe");
 
-        primaryLock.lock();
-        try {
+        synchronized (subscriptionLock) {
             final int watchDescriptor = addSubscription(fd, watched);
 
             final Watch existing = subscriptions.get(watchDescriptor);
 
             if (existing != null) {
-                final ObjectArrayList<InotifyListener> callbacks = existing.callbacks;
-
-                if (!callbacks.contains(callback)) {
-                    callbacks.add(callback);
-                }
+                existing.addCallback(callback);
 
                 return existing;
             }
 
             final Watch created = new Watch(watchDescriptor, callback);
 
-            subscriptions.put(watchDescriptor, created);
+            final IntObjectHashMap<Watch> newSubscriptions = subscriptions.clone();
+            newSubscriptions.put(watchDescriptor, created);
+            subscriptions = newSubscriptions;
 
             return created;
-        } finally {
-            primaryLock.unlock();
         }
     }
 
-    private final class Watch implements InotifyWatch {
-        private volatile boolean done;
+    private final class Watch implements InotifyWatch, Runnable {
+        private final AtomicInteger pending = new AtomicInteger();
 
-        private final ObjectArrayList<InotifyListener> callbacks = new ObjectArrayList<>(1);
+        private volatile boolean done;
 
-        private final Handler h;
+        // copy-on-write, replaced under subscriptionLock
+        private volatile InotifyListener[] callbacks;
 
-        private int watchDescriptor;
+        private final int watchDescriptor;
 
-        Watch(int watchDescriptor, InotifyListener callback) throws IOException {
+        Watch(int watchDescriptor, InotifyListener callback) {
             this.watchDescriptor = watchDescriptor;
 
-            h = new EventHandler(looper);
+            this.callbacks = new InotifyListener[] { callback };
+        }
+
+        void addCallback(InotifyListener callback) {
+            final InotifyListener[] current = callbacks;
+
+            for (InotifyListener existing : current) {
+                if (existing.equals(callback)) {
+                    return;
+                }
+            }
 
-            callbacks.add(callback);
+            final InotifyListener[] newCallbacks = Arrays.copyOf(current, current.length + 1);
+            newCallbacks[current.length] = callback;
+            callbacks = newCallbacks;
         }
 
         // The synchronization here must be done exactly as it is done below
@@ -355,26 +339,25 @@ public class InotifyImpl implements Inotify {
 
         @Override
         public void close() {
-            primaryLock.lock();
-            try {
+            synchronized (subscriptionLock) {
                 if (!done) {
                     done = true;
 
-                    h.removeMessages(CANCEL);
+                    clearPending(CANCEL);
 
                     dispose();
                 }
-            } finally {
-                primaryLock.unlock();
             }
         }
 
         void onChanges() {
-            Message.obtain(h, NEXT).sendToTarget();
+            post(NEXT);
         }
 
         private void dispose() {
-            subscriptions.remove(watchDescriptor);
+            final IntObjectHashMap<Watch> newSubscriptions = subscriptions.clone();
+            newSubscriptions.remove(watchDescriptor);
+            subscriptions = newSubscriptions;
 
             try {
                 removeSubscription(fd, watchDescriptor);
@@ -387,42 +370,59 @@ public class InotifyImpl implements Inotify {
         }
 
         void onReset() {
-            primaryLock.lock();
-            try {
+            synchronized (subscriptionLock) {
                 if (!done) {
                     done = true;
 
                     dispose();
 
                     // make sure that it is called at most once
-                    Message.obtain(h, CANCEL).sendToTarget();
+                    post(CANCEL);
                 }
-            } finally {
-                primaryLock.unlock();
             }
         }
 
-        private final class EventHandler extends Handler {
-            private EventHandler(Looper looper) {
-                super(looper);
+        private void post(int event) {
+            int current;
+
+            do {
+                current = pending.get();
+            } while (!pending.compareAndSet(current, current | event | SCHEDULED));
+
+            // only one run() is queued at any time, so listeners of the same watch are never
+            // called concurrently, even when the Executor is backed by multiple threads
+            if ((current & SCHEDULED) == 0) {
+                dispatcher.execute(this);
             }
+        }
 
-            @Override
-            @SuppressWarnings("SuspiciousSystemArraycopy")
-            public void handleMessage(Message msg) {
-                switch (msg.what) {
-                    case NEXT:
-                        for (int i = 0; i < callbacks.size(); ++i) {
-                            callbacks.get(i).onChanges();
-                        }
-                        break;
-                    case CANCEL:
-                        for (int i = 0; i < callbacks.size(); ++i) {
-                            callbacks.get(i).onReset();
-                        }
-                        break;
+        private void clearPending(int event) {
+            int current;
+
+            do {
+                current = pending.get();
+            } while (!pending.compareAndSet(current, current & ~event));
+        }
+
+        @Override
+        public void run() {
+            do {
+                final int events = pending.getAndSet(SCHEDULED);
+
+                final InotifyListener[] listeners = callbacks;
+
+                if ((events & NEXT) != 0) {
+                    for (InotifyListener listener : listeners) {
+                        listener.onChanges();
+                    }
                 }
-            }
+
+                if ((events & CANCEL) != 0) {
+                    for (InotifyListener listener : listeners) {
+                        listener.onReset();
+                    }
+                }
+            } while (!pending.compareAndSet(SCHEDULED, 0));
         }
     }
 }
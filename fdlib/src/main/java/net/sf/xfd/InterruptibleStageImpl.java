@@ -21,13 +21,46 @@ public final class InterruptibleStageImpl extends InterruptibleStage implements
     final Interruption i = Interruption.newInstance();
     final int tid = Interruption.myTid();
 
+    // guarded by begin/end, same as callback itself
+    private boolean bounded;
+
+    /**
+     * Enter the stage for system call, that may block indefinitely (such as opening a FIFO).
+     * Interruption is delivered by sending a signal to the thread.
+     */
     public void begin() {
+        bounded = false;
+
+        super.begin(this);
+    }
+
+    /**
+     * Enter the stage for sequence of system calls, each of which completes in bounded time
+     * (such as reading and writing regular files). Interruption merely sets the flag, checked by
+     * native code between calls (or chunks of a single long call, such as {@code sendfile}), so no
+     * signal is sent.
+     *
+     * <p/>
+     *
+     * This saves queueing the signal and waking the thread up, but not the cost of entering the
+     * stage: the selector hook is installed same as by {@link #begin()}, because it is the only way
+     * for {@link Thread#interrupt} to reach the flag. Single calls, that can't be interrupted
+     * at all (such as {@code fsync}), should not enter the stage and check
+     * {@link Thread#isInterrupted} beforehand instead.
+     */
+    public void beginBounded() {
+        bounded = true;
+
         super.begin(this);
     }
 
     @Override
     public void run() {
-        i.interrupt(tid);
+        if (bounded) {
+            i.setFlag();
+        } else {
+            i.interrupt(tid);
+        }
     }
 
     public static InterruptibleStageImpl get() {
@@ -131,6 +131,17 @@ public final class Interruption implements Closeable {
         Android.nativeInterrupt(nativePtr, tid);
     }
 
+    /**
+     * Set the interruption flag without sending a signal. The thread will notice the interruption
+     * next time it checks the flag, but a blocking call in progress won't be interrupted.
+     *
+     * Unlike signal handler, this method runs on other thread, so the flag is set with release
+     * store, paired with acquire loads in native code.
+     */
+    void setFlag() {
+        Android.nativeSetFlag(nativePtr);
+    }
+
     /**
      * Read and clear the interruption state of calling thread.
      *
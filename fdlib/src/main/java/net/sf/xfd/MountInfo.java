@@ -26,10 +26,11 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
 import com.carrotsearch.hppc.LongObjectHashMap;
 import com.carrotsearch.hppc.LongObjectMap;
+import com.carrotsearch.hppc.ObjectArrayList;
 import com.carrotsearch.hppc.ObjectHashSet;
 import com.carrotsearch.hppc.ObjectSet;
 
@@ -37,18 +38,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -58,13 +51,6 @@ import static android.os.ParcelFileDescriptor.MODE_READ_ONLY;
 public class MountInfo {
     private static final String TAG = "MountInfo";
 
-    private static final ThreadLocal<ByteBuffer> throwawayBuffer = new ThreadLocal<ByteBuffer>() {
-        @Override
-        protected ByteBuffer initialValue() {
-            return ByteBuffer.allocate(1024);
-        }
-    };
-
     private final Looper looper = Looper.getMainLooper();
     private final Handler handler = new MountsHandler(looper);
     private final ArrayList<MountChangeListener> listeners = new ArrayList<>();
@@ -75,11 +61,16 @@ public class MountInfo {
     public final LongObjectMap<Mount> mountMap = new LongObjectHashMap<>();
     public final ObjectSet<String> nodev = new ObjectHashSet<>();
 
-    private SocketChannel fake;
-    private ParcelFileDescriptor fakeHolder;
+    // all filesystem types from /proc/filesystems, used to detect when it needs to be re-read
+    private final ObjectSet<String> knownFilesystems = new ObjectHashSet<>();
+
+    private final MountParser parser = new MountParser();
 
-    private SelectionKey selectionKey;
-    private WeakReference<SelectorThread> selector;
+    private final MountTable table = new MountTable();
+
+    private volatile Snapshot snapshot = new Snapshot(new ObjectArrayList<>(0), new ObjectHashSet<>(0));
+
+    private EpollLoop.Key selectionKey;
 
     public MountInfo(OS os, @Fd int mountinfo) throws IOException {
         this.os = os;
@@ -92,36 +83,39 @@ public class MountInfo {
         return primaryLock;
     }
 
-    public synchronized void setSelector(SelectorThread selector) throws IOException {
+    /**
+     * Get the immutable view of mount table, as of last parse. Unlike {@link #mountMap} and
+     * {@link #nodev} the snapshot can be used without holding the {@link #getLock lock}. A new
+     * snapshot is created only when the mount table changes.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSelector(EpollLoop selector) throws IOException {
+        setSelector(selector, null);
+    }
+
+    /**
+     * Start monitoring mount table for changes, using specified loop.
+     *
+     * @param selector the loop to use, or {@code null} to stop monitoring
+     * @param executor the Executor for parsing the mount table (if {@code null}, the loop thread is used)
+     */
+    public synchronized void setSelector(EpollLoop selector, @Nullable Executor executor) throws IOException {
         DebugAsserts.thread(looper, "setSelector");
 
         primaryLock.lock();
         try {
-            if (fake == null) {
-                fake = SocketChannel.open();
-                fakeHolder = ParcelFileDescriptor.fromSocket(fake.socket());
-            }
-
             if (selectionKey != null) {
-                final SelectorThread oldSelector = this.selector.get();
-
-                if (oldSelector != null) {
-                    oldSelector.unregister(selectionKey);
-                }
+                selectionKey.loop().unregister(selectionKey);
 
                 selectionKey = null;
             }
 
             if (selector != null) {
-                os.dup2(mountinfo, fakeHolder.getFd());
-
-                // DatagramChannel caches the flag, make sure that it is reset either way
-                fake.configureBlocking(true);
-                fake.configureBlocking(false);
-
-                selectionKey = selector.register(fake, SelectionKey.OP_CONNECT, this::reparse);
-
-                this.selector = new WeakReference<>(selector);
+                // changes of mount table are signaled via POLLPRI/POLLERR
+                selectionKey = selector.register(mountinfo, EpollLoop.EPOLLPRI, this::onMountinfoReady, executor);
             }
         } finally {
             primaryLock.unlock();
@@ -130,11 +124,11 @@ public class MountInfo {
 
     private boolean safeIter = true;
 
-    private void notifyListeners() {
+    private void notifyListeners(MountDiff diff) {
         safeIter = false;
         try {
             for (int i = 0; i < listeners.size(); ++i) {
-                listeners.get(i).onMountsChanged();
+                listeners.get(i).onMountsChanged(diff);
             }
         } finally {
             safeIter = true;
@@ -157,10 +151,6 @@ public class MountInfo {
         }
     }
 
-    private static long makedev(long major, long minor) {
-        return ((major & 0xfff) << 8) | (minor & 0xff) | ((minor & 0xfff00) << 12);
-    }
-
     private final Lock primaryLock = new ReentrantLock();
 
     public boolean reparse() {
@@ -168,154 +158,295 @@ public class MountInfo {
             return false;
         }
 
+        reparseLocked();
+
+        return true;
+    }
+
+    // The loop callback. Mount table changes are reported by poll() only once, so the callback can
+    // not give up and ask to be called again — that would spin on the executor until the current
+    // lock holder is done. Wait for the lock instead (the callback runs on the Executor, or on the
+    // loop thread, if none was supplied, where lock holders are expected to be short-lived)
+    private boolean onMountinfoReady() {
+        primaryLock.lock();
+
+        reparseLocked();
+
+        return true;
+    }
+
+    // releases the lock
+    private void reparseLocked() {
+        MountDiff diff;
+
         try {
             LogUtil.logCautiously("reparse() got called");
 
-            mountMap.clear();
-            nodev.clear();
-
-            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(mountinfo);
+                 FileChannel fc = new FileInputStream(pfd.getFileDescriptor()).getChannel()) {
+                try {
+                    diff = parseMounts(fc);
+                } catch (IOException malformed) {
+                    // the contents of file may have changed mid-read, try again once
+                    LogUtil.logCautiously("Failed to parse mounts list, retrying", malformed);
 
-            parseFilesystems(decoder, true);
-            parseMounts(decoder, true);
+                    diff = parseMounts(fc);
+                }
+            }
+        } catch (IOException e) {
+            throw new WrappedIOException(e);
         } finally {
             primaryLock.unlock();
         }
 
-        handler.sendEmptyMessage(0);
-
-        return true;
+        if (!diff.isEmpty()) {
+            handler.obtainMessage(0, diff).sendToTarget();
+        }
     }
 
-    private static final int SANE_SIZE_LIMIT = 200 * 1024 * 1024;
+    private MountDiff parseMounts(FileChannel fc) throws IOException {
+        final MountParser parser = this.parser;
+
+        parser.readFully(fc);
 
-    private int measure(FileChannel fc) throws IOException {
-        final ByteBuffer buffer = throwawayBuffer.get();
+        final MountDiff diff = table.update(parser);
 
-        int totalRead = 0, lastRead;
+        if (!diff.isEmpty()) {
+            if (hasUnknownFilesystems(diff.added) || hasUnknownFilesystems(diff.changed)) {
+                parseFilesystems();
+            }
 
-        do {
-            buffer.clear();
+            final ObjectArrayList<Mount> list = table.mounts();
 
-            lastRead = fc.read(buffer);
+            mountMap.clear();
 
-            totalRead += lastRead;
+            for (int i = 0; i < list.size(); ++i) {
+                final Mount mount = list.get(i);
 
-            if (totalRead > SANE_SIZE_LIMIT) {
-                throw new IOException("/proc/ file appears to be too big!!");
+                mountMap.put(mount.dev, mount);
             }
-        } while (lastRead != -1);
 
-        fc.position(0);
+            snapshot = new Snapshot(list, nodev);
+        }
+
+        return diff;
+    }
+
+    private boolean hasUnknownFilesystems(ObjectArrayList<Mount> mounts) {
+        for (int i = 0; i < mounts.size(); ++i) {
+            if (!knownFilesystems.contains(mounts.get(i).fstype)) {
+                return true;
+            }
+        }
 
-        return totalRead;
+        return false;
     }
 
-    private void parseMounts(CharsetDecoder d, boolean force) {
-        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(mountinfo);
+    private void parseFilesystems() throws IOException {
+        nodev.clear();
+        knownFilesystems.clear();
+
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(new File("/proc/filesystems"), MODE_READ_ONLY);
              FileChannel fc = new FileInputStream(pfd.getFileDescriptor()).getChannel()) {
 
-            final int totalRead = measure(fc);
+            final MountParser parser = new MountParser();
+
+            parser.readFully(fc);
+
+            while (parser.nextLine()) {
+                final boolean isNodev = parser.fieldEquals("nodev");
+
+                final String fsType = parser.nextString().intern();
+
+                knownFilesystems.add(fsType);
+
+                if (isNodev) {
+                    nodev.add(fsType);
+                }
+            }
+        }
+    }
+
+    public boolean isVolatile(Mount fs) {
+        return isVolatile(fs, nodev);
+    }
 
-            try (Scanner scanner = new Scanner(Channels.newReader(new FileInputStream(pfd.getFileDescriptor()).getChannel(), d, totalRead))) {
-                while (scanner.hasNextLine()) {
-                    scanner.nextInt();
-                    scanner.nextInt();
+    private static boolean isVolatile(Mount fs, ObjectSet<String> nodev) {
+        switch (fs.fstype) {
+            case "fuse":
+                return false;
+            default:
+                return nodev.contains(fs.fstype);
+        }
+    }
 
-                    final String[] mm = scanner.next().split(":");
+    /**
+     * An immutable view of mount table. Supports lookup of mounts both by device number and by
+     * path (the latter returns the mount with longest mount point, that is a prefix of the path).
+     */
+    public static final class Snapshot {
+        private final LongObjectHashMap<Mount> byDev;
+        private final ObjectHashSet<String> nodev;
+        private final PathNode root = new PathNode("");
 
-                    final int major = Integer.parseInt(mm[0]);
-                    final int minor = Integer.parseInt(mm[1]);
+        Snapshot(ObjectArrayList<Mount> mounts, ObjectSet<String> nodev) {
+            this.byDev = new LongObjectHashMap<>(mounts.size());
+            this.nodev = new ObjectHashSet<>(nodev);
 
-                    final long dev_t = makedev(major, minor);
+            // later mounts shadow earlier ones with the same device or mount point
+            for (int i = 0; i < mounts.size(); ++i) {
+                final Mount mount = mounts.get(i);
 
-                    scanner.next();
+                byDev.put(mount.dev, mount);
 
-                    final String location = scanner.next();
+                root.insert(mount.mountPoint, 1, mount);
+            }
+        }
 
-                    // skip optional parts
-                    scanner.skip("(.+ -)");
+        /**
+         * @return the mount with specified device number (such as {@link Stat#st_dev}), or {@code null}
+         */
+        public @Nullable Mount forDev(long dev) {
+            return byDev.get(dev);
+        }
 
-                    final String fsType = scanner.next().intern();
+        /**
+         * Find the mount, containing the specified path, without accessing the filesystem. The path
+         * must be absolute and canonical (symlinks are not resolved).
+         *
+         * @return the mount with longest mount point, that contains the specified path, or {@code null}
+         */
+        public @Nullable Mount forPath(String path) {
+            PathNode node = root;
 
-                    final String subject = scanner.next().intern();
+            Mount found = node.mount;
 
-                    mountMap.put(dev_t, new Mount(fsType, location, subject));
+            final int length = path.length();
 
-                    scanner.nextLine();
+            int start = 1;
+
+            while (start < length) {
+                int end = path.indexOf('/', start);
+
+                if (end == -1) {
+                    end = length;
                 }
 
-                return;
-            } catch (NumberFormatException | NoSuchElementException nse) {
-                // oops..
-                if (!force) {
-                    throw new IOException("Failed to parse mounts list", nse);
+                if (end != start) {
+                    node = node.child(path, start, end - start);
+
+                    if (node == null) {
+                        break;
+                    }
+
+                    if (node.mount != null) {
+                        found = node.mount;
+                    }
                 }
+
+                start = end + 1;
             }
-        } catch (IOException e) {
-            throw new WrappedIOException(e);
+
+            return found;
         }
 
-        parseMounts(d, false);
+        public boolean isVolatile(Mount fs) {
+            return MountInfo.isVolatile(fs, nodev);
+        }
+
+        public int size() {
+            return byDev.size();
+        }
     }
 
-    private void parseFilesystems(CharsetDecoder d, boolean force) {
-        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(new File("/proc/filesystems"), MODE_READ_ONLY);
-             FileChannel fc = new FileInputStream(pfd.getFileDescriptor()).getChannel()) {
+    private static final class PathNode {
+        private static final PathNode[] NO_CHILDREN = new PathNode[0];
 
-            int totalRead = measure(fc);
+        final String name;
 
-            try (Scanner scanner = new Scanner(Channels.newReader(new FileInputStream(pfd.getFileDescriptor()).getChannel(), d, totalRead))) {
-                while (scanner.hasNextLine()) {
-                    final String firstCol = scanner.next();
+        PathNode[] children = NO_CHILDREN;
 
-                    if ("nodev".equals(firstCol)) {
-                        final String secondCol = scanner.next();
+        Mount mount;
 
-                        nodev.add(secondCol.intern());
-                    }
+        PathNode(String name) {
+            this.name = name;
+        }
 
-                    scanner.nextLine();
+        PathNode child(String path, int offset, int length) {
+            for (PathNode child : children) {
+                if (child.name.length() == length && path.regionMatches(offset, child.name, 0, length)) {
+                    return child;
                 }
+            }
+
+            return null;
+        }
+
+        // only called while the snapshot is being constructed
+        void insert(String path, int start, Mount mount) {
+            final int length = path.length();
 
+            while (start < length && path.charAt(start) == '/') {
+                ++start;
+            }
+
+            if (start >= length) {
+                this.mount = mount;
                 return;
-            } catch (NoSuchElementException nse) {
-                // oops..
-                if (!force) {
-                    Log.e(TAG, "Failed to parse fs list", nse);
+            }
 
-                    return;
-                }
+            int end = path.indexOf('/', start);
+
+            if (end == -1) {
+                end = length;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to parse fs list", e);
 
-            return;
-        }
+            PathNode next = child(path, start, end - start);
 
-        parseFilesystems(d, false);
-    }
+            if (next == null) {
+                next = new PathNode(path.substring(start, end));
 
-    public boolean isVolatile(Mount fs) {
-        switch (fs.fstype) {
-            case "fuse":
-                return false;
-            default:
-                return nodev.contains(fs.fstype);
+                final PathNode[] newChildren = new PathNode[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[children.length] = next;
+                children = newChildren;
+            }
+
+            next.insert(path, end, mount);
         }
     }
 
     public static final class Mount {
+        public final int id;
+        public final int parentId;
+        public final long dev;
+        public final String root;
+        public final String mountPoint;
+        public final String options;
         public final String fstype;
         public final String subject;
 
+        final long lineHash;
+
         public volatile String rootPath;
         public volatile String description;
 
         public Mount(String fstype, String rootPath, String subject) {
+            this(-1, -1, 0, "/", rootPath, "", fstype, subject, 0);
+        }
+
+        Mount(int id, int parentId, long dev, String root, String mountPoint, String options,
+              String fstype, String subject, long lineHash) {
+            this.id = id;
+            this.parentId = parentId;
+            this.dev = dev;
+            this.root = root;
+            this.mountPoint = mountPoint;
+            this.options = options;
             this.fstype = fstype;
-            this.rootPath = rootPath;
             this.subject = subject;
+            this.lineHash = lineHash;
+            this.rootPath = mountPoint;
         }
 
         // Note, that we are not even trying to use StorageVolume-based permissions, because
@@ -345,8 +476,28 @@ public class MountInfo {
         }
     }
 
+    /**
+     * Changes of mount table since the previous parse. Mounts are identified by mount ID: a mount,
+     * whose mount point, options or source were changed (for example, by remount), is reported
+     * in {@link #changed} as a new {@link Mount} instance with the same {@link Mount#id}.
+     */
+    public static final class MountDiff {
+        public final ObjectArrayList<Mount> added = new ObjectArrayList<>(0);
+        public final ObjectArrayList<Mount> removed = new ObjectArrayList<>(0);
+        public final ObjectArrayList<Mount> changed = new ObjectArrayList<>(0);
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "added: " + added + ", removed: " + removed + ", changed: " + changed;
+        }
+    }
+
     public interface MountChangeListener {
-        void onMountsChanged();
+        void onMountsChanged(MountDiff diff);
     }
 
     private final class MountsHandler extends Handler {
@@ -356,7 +507,7 @@ public class MountInfo {
 
         @Override
         public void handleMessage(Message msg) {
-            notifyListeners();
+            notifyListeners((MountDiff) msg.obj);
         }
     }
 }
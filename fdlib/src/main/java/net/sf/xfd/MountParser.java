@@ -0,0 +1,279 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import net.openhft.hashing.LongHashFunction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A byte-level parser of {@code /proc/self/mountinfo} and {@code /proc/filesystems}, operating
+ * on the contents of direct ByteBuffer. Not thread-safe.
+ */
+final class MountParser {
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private static final int SANE_SIZE_LIMIT = 200 * 1024 * 1024;
+
+    private static final LongHashFunction lineHash = LongHashFunction.xx(0);
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_SIZE);
+
+    private byte[] scratch = new byte[256];
+
+    // current line boundaries and position within the line
+    private int lineStart;
+    private int lineEnd;
+    private int pos;
+
+    /**
+     * Read the entire file from the beginning. The file position is reset first, so the
+     * same channel can be reused for subsequent reads.
+     */
+    void readFully(FileChannel fc) throws IOException {
+        fc.position(0);
+
+        ByteBuffer buffer = this.buffer;
+
+        buffer.clear();
+
+        while (fc.read(buffer) != -1) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= SANE_SIZE_LIMIT) {
+                    throw new IOException("/proc/ file appears to be too big!!");
+                }
+
+                final ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+
+                buffer.flip();
+
+                bigger.put(buffer);
+
+                this.buffer = buffer = bigger;
+            }
+        }
+
+        buffer.flip();
+
+        lineStart = pos = 0;
+        lineEnd = -1;
+    }
+
+    /**
+     * Advance to the next line.
+     *
+     * @return {@code false} if there are no more lines
+     */
+    boolean nextLine() {
+        final ByteBuffer buffer = this.buffer;
+
+        final int limit = buffer.limit();
+
+        lineStart = lineEnd + 1;
+
+        if (lineStart >= limit) {
+            return false;
+        }
+
+        int end = lineStart;
+
+        while (end < limit && buffer.get(end) != '\n') {
+            ++end;
+        }
+
+        lineEnd = end;
+        pos = lineStart;
+
+        return true;
+    }
+
+    long lineHash() {
+        return lineHash.hashBytes(buffer, lineStart, lineEnd - lineStart);
+    }
+
+    private void skipSpaces() {
+        while (pos < lineEnd) {
+            final byte b = buffer.get(pos);
+
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+
+            ++pos;
+        }
+    }
+
+    private int fieldEnd() {
+        int end = pos;
+
+        while (end < lineEnd) {
+            final byte b = buffer.get(end);
+
+            if (b == ' ' || b == '\t') {
+                break;
+            }
+
+            ++end;
+        }
+
+        return end;
+    }
+
+    /**
+     * Parse an unsigned decimal integer, terminated by whitespace or specified delimiter.
+     */
+    int nextInt(char delimiter) throws IOException {
+        skipSpaces();
+
+        int result = 0, digits = 0;
+
+        while (pos < lineEnd) {
+            final byte b = buffer.get(pos);
+
+            if (b >= '0' && b <= '9') {
+                result = result * 10 + (b - '0');
+
+                ++digits;
+                ++pos;
+            } else if (b == delimiter) {
+                ++pos;
+                break;
+            } else if (b == ' ' || b == '\t') {
+                break;
+            } else {
+                throw new IOException("Unexpected character in numeric field: " + (char) b);
+            }
+        }
+
+        if (digits == 0) {
+            throw new IOException("Missing numeric field");
+        }
+
+        return result;
+    }
+
+    int nextInt() throws IOException {
+        return nextInt(' ');
+    }
+
+    void skipField() throws IOException {
+        skipSpaces();
+
+        if (pos == lineEnd) {
+            throw new IOException("Unexpected end of line");
+        }
+
+        pos = fieldEnd();
+    }
+
+    /**
+     * Skip optional fields of mountinfo line, including the " - " separator.
+     */
+    void skipOptionalFields() throws IOException {
+        while (true) {
+            skipSpaces();
+
+            if (pos == lineEnd) {
+                throw new IOException("Missing separator of optional fields");
+            }
+
+            final int end = fieldEnd();
+
+            final boolean separator = end - pos == 1 && buffer.get(pos) == '-';
+
+            pos = end;
+
+            if (separator) {
+                return;
+            }
+        }
+    }
+
+    boolean fieldEquals(String ascii) {
+        skipSpaces();
+
+        final int end = fieldEnd();
+
+        if (end - pos != ascii.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < ascii.length(); ++i) {
+            if (buffer.get(pos + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+
+        pos = end;
+
+        return true;
+    }
+
+    /**
+     * Decode the next field, replacing octal escapes (such as {@code \040} for space) with
+     * corresponding bytes.
+     */
+    String nextString() throws IOException {
+        skipSpaces();
+
+        if (pos == lineEnd) {
+            throw new IOException("Unexpected end of line");
+        }
+
+        final int end = fieldEnd();
+
+        final int maxLength = end - pos;
+
+        if (scratch.length < maxLength) {
+            scratch = new byte[Math.max(maxLength, scratch.length * 2)];
+        }
+
+        final byte[] scratch = this.scratch;
+
+        boolean ascii = true;
+
+        int length = 0;
+
+        for (int i = pos; i < end; ++i) {
+            byte b = buffer.get(i);
+
+            if (b == '\\' && i + 3 < end && isOctal(i + 1) && isOctal(i + 2) && isOctal(i + 3)) {
+                b = (byte) (((buffer.get(i + 1) - '0') << 6) | ((buffer.get(i + 2) - '0') << 3) | (buffer.get(i + 3) - '0'));
+
+                i += 3;
+            }
+
+            ascii &= b >= 0;
+
+            scratch[length++] = b;
+        }
+
+        pos = end;
+
+        return ascii
+                ? new String(scratch, 0, length, StandardCharsets.US_ASCII)
+                : new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private boolean isOctal(int index) {
+        final byte b = buffer.get(index);
+
+        return b >= '0' && b <= '7';
+    }
+}
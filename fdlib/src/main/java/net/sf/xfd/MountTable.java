@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.ObjectArrayList;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+import net.sf.xfd.MountInfo.Mount;
+import net.sf.xfd.MountInfo.MountDiff;
+
+import java.io.IOException;
+
+/**
+ * Contents of {@code /proc/self/mountinfo} as of last parse, used by {@link MountInfo} to compute
+ * the differences between consecutive parses. Not thread-safe.
+ */
+final class MountTable {
+    // mount ID -> mount, as of last parse
+    private IntObjectHashMap<Mount> mountsById = new IntObjectHashMap<>();
+
+    // mounts in order of appearance in mountinfo, as of last parse
+    private ObjectArrayList<Mount> mountList = new ObjectArrayList<>();
+
+    /**
+     * @return mounts in order of appearance in mountinfo, as of last successful {@link #update}
+     */
+    ObjectArrayList<Mount> mounts() {
+        return mountList;
+    }
+
+    /**
+     * Parse all remaining lines of {@code parser} and replace the contents of table with them. If
+     * parsing fails, the table is left unchanged.
+     *
+     * @return the changes since previous update
+     */
+    MountDiff update(MountParser parser) throws IOException {
+        final IntObjectHashMap<Mount> previous = mountsById;
+        final IntObjectHashMap<Mount> current = new IntObjectHashMap<>(previous.size());
+        final ObjectArrayList<Mount> list = new ObjectArrayList<>(mountList.size());
+
+        final MountDiff diff = new MountDiff();
+
+        while (parser.nextLine()) {
+            final long hash = parser.lineHash();
+
+            final int id = parser.nextInt();
+
+            final Mount old = previous.get(id);
+
+            final Mount mount;
+
+            if (old != null && old.lineHash == hash) {
+                // unchanged, no need to parse the rest of line
+                mount = old;
+            } else {
+                mount = parseMount(parser, id, hash);
+
+                if (old == null) {
+                    diff.added.add(mount);
+                } else {
+                    if (old.mountPoint.equals(mount.mountPoint)) {
+                        // preserve information, supplied by the user of this class
+                        mount.rootPath = old.rootPath;
+                        mount.description = old.description;
+                    }
+
+                    diff.changed.add(mount);
+                }
+            }
+
+            current.put(id, mount);
+            list.add(mount);
+        }
+
+        for (ObjectCursor<Mount> old : previous.values()) {
+            if (!current.containsKey(old.value.id)) {
+                diff.removed.add(old.value);
+            }
+        }
+
+        mountsById = current;
+        mountList = list;
+
+        return diff;
+    }
+
+    private static Mount parseMount(MountParser parser, int id, long hash) throws IOException {
+        final int parentId = parser.nextInt();
+
+        final int major = parser.nextInt(':');
+        final int minor = parser.nextInt();
+
+        final long dev_t = makedev(major, minor);
+
+        final String root = parser.nextString();
+
+        final String location = parser.nextString();
+
+        final String options = parser.nextString();
+
+        parser.skipOptionalFields();
+
+        final String fsType = parser.nextString().intern();
+
+        final String subject = parser.nextString().intern();
+
+        return new Mount(id, parentId, dev_t, root, location, options, fsType, subject, hash);
+    }
+
+    static long makedev(long major, long minor) {
+        return ((major & 0xfff) << 8) | (minor & 0xff) | ((minor & 0xfff00) << 12);
+    }
+}
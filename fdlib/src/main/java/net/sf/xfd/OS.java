@@ -27,6 +27,7 @@ import java.io.InterruptedIOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.Executor;
 
 public abstract class OS {
     public static final String DEBUG_MODE = "net.sf.fdshare.DEBUG";
@@ -89,6 +90,33 @@ public abstract class OS {
     public static final int S_IFCHR =  0b0010000000000000;
     public static final int S_IFIFO =  0b0001000000000000;
 
+    @IntDef(value = {RESOLVE_NO_MAGICLINKS, RESOLVE_NO_SYMLINKS, RESOLVE_BENEATH, RESOLVE_CACHED}, flag = true)
+    @Documented
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ResolveFlags {}
+
+    /**
+     * Do not follow "magic" links, such as {@code /proc/self/fd/*} and {@code /proc/self/root}.
+     */
+    public static final int RESOLVE_NO_MAGICLINKS = 0x02;
+
+    /**
+     * Do not follow any symbolic links, fail with {@link ErrnoException#ELOOP} instead.
+     */
+    public static final int RESOLVE_NO_SYMLINKS = 0x04;
+
+    /**
+     * Fail with {@link ErrnoException#EXDEV}, if the path (or one of symlinks in it) is absolute
+     * or escapes the starting directory via "..".
+     */
+    public static final int RESOLVE_BENEATH = 0x08;
+
+    /**
+     * Only perform the lookup, if it can be done without blocking (all path components are in
+     * kernel dentry cache), fail with {@link ErrnoException#EAGAIN} otherwise.
+     */
+    public static final int RESOLVE_CACHED = 0x20;
+
     public static final int POSIX_FADV_SEQUENTIAL = 2;
 
     @IntDef(value = {POSIX_FADV_SEQUENTIAL})
@@ -127,6 +155,38 @@ public abstract class OS {
     @WorkerThread
     public abstract @Fd int openat(@DirFd int fd, @NonNull CharSequence name, int flags, int mode) throws IOException;
 
+    /**
+     * Open a file like {@link #openat} does, but with additional restrictions on path resolution.
+     *
+     * <p/>
+     *
+     * Kernels without {@code openat2(2)} are supported by walking the path one component at time
+     * and resolving symlinks in userspace. That fallback is secure, but slow; it never follows
+     * magic links as such (their text is resolved as if they were ordinary symlinks), and it treats
+     * {@link #RESOLVE_CACHED} as no-op. Callers of {@link #RESOLVE_CACHED} must be prepared to
+     * retry without it upon {@link ErrnoException#EAGAIN}. When no restrictions are requested, this is
+     * the same as {@link #openat}.
+     *
+     * @see #hasNativeOpenat2
+     */
+    @CheckResult
+    @WorkerThread
+    public @Fd int openat2(@DirFd int fd, @NonNull CharSequence pathname, @NonNull OpenHow how) throws IOException {
+        if (how.resolve == 0) {
+            return openat(fd, pathname, how.flags, how.mode);
+        }
+
+        return ResolveEmulation.openat(this, fd, pathname, how);
+    }
+
+    /**
+     * @return {@code true} if restrictions of {@link #openat2} are enforced by kernel, {@code false} if
+     * the path is walked in userspace, which costs several system calls per component
+     */
+    public boolean hasNativeOpenat2() {
+        return false;
+    }
+
     @CheckResult
     @WorkerThread
     public abstract @DirFd int opendir(@NonNull CharSequence path) throws IOException;
@@ -154,6 +214,10 @@ public abstract class OS {
     @CheckResult
     public abstract Inotify observe(@InotifyFd int inotifyDescriptor, @Nullable Looper looper);
 
+    @NonNull
+    @CheckResult
+    public abstract Inotify observe(@InotifyFd int inotifyDescriptor, @NonNull Executor executor);
+
     @NonNull
     @CheckResult
     public abstract MountInfo getMounts() throws IOException;
@@ -165,6 +229,110 @@ public abstract class OS {
     @WorkerThread
     public abstract void fstatat(@DirFd int dir, @NonNull CharSequence pathname, @NonNull Stat stat, @StatAtFlags int flags) throws IOException;
 
+    /**
+     * Retrieve extended file information. {@code mask} is a combination of {@code Stat.STATX_*}
+     * flags, describing fields the caller is interested in; on return {@link Stat#mask} describes
+     * the fields, that were actually filled (this may include more or less fields than requested).
+     *
+     * <p/>
+     *
+     * The default implementation simply calls {@link #fstatat} and fills only basic fields.
+     */
+    @WorkerThread
+    public void statx(@DirFd int dir, @NonNull CharSequence pathname, @StatAtFlags int flags, int mask, @NonNull Stat stat) throws IOException {
+        fstatat(dir, pathname, stat, flags);
+    }
+
+    /**
+     * Perform {@link #fstatat} for first {@code count} names in the array and store results in
+     * {@code batch}. Errors for individual names (such as missing files) are recorded in
+     * {@link StatBatch#errno} instead of being thrown.
+     *
+     * <p/>
+     *
+     * The default implementation simply calls {@link #fstatat} in loop, and does not report file
+     * modes beyond file type bits or modification times.
+     */
+    @WorkerThread
+    public void fstatatBulk(@DirFd int dir, @NonNull CharSequence[] names, int count, @NonNull StatBatch batch, @StatAtFlags int flags) throws IOException {
+        if (count > names.length || count > batch.capacity()) {
+            throw new IllegalArgumentException("Batch is too small: " + count + " names, capacity " + batch.capacity());
+        }
+
+        final Stat stat = new Stat();
+
+        for (int i = 0; i < count; ++i) {
+            try {
+                fstatat(dir, names[i], stat, flags);
+
+                batch.set(i, stat);
+            } catch (ErrnoException e) {
+                batch.setError(i, e.code());
+            }
+        }
+
+        batch.count = count;
+    }
+
+    /**
+     * Execute all operations of the batch in order. Errors of individual operations are recorded
+     * in the batch instead of being thrown.
+     *
+     * <p/>
+     *
+     * The default implementation simply calls methods of this class in loop.
+     */
+    @WorkerThread
+    public void execute(@NonNull OpBatch batch) throws IOException {
+        final Stat stat = new Stat();
+
+        boolean failed = false;
+
+        for (int i = 0; i < batch.count; ++i) {
+            if (failed && batch.stopOnError) {
+                batch.setError(i, ErrnoException.ECANCELED);
+                continue;
+            }
+
+            try {
+                final int fd = batch.resolve(batch.dirs[i]);
+
+                long value = 0;
+
+                switch (batch.ops[i]) {
+                    case OpBatch.OP_OPENAT:
+                        value = openat(fd, batch.names[i], batch.flags[i], batch.modes[i]);
+                        break;
+                    case OpBatch.OP_MKDIRAT:
+                        mkdirat(fd, batch.names[i], batch.modes[i]);
+                        break;
+                    case OpBatch.OP_UNLINKAT:
+                        unlinkat(fd, batch.names[i], batch.flags[i]);
+                        break;
+                    case OpBatch.OP_RENAMEAT:
+                        renameat(fd, batch.names[i], batch.resolve(batch.dirs2[i]), batch.names2[i]);
+                        break;
+                    case OpBatch.OP_FSTATAT:
+                        fstatat(fd, batch.names[i], stat, batch.flags[i]);
+                        batch.stats.set(i, stat);
+                        break;
+                    case OpBatch.OP_FSYNC:
+                        fsync(fd);
+                        break;
+                    case OpBatch.OP_CLOSE:
+                        close(fd);
+                        break;
+                }
+
+                batch.setResult(i, value);
+            } catch (ErrnoException e) {
+                batch.setError(i, e.code());
+
+                failed = true;
+            }
+        }
+    }
+
     @WorkerThread
     public abstract void renameat(@DirFd int fd, @Nullable CharSequence name, @DirFd int fd2, @Nullable CharSequence name2) throws IOException;
 
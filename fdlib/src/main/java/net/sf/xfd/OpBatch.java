@@ -0,0 +1,390 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sequence of file operations, executed by single {@link OS#execute} call.
+ *
+ * <p/>
+ *
+ * Each method of builder records an operation and returns it's index. Operations can use
+ * descriptors, opened by earlier operations of the same batch: pass {@link #resultOf} in place
+ * of descriptor. For example, "create temporary file, fsync it and rename over the original":
+ *
+ * <pre>
+ * final OpBatch batch = new OpBatch(4);
+ * final int tmp = batch.openat(dirFd, "file.tmp", O_WRONLY | O_CREAT, 0600);
+ * batch.fsync(OpBatch.resultOf(tmp));
+ * batch.close(OpBatch.resultOf(tmp));
+ * batch.renameat(dirFd, "file.tmp", dirFd, "file");
+ * os.execute(batch);
+ * </pre>
+ *
+ * By default execution stops at first failed operation, remaining operations fail with
+ * {@link ErrnoException#ECANCELED}. Descriptors, opened by the batch and not closed within it,
+ * belong to the caller.
+ *
+ * <p/>
+ *
+ * Instances can be reused after {@link #clear}. This class is not thread-safe.
+ */
+public final class OpBatch {
+    // keep in sync with native-lib.cpp
+    static final int OP_OPENAT = 1;
+    static final int OP_MKDIRAT = 2;
+    static final int OP_UNLINKAT = 3;
+    static final int OP_RENAMEAT = 4;
+    static final int OP_FSTATAT = 5;
+    static final int OP_FSYNC = 6;
+    static final int OP_CLOSE = 7;
+
+    // layout of native structs batch_op and batch_result
+    static final int OP_SIZE = 32;
+    static final int RESULT_SIZE = 16;
+
+    private static final int OFF_OP = 0;
+    private static final int OFF_DIR = 4;
+    private static final int OFF_DIR2 = 8;
+    private static final int OFF_FLAGS = 12;
+    private static final int OFF_MODE = 16;
+    private static final int OFF_NAME = 20;
+    private static final int OFF_NAME2 = 24;
+
+    private static final int OFF_VALUE = 0;
+    private static final int OFF_ERR = 8;
+
+    // results of earlier operations are referenced by descriptor values below this one
+    private static final int REF_BASE = -1000;
+
+    /**
+     * @return a placeholder for descriptor, opened by operation with specified index
+     */
+    public static int resultOf(int op) {
+        if (op < 0) {
+            throw new IllegalArgumentException("Invalid operation index: " + op);
+        }
+
+        return REF_BASE - op;
+    }
+
+    final int[] ops;
+    final int[] dirs;
+    final int[] dirs2;
+    final int[] flags;
+    final int[] modes;
+    final CharSequence[] names;
+    final CharSequence[] names2;
+
+    final long[] values;
+    final int[] errno;
+
+    final StatBatch stats;
+
+    int count;
+
+    boolean stopOnError = true;
+
+    public OpBatch(int capacity) {
+        ops = new int[capacity];
+        dirs = new int[capacity];
+        dirs2 = new int[capacity];
+        flags = new int[capacity];
+        modes = new int[capacity];
+        names = new CharSequence[capacity];
+        names2 = new CharSequence[capacity];
+        values = new long[capacity];
+        errno = new int[capacity];
+        stats = new StatBatch(capacity);
+    }
+
+    public int openat(@DirFd int dir, @NonNull CharSequence name, int flags, int mode) {
+        return add(OP_OPENAT, dir, name, DirFd.NIL, null, flags, mode);
+    }
+
+    public int mkdirat(@DirFd int dir, @NonNull CharSequence name, int mode) {
+        return add(OP_MKDIRAT, dir, name, DirFd.NIL, null, 0, mode);
+    }
+
+    public int unlinkat(@DirFd int dir, @NonNull CharSequence name, @OS.UnlinkAtFlags int flags) {
+        return add(OP_UNLINKAT, dir, name, DirFd.NIL, null, flags, 0);
+    }
+
+    public int renameat(@DirFd int dir, @NonNull CharSequence name, @DirFd int dir2, @NonNull CharSequence name2) {
+        return add(OP_RENAMEAT, dir, name, dir2, name2, 0, 0);
+    }
+
+    /**
+     * Record a {@code fstatat} call, it's result can be obtained with {@link #getStat}.
+     */
+    public int fstatat(@DirFd int dir, @NonNull CharSequence name, @OS.StatAtFlags int flags) {
+        return add(OP_FSTATAT, dir, name, DirFd.NIL, null, flags, 0);
+    }
+
+    public int fsync(@Fd int fd) {
+        return add(OP_FSYNC, fd, null, DirFd.NIL, null, 0, 0);
+    }
+
+    public int close(@Fd int fd) {
+        return add(OP_CLOSE, fd, null, DirFd.NIL, null, 0, 0);
+    }
+
+    /**
+     * @param stopOnError whether to skip the remaining operations after failure (the default)
+     */
+    public OpBatch setStopOnError(boolean stopOnError) {
+        this.stopOnError = stopOnError;
+
+        return this;
+    }
+
+    public int capacity() {
+        return ops.length;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; ++i) {
+            names[i] = null;
+            names2[i] = null;
+        }
+
+        count = 0;
+    }
+
+    public boolean isOk(int op) {
+        return errno[op] == 0;
+    }
+
+    /**
+     * @return the error code of operation, or 0, if it succeeded
+     */
+    public int errno(int op) {
+        return errno[op];
+    }
+
+    /**
+     * @return the name, passed to operation, if any
+     */
+    public @Nullable CharSequence name(int op) {
+        return names[op];
+    }
+
+    /**
+     * @return the descriptor, opened by {@link #openat} operation
+     */
+    public @Fd int fd(int op) {
+        if (ops[op] != OP_OPENAT) {
+            throw new IllegalArgumentException("Operation " + op + " does not open a descriptor");
+        }
+
+        return (int) values[op];
+    }
+
+    /**
+     * @return {@code false}, if the {@link #fstatat} operation failed (the {@code stat} is left untouched)
+     */
+    public boolean getStat(int op, @NonNull Stat stat) {
+        if (ops[op] != OP_FSTATAT) {
+            throw new IllegalArgumentException("Operation " + op + " is not fstatat");
+        }
+
+        return errno[op] == 0 && stats.get(op, stat);
+    }
+
+    /**
+     * @return the index of first failed operation, or -1 if all succeeded
+     */
+    public int firstError() {
+        for (int i = 0; i < count; ++i) {
+            if (errno[i] != 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int add(int op, int dir, CharSequence name, int dir2, CharSequence name2, int flags, int mode) {
+        final int index = count;
+
+        if (index == ops.length) {
+            throw new IllegalStateException("Batch is full: capacity " + ops.length);
+        }
+
+        checkRef(dir, index);
+        checkRef(dir2, index);
+
+        ops[index] = op;
+        dirs[index] = dir;
+        dirs2[index] = dir2;
+        names[index] = name;
+        names2[index] = name2;
+        this.flags[index] = flags;
+        modes[index] = mode;
+        values[index] = 0;
+        errno[index] = 0;
+
+        count = index + 1;
+
+        return index;
+    }
+
+    private void checkRef(int fd, int index) {
+        if (fd > REF_BASE) {
+            return;
+        }
+
+        final int ref = REF_BASE - fd;
+
+        if (ref >= index || ops[ref] != OP_OPENAT) {
+            throw new IllegalArgumentException("Operation " + ref + " does not precede " + index + " or does not open a descriptor");
+        }
+    }
+
+    /**
+     * @return the actual descriptor, if {@code fd} is a reference to result of earlier operation
+     */
+    int resolve(int fd) throws ErrnoException {
+        if (fd > REF_BASE) {
+            return fd;
+        }
+
+        final int ref = REF_BASE - fd;
+
+        if (errno[ref] != 0) {
+            throw new ErrnoException(ErrnoException.ECANCELED, "Operation " + ref + " failed");
+        }
+
+        return (int) values[ref];
+    }
+
+    void setResult(int op, long value) {
+        values[op] = value;
+        errno[op] = 0;
+    }
+
+    void setError(int op, int code) {
+        values[op] = 0;
+        errno[op] = code;
+
+        if (ops[op] == OP_FSTATAT) {
+            stats.setError(op, code);
+        }
+    }
+
+    void write(ByteBuffer buffer, int opsStart, int resultsStart, int namesStart) {
+        int pos = namesStart;
+
+        for (int i = 0; i < count; ++i) {
+            final int base = opsStart + i * OP_SIZE;
+
+            buffer.putInt(base + OFF_OP, ops[i]);
+            buffer.putInt(base + OFF_DIR, dirs[i]);
+            buffer.putInt(base + OFF_DIR2, dirs2[i]);
+            buffer.putInt(base + OFF_FLAGS, flags[i]);
+            buffer.putInt(base + OFF_MODE, modes[i]);
+
+            int code = 0;
+
+            try {
+                buffer.putInt(base + OFF_NAME, -1);
+                buffer.putInt(base + OFF_NAME2, -1);
+
+                pos = writeName(buffer, base + OFF_NAME, names[i], pos, namesStart);
+                pos = writeName(buffer, base + OFF_NAME2, names2[i], pos, namesStart);
+            } catch (ErrnoException e) {
+                code = e.code();
+            }
+
+            buffer.putLong(resultsStart + i * RESULT_SIZE + OFF_VALUE, 0);
+            buffer.putInt(resultsStart + i * RESULT_SIZE + OFF_ERR, code);
+        }
+    }
+
+    private static int writeName(ByteBuffer buffer, int offsetPos, CharSequence name, int pos, int namesStart) throws ErrnoException {
+        if (name == null) {
+            return pos;
+        }
+
+        final int end = PathBuffer.encode(buffer, name, pos, pos + PathBuffer.maxEncodedSize(name) - 1);
+
+        buffer.putInt(offsetPos, pos - namesStart);
+
+        return end + 1;
+    }
+
+    void read(ByteBuffer buffer, int resultsStart, int statsStart) {
+        for (int i = 0; i < count; ++i) {
+            values[i] = buffer.getLong(resultsStart + i * RESULT_SIZE + OFF_VALUE);
+            errno[i] = buffer.getInt(resultsStart + i * RESULT_SIZE + OFF_ERR);
+        }
+
+        final ByteBuffer statBuffer = buffer.duplicate().order(buffer.order());
+
+        statBuffer.position(statsStart);
+
+        stats.read(statBuffer.slice().order(buffer.order()), count);
+    }
+
+    /**
+     * Report descriptors, opened and closed by natively executed batch, to {@link FdTracker}.
+     */
+    void trackDescriptors() throws ErrnoException {
+        for (int i = 0; i < count; ++i) {
+            switch (ops[i]) {
+                case OP_OPENAT:
+                    if (errno[i] == 0) {
+                        FdTracker.opened((int) values[i]);
+                    }
+                    break;
+                case OP_CLOSE:
+                    // Linux releases the descriptor even if close() fails, so only skipped
+                    // operations (close() itself never reports ECANCELED) leave it open
+                    if (errno[i] != ErrnoException.ECANCELED) {
+                        FdTracker.closed(resolve(dirs[i]));
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the upper bound of space, needed to encode all names of batch
+     */
+    int namesSize() {
+        int size = 0;
+
+        for (int i = 0; i < count; ++i) {
+            if (names[i] != null) {
+                size += PathBuffer.maxEncodedSize(names[i]);
+            }
+
+            if (names2[i] != null) {
+                size += PathBuffer.maxEncodedSize(names2[i]);
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+/**
+ * Arguments of {@link OS#openat2}, mirroring {@code struct open_how} of Linux kernel.
+ */
+public final class OpenHow {
+    /**
+     * Same as flags of {@link OS#openat}.
+     */
+    public int flags;
+
+    /**
+     * Permissions of created file, ignored unless {@link NativeBits#O_CREAT} is present in flags.
+     */
+    public int mode;
+
+    /**
+     * Combination of {@code OS.RESOLVE_*} flags.
+     */
+    public @OS.ResolveFlags int resolve;
+
+    public OpenHow() {
+    }
+
+    public OpenHow(int flags, @OS.ResolveFlags int resolve) {
+        this.flags = flags;
+        this.resolve = resolve;
+    }
+
+    public OpenHow(int flags, int mode, @OS.ResolveFlags int resolve) {
+        this.flags = flags;
+        this.mode = mode;
+        this.resolve = resolve;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A per-thread chunk of native memory for passing file names to system calls.
+ *
+ * <p/>
+ *
+ * Names are encoded directly into native memory as NUL-terminated UTF-8, so native code only
+ * needs to read the pointer. There are two slots, one for each name of calls like
+ * {@code renameat}. ASCII names are encoded without allocating anything.
+ */
+final class PathBuffer {
+    // PATH_MAX, including the terminating NUL byte
+    static final int SLOT_SIZE = 4096;
+
+    private final Arena arena;
+    private final ByteBuffer buffer;
+    private final long pointer;
+
+    PathBuffer(GuardFactory guards) {
+        this.arena = Arena.allocate(SLOT_SIZE * 2, 0, guards);
+        this.buffer = arena.getBuf();
+        this.pointer = arena.getPtr();
+    }
+
+    /**
+     * Encode the name into first slot.
+     *
+     * @return the pointer to encoded name
+     */
+    long first(CharSequence name) throws ErrnoException {
+        return encode(name, 0);
+    }
+
+    /**
+     * Encode the name into second slot. The contents of first slot are left untouched.
+     *
+     * @return the pointer to encoded name
+     */
+    long second(CharSequence name) throws ErrnoException {
+        return encode(name, SLOT_SIZE);
+    }
+
+    private long encode(CharSequence name, int offset) throws ErrnoException {
+        // the last byte of slot is reserved for NUL
+        encode(buffer, name, offset, offset + SLOT_SIZE - 1);
+
+        return pointer + offset;
+    }
+
+    /**
+     * @return the upper bound of space, needed to encode the name with terminating NUL byte
+     */
+    static int maxEncodedSize(CharSequence name) {
+        final int bound = name.getClass() == NativeString.class
+                ? ((NativeString) name).getBytes().length + 1
+                : name.length() * 3 + 1;
+
+        return Math.min(bound, SLOT_SIZE);
+    }
+
+    /**
+     * Encode the name as NUL-terminated UTF-8 string.
+     *
+     * @param offset the index of the first byte of encoded string
+     * @param limit the index, past which the terminating NUL byte may not be written
+     *
+     * @return the index of terminating NUL byte
+     */
+    static int encode(ByteBuffer buffer, CharSequence name, int offset, int limit) throws ErrnoException {
+        if (name.getClass() == NativeString.class) {
+            final byte[] bytes = ((NativeString) name).getBytes();
+
+            if (offset + bytes.length > limit) {
+                throw tooLong();
+            }
+
+            buffer.position(offset);
+            buffer.put(bytes);
+            buffer.put((byte) 0);
+
+            return offset + bytes.length;
+        }
+
+        final int length = name.length();
+
+        if (offset + length > limit) {
+            throw tooLong();
+        }
+
+        int pos = offset;
+
+        for (int i = 0; i < length; ++i) {
+            final char c = name.charAt(i);
+
+            if (c < 0x80) {
+                if (c == 0) {
+                    throw new ErrnoException(ErrnoException.EINVAL, "File name contains NUL character");
+                }
+
+                if (pos >= limit) {
+                    throw tooLong();
+                }
+
+                buffer.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                if (pos + 2 > limit) {
+                    throw tooLong();
+                }
+
+                buffer.put(pos++, (byte) (0xc0 | (c >> 6)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+            } else if (c < 0xd800 || c > 0xdfff) {
+                if (pos + 3 > limit) {
+                    throw tooLong();
+                }
+
+                buffer.put(pos++, (byte) (0xe0 | (c >> 12)));
+                buffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+            } else {
+                final char low = i + 1 < length ? name.charAt(i + 1) : 0;
+
+                if (c > 0xdbff || low < 0xdc00 || low > 0xdfff) {
+                    // malformed surrogate, encoded the same way as String#getBytes does it
+                    if (pos >= limit) {
+                        throw tooLong();
+                    }
+
+                    buffer.put(pos++, (byte) '?');
+                } else {
+                    if (pos + 4 > limit) {
+                        throw tooLong();
+                    }
+
+                    final int codePoint = Character.toCodePoint(c, low);
+
+                    buffer.put(pos++, (byte) (0xf0 | (codePoint >> 18)));
+                    buffer.put(pos++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                    buffer.put(pos++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                    buffer.put(pos++, (byte) (0x80 | (codePoint & 0x3f)));
+
+                    ++i;
+                }
+            }
+        }
+
+        buffer.put(pos, (byte) 0);
+
+        return pos;
+    }
+
+    private static ErrnoException tooLong() {
+        return new ErrnoException(ErrnoException.ENAMETOOLONG, "File name too long");
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Userspace implementation of {@code openat2(2)} path resolution for kernels, that don't have it.
+ *
+ * <p/>
+ *
+ * The path is walked one component at time, each directory is opened with {@code O_NOFOLLOW},
+ * so a symlink, swapped in concurrently, causes an error instead of escaping the restrictions.
+ * Symlinks are resolved by splicing their contents into the remaining path. Directories, passed
+ * on the way, are kept open, so that ".." returns to the actual parent in the walk. Magic links
+ * are never followed as such: either their text is resolved like that of ordinary symlink or,
+ * with {@link OS#RESOLVE_NO_MAGICLINKS}, the walk fails.
+ */
+final class ResolveEmulation {
+    // same as MAXSYMLINKS of Linux kernel
+    private static final int MAX_LINKS = 40;
+
+    private static final long PROC_ROOT_INO = 1;
+
+    private static final int DIR_FLAGS = NativeBits.O_PATH | NativeBits.O_DIRECTORY;
+
+    private ResolveEmulation() {
+    }
+
+    @SuppressWarnings("WrongConstant")
+    static @Fd int openat(OS os, @DirFd int dir, CharSequence pathname, OpenHow how) throws IOException {
+        final int resolve = how.resolve & ~OS.RESOLVE_CACHED;
+
+        if (resolve == 0) {
+            return os.openat(dir, pathname, how.flags, how.mode);
+        }
+
+        if (pathname.length() == 0) {
+            throw new ErrnoException(ErrnoException.ENOENT, "Empty pathname");
+        }
+
+        final boolean beneath = (resolve & OS.RESOLVE_BENEATH) != 0;
+        final boolean noSymlinks = (resolve & OS.RESOLVE_NO_SYMLINKS) != 0;
+        final boolean noMagic = (resolve & OS.RESOLVE_NO_MAGICLINKS) != 0;
+
+        final ArrayDeque<String> components = new ArrayDeque<>();
+
+        final boolean absolute = push(components, pathname);
+
+        if (absolute && beneath) {
+            throw escaped(pathname);
+        }
+
+        final IntArrayList dirs = new IntArrayList();
+
+        try {
+            dirs.add(absolute ? os.openat(DirFd.AT_FDCWD, "/", DIR_FLAGS, 0) : os.openat(dir, ".", DIR_FLAGS, 0));
+
+            final Stat stat = new Stat();
+
+            int links = 0;
+
+            while (true) {
+                final @DirFd int current = dirs.get(dirs.size() - 1);
+
+                final String name = components.pollFirst();
+
+                if (name == null) {
+                    // the path ends with "/", "." or "..", open the directory itself
+                    return os.openat(current, ".", how.flags, how.mode);
+                }
+
+                if (".".equals(name)) {
+                    continue;
+                }
+
+                if ("..".equals(name)) {
+                    if (dirs.size() > 1) {
+                        os.dispose(dirs.remove(dirs.size() - 1));
+                    } else if (beneath) {
+                        throw escaped(pathname);
+                    } else {
+                        dirs.set(0, os.openat(current, "..", DIR_FLAGS, 0));
+
+                        os.dispose(current);
+                    }
+
+                    continue;
+                }
+
+                final boolean last = components.isEmpty();
+
+                try {
+                    os.fstatat(current, name, stat, OS.AT_SYMLINK_NOFOLLOW);
+                } catch (ErrnoException e) {
+                    if (last && e.code() == ErrnoException.ENOENT) {
+                        // may be about to be created
+                        return os.openat(current, name, how.flags | NativeBits.O_NOFOLLOW, how.mode);
+                    }
+
+                    throw e;
+                }
+
+                if (stat.type == FsType.LINK) {
+                    if (last && (how.flags & NativeBits.O_NOFOLLOW) != 0) {
+                        return os.openat(current, name, how.flags, how.mode);
+                    }
+
+                    if (noSymlinks || ++links > MAX_LINKS) {
+                        throw new ErrnoException(ErrnoException.ELOOP, "Symlink encountered in " + pathname);
+                    }
+
+                    if (noMagic && isProcessDir(os, current, stat)) {
+                        throw new ErrnoException(ErrnoException.ELOOP, "Magic link encountered in " + pathname);
+                    }
+
+                    final CharSequence target = os.readlinkat(current, name);
+
+                    if (push(components, target)) {
+                        if (beneath) {
+                            throw escaped(pathname);
+                        }
+
+                        for (int i = 0; i < dirs.size(); ++i) {
+                            os.dispose(dirs.get(i));
+                        }
+
+                        dirs.clear();
+
+                        dirs.add(os.openat(DirFd.AT_FDCWD, "/", DIR_FLAGS, 0));
+                    }
+
+                    continue;
+                }
+
+                if (last) {
+                    return os.openat(current, name, how.flags | NativeBits.O_NOFOLLOW, how.mode);
+                }
+
+                if (stat.type != FsType.DIRECTORY) {
+                    throw new ErrnoException(ErrnoException.ENOTDIR, name + " is not a directory");
+                }
+
+                dirs.add(os.openat(current, name, DIR_FLAGS | NativeBits.O_NOFOLLOW, 0));
+            }
+        } finally {
+            for (int i = 0; i < dirs.size(); ++i) {
+                os.dispose(dirs.get(i));
+            }
+        }
+    }
+
+    /**
+     * Magic links only exist within procfs, in per-process directories, such as {@code /proc/self/fd/}.
+     * Symlinks in procfs root ({@code /proc/self}, {@code /proc/mounts}) are ordinary ones.
+     */
+    private static boolean isProcessDir(OS os, @DirFd int dir, Stat stat) throws IOException {
+        os.fstatat(DirFd.AT_FDCWD, "/proc", stat, 0);
+
+        final long procDev = stat.st_dev;
+
+        os.fstat(dir, stat);
+
+        return stat.st_dev == procDev && stat.st_ino != PROC_ROOT_INO;
+    }
+
+    /**
+     * Prepend components of path to the deque, skipping empty ones and ".".
+     *
+     * @return whether the path is absolute
+     */
+    private static boolean push(ArrayDeque<String> components, CharSequence path) {
+        final String str = path.toString();
+
+        int end = str.length();
+
+        if (str.charAt(end - 1) == '/') {
+            // trailing slash requires the last component to be a directory
+            components.addFirst(".");
+        }
+
+        while (end > 0) {
+            final int slash = str.lastIndexOf('/', end - 1);
+
+            final String component = str.substring(slash + 1, end);
+
+            if (!component.isEmpty() && !".".equals(component)) {
+                components.addFirst(component);
+            }
+
+            end = slash;
+        }
+
+        return str.charAt(0) == '/';
+    }
+
+    private static ErrnoException escaped(CharSequence pathname) {
+        return new ErrnoException(ErrnoException.EXDEV, pathname + " escapes the starting directory");
+    }
+}
@@ -19,9 +19,34 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.Keep;
 
+/**
+ * A container for results of {@code stat} family of system calls.
+ *
+ * <p/>
+ *
+ * Fields {@link #st_dev}, {@link #st_blksize}, {@link #st_ino}, {@link #st_size} and {@link #type}
+ * are filled by all calls. The rest are filled only by {@link OS#statx}, and only if requested
+ * (see {@link #mask}).
+ */
 public final class Stat implements Parcelable {
     public static final int BYTES = (Long.SIZE * 3 + Integer.SIZE * 2) / Byte.SIZE;
 
+    // statx(2) field masks
+    public static final int STATX_TYPE = 0x0001;
+    public static final int STATX_MODE = 0x0002;
+    public static final int STATX_NLINK = 0x0004;
+    public static final int STATX_UID = 0x0008;
+    public static final int STATX_GID = 0x0010;
+    public static final int STATX_ATIME = 0x0020;
+    public static final int STATX_MTIME = 0x0040;
+    public static final int STATX_CTIME = 0x0080;
+    public static final int STATX_INO = 0x0100;
+    public static final int STATX_SIZE = 0x0200;
+    public static final int STATX_BLOCKS = 0x0400;
+    public static final int STATX_BASIC_STATS = 0x07ff;
+
+    private static final int STATX_DEFAULT = STATX_TYPE | STATX_INO | STATX_SIZE;
+
     public long st_dev;
 
     public long st_ino;
@@ -32,6 +57,39 @@ public final class Stat implements Parcelable {
 
     public int st_blksize;
 
+    /**
+     * Combination of {@code STATX_*} flags, describing which fields hold valid data.
+     */
+    public int mask = STATX_DEFAULT;
+
+    public int st_mode;
+
+    public int st_nlink;
+
+    public int st_uid;
+
+    public int st_gid;
+
+    /**
+     * Number of 512-byte blocks, allocated to the file.
+     */
+    public long st_blocks;
+
+    /**
+     * Time of last access, in milliseconds since epoch.
+     */
+    public long st_atime;
+
+    /**
+     * Time of last modification, in milliseconds since epoch.
+     */
+    public long st_mtime;
+
+    /**
+     * Time of last status change, in milliseconds since epoch.
+     */
+    public long st_ctime;
+
     public Stat() {
     }
 
@@ -43,6 +101,34 @@ public final class Stat implements Parcelable {
         this.st_blksize = st_blksize;
 
         this.type = FsType.at(fsTypeId);
+
+        this.mask = STATX_DEFAULT;
+    }
+
+    @Keep
+    void initExtended(int mask, long st_dev, long st_ino, long st_size, int st_blksize, int st_mode,
+                      int st_nlink, int st_uid, int st_gid, long st_blocks,
+                      long st_atime, long st_mtime, long st_ctime) {
+        this.mask = mask;
+
+        this.st_dev = st_dev;
+        this.st_ino = st_ino;
+        this.st_size = st_size;
+        this.st_blksize = st_blksize;
+        this.st_mode = st_mode;
+        this.st_nlink = st_nlink;
+        this.st_uid = st_uid;
+        this.st_gid = st_gid;
+        this.st_blocks = st_blocks;
+        this.st_atime = st_atime;
+        this.st_mtime = st_mtime;
+        this.st_ctime = st_ctime;
+
+        this.type = (mask & STATX_TYPE) != 0 ? FsType.forMode(st_mode) : null;
+    }
+
+    public boolean has(int statxField) {
+        return (mask & statxField) == statxField;
     }
 
     @Override
@@ -50,13 +136,26 @@ public final class Stat implements Parcelable {
         return 0;
     }
 
+    // Only valid fields are written, so that basic Stat takes the same space as before
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        final int mask = this.mask;
+
+        dest.writeInt(mask);
         dest.writeLong(st_dev);
-        dest.writeLong(st_ino);
-        dest.writeLong(st_size);
         dest.writeInt(st_blksize);
-        dest.writeInt(type.ordinal());
+        dest.writeInt(type == null ? -1 : type.ordinal());
+
+        if ((mask & STATX_INO) != 0) dest.writeLong(st_ino);
+        if ((mask & STATX_SIZE) != 0) dest.writeLong(st_size);
+        if ((mask & STATX_MODE) != 0) dest.writeInt(st_mode);
+        if ((mask & STATX_NLINK) != 0) dest.writeInt(st_nlink);
+        if ((mask & STATX_UID) != 0) dest.writeInt(st_uid);
+        if ((mask & STATX_GID) != 0) dest.writeInt(st_gid);
+        if ((mask & STATX_BLOCKS) != 0) dest.writeLong(st_blocks);
+        if ((mask & STATX_ATIME) != 0) dest.writeLong(st_atime);
+        if ((mask & STATX_MTIME) != 0) dest.writeLong(st_mtime);
+        if ((mask & STATX_CTIME) != 0) dest.writeLong(st_ctime);
     }
 
     public static final Creator<Stat> CREATOR = new Creator<Stat>() {
@@ -64,11 +163,27 @@ public final class Stat implements Parcelable {
         public Stat createFromParcel(Parcel in) {
             final Stat result = new Stat();
 
+            final int mask = in.readInt();
+
+            result.mask = mask;
             result.st_dev = in.readLong();
-            result.st_ino = in.readLong();
-            result.st_size = in.readLong();
             result.st_blksize = in.readInt();
 
+            final int typeOrdinal = in.readInt();
+
+            result.type = typeOrdinal == -1 ? null : FsType.at(typeOrdinal);
+
+            if ((mask & STATX_INO) != 0) result.st_ino = in.readLong();
+            if ((mask & STATX_SIZE) != 0) result.st_size = in.readLong();
+            if ((mask & STATX_MODE) != 0) result.st_mode = in.readInt();
+            if ((mask & STATX_NLINK) != 0) result.st_nlink = in.readInt();
+            if ((mask & STATX_UID) != 0) result.st_uid = in.readInt();
+            if ((mask & STATX_GID) != 0) result.st_gid = in.readInt();
+            if ((mask & STATX_BLOCKS) != 0) result.st_blocks = in.readLong();
+            if ((mask & STATX_ATIME) != 0) result.st_atime = in.readLong();
+            if ((mask & STATX_MTIME) != 0) result.st_mtime = in.readLong();
+            if ((mask & STATX_CTIME) != 0) result.st_ctime = in.readLong();
+
             return result;
         }
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Results of {@link OS#fstatatBulk}, stored in parallel primitive arrays. Slot {@code i} describes
+ * the {@code i}-th name, passed to the call. If the call failed for that name, {@link #errno} holds
+ * the error code, and other fields of slot are zero.
+ *
+ * <p/>
+ *
+ * Instances are meant to be reused between calls. This class is not thread-safe.
+ */
+public final class StatBatch {
+    // layout of native struct bulk_stat, see native-lib.cpp
+    static final int NATIVE_SIZE = 48;
+
+    private static final int OFF_DEV = 0;
+    private static final int OFF_INO = 8;
+    private static final int OFF_SIZE = 16;
+    private static final int OFF_MTIME = 24;
+    private static final int OFF_MODE = 32;
+    private static final int OFF_BLKSIZE = 36;
+    private static final int OFF_ERRNO = 40;
+
+    public final long[] dev;
+    public final long[] ino;
+    public final long[] size;
+
+    /**
+     * Modification time in milliseconds since epoch, or 0 if unknown.
+     */
+    public final long[] mtime;
+
+    public final int[] mode;
+    public final int[] blksize;
+    public final int[] errno;
+
+    /**
+     * Number of slots, filled by the last call.
+     */
+    public int count;
+
+    public StatBatch(int capacity) {
+        dev = new long[capacity];
+        ino = new long[capacity];
+        size = new long[capacity];
+        mtime = new long[capacity];
+        mode = new int[capacity];
+        blksize = new int[capacity];
+        errno = new int[capacity];
+    }
+
+    public int capacity() {
+        return dev.length;
+    }
+
+    public boolean isOk(int slot) {
+        return errno[slot] == 0;
+    }
+
+    /**
+     * @return the type of file or {@code null}, if the call failed for that slot
+     */
+    public @Nullable FsType type(int slot) {
+        return errno[slot] == 0 ? FsType.forMode(mode[slot]) : null;
+    }
+
+    /**
+     * Copy the contents of slot to {@code stat}.
+     *
+     * @return {@code false} if the call failed for that slot ({@code stat} is left untouched)
+     */
+    public boolean get(int slot, @NonNull Stat stat) {
+        if (errno[slot] != 0) {
+            return false;
+        }
+
+        stat.st_dev = dev[slot];
+        stat.st_ino = ino[slot];
+        stat.st_size = size[slot];
+        stat.st_blksize = blksize[slot];
+        stat.type = FsType.forMode(mode[slot]);
+
+        return true;
+    }
+
+    void set(int slot, Stat stat) {
+        dev[slot] = stat.st_dev;
+        ino[slot] = stat.st_ino;
+        size[slot] = stat.st_size;
+        mtime[slot] = 0;
+        mode[slot] = stat.type == null ? 0 : stat.type.toMode();
+        blksize[slot] = stat.st_blksize;
+        errno[slot] = 0;
+    }
+
+    void setError(int slot, int code) {
+        dev[slot] = 0;
+        ino[slot] = 0;
+        size[slot] = 0;
+        mtime[slot] = 0;
+        mode[slot] = 0;
+        blksize[slot] = 0;
+        errno[slot] = code;
+    }
+
+    static void writeError(ByteBuffer buffer, int slot, int code) {
+        buffer.putInt(slot * NATIVE_SIZE + OFF_ERRNO, code);
+    }
+
+    void read(ByteBuffer buffer, int count) {
+        for (int slot = 0; slot < count; ++slot) {
+            final int base = slot * NATIVE_SIZE;
+
+            final int code = buffer.getInt(base + OFF_ERRNO);
+
+            if (code != 0) {
+                setError(slot, code);
+                continue;
+            }
+
+            dev[slot] = buffer.getLong(base + OFF_DEV);
+            ino[slot] = buffer.getLong(base + OFF_INO);
+            size[slot] = buffer.getLong(base + OFF_SIZE);
+            mtime[slot] = buffer.getLong(base + OFF_MTIME);
+            mode[slot] = buffer.getInt(base + OFF_MODE);
+            blksize[slot] = buffer.getInt(base + OFF_BLKSIZE);
+            errno[slot] = 0;
+        }
+
+        this.count = count;
+    }
+}
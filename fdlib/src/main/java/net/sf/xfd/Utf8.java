@@ -15,6 +15,8 @@
  */
 package net.sf.xfd;
 
+import java.nio.ByteBuffer;
+
 public final class Utf8 {
     private Utf8() {
     }
@@ -157,4 +159,121 @@ public final class Utf8 {
             return longSize(string, 0, endIndex);
         }
     }
+
+    /**
+     * Encode chars of {@code string} as UTF-8 into {@code out}, starting at {@code index}, until either the string
+     * ends or the next character does not fit. The length of output is computed along the way, so there is no
+     * need to call {@link #size} beforehand. Nothing is allocated.
+     *
+     * @return the index of first char, that has not been encoded, or {@code -1} if the string contains unpaired
+     * surrogate (the position of buffer is left after the last complete character in that case)
+     */
+    public static int encode(CharSequence string, int index, ByteBuffer out) {
+        final int length = string.length();
+        final int limit = out.limit();
+
+        int position = out.position();
+
+        if (out.hasArray()) {
+            // fast path for ASCII, which most file names are
+            final byte[] array = out.array();
+            final int offset = out.arrayOffset();
+            final int end = Math.min(length, index + limit - position);
+
+            while (index < end) {
+                final char c = string.charAt(index);
+
+                if (c >= 0x80) {
+                    break;
+                }
+
+                array[offset + position++] = (byte) c;
+
+                ++index;
+            }
+        }
+
+        while (index < length) {
+            final char c = string.charAt(index);
+
+            if (c < 0x80) {
+                if (position == limit) break;
+
+                out.put(position++, (byte) c);
+
+                ++index;
+            } else if (c < 0x800) {
+                if (limit - position < 2) break;
+
+                out.put(position++, (byte) (0xc0 | c >> 6));
+                out.put(position++, (byte) (0x80 | c & 0x3f));
+
+                ++index;
+            } else if (c < 0xd800 || c > 0xdfff) {
+                if (limit - position < 3) break;
+
+                out.put(position++, (byte) (0xe0 | c >> 12));
+                out.put(position++, (byte) (0x80 | c >> 6 & 0x3f));
+                out.put(position++, (byte) (0x80 | c & 0x3f));
+
+                ++index;
+            } else {
+                final char low = index + 1 < length ? string.charAt(index + 1) : 0;
+
+                if (c > 0xdbff || low < 0xdc00 || low > 0xdfff) {
+                    out.position(position);
+
+                    return -1;
+                }
+
+                if (limit - position < 4) break;
+
+                final int codePoint = Character.toCodePoint(c, low);
+
+                out.put(position++, (byte) (0xf0 | codePoint >> 18));
+                out.put(position++, (byte) (0x80 | codePoint >> 12 & 0x3f));
+                out.put(position++, (byte) (0x80 | codePoint >> 6 & 0x3f));
+                out.put(position++, (byte) (0x80 | codePoint & 0x3f));
+
+                index += 2;
+            }
+        }
+
+        out.position(position);
+
+        return index;
+    }
+
+    /**
+     * Put entire string into {@code out}: the bytes of {@link NativeString} are copied as-is,
+     * everything else is encoded as UTF-8.
+     *
+     * @return the number of bytes written or {@code -1}, if the string does not fit (the position
+     * of buffer is unspecified in that case)
+     *
+     * @throws IllegalArgumentException if the string contains unpaired surrogate
+     */
+    public static int put(CharSequence string, ByteBuffer out) {
+        final int start = out.position();
+
+        if (string.getClass() == NativeString.class) {
+            final byte[] bytes = ((NativeString) string).getBytes();
+
+            if (bytes.length > out.remaining()) {
+                return -1;
+            }
+
+            out.put(bytes);
+
+            return bytes.length;
+        }
+
+        final int encoded = encode(string, 0, out);
+
+        if (encoded == -1) {
+            throw new IllegalArgumentException("Unpaired surrogate in " + string);
+        }
+
+        return encoded == string.length() ? out.position() - start : -1;
+    }
 }
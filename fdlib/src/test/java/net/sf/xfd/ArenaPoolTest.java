@@ -0,0 +1,171 @@
+package net.sf.xfd;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ArenaPoolTest {
+    // per-thread and global limits for the smallest size class
+    private static final int LOCAL = 8;
+    private static final int GLOBAL = 32;
+
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger freed = new AtomicInteger();
+
+    private final GuardFactory guards = new GuardFactory() {
+        @Override
+        public Guard forMemory(Closeable scope, long memoryPointer) {
+            return new Guard() {
+                private boolean closed;
+
+                @Override
+                public void close() {
+                    if (!closed) {
+                        closed = true;
+
+                        freed.incrementAndGet();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Guard forDescriptor(Closeable scope, @Fd int fileDescriptor) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final ArenaPool pool = new ArenaPool(size -> {
+        allocated.incrementAndGet();
+
+        return new Arena(0, ByteBuffer.allocateDirect(size), guards);
+    });
+
+    @Test
+    public void sizeClasses() {
+        try (Arena arena = pool.obtain(1)) {
+            assertEquals(ArenaPool.SMALL, arena.getBuf().capacity());
+        }
+
+        try (Arena arena = pool.obtain(ArenaPool.SMALL + 1)) {
+            assertEquals(ArenaPool.MEDIUM, arena.getBuf().capacity());
+        }
+
+        try (Arena arena = pool.obtain(ArenaPool.LARGE)) {
+            assertEquals(ArenaPool.LARGE, arena.getBuf().capacity());
+        }
+
+        assertEquals(3, pool.getMissCount());
+        assertEquals(0, freed.get());
+    }
+
+    @Test
+    public void reuse() {
+        final Arena first = pool.obtain(100);
+
+        first.getBuf().position(10).limit(20);
+
+        first.close();
+
+        final Arena second = pool.obtain(200);
+
+        assertSame(first, second);
+        assertEquals(0, second.getBuf().position());
+        assertEquals(ArenaPool.SMALL, second.getBuf().limit());
+
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        second.close();
+    }
+
+    @Test
+    public void repeatedClose() {
+        final Arena arena = pool.obtain(100);
+
+        arena.close();
+        arena.close();
+
+        final Arena first = pool.obtain(100);
+        final Arena second = pool.obtain(100);
+
+        // returned to the pool only once
+        assertSame(arena, first);
+        assertNotSame(first, second);
+        assertEquals(0, freed.get());
+    }
+
+    @Test
+    public void oversized() {
+        final Arena arena = pool.obtain(ArenaPool.LARGE + 1);
+
+        assertEquals(ArenaPool.LARGE + 1, arena.getBuf().capacity());
+
+        arena.close();
+
+        assertEquals(1, freed.get());
+
+        assertNotSame(arena, pool.obtain(ArenaPool.LARGE + 1));
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void exhaustion() {
+        final int count = LOCAL + GLOBAL + 5;
+
+        final List<Arena> arenas = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i) {
+            arenas.add(pool.obtain(ArenaPool.SMALL));
+        }
+
+        assertEquals(count, allocated.get());
+
+        for (Arena arena : arenas) {
+            arena.close();
+        }
+
+        // whatever does not fit into thread-local and global lists is freed
+        assertEquals(count - LOCAL - GLOBAL, freed.get());
+
+        for (int i = 0; i < count; ++i) {
+            pool.obtain(ArenaPool.SMALL);
+        }
+
+        assertEquals(LOCAL + GLOBAL, pool.getHitCount());
+        assertEquals(count * 2 - LOCAL - GLOBAL, allocated.get());
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws InterruptedException {
+        final List<Arena> arenas = new ArrayList<>();
+
+        for (int i = 0; i < LOCAL + 1; ++i) {
+            arenas.add(pool.obtain(ArenaPool.SMALL));
+        }
+
+        for (Arena arena : arenas) {
+            arena.close();
+        }
+
+        final AtomicReference<Arena> obtained = new AtomicReference<>();
+
+        final Thread other = new Thread(() -> obtained.set(pool.obtain(ArenaPool.SMALL)));
+
+        other.start();
+        other.join();
+
+        // the last one did not fit into local list of this thread
+        assertSame(arenas.get(LOCAL), obtained.get());
+        assertEquals(1, pool.getHitCount());
+    }
+}
@@ -0,0 +1,196 @@
+package net.sf.xfd;
+
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.IntObjectHashMap;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirFdCacheTest {
+    // fake descriptors, opened by the cache, and their current locations
+    private static class FakeCalls implements DirFdCache.Calls {
+        final IntObjectHashMap<String> locations = new IntObjectHashMap<>();
+        final IntHashSet closed = new IntHashSet();
+
+        int opened;
+
+        @Override
+        public int open(String path) throws IOException {
+            final int fd = 100 + opened++;
+
+            locations.put(fd, path);
+
+            return fd;
+        }
+
+        @Override
+        public String location(int fd) throws IOException {
+            final String location = locations.get(fd);
+
+            if (location == null) {
+                throw new ErrnoException(ErrnoException.ENOENT, "No such descriptor");
+            }
+
+            return location;
+        }
+
+        @Override
+        public void close(int fd) {
+            assertTrue("Closed twice: " + fd, closed.add(fd));
+        }
+
+        void move(String from, String to) {
+            for (int i = 0; i < locations.keys.length; ++i) {
+                if (from.equals(locations.values[i])) {
+                    locations.values[i] = to;
+                }
+            }
+        }
+    }
+
+    private final FakeCalls calls = new FakeCalls();
+
+    private int leaseAndClose(DirFdCache cache, String path) throws IOException {
+        try (DirFdCache.Lease lease = cache.lease(path)) {
+            return lease.fd;
+        }
+    }
+
+    @Test
+    public void hits() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 4);
+
+        final int fd = leaseAndClose(cache, "/a/b/");
+
+        assertEquals(fd, leaseAndClose(cache, "/a/b"));
+
+        assertEquals(1, calls.opened);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(calls.closed.isEmpty());
+    }
+
+    @Test
+    public void eviction() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 2);
+
+        final int a = leaseAndClose(cache, "/a");
+        final int b = leaseAndClose(cache, "/b");
+
+        // touch "/a", so that "/b" becomes least recently used
+        leaseAndClose(cache, "/a");
+        leaseAndClose(cache, "/c");
+
+        assertEquals(2, cache.size());
+        assertTrue(calls.closed.contains(b));
+        assertFalse(calls.closed.contains(a));
+
+        assertNotEquals(b, leaseAndClose(cache, "/b"));
+    }
+
+    @Test
+    public void evictedLeaseStaysOpen() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 1);
+
+        final DirFdCache.Lease lease = cache.lease("/a");
+
+        leaseAndClose(cache, "/b");
+
+        assertFalse(calls.closed.contains(lease.fd));
+
+        lease.close();
+
+        assertTrue(calls.closed.contains(lease.fd));
+    }
+
+    @Test
+    public void invalidateSubtree() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 8);
+
+        final int dir = leaseAndClose(cache, "/a/b");
+        final int child = leaseAndClose(cache, "/a/b/c");
+        final int sibling = leaseAndClose(cache, "/a/bc");
+        final int parent = leaseAndClose(cache, "/a");
+
+        cache.invalidate("/a/b/");
+
+        assertEquals(2, cache.size());
+        assertTrue(calls.closed.contains(dir));
+        assertTrue(calls.closed.contains(child));
+        assertFalse(calls.closed.contains(sibling));
+        assertFalse(calls.closed.contains(parent));
+
+        cache.invalidate("/");
+
+        assertEquals(0, cache.size());
+        assertEquals(4, calls.closed.size());
+    }
+
+    @Test
+    public void mountsChanged() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 8);
+
+        leaseAndClose(cache, "/a");
+        leaseAndClose(cache, "/b");
+
+        cache.onMountsChanged(new MountInfo.MountDiff());
+
+        assertEquals(0, cache.size());
+        assertEquals(2, calls.closed.size());
+    }
+
+    @Test
+    public void movedDirectoryIsReopened() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 8);
+
+        final int old = leaseAndClose(cache, "/a/b");
+        final int child = leaseAndClose(cache, "/a/b/c");
+
+        calls.move("/a/b", "/a/moved");
+
+        final int fresh = leaseAndClose(cache, "/a/b");
+
+        assertNotEquals(old, fresh);
+        assertEquals(1, cache.getStaleCount());
+
+        // the entries below moved directory are dropped as well
+        assertTrue(calls.closed.contains(old));
+        assertTrue(calls.closed.contains(child));
+
+        assertEquals(fresh, leaseAndClose(cache, "/a/b"));
+    }
+
+    @Test
+    public void removedDirectoryIsReopened() throws IOException {
+        final DirFdCache cache = new DirFdCache(calls, 8);
+
+        final int old = leaseAndClose(cache, "/a");
+
+        calls.move("/a", "/a (deleted)");
+
+        assertNotEquals(old, leaseAndClose(cache, "/a"));
+        assertTrue(calls.closed.contains(old));
+    }
+
+    @Test
+    public void unknownLocationIsNotCached() throws IOException {
+        final DirFdCache cache = new DirFdCache(new FakeCalls() {
+            @Override
+            public String location(int fd) throws IOException {
+                throw new ErrnoException(ErrnoException.EINVAL, "Not a magic link");
+            }
+        }, 8);
+
+        final DirFdCache.Lease lease = cache.lease("/a");
+
+        assertEquals(0, cache.size());
+
+        lease.close();
+    }
+}
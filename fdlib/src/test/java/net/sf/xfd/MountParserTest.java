@@ -0,0 +1,183 @@
+package net.sf.xfd;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MountParserTest {
+    static MountParser parse(String contents) throws IOException {
+        final File file = File.createTempFile("mountinfo", null);
+
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(contents.getBytes(StandardCharsets.UTF_8));
+            }
+
+            final MountParser parser = new MountParser();
+
+            try (FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+                parser.readFully(fc);
+            }
+
+            return parser;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static String decode(String field) throws IOException {
+        final MountParser parser = parse(field + '\n');
+
+        assertTrue(parser.nextLine());
+
+        return parser.nextString();
+    }
+
+    @Test
+    public void escapes() throws IOException {
+        final String[][] cases = {
+                { "/plain", "/plain" },
+                { "/My\\040Card", "/My Card" },
+                { "/tab\\011and\\012newline", "/tab\tand\nnewline" },
+                { "/back\\134slash", "/back\\slash" },
+                { "/\\303\\251t\\303\\251", "/été" },
+                { "/été", "/été" },
+                // not escapes: non-octal digits and truncated sequences are kept as is
+                { "/x\\089", "/x\\089" },
+                { "/end\\04", "/end\\04" },
+                { "\\040", " " },
+        };
+
+        for (String[] c : cases) {
+            assertEquals(c[0], c[1], decode(c[0]));
+        }
+    }
+
+    @Test
+    public void fields() throws IOException {
+        final MountParser parser = parse("36 35 98:0 /mnt1 /mnt2 rw,noatime master:1 shared:2 - ext3 /dev/root rw,errors=continue\n");
+
+        assertTrue(parser.nextLine());
+
+        assertEquals(36, parser.nextInt());
+        assertEquals(35, parser.nextInt());
+        assertEquals(98, parser.nextInt(':'));
+        assertEquals(0, parser.nextInt());
+        assertEquals("/mnt1", parser.nextString());
+        assertEquals("/mnt2", parser.nextString());
+        parser.skipField();
+        parser.skipOptionalFields();
+        assertFalse(parser.fieldEquals("ext"));
+        assertTrue(parser.fieldEquals("ext3"));
+        assertEquals("/dev/root", parser.nextString());
+        assertEquals("rw,errors=continue", parser.nextString());
+
+        assertFalse(parser.nextLine());
+    }
+
+    @Test
+    public void noOptionalFields() throws IOException {
+        final MountParser parser = parse("1 0 0:1 / / rw - rootfs rootfs rw");
+
+        assertTrue(parser.nextLine());
+
+        for (int i = 0; i < 6; ++i) {
+            parser.skipField();
+        }
+
+        parser.skipOptionalFields();
+
+        assertEquals("rootfs", parser.nextString());
+    }
+
+    @Test
+    public void missingSeparator() throws IOException {
+        final MountParser parser = parse("1 0 0:1 / / rw master:1\n");
+
+        assertTrue(parser.nextLine());
+
+        for (int i = 0; i < 6; ++i) {
+            parser.skipField();
+        }
+
+        try {
+            parser.skipOptionalFields();
+
+            fail("Missing separator was not reported");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void malformedNumbers() throws IOException {
+        final MountParser parser = parse("12x\n\n");
+
+        assertTrue(parser.nextLine());
+
+        try {
+            parser.nextInt();
+
+            fail("Garbage in numeric field was accepted");
+        } catch (IOException expected) {
+            // ok
+        }
+
+        assertTrue(parser.nextLine());
+
+        try {
+            parser.nextInt();
+
+            fail("Empty numeric field was accepted");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void lineHashes() throws IOException {
+        final MountParser parser = parse("1 0 0:1 / / rw - rootfs rootfs rw\n1 0 0:1 / / rw - rootfs rootfs rw\n1 0 0:1 / / ro - rootfs rootfs ro\n");
+
+        assertTrue(parser.nextLine());
+        final long first = parser.lineHash();
+
+        assertTrue(parser.nextLine());
+        assertEquals(first, parser.lineHash());
+
+        assertTrue(parser.nextLine());
+        assertNotEquals(first, parser.lineHash());
+    }
+
+    @Test
+    public void bigFile() throws IOException {
+        final StringBuilder contents = new StringBuilder();
+
+        final int lines = 5000;
+
+        for (int i = 0; i < lines; ++i) {
+            contents.append(i).append(" 1 0:").append(i).append(" / /mnt/").append(i).append(" rw - tmpfs tmpfs rw\n");
+        }
+
+        final MountParser parser = parse(contents.toString());
+
+        int count = 0;
+
+        while (parser.nextLine()) {
+            assertEquals(count++, parser.nextInt());
+        }
+
+        assertEquals(lines, count);
+    }
+}
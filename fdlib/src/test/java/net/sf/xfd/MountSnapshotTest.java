@@ -0,0 +1,120 @@
+package net.sf.xfd;
+
+import com.carrotsearch.hppc.ObjectArrayList;
+import com.carrotsearch.hppc.ObjectHashSet;
+
+import net.sf.xfd.MountInfo.Mount;
+import net.sf.xfd.MountInfo.Snapshot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MountSnapshotTest {
+    private static int nextId = 1;
+
+    private static Mount mount(long dev, String mountPoint, String fstype) {
+        final int id = nextId++;
+
+        return new Mount(id, 0, dev, "/", mountPoint, "rw", fstype, "none", id);
+    }
+
+    private static Snapshot snapshot(Mount... mounts) {
+        final ObjectArrayList<Mount> list = new ObjectArrayList<>();
+
+        list.add(mounts);
+
+        final ObjectHashSet<String> nodev = new ObjectHashSet<>();
+
+        nodev.add("tmpfs");
+        nodev.add("fuse");
+
+        return new Snapshot(list, nodev);
+    }
+
+    @Test
+    public void longestPrefix() {
+        final Mount root = mount(1, "/", "ext4");
+        final Mount storage = mount(2, "/storage", "tmpfs");
+        final Mount emulated = mount(3, "/storage/emulated", "sdcardfs");
+        final Mount card = mount(4, "/storage/ABCD-1234", "vfat");
+
+        final Snapshot snapshot = snapshot(root, storage, emulated, card);
+
+        final Object[][] cases = {
+                { "/", root },
+                { "/system/bin/sh", root },
+                { "/storage", storage },
+                { "/storage/", storage },
+                { "/storage/self/primary", storage },
+                { "/storage/emulated", emulated },
+                { "/storage/emulated/0/DCIM/a.jpg", emulated },
+                // sibling with common prefix of characters, but not of components
+                { "/storage/emulated0/file", storage },
+                { "/storage/emu", storage },
+                { "/storage/ABCD-1234/Music", card },
+                // repeated slashes are skipped
+                { "//storage//emulated//0", emulated },
+        };
+
+        for (Object[] c : cases) {
+            assertSame((String) c[0], c[1], snapshot.forPath((String) c[0]));
+        }
+    }
+
+    @Test
+    public void noRootMount() {
+        final Mount data = mount(1, "/data", "ext4");
+
+        final Snapshot snapshot = snapshot(data);
+
+        assertNull(snapshot.forPath("/system"));
+        assertNull(snapshot.forPath("/"));
+        assertSame(data, snapshot.forPath("/data/local/tmp"));
+    }
+
+    @Test
+    public void escapedMountPoint() {
+        final Mount root = mount(1, "/", "ext4");
+        final Mount card = mount(2, "/mnt/media_rw/My Card", "vfat");
+
+        final Snapshot snapshot = snapshot(root, card);
+
+        assertSame(card, snapshot.forPath("/mnt/media_rw/My Card/file"));
+        assertSame(root, snapshot.forPath("/mnt/media_rw/My"));
+    }
+
+    @Test
+    public void laterMountsShadowEarlier() {
+        final Mount root = mount(1, "/", "ext4");
+        final Mount first = mount(2, "/mnt/shared", "ext4");
+        final Mount second = mount(3, "/mnt/shared", "tmpfs");
+        final Mount bind = mount(2, "/mnt/bind", "ext4");
+
+        final Snapshot snapshot = snapshot(root, first, second, bind);
+
+        assertSame(second, snapshot.forPath("/mnt/shared/file"));
+
+        // bind mount of the same device is found by dev instead of the original one
+        assertSame(bind, snapshot.forDev(2));
+        assertSame(second, snapshot.forDev(3));
+        assertNull(snapshot.forDev(42));
+
+        assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void volatility() {
+        final Snapshot snapshot = snapshot();
+
+        assertTrue(snapshot.isVolatile(mount(1, "/dev", "tmpfs")));
+        assertFalse(snapshot.isVolatile(mount(2, "/data", "ext4")));
+
+        // fuse is listed as nodev, but backed by real storage
+        assertFalse(snapshot.isVolatile(mount(3, "/mnt/fuse", "fuse")));
+    }
+}
@@ -0,0 +1,190 @@
+package net.sf.xfd;
+
+import net.sf.xfd.MountInfo.Mount;
+import net.sf.xfd.MountInfo.MountDiff;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MountTableTest {
+    private static final String ROOT = "15 0 179:2 / / ro,relatime master:1 - ext4 /dev/root ro\n";
+    private static final String DEV = "20 15 0:5 / /dev rw,nosuid - tmpfs tmpfs rw,mode=755\n";
+    private static final String EMULATED = "30 15 179:28 /media /storage/emulated rw,nosuid shared:12 master:3 - sdcardfs /data/media rw\n";
+    private static final String BIND = "31 15 179:28 /media/0 /mnt/runtime/default/emulated/0 rw,nosuid - sdcardfs /data/media rw\n";
+    private static final String CARD = "40 20 0:44 / /mnt/media_rw/My\\040Card rw - vfat /dev/block/vold/public:179,65 rw\n";
+
+    private static final String INITIAL = ROOT + DEV + EMULATED + BIND + CARD;
+
+    private static MountDiff update(MountTable table, String contents) throws IOException {
+        return table.update(MountParserTest.parse(contents));
+    }
+
+    private static Mount byId(MountTable table, int id) {
+        for (int i = 0; i < table.mounts().size(); ++i) {
+            final Mount mount = table.mounts().get(i);
+
+            if (mount.id == id) {
+                return mount;
+            }
+        }
+
+        throw new AssertionError("No mount with id " + id);
+    }
+
+    @Test
+    public void initialParse() throws IOException {
+        final MountTable table = new MountTable();
+
+        final MountDiff diff = update(table, INITIAL);
+
+        assertEquals(5, diff.added.size());
+        assertTrue(diff.removed.isEmpty());
+        assertTrue(diff.changed.isEmpty());
+
+        assertEquals(5, table.mounts().size());
+
+        final Mount root = table.mounts().get(0);
+
+        assertEquals(15, root.id);
+        assertEquals(0, root.parentId);
+        assertEquals(MountTable.makedev(179, 2), root.dev);
+        assertEquals("/", root.root);
+        assertEquals("/", root.mountPoint);
+        assertEquals("ro,relatime", root.options);
+        assertEquals("ext4", root.fstype);
+        assertEquals("/dev/root", root.subject);
+
+        assertEquals("/mnt/media_rw/My Card", byId(table, 40).mountPoint);
+    }
+
+    @Test
+    public void bindMounts() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        final Mount emulated = byId(table, 30);
+        final Mount bind = byId(table, 31);
+
+        assertEquals(emulated.dev, bind.dev);
+        assertEquals("/media", emulated.root);
+        assertEquals("/media/0", bind.root);
+        assertEquals("/storage/emulated", emulated.mountPoint);
+        assertEquals("/mnt/runtime/default/emulated/0", bind.mountPoint);
+    }
+
+    @Test
+    public void unchanged() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        final Mount card = byId(table, 40);
+
+        assertTrue(update(table, INITIAL).isEmpty());
+
+        assertSame(card, byId(table, 40));
+    }
+
+    @Test
+    public void removed() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        final MountDiff diff = update(table, ROOT + DEV + EMULATED + BIND);
+
+        assertEquals(1, diff.removed.size());
+        assertEquals(40, diff.removed.get(0).id);
+        assertTrue(diff.added.isEmpty());
+        assertTrue(diff.changed.isEmpty());
+
+        assertEquals(4, table.mounts().size());
+    }
+
+    @Test
+    public void added() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, ROOT + DEV);
+
+        final MountDiff diff = update(table, ROOT + DEV + CARD);
+
+        assertEquals(1, diff.added.size());
+        assertEquals("vfat", diff.added.get(0).fstype);
+        assertTrue(diff.removed.isEmpty());
+        assertTrue(diff.changed.isEmpty());
+    }
+
+    @Test
+    public void remounted() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        final Mount card = byId(table, 40);
+
+        card.rootPath = "/storage/ABCD-1234";
+        card.description = "SD card";
+
+        final String readOnly = CARD.replace(" rw - ", " ro - ");
+
+        final MountDiff diff = update(table, ROOT + DEV + EMULATED + BIND + readOnly);
+
+        assertEquals(1, diff.changed.size());
+        assertTrue(diff.added.isEmpty());
+        assertTrue(diff.removed.isEmpty());
+
+        final Mount remounted = diff.changed.get(0);
+
+        assertEquals(40, remounted.id);
+        assertEquals("ro", remounted.options);
+        assertSame(remounted, byId(table, 40));
+
+        // the same mount point, information from user is kept
+        assertEquals("/storage/ABCD-1234", remounted.rootPath);
+        assertEquals("SD card", remounted.description);
+    }
+
+    @Test
+    public void moved() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        byId(table, 40).rootPath = "/storage/ABCD-1234";
+
+        final MountDiff diff = update(table, ROOT + DEV + EMULATED + BIND + CARD.replace("My\\040Card", "Other"));
+
+        assertEquals(1, diff.changed.size());
+
+        final Mount moved = diff.changed.get(0);
+
+        assertEquals("/mnt/media_rw/Other", moved.mountPoint);
+        assertEquals("/mnt/media_rw/Other", moved.rootPath);
+    }
+
+    @Test
+    public void malformedLeavesTableIntact() throws IOException {
+        final MountTable table = new MountTable();
+
+        update(table, INITIAL);
+
+        try {
+            update(table, ROOT + "50 15 0:77 / /truncated rw\n");
+
+            fail("Malformed line was accepted");
+        } catch (IOException expected) {
+            // ok
+        }
+
+        assertEquals(5, table.mounts().size());
+        assertTrue(update(table, INITIAL).isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package net.sf.xfd;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PathBufferTest {
+    private static final String SMILE = "😀";
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(PathBuffer.SLOT_SIZE * 2);
+
+    private byte[] encode(CharSequence name, int offset, int limit) throws ErrnoException {
+        final int end = PathBuffer.encode(buffer, name, offset, limit);
+
+        assertEquals(0, buffer.get(end));
+
+        return Arrays.copyOfRange(buffer.array(), offset, end);
+    }
+
+    private static void assertTooLong(ByteBuffer buffer, CharSequence name, int limit) {
+        try {
+            PathBuffer.encode(buffer, name, 0, limit);
+
+            fail("Name, that does not fit into " + limit + " bytes, was accepted");
+        } catch (ErrnoException expected) {
+            assertEquals(ErrnoException.ENAMETOOLONG, expected.code());
+        }
+    }
+
+    @Test
+    public void utf8() throws ErrnoException {
+        final String name = "aé€" + SMILE;
+
+        assertArrayEquals(name.getBytes(StandardCharsets.UTF_8), encode(name, 0, PathBuffer.SLOT_SIZE - 1));
+    }
+
+    @Test
+    public void malformedSurrogates() throws ErrnoException {
+        final String name = SMILE.charAt(1) + "x" + SMILE.charAt(0);
+
+        assertArrayEquals(name.getBytes(StandardCharsets.UTF_8), encode(name, 0, PathBuffer.SLOT_SIZE - 1));
+    }
+
+    @Test
+    public void secondSlot() throws ErrnoException {
+        encode("first", 0, PathBuffer.SLOT_SIZE - 1);
+
+        assertArrayEquals("second".getBytes(StandardCharsets.UTF_8),
+                encode("second", PathBuffer.SLOT_SIZE, PathBuffer.SLOT_SIZE * 2 - 1));
+
+        // the first slot is intact
+        assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), encode("first", 0, 5));
+    }
+
+    @Test
+    public void nativeString() throws ErrnoException {
+        final byte[] bytes = { 'n', (byte) 0xff, 'x' };
+
+        assertArrayEquals(bytes, encode(new NativeString(bytes), 0, PathBuffer.SLOT_SIZE - 1));
+
+        assertTooLong(buffer, new NativeString(bytes), 2);
+    }
+
+    @Test
+    public void tooLong() {
+        assertTooLong(buffer, "abc", 2);
+        assertTooLong(buffer, "aé", 2);
+        assertTooLong(buffer, "a€", 3);
+        assertTooLong(buffer, "a" + SMILE, 4);
+    }
+
+    @Test
+    public void exactFit() throws ErrnoException {
+        assertArrayEquals("a€".getBytes(StandardCharsets.UTF_8), encode("a€", 0, 4));
+    }
+
+    @Test
+    public void nul() {
+        try {
+            PathBuffer.encode(buffer, "a\0b", 0, PathBuffer.SLOT_SIZE - 1);
+
+            fail("Name with NUL character was accepted");
+        } catch (ErrnoException expected) {
+            assertEquals(ErrnoException.EINVAL, expected.code());
+        }
+    }
+
+    @Test
+    public void maxEncodedSize() {
+        // not precise for Java strings: up to 3 bytes per char
+        assertEquals(7, PathBuffer.maxEncodedSize("a€"));
+        assertEquals(4, PathBuffer.maxEncodedSize(new NativeString(new byte[] { 1, 2, 3 })));
+
+        final char[] huge = new char[PathBuffer.SLOT_SIZE * 2];
+        Arrays.fill(huge, 'x');
+
+        assertEquals(PathBuffer.SLOT_SIZE, PathBuffer.maxEncodedSize(new String(huge)));
+    }
+}
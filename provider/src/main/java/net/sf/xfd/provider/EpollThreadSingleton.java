@@ -16,23 +16,31 @@
  */
 package net.sf.xfd.provider;
 
-import net.sf.xfd.SelectorThread;
+import net.sf.xfd.EpollLoop;
+import net.sf.xfd.EpollLoopGroup;
 
 import java.io.IOException;
 
 public final class EpollThreadSingleton {
-    private static volatile SelectorThread instance;
+    // inotify and mount table descriptors are spread between loops by EpollLoopGroup#next();
+    // the mount table, which can be slow to parse, is parsed on the group's Executor
+    private static final int LOOP_COUNT = 2;
 
-    public static SelectorThread get() throws IOException {
+    private static volatile EpollLoopGroup instance;
+
+    public static EpollLoopGroup group() throws IOException {
         if (instance == null) {
             synchronized (EpollThreadSingleton.class) {
                 if (instance == null) {
-                    instance = new SelectorThread();
-                    instance.start();
+                    instance = new EpollLoopGroup(LOOP_COUNT);
                 }
             }
         }
 
         return instance;
     }
+
+    public static EpollLoop get() throws IOException {
+        return group().next();
+    }
 }
@@ -33,8 +33,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.CancellationSignal;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsProvider;
@@ -44,8 +42,11 @@ import android.util.Log;
 
 import net.sf.xfd.CrappyDirectory;
 import net.sf.xfd.DirFd;
+import net.sf.xfd.DirFdCache;
 import net.sf.xfd.Directory;
+import net.sf.xfd.EpollLoop;
 import net.sf.xfd.Fd;
+import net.sf.xfd.FdTracker;
 import net.sf.xfd.FsType;
 import net.sf.xfd.Inotify;
 import net.sf.xfd.InotifyFd;
@@ -53,8 +54,8 @@ import net.sf.xfd.InotifyWatch;
 import net.sf.xfd.LogUtil;
 import net.sf.xfd.MountInfo;
 import net.sf.xfd.OS;
-import net.sf.xfd.SelectorThread;
 import net.sf.xfd.Stat;
+import net.sf.xfd.StatBatch;
 import net.sf.xfd.UnreliableIterator;
 import net.sf.xfd.WrappedIOException;
 
@@ -63,7 +64,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import static android.provider.DocumentsContract.Document.COLUMN_DISPLAY_NAME;
 import static android.provider.DocumentsContract.Document.COLUMN_DOCUMENT_ID;
@@ -99,6 +101,9 @@ public final class FileProvider extends DocumentsProvider {
 
     private static final int DIR_DEFAULT_FLAGS = FILE_DEFAULT_FLAGS | FLAG_DIR_SUPPORTS_CREATE;
 
+    // how many directory entries are stat-ed at once when filling cursor windows
+    private static final int STAT_BATCH = 64;
+
     private final MatrixCursor ROOT = new MatrixCursor(new String[] {
             DocumentsContract.Root.COLUMN_ROOT_ID,
             DocumentsContract.Root.COLUMN_DOCUMENT_ID,
@@ -120,7 +125,11 @@ public final class FileProvider extends DocumentsProvider {
 
     private volatile Inotify inotify;
 
-    private volatile SelectorThread selectorThread;
+    private volatile EpollLoop selectorThread;
+
+    // cursor notifications don't touch UI, keep them off the main thread
+    private static final Executor inotifyExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "Inotify dispatch thread"));
 
     private Inotify getInotify() {
         if (inotify == null) {
@@ -144,16 +153,14 @@ public final class FileProvider extends DocumentsProvider {
                 throw new WrappedIOException(e);
             }
 
-            inotify = os.observe(inotifyFd, Looper.getMainLooper());
+            inotify = os.observe(inotifyFd, inotifyExecutor);
 
-            mainThreadHandler.post(() -> {
-                try {
-                    inotify.setSelector(selectorThread);
-                } catch (IOException e) {
-                    // too bad...
-                    e.printStackTrace();
-                }
-            });
+            try {
+                inotify.setSelector(selectorThread);
+            } catch (IOException e) {
+                // too bad...
+                e.printStackTrace();
+            }
         }
     }
 
@@ -176,6 +183,8 @@ public final class FileProvider extends DocumentsProvider {
         try {
             base = new ProviderBase(getContext(), authority);
 
+            base.warmUp();
+
             final OS os = OS.getInstance();
 
             inotifyFd = os.inotify_init();
@@ -281,6 +290,19 @@ public final class FileProvider extends DocumentsProvider {
                 case COLUMN_SIZE:
                     row[i] = stat.st_size;
                     break;
+                case COLUMN_LAST_MODIFIED:
+                    try {
+                        final Stat extended = new Stat();
+
+                        rooted.statx(DirFd.AT_FDCWD, documentId, 0, Stat.STATX_MTIME, extended);
+
+                        if (extended.has(Stat.STATX_MTIME)) {
+                            row[i] = extended.st_mtime;
+                        }
+                    } catch (IOException e) {
+                        LogUtil.logCautiously("Unable to get modification time of " + documentId, e);
+                    }
+                    break;
             }
         }
 
@@ -320,6 +342,8 @@ public final class FileProvider extends DocumentsProvider {
             try {
                 os.renameat(parentFd, filename, parentFd, displayName);
 
+                base.invalidateDir(canonPath);
+
                 return appendPathPart(parent, displayName);
             } finally {
                 os.dispose(parentFd);
@@ -398,11 +422,15 @@ public final class FileProvider extends DocumentsProvider {
 
                     if (fs1 == fs2) {
                         rooted.renameat(fd1, fileName, fd2, fileName);
+
+                        base.invalidateDir(sourceDocumentId);
                     } else {
                         copyImpl(rooted, sourceDocumentId, targetParentDocumentId);
 
                         try {
                             rooted.unlinkat(fd1, fileName, 0);
+
+                            base.invalidateDir(sourceDocumentId);
                         } catch (IOException e) {
                             LogUtil.logCautiously("Failed to remove original", e);
                         }
@@ -516,7 +544,13 @@ public final class FileProvider extends DocumentsProvider {
                     os.dispose(fd);
                 }
 
-                os.unlinkat(DirFd.NIL, canonDocument, stat.type == FsType.DIRECTORY ? OS.AT_REMOVEDIR : 0);
+                if (stat.type == FsType.DIRECTORY) {
+                    os.unlinkat(DirFd.NIL, canonDocument, OS.AT_REMOVEDIR);
+
+                    base.invalidateDir(canonDocument);
+                } else {
+                    os.unlinkat(DirFd.NIL, canonDocument, 0);
+                }
             } catch (IOException e) {
                 throw new FileNotFoundException("Unable to delete " + documentId + ": " + e.getMessage());
             }
@@ -588,14 +622,7 @@ public final class FileProvider extends DocumentsProvider {
         }
 
         final Directory directory;
-        final MountInfo.Mount mount;
-        final Lock mountsLock = mountInfo.getLock();
-        mountsLock.lock();
-        try {
-            mount = mountInfo.mountMap.get(stat.st_dev);
-        } finally {
-            mountsLock.unlock();
-        }
+        final MountInfo.Mount mount = mountInfo.getSnapshot().forDev(stat.st_dev);
 
         if (mount != null && isPosix(mount.fstype)) {
             directory = os.list(fd);
@@ -609,9 +636,7 @@ public final class FileProvider extends DocumentsProvider {
 
         final ContentResolver cr = getContext().getContentResolver();
 
-        final String canonId = parentDocumentId;
-
-        mainThreadHandler.post(() -> cursor.setNotificationUri(cr, DocumentsContract.buildDocumentUri(authority, canonId)));
+        cursor.setNotificationUri(cr, DocumentsContract.buildDocumentUri(authority, parentDocumentId));
 
         return cursor;
     }
@@ -646,7 +671,24 @@ public final class FileProvider extends DocumentsProvider {
 
             final String canonDocumentId = canonString(documentId);
 
-            @Fd int fd = rooted.open(canonDocumentId, openFlags, 0);
+            final DirFdCache cache = base.getDirCache();
+
+            @Fd int fd;
+
+            if (cache == null || canonDocumentId.length() < 2) {
+                fd = rooted.open(canonDocumentId, openFlags, 0);
+            } else {
+                final String parentPath = parentDir(canonDocumentId);
+
+                final DirFdCache.Lease parent = cache.lease(parentPath);
+                try {
+                    fd = rooted.openat(parent.fd, extractName(canonDocumentId), openFlags, 0);
+                } finally {
+                    parent.close();
+                }
+            }
+
+            FdTracker.forget(fd);
 
             return ParcelFileDescriptor.adoptFd(fd);
         } catch (IOException e) {
@@ -720,8 +762,6 @@ public final class FileProvider extends DocumentsProvider {
         return DocumentsContract.buildDocumentUri(authority, canonId);
     }
 
-    private static final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
-
     public DirectoryCursor createDirCursor(OS os, Inotify inotify, @DirFd int dirFd, Directory directories, String[] columns, String path) {
         final DirectoryCursor cursor = new DirectoryCursor(os, inotify, dirFd, directories, columns, path);
 
@@ -744,9 +784,12 @@ public final class FileProvider extends DocumentsProvider {
         private final DataSetObservable dataSetObservable = new DataSetObservable();
         private final ContentObservable contentObservable = new ContentObservable();
 
-        private final Directory.Entry reusable = new Directory.Entry();
         private final Stat stat = new Stat();
 
+        private final Directory.Entry[] entries = new Directory.Entry[STAT_BATCH];
+        private final CharSequence[] names = new CharSequence[STAT_BATCH];
+        private final StatBatch statBatch = new StatBatch(STAT_BATCH);
+
         private volatile RefCountedWatch inotifySub;
         private volatile int count = -1;
         private volatile Uri notificationUri;
@@ -774,6 +817,10 @@ public final class FileProvider extends DocumentsProvider {
             this.window = new CursorWindow(name);
 
             this.nameBuilder = acquire(path.length() + 255);
+
+            for (int i = 0; i < entries.length; ++i) {
+                entries[i] = new Directory.Entry();
+            }
         }
 
         @Override
@@ -883,84 +930,113 @@ public final class FileProvider extends DocumentsProvider {
                 final boolean needName = hasColumn(COLUMN_DISPLAY_NAME) || hasColumn(COLUMN_DOCUMENT_ID);
                 final boolean needMime = hasColumn(COLUMN_MIME_TYPE) || hasColumn(COLUMN_FLAGS);
                 final boolean needSize = hasColumn(COLUMN_SIZE);
+                final boolean needModified = hasColumn(COLUMN_LAST_MODIFIED);
+                final boolean needStat = needSize || needModified;
 
                 if (iterator.moveToPosition(position)) {
-                    rowloop: do {
-                        if (!window.allocRow()) {
-                            break;
-                        }
+                    boolean more = true;
 
-                        iterator.get(reusable);
+                    rowloop: while (more) {
+                        // read a page of entries ahead, so that they can be stat-ed in one go
+                        int fetched = 0;
 
-                        String fullChildName = null;
-                        if (needName) {
-                            nameBuilder.setLength(0);
+                        do {
+                            iterator.get(entries[fetched++]);
 
-                            nameBuilder.append(path);
+                            more = iterator.moveToNext();
+                        } while (more && fetched < STAT_BATCH);
 
-                            if ('/' != nameBuilder.charAt(nameBuilder.length() - 1)) {
-                                nameBuilder.append('/');
+                        if (needStat) {
+                            for (int i = 0; i < fetched; ++i) {
+                                names[i] = entries[i].name;
                             }
 
-                            nameBuilder.append(reusable.name);
-
-                            fullChildName = canonString(nameBuilder);
-
-                            Log.e("Listing", "Listing " + fullChildName + " as " + reusable.name);
+                            os.fstatatBulk(dirFd, names, fetched, statBatch, 0);
                         }
 
-                        String mime = null;
-                        if (needMime) {
-                            stat.type = reusable.type;
-                            stat.st_size = 0;
-                            stat.st_ino = reusable.ino;
-
-                            mime = base.getTypeFastest(dirFd, reusable.name, stat);
-                        } else if (needSize) {
-                            os.fstatat(dirFd, reusable.name, stat, 0);
-                        }
+                        for (int i = 0; i < fetched; ++i) {
+                            if (!window.allocRow()) {
+                                break rowloop;
+                            }
 
-                        for (int col = 0; col < numColumns; ++col) {
-                            final String column = columns[col];
-                            final boolean success;
+                            final Directory.Entry entry = entries[i];
 
-                            switch (column) {
-                                case DocumentsContract.Document.COLUMN_DOCUMENT_ID:
-                                    success = window.putString(fullChildName, position, col);
-                                    break;
+                            String fullChildName = null;
+                            if (needName) {
+                                nameBuilder.setLength(0);
 
-                                case DocumentsContract.Document.COLUMN_DISPLAY_NAME:
-                                    success = window.putString(reusable.name.toString(), position, col);
-                                    break;
+                                nameBuilder.append(path);
 
-                                case DocumentsContract.Document.COLUMN_FLAGS:
-                                    final int flags = stat.type == FsType.DIRECTORY
-                                            ? DIR_DEFAULT_FLAGS : FILE_DEFAULT_FLAGS;
+                                if ('/' != nameBuilder.charAt(nameBuilder.length() - 1)) {
+                                    nameBuilder.append('/');
+                                }
 
-                                    success = window.putLong(flags, position, col);
+                                nameBuilder.append(entry.name);
 
-                                    break;
+                                fullChildName = canonString(nameBuilder);
+                            }
 
-                                case DocumentsContract.Document.COLUMN_SIZE:
-                                    success = window.putLong(stat.st_size, position, col);
-                                    break;
+                            final boolean statOk = needStat && statBatch.isOk(i);
 
-                                case DocumentsContract.Document.COLUMN_MIME_TYPE:
-                                    success = window.putString(mime, position, col);
-                                    break;
+                            String mime = null;
+                            if (needMime) {
+                                stat.type = entry.type;
+                                stat.st_size = 0;
+                                stat.st_ino = entry.ino;
 
-                                case DocumentsContract.Document.COLUMN_LAST_MODIFIED:
-                                default:
-                                    success = window.putNull(position, col);
-                                    break;
+                                mime = base.getTypeFastest(dirFd, entry.name, stat);
+                            } else if (!statOk || !statBatch.get(i, stat)) {
+                                stat.type = entry.type;
+                                stat.st_size = 0;
                             }
-                            if (!success) {
-                                window.freeLastRow();
-                                break rowloop;
+
+                            for (int col = 0; col < numColumns; ++col) {
+                                final String column = columns[col];
+                                final boolean success;
+
+                                switch (column) {
+                                    case DocumentsContract.Document.COLUMN_DOCUMENT_ID:
+                                        success = window.putString(fullChildName, position, col);
+                                        break;
+
+                                    case DocumentsContract.Document.COLUMN_DISPLAY_NAME:
+                                        success = window.putString(entry.name.toString(), position, col);
+                                        break;
+
+                                    case DocumentsContract.Document.COLUMN_FLAGS:
+                                        final int flags = stat.type == FsType.DIRECTORY
+                                                ? DIR_DEFAULT_FLAGS : FILE_DEFAULT_FLAGS;
+
+                                        success = window.putLong(flags, position, col);
+
+                                        break;
+
+                                    case DocumentsContract.Document.COLUMN_SIZE:
+                                        success = window.putLong(statOk ? statBatch.size[i] : stat.st_size, position, col);
+                                        break;
+
+                                    case DocumentsContract.Document.COLUMN_MIME_TYPE:
+                                        success = window.putString(mime, position, col);
+                                        break;
+
+                                    case DocumentsContract.Document.COLUMN_LAST_MODIFIED:
+                                        success = statOk && statBatch.mtime[i] != 0
+                                                ? window.putLong(statBatch.mtime[i], position, col)
+                                                : window.putNull(position, col);
+                                        break;
+
+                                    default:
+                                        success = window.putNull(position, col);
+                                        break;
+                                }
+                                if (!success) {
+                                    window.freeLastRow();
+                                    break rowloop;
+                                }
                             }
+                            position += 1;
                         }
-                        position += 1;
-                    } while (iterator.moveToNext());
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -1251,6 +1327,9 @@ public final class FileProvider extends DocumentsProvider {
 
         @Override
         public synchronized void onChanges() {
+            // the directory or it's children might have been renamed
+            base.invalidateDir(path);
+
             contentObservable.dispatchChange(false, notificationUri);
 
             resolver.notifyChange(notificationUri, null, false);
@@ -16,6 +16,7 @@
  */
 package net.sf.xfd.provider;
 
+import net.sf.xfd.EpollLoopGroup;
 import net.sf.xfd.MountInfo;
 import net.sf.xfd.OS;
 
@@ -28,8 +29,10 @@ public final class MountsSingleton {
         if (instance == null) {
             synchronized (MountsSingleton.class) {
                 if (instance == null) {
+                    final EpollLoopGroup loops = EpollThreadSingleton.group();
+
                     instance = os.getMounts();
-                    instance.setSelector(EpollThreadSingleton.get());
+                    instance.setSelector(loops.next(), loops.getExecutor());
                 }
             }
         }
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -32,6 +33,7 @@ import com.carrotsearch.hppc.ObjectHashSet;
 import com.carrotsearch.hppc.ObjectSet;
 
 import net.sf.xfd.DirFd;
+import net.sf.xfd.DirFdCache;
 import net.sf.xfd.Fd;
 import net.sf.xfd.FsType;
 import net.sf.xfd.Interruption;
@@ -39,12 +41,12 @@ import net.sf.xfd.LogUtil;
 import net.sf.xfd.MountInfo;
 import net.sf.xfd.NativeBits;
 import net.sf.xfd.OS;
+import net.sf.xfd.OpenHow;
 import net.sf.xfd.Stat;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
 
 import static android.provider.DocumentsContract.Document.MIME_TYPE_DIR;
 
@@ -69,7 +71,11 @@ public final class ProviderBase extends ContextWrapper {
 
     private final String authority;
 
+    // enough for a few directories, browsed simultaneously, and their parents
+    private static final int DIR_CACHE_SIZE = 16;
+
     private volatile MountInfo mounts;
+    private volatile DirFdCache dirCache;
     private volatile OS rooted;
     private volatile Magic magic;
 
@@ -81,6 +87,14 @@ public final class ProviderBase extends ContextWrapper {
         this.magic = Magic.getInstance(getBaseContext());
     }
 
+    /**
+     * Obtain the OS in background, so that the privileged helper is already running by the time of
+     * first request.
+     */
+    void warmUp() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(this::getOS);
+    }
+
     @Nullable
     OS getOS() {
         if (rooted == null) {
@@ -98,6 +112,27 @@ public final class ProviderBase extends ContextWrapper {
         return rooted;
     }
 
+    /**
+     * @return the cache of directory descriptors, opened by {@link #getOS}, or {@code null} if
+     * {@link #getOS} failed
+     */
+    @Nullable
+    DirFdCache getDirCache() {
+        return getOS() == null ? null : dirCache;
+    }
+
+    /**
+     * Forget cached descriptors of the directory and it's descendants. Must be called after
+     * renaming or removing a directory.
+     */
+    void invalidateDir(String path) {
+        final DirFdCache cache = dirCache;
+
+        if (cache != null) {
+            cache.invalidate(path);
+        }
+    }
+
     private void reset() throws IOException {
         if (rooted != null) {
             throw new AssertionError();
@@ -114,8 +149,15 @@ public final class ProviderBase extends ContextWrapper {
             os = OS.getInstance();
         }
 
-        rooted = os;
-        mounts = MountsSingleton.get(os);
+        final MountInfo mounts = MountsSingleton.get(os);
+
+        final DirFdCache cache = new DirFdCache(os, DIR_CACHE_SIZE);
+
+        mounts.addMountListener(cache);
+
+        this.dirCache = cache;
+        this.mounts = mounts;
+        this.rooted = os;
     }
 
     @NonNull
@@ -286,7 +328,10 @@ public final class ProviderBase extends ContextWrapper {
         try {
             @Fd int fd = Fd.NIL;
 
-            @DirFd int parentFd = os.opendir(extractParent(path));
+            final DirFdCache.Lease parent = dirCache.lease(parentDir(path));
+
+            final @DirFd int parentFd = parent.fd;
+
             try {
                 int flags = 0;
 
@@ -387,7 +432,7 @@ public final class ProviderBase extends ContextWrapper {
                     os.dispose(fd);
                 }
 
-                os.dispose(parentFd);
+                parent.close();
             }
         } catch (IOException e) {
             LogUtil.logCautiously("Encountered IO error during mime sniffing", e);
@@ -452,6 +497,15 @@ public final class ProviderBase extends ContextWrapper {
         }
     }
 
+    /**
+     * @return the path of directory, containing specified file, or {@code "/"} for top-level files
+     */
+    static String parentDir(@CanonPath String path) {
+        final int lastSlash = path.lastIndexOf('/');
+
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
     public static String extractName(String chars) {
         final int lastSlash = chars.lastIndexOf('/');
 
@@ -745,8 +799,15 @@ public final class ProviderBase extends ContextWrapper {
         }
 
         try {
+            // the path comes from other apps: don't let it reach into our own descriptors
+            // via /proc/self/fd/ and similar links, unless that requires walking the path
+            // in userspace (which costs several helper round trips per component in root mode)
+            final int restrictions = os.hasNativeOpenat2() ? OS.RESOLVE_NO_MAGICLINKS : 0;
+
             //noinspection WrongConstant
-            @Fd int fd = os.open(externalPath, NativeBits.O_PATH, OS.DEF_FILE_MODE);
+            final OpenHow how = new OpenHow(NativeBits.O_PATH, restrictions);
+
+            @Fd int fd = os.openat2(DirFd.AT_FDCWD, externalPath, how);
             try {
                 return os.readlinkat(DirFd.NIL, fdPath(fd));
             } finally {
@@ -800,7 +861,9 @@ public final class ProviderBase extends ContextWrapper {
 
             final String filename = extractName(filepath);
 
-            @DirFd int parentFd = os.opendir(extractParent(filepath));
+            final DirFdCache.Lease parent = dirCache.lease(parentDir(filepath));
+
+            final @DirFd int parentFd = parent.fd;
 
             try {
                 try {
@@ -855,7 +918,7 @@ public final class ProviderBase extends ContextWrapper {
                     }
                 }
             } finally {
-                os.dispose(parentFd);
+                parent.close();
             }
 
             if (fd > 0) {
@@ -892,19 +955,11 @@ public final class ProviderBase extends ContextWrapper {
     private boolean isPossiblySpecial(Stat s) {
         if (s == null) return true;
 
-        final Lock lock = mounts.getLock();
-        lock.lock();
-        try {
-            final MountInfo.Mount mount = mounts.mountMap.get(s.st_dev);
+        final MountInfo.Snapshot snapshot = mounts.getSnapshot();
 
-            if (mount == null || mounts.isVolatile(mount)) {
-                return true;
-            }
-        } finally {
-            lock.unlock();
-        }
+        final MountInfo.Mount mount = snapshot.forDev(s.st_dev);
 
-        return false;
+        return mount == null || snapshot.isVolatile(mount);
     }
 
     private void addNameCandidates(CharSequence filepath, ObjectSet<String> mimeCandidates) {
@@ -51,11 +51,16 @@ import android.util.Base64;
 import com.carrotsearch.hppc.ObjectIntHashMap;
 import com.carrotsearch.hppc.ObjectIntMap;
 
+import net.sf.fakenames.syscallserver.DescriptorPassingException;
 import net.sf.xfd.DirFd;
+import net.sf.xfd.DirFdCache;
+import net.sf.xfd.ErrnoException;
 import net.sf.xfd.Fd;
+import net.sf.xfd.FdTracker;
 import net.sf.xfd.LogUtil;
 import net.sf.xfd.NativeBits;
 import net.sf.xfd.OS;
+import net.sf.xfd.Rooted;
 import net.sf.xfd.Stat;
 
 import java.io.File;
@@ -113,6 +118,13 @@ public final class PublicProvider extends ContentProvider {
     public static final String URI_ARG_COOKIE = "c";
     public static final String URI_ARG_MODE = "m";
 
+    /**
+     * Boolean option for {@link android.content.ContentResolver#openTypedAssetFileDescriptor}: the caller is
+     * going to read the file sequentially and accepts a pipe in place of seekable descriptor. Files, that are
+     * only readable with root access, are then copied into the pipe by the helper.
+     */
+    public static final String OPT_STREAM = "net.sf.xfd.stream";
+
     private static volatile Intent authActivity;
 
     private final Lock uxLock = new ReentrantLock();
@@ -231,6 +243,8 @@ public final class PublicProvider extends ContentProvider {
 
         try {
             base = new ProviderBase(getContext(), authority);
+
+            base.warmUp();
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -538,6 +552,10 @@ public final class PublicProvider extends ContentProvider {
     @Nullable
     @Override
     public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String requestedMode, CancellationSignal signal) throws FileNotFoundException {
+        return openFile(uri, requestedMode, signal, false);
+    }
+
+    private @Nullable ParcelFileDescriptor openFile(Uri uri, String requestedMode, CancellationSignal signal, boolean stream) throws FileNotFoundException {
         String path = uri.getPath();
 
         assertAbsolute(path);
@@ -570,7 +588,9 @@ public final class PublicProvider extends ContentProvider {
 
             int openFlags;
 
-            if ((readableMode & MODE_READ_ONLY) == readableMode) {
+            final boolean readOnly = (readableMode & MODE_READ_ONLY) == readableMode;
+
+            if (readOnly) {
                 openFlags = OS.O_RDONLY;
             } else if ((readableMode & MODE_WRITE_ONLY) == readableMode) {
                 openFlags = OS.O_WRONLY;
@@ -582,8 +602,16 @@ public final class PublicProvider extends ContentProvider {
                 openFlags |= NativeBits.O_NONBLOCK;
             }
 
-            //noinspection WrongConstant
-            @Fd int fd = rooted.open(path, openFlags, 0);
+            @Fd int fd;
+
+            if (readOnly && rooted instanceof Rooted) {
+                fd = openReadOnly((Rooted) rooted, path, openFlags, stream);
+            } else {
+                //noinspection WrongConstant
+                fd = rooted.open(path, openFlags, 0);
+            }
+
+            FdTracker.forget(fd);
 
             return ParcelFileDescriptor.adoptFd(fd);
         } catch (IOException e) {
@@ -597,10 +625,35 @@ public final class PublicProvider extends ContentProvider {
         }
     }
 
+    @SuppressWarnings("WrongConstant")
+    private static @Fd int openReadOnly(Rooted rooted, String path, int openFlags, boolean stream) throws IOException {
+        if (!stream) {
+            try {
+                return OS.getInstance().open(path, openFlags, 0);
+            } catch (ErrnoException e) {
+                if (e.code() != ErrnoException.EACCES && e.code() != ErrnoException.EPERM) {
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            return stream ? rooted.openStream(DirFd.NIL, path) : rooted.open(path, openFlags, 0);
+        } catch (DescriptorPassingException e) {
+            // the helper's descriptor of file did not make it here, but a pipe, filled by the helper,
+            // is created in this process and can be read by anyone
+            return rooted.openStream(DirFd.NIL, path);
+        }
+    }
+
     @Nullable
     @Override
     public AssetFileDescriptor openAssetFile(@NonNull Uri uri, @NonNull String mode, @Nullable CancellationSignal signal) throws FileNotFoundException {
-        ParcelFileDescriptor fd = openFile(uri, mode, signal);
+        return openAssetFile(uri, mode, signal, false);
+    }
+
+    private @Nullable AssetFileDescriptor openAssetFile(Uri uri, String mode, CancellationSignal signal, boolean stream) throws FileNotFoundException {
+        ParcelFileDescriptor fd = openFile(uri, mode, signal, stream);
 
         return fd != null ? new AssetFileDescriptor(fd, 0, -1) : null;
     }
@@ -608,9 +661,11 @@ public final class PublicProvider extends ContentProvider {
     @Nullable
     @Override
     public AssetFileDescriptor openTypedAssetFile(@NonNull Uri uri, @NonNull String mimeTypeFilter, @Nullable Bundle opts, @Nullable CancellationSignal signal) throws FileNotFoundException {
+        final boolean stream = opts != null && opts.getBoolean(OPT_STREAM);
+
         if ("*/*".equals(mimeTypeFilter)) {
             // If they can take anything, the untyped open call is good enough.
-            return openAssetFile(uri, "r", signal);
+            return openAssetFile(uri, "r", signal, stream);
         }
         String[] possibleTypes = getStreamTypes(uri, mimeTypeFilter);
         if (possibleTypes != null) {
@@ -618,7 +673,7 @@ public final class PublicProvider extends ContentProvider {
                 if (ClipDescription.compareMimeTypes(possibleType, mimeTypeFilter)) {
                     // Use old untyped open call if this provider has a type for this
                     // URI and it matches the request.
-                    return openAssetFile(uri, "r", signal);
+                    return openAssetFile(uri, "r", signal, stream);
                 }
             }
         }
@@ -707,8 +762,25 @@ public final class PublicProvider extends ContentProvider {
         if (os != null) {
             final boolean isDir = MIME_TYPE_DIR.equals(getType(uri));
 
+            final String path = canonString(uri.getPath());
+
             try {
-                os.unlinkat(DirFd.NIL, uri.getPath(), isDir ? OS.AT_REMOVEDIR : 0);
+                final DirFdCache cache = base.getDirCache();
+
+                if (cache == null || path.length() < 2) {
+                    os.unlinkat(DirFd.NIL, path, isDir ? OS.AT_REMOVEDIR : 0);
+                } else {
+                    final DirFdCache.Lease parent = cache.lease(parentDir(path));
+                    try {
+                        os.unlinkat(parent.fd, extractName(path), isDir ? OS.AT_REMOVEDIR : 0);
+                    } finally {
+                        parent.close();
+                    }
+                }
+
+                if (isDir) {
+                    base.invalidateDir(path);
+                }
 
                 return 1;
             } catch (IOException e) {
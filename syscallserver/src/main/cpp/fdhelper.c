@@ -20,15 +20,19 @@
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <sys/socket.h>
-#include <sys/ioctl.h>
 #include <sys/uio.h>
 #include <sys/un.h>
 #include <sys/inotify.h>
 #include <sys/mman.h>
 #include <sys/mount.h>
+#include <poll.h>
+#include <pthread.h>
+#include <signal.h>
+#include <stddef.h>
 
 #include <stdlib.h> // exit
 #include <stdio.h> // printf
+#include <stdarg.h>
 
 #include <android/log.h>
 #include <sepol/policydb/symtab.h>
@@ -61,6 +65,11 @@
 #define REQ_TYPE_STAT 11
 #define REQ_TYPE_INIT 12
 #define REQ_TYPE_CLEANUP 13
+#define REQ_TYPE_CANCEL 14
+#define REQ_TYPE_LIST_STAT 15
+#define REQ_TYPE_BATCH 16
+#define REQ_TYPE_PING 17
+#define REQ_TYPE_STREAM 18
 
 #define INVALID_FD -1
 
@@ -70,175 +79,361 @@ static int verbose;
 
 #define LOG(...) ((void) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__))
 
-static void DieWithError(const char *errorMessage)  /* Error handling function */
-{
-    const char* errDesc = strerror(errno);
-    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failure: %s errno %s(%d)", errorMessage, errDesc, errno);
-    fprintf(stderr, "Error: %s - %s%c", errorMessage, errDesc, '\0');
-    exit(errno);
-}
+// every request starts with this header, followed by two NUL-terminated names,
+// see SyscallFactory.RequestWriter
+struct request_header {
+    uint32_t id;
+    uint32_t type;
+    uint32_t fd_count;
+    int32_t args[2];
+    uint32_t name_lengths[2];
+};
+
+// every response starts with this header, see SyscallFactory.Frame
+struct reply_header {
+    uint32_t id;
+    int32_t status;
+    uint32_t length;
+};
+
+#define MAX_FDS 2
+
+struct request {
+    struct request_header header;
+    const char* names[2];
+    // the remainder of request after names, used by some request types
+    const char* body;
+    size_t body_length;
+    int fds[MAX_FDS];
+};
+
+// id of messages, that aren't responses to particular request
+#define NO_REQUEST 0
+
+// status of responses, that indicate failure without particular errno
+#define REPLY_FAILED -1
+
+// status of partial responses, that are followed by more responses to the same request
+#define REPLY_MORE -2
+
+// upper bound of packet size in both directions, keep in sync with SyscallFactory
+#define MAX_FRAME (64 * 1024)
+
+#define MAX_TEXT_REPLY 1024
+
+#define BOOTSTRAP_TIMEOUT_MS 20000
+
+// how long to wait for the app to reconnect after it closes the connection
+#define LINGER_TIMEOUT_MS (5 * 60 * 1000)
+
+// how often to check, whether the app is still alive, while waiting for it to reconnect
+#define LINGER_CHECK_MS 1000
+
+// the socket to report fatal errors to, once connected
+static int report_sock = INVALID_FD;
+
+// the listening socket, used for initial connection and reconnects
+static int listener_sock = INVALID_FD;
 
-static int ancil_send_fds_with_buffer(int sock, int fd)
+// credentials of the app, only it is allowed to connect
+static struct ucred app_creds;
+
+// set, when the request, executed by current thread, is cancelled
+static __thread volatile sig_atomic_t interrupted;
+
+// Send a single response packet, optionally accompanied by a file descriptor
+static int send_reply(int sock, uint32_t id, int32_t status, const void* payload, size_t length, int fd)
 {
+    struct reply_header header;
+    header.id = id;
+    header.status = status;
+    header.length = (uint32_t) length;
+
+    struct iovec iovec[2];
+    iovec[0].iov_base = &header;
+    iovec[0].iov_len = sizeof(header);
+    iovec[1].iov_base = (void*) payload;
+    iovec[1].iov_len = length;
+
     struct msghdr msghdr;
     msghdr.msg_name = NULL;
     msghdr.msg_namelen = 0;
     msghdr.msg_flags = 0;
-
-    const char success[] = "READY";
-
-    struct iovec iovec;
-    iovec.iov_base = (void*) success;
-    iovec.iov_len = sizeof(success);
-
-    msghdr.msg_iov = &iovec;
-    msghdr.msg_iovlen = 1;
+    msghdr.msg_iov = iovec;
+    msghdr.msg_iovlen = 2;
+    msghdr.msg_control = NULL;
+    msghdr.msg_controllen = 0;
 
     union {
         struct cmsghdr  cmsghdr;
         char        control[CMSG_SPACE(sizeof (int))];
     } cmsgfds;
-    msghdr.msg_control = cmsgfds.control;
-    msghdr.msg_controllen = sizeof(cmsgfds.control);
 
-    struct cmsghdr  *cmsg;
-    cmsg = CMSG_FIRSTHDR(&msghdr);
-    cmsg->cmsg_len = CMSG_LEN(sizeof (int));
-    cmsg->cmsg_level = SOL_SOCKET;
-    cmsg->cmsg_type = SCM_RIGHTS;
-    *((int *) CMSG_DATA(cmsg)) = fd;
+    if (fd >= 0) {
+        msghdr.msg_control = cmsgfds.control;
+        msghdr.msg_controllen = sizeof(cmsgfds.control);
 
-    return (TEMP_FAILURE_RETRY(sendmsg(sock, &msghdr, 0)) >= 0 ? 0 : -1);
+        struct cmsghdr  *cmsg;
+        cmsg = CMSG_FIRSTHDR(&msghdr);
+        cmsg->cmsg_len = CMSG_LEN(sizeof (int));
+        cmsg->cmsg_level = SOL_SOCKET;
+        cmsg->cmsg_type = SCM_RIGHTS;
+        *((int *) CMSG_DATA(cmsg)) = fd;
+    }
+
+    // the app may have closed the connection, that's not a reason to die from SIGPIPE
+    return (TEMP_FAILURE_RETRY(sendmsg(sock, &msghdr, MSG_NOSIGNAL)) >= 0 ? 0 : -1);
 }
 
-static int ancil_recv_fds_with_buffer(int sock, int fdCount, int *fds)
+// Send a response with textual description of the status
+static void reply_text(int sock, uint32_t id, int32_t status, const char* format, ...)
 {
-    struct msghdr msghdr;
-    msghdr.msg_name = NULL;
-    msghdr.msg_namelen = 0;
-    msghdr.msg_flags = 0;
+    char message[MAX_TEXT_REPLY];
 
-    char buffer;
-    struct iovec iovec;
-    iovec.iov_base = &buffer;
-    iovec.iov_len = 1;
+    va_list args;
+    va_start(args, format);
+    int length = vsnprintf(message, sizeof(message), format, args);
+    va_end(args);
 
-    msghdr.msg_iov = &iovec;
-    msghdr.msg_iovlen = 1;
+    if (length < 0) {
+        length = 0;
+    } else if (length >= sizeof(message)) {
+        length = sizeof(message) - 1;
+    }
+
+    send_reply(sock, id, status, message, (size_t) length, INVALID_FD);
+}
+
+static void reply_ok(int sock, uint32_t id)
+{
+    send_reply(sock, id, 0, NULL, 0, INVALID_FD);
+}
+
+// Send the descriptor as successful result and close it. The app may have disconnected in the meantime
+// (and may yet reconnect), so failing to send the result is not fatal
+static void reply_fd(int sock, uint32_t id, int fd)
+{
+    if (send_reply(sock, id, 0, NULL, 0, fd)) {
+        __android_log_print(ANDROID_LOG_WARN, LOG_TAG, "Failed to send descriptor for request %u: %s", id, strerror(errno));
+    }
+
+    close(fd);
+}
+
+// Report failure of an operation, using current errno as status
+static void reply_errno(int sock, uint32_t id, const char* what)
+{
+    int err = errno;
+
+    const char *errmsg = strerror(err);
+
+    LOG("Error: %s failed - %s\n", what, errmsg);
+
+    reply_text(sock, id, err, "%s error - %s", what, errmsg);
+}
+
+static void DieWithError(const char *errorMessage)  /* Error handling function */
+{
+    int err = errno;
+    const char* errDesc = strerror(err);
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failure: %s errno %s(%d)", errorMessage, errDesc, err);
+    if (report_sock != INVALID_FD) {
+        reply_text(report_sock, NO_REQUEST, REPLY_FAILED, "Error: %s - %s", errorMessage, errDesc);
+    } else {
+        fprintf(stderr, "Error: %s - %s%c", errorMessage, errDesc, '\0');
+    }
+    exit(err);
+}
+
+// Receive a single packet. The first of attached file descriptors, if any, is stored in fd,
+// others are closed. Returns the size of packet, 0 on end of stream and -1 on error
+static ssize_t recv_packet(int sock, void* buffer, size_t capacity, int* fd)
+{
+    struct iovec iovec;
+    iovec.iov_base = buffer;
+    iovec.iov_len = capacity;
 
     union {
         struct cmsghdr  cmsghdr;
-        char        control[CMSG_SPACE(sizeof(int))];
+        char        control[CMSG_SPACE(sizeof(int) * MAX_FDS)];
     } cmsgfds;
 
-    struct cmsghdr  cmsghdr;
+    struct msghdr msghdr;
+    msghdr.msg_name = NULL;
+    msghdr.msg_namelen = 0;
+    msghdr.msg_flags = 0;
+    msghdr.msg_iov = &iovec;
+    msghdr.msg_iovlen = 1;
     msghdr.msg_control = cmsgfds.control;
     msghdr.msg_controllen = sizeof(cmsgfds.control);
 
-    struct cmsghdr *cmsg;
-    cmsg = CMSG_FIRSTHDR(&msghdr);
-    cmsg->cmsg_len = msghdr.msg_controllen;
-    cmsg->cmsg_level = SOL_SOCKET;
-    cmsg->cmsg_type = SCM_RIGHTS;
+    *fd = INVALID_FD;
 
-    for(int i = 0; i < fdCount; i++) {
-        ((int *) CMSG_DATA(cmsg))[0] = INVALID_FD;
+    ssize_t received = TEMP_FAILURE_RETRY(recvmsg(sock, &msghdr, 0));
 
-        if (verbose) {
-            LOG("Invoking recvmsg()");
-        }
+    if (received < 0) {
+        return -1;
+    }
 
-        int bytesRead = TEMP_FAILURE_RETRY(recvmsg(sock, &msghdr, 0));
+    struct cmsghdr *cmsg;
 
-        if (bytesRead <= 0) {
-            DieWithError("Failed to read a message from buffer");
-            return -1;
+    for (cmsg = CMSG_FIRSTHDR(&msghdr); cmsg != NULL; cmsg = CMSG_NXTHDR(&msghdr, cmsg)) {
+        if (cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) {
+            continue;
         }
 
-        if (verbose) {
-            LOG("recvmsg() received %d bytes", bytesRead);
-        }
+        int* fds = (int *) CMSG_DATA(cmsg);
 
-        if (cmsg->cmsg_type == SCM_RIGHTS) {
-            if (verbose) LOG("Descriptor: %d", ((int *) CMSG_DATA(cmsg))[0]);
+        size_t count = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+
+        for (size_t i = 0; i < count; ++i) {
+            if (*fd == INVALID_FD) {
+                *fd = fds[i];
+            } else {
+                close(fds[i]);
+            }
+        }
+    }
 
-            fds[i] = ((int *) CMSG_DATA(cmsg))[0];
+    if (msghdr.msg_flags & (MSG_TRUNC | MSG_CTRUNC)) {
+        if (*fd != INVALID_FD) {
+            close(*fd);
+            *fd = INVALID_FD;
         }
+
+        errno = EMSGSIZE;
+        return -1;
     }
 
-    return fdCount;
+    if (verbose) LOG("recvmsg() received %d bytes, descriptor %d", (int) received, *fd);
+
+    return received;
+}
+
+static void malformed_request(const char *errorMessage)
+{
+    errno = EPROTO;
+    DieWithError(errorMessage);
 }
 
-// Fork and get ourselves a tty. Acquired tty will be new stdin,
-// Standard output streams will be redirected to new_stdouterr.
-// Returns control side tty file descriptor.
-static int GetTTY() {
-    int masterFd = open("/dev/ptmx", O_RDWR);
-    if (masterFd < 0)
-        DieWithError("failed to open /dev/ptmx");
+// Receive next request along with descriptors, sent for it. Each descriptor after the first one
+// arrives in a separate packet, containing the id of request. Names point into the buffer.
+// Returns 0, if the app has closed the connection
+static int receive_request(int sock, char* buffer, struct request* req)
+{
+    for (int i = 0; i < MAX_FDS; ++i) {
+        req->fds[i] = INVALID_FD;
+    }
+
+    ssize_t received = recv_packet(sock, buffer, MAX_FRAME, &req->fds[0]);
+
+    if (received == 0) {
+        return 0;
+    }
+
+    if (received < 0)
+        DieWithError("failed to receive a request");
+
+    if (received < sizeof(struct request_header))
+        malformed_request("request is too short");
+
+    memcpy(&req->header, buffer, sizeof(struct request_header));
 
-    char devname[64];
-    pid_t pid;
+    size_t offset = sizeof(struct request_header);
 
-    if(unlockpt(masterFd)) // grantpt is unnecessary, because we already assume devpts by using /dev/ptmx
-        DieWithError("trouble with /dev/ptmx");
+    for (int i = 0; i < 2; ++i) {
+        uint32_t length = req->header.name_lengths[i];
 
-    memset(devname, 0, sizeof(devname));
+        if (length >= (size_t) received - offset || buffer[offset + length] != '\0')
+            malformed_request("request names are malformed");
 
-    // Early (Android 1.6) bionic versions of ptsname_r had a bug where they returned the buffer
-    // instead of 0 on success.  A compatible way of telling whether ptsname_r
-    // succeeded is to zero out errno and check it after the call
-    errno = 0;
-    int ptsResult = ptsname_r(masterFd, devname, sizeof(devname));
-    if (ptsResult && errno)
-        DieWithError("ptsname_r() returned error");
+        req->names[i] = buffer + offset;
 
-    pid = fork();
-    if(pid < 0)
+        offset += length + 1;
+    }
+
+    req->body = buffer + offset;
+    req->body_length = (size_t) received - offset;
+
+    if (req->header.fd_count > MAX_FDS)
+        malformed_request("too many descriptors in request");
+
+    for (uint32_t i = 1; i < req->header.fd_count; ++i) {
+        uint32_t id;
+
+        received = recv_packet(sock, &id, sizeof(id), &req->fds[i]);
+
+        if (received != sizeof(id) || id != req->header.id)
+            malformed_request("failed to receive a descriptor");
+    }
+
+    return 1;
+}
+
+static void release_request(struct request* req)
+{
+    for (int i = 0; i < MAX_FDS; ++i) {
+        if (req->fds[i] != INVALID_FD) {
+            close(req->fds[i]);
+        }
+    }
+}
+
+// Fork and detach from the session of su. The parent reports the PID of forked process
+// to the creator and exits
+static void Daemonize() {
+    pid_t pid = fork();
+    if (pid < 0)
         DieWithError("fork() failed");
 
     if (pid) {
         // tell creator the PID of forked process
         fprintf(stderr, "PID:%d%c", pid, '\0');
         exit(0);
-    } else {
-        int pts;
-
-        setsid();
+    }
 
-        pts = open(devname, O_RDWR);
-        if(pts < 0)
-            exit(-1);
+    setsid();
+}
 
-        ioctl(pts, TIOCSCTTY, 0);
+static void get_peer_credentials(int sock, struct ucred* creds) {
+    socklen_t szCreds = sizeof(*creds);
 
-        dup2(pts, 0);
+    if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, creds, &szCreds) < 0 || szCreds == 0) {
+        DieWithError("failed to retrieve peer credentials");
     }
-
-    return masterFd;
 }
 
 // Perform initial greeting dance with server over socket with supplied name.
-// The procedure ends with "READY" and tty file descriptor are sent over the socket
-// and "GO" being received in response, which means, that the server process has acquired
-// file descriptor on the controlling terminal
+// The helper listens on a SOCK_SEQPACKET socket with kernel-assigned abstract address,
+// sends that address to the server and waits for it to connect. The resulting connection is
+// used for all further communication, each request and response being a single packet.
+// The listening socket is kept open, so that the app can reconnect after closing that connection
 static int Bootstrap(char *socket_name) {
-    int tty, sock;
-
-    tty = GetTTY();
+    int sock, listener, control;
 
-    if ((sock = socket(PF_LOCAL, SOCK_STREAM, 0)) < 0)
+    if ((listener = socket(PF_LOCAL, SOCK_SEQPACKET, 0)) < 0)
         DieWithError("socket() failed");
 
-    struct timeval timeout;
-    timeout.tv_sec = 20;
-    timeout.tv_usec = 0;
+    struct sockaddr_un listenerAddr;
+
+    memset(&listenerAddr, 0, sizeof(listenerAddr));
 
-    //if (setsockopt (sock, SOL_SOCKET, SO_RCVTIMEO, (char *)&timeout, sizeof(timeout)) < 0)
-    //    DieWithError("setting ingoing timeout failed");
+    listenerAddr.sun_family = AF_LOCAL;
 
-    //if (setsockopt (sock, SOL_SOCKET, SO_SNDTIMEO, (char *)&timeout, sizeof(timeout)) < 0)
-    //    DieWithError("setting outgoing timeout failed");
+    // binding to an empty address makes the kernel choose an unique abstract name
+    if (bind(listener, (struct sockaddr *) &listenerAddr, sizeof(sa_family_t)) < 0)
+        DieWithError("bind() failed");
+
+    if (listen(listener, 1) < 0)
+        DieWithError("listen() failed");
+
+    socklen_t listenerAddrSize = sizeof(listenerAddr);
+
+    if (getsockname(listener, (struct sockaddr *) &listenerAddr, &listenerAddrSize) < 0)
+        DieWithError("getsockname() failed");
+
+    if ((sock = socket(PF_LOCAL, SOCK_STREAM, 0)) < 0)
+        DieWithError("socket() failed");
 
     struct sockaddr_un echoServAddr;
 
@@ -253,23 +448,65 @@ static int Bootstrap(char *socket_name) {
     if (connect(sock, (struct sockaddr *) &echoServAddr, size) < 0)
         DieWithError("connect() failed");
 
-    dup2(sock, 1);
-    dup2(sock, 2);
+    report_sock = sock;
+
+    int devNull = open("/dev/null", O_RDWR);
+    if (devNull < 0)
+        DieWithError("failed to open /dev/null");
+
+    // standard streams still point to su, it is not supposed to hear from us anymore
+    dup2(devNull, 0);
+    dup2(devNull, 1);
+    dup2(devNull, 2);
 
-    if (ancil_send_fds_with_buffer(sock, tty))
-        DieWithError("sending tty descriptor failed");
+    if (devNull > 2) {
+        close(devNull);
+    }
+
+    // abstract name starts with NUL, which is implied on the other side
+    size_t nameLength = listenerAddrSize - offsetof(struct sockaddr_un, sun_path) - 1;
 
-    if (scanf("GO") == 0) {
-        if (close(tty))
-            DieWithError("failed to close controlling tty");
+    if (send_reply(sock, NO_REQUEST, 0, listenerAddr.sun_path + 1, nameLength, INVALID_FD))
+        DieWithError("sending greeting failed");
 
-        if (verbose) {
-            LOG("The controlling tty is closed");
+    struct pollfd pollFd;
+    pollFd.fd = listener;
+    pollFd.events = POLLIN;
+    pollFd.revents = 0;
+
+    int ready = TEMP_FAILURE_RETRY(poll(&pollFd, 1, BOOTSTRAP_TIMEOUT_MS));
+    if (ready <= 0) {
+        if (ready == 0) {
+            errno = ETIMEDOUT;
         }
-    } else
-        DieWithError("incomplete confirmation message");
 
-    return sock;
+        DieWithError("no incoming connection");
+    }
+
+    if ((control = TEMP_FAILURE_RETRY(accept(listener, NULL, NULL))) < 0)
+        DieWithError("accept() failed");
+
+    struct ucred actual;
+
+    get_peer_credentials(sock, &app_creds);
+    get_peer_credentials(control, &actual);
+
+    if (app_creds.pid != actual.pid || app_creds.uid != actual.uid) {
+        errno = EPERM;
+        DieWithError("connection from unexpected peer");
+    }
+
+    listener_sock = listener;
+
+    report_sock = control;
+
+    close(sock);
+
+    if (verbose) {
+        LOG("Connected to the app");
+    }
+
+    return control;
 }
 
 static int fixPolicy(const char* context) {
@@ -473,196 +710,68 @@ static void initFileContext(int sock) {
     }
 }
 
-static char* read_filepath(size_t nameLength) {
-    char* filepath;
-
-    if ((filepath = (char*) calloc(nameLength + 1, sizeof(char))) == NULL)
-        DieWithError("calloc() failed");
-
-    if (verbose) LOG("Allocated %d - sized buffer", nameLength + 1);
-
-    if (fgets(filepath, nameLength + 1, stdin) == NULL)
-        DieWithError("reading filepath failed");
-
-    return filepath;
-}
-
-static void invoke_mkdirat(int sock) {
-    int fdCount = -1;
-    int32_t mode = -1;
-    size_t nameLength;
-
-    if (scanf("%u %d %u ", &fdCount, &mode, &nameLength) != 3)
-        DieWithError("reading mkdirat arguments failed");
-
-    char* filepath = read_filepath(nameLength);
-
-    if (verbose) LOG("Attempting to mknod %s", filepath);
-
-    int receivedFd;
-
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
-    }
-
-    if (sys_mkdirat(receivedFd, filepath, *(mode_t*)&mode) != 0) {
-        int err = errno;
 
-        const char *errmsg = strerror(err);
+static void invoke_mkdirat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
-        LOG("Error: failed to create a directory - %s\n", errmsg);
+    if (verbose) LOG("Attempting to mkdir %s", filepath);
 
-        fprintf(stderr, "%d directory creation error - %s%c", err, errmsg, '\0');
+    if (sys_mkdirat(req->fds[0], filepath, (mode_t) req->header.args[0]) != 0) {
+        reply_errno(sock, req->header.id, "directory creation");
     } else {
-        fprintf(stderr, "READY%c", '\0');
-    }
-
-    free(filepath);
-
-    if (receivedFd > 0) {
-        close(receivedFd);
+        reply_ok(sock, req->header.id);
     }
 }
 
-static void invoke_mknodat(int sock) {
-    int fdCount = -1;
-    int32_t mode, device = -1;
-    size_t nameLength;
-
-    if (scanf("%u %d %d %u ", &fdCount, &mode, &device, &nameLength) != 4)
-        DieWithError("reading mknodat arguments failed");
-
-    char* filepath = read_filepath(nameLength);
+static void invoke_mknodat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
     if (verbose) LOG("Attempting to mknod %s", filepath);
 
-    int receivedFd;
-
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
-    }
-
-    if (sys_mknodat(receivedFd, filepath, *(mode_t*)&mode, *(dev_t*)&device)) {
-        int err = errno;
-
-        const char *errmsg = strerror(errno);
-
-        LOG("Error: failed to open a file - %s\n", errmsg);
-
-        fprintf(stderr, "%d mknod error - %s%c", err, errmsg, '\0');
+    if (sys_mknodat(req->fds[0], filepath, (mode_t) req->header.args[0], (dev_t) req->header.args[1])) {
+        reply_errno(sock, req->header.id, "mknod");
     } else {
-        fprintf(stderr, "READY%c", '\0');
-    }
-
-    free(filepath);
-
-    if (receivedFd > 0) {
-        close(receivedFd);
+        reply_ok(sock, req->header.id);
     }
 }
 
-static void invoke_unlinkat(int sock) {
-    int fdCount = -1;
-    int32_t flags = -1;
-    size_t nameLength;
-
-    if (scanf("%u %d %u ", &fdCount, &flags, &nameLength) != 3)
-        DieWithError("reading unlinkat arguments failed");
-
-    char* filepath = read_filepath(nameLength);
+static void invoke_unlinkat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
     if (verbose) LOG("Attempting to unlink %s", filepath);
 
-    int receivedFd;
-
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
-    }
-
-    if (sys_unlinkat(receivedFd, filepath, flags)) {
-        int err = errno;
-
-        const char *errmsg = strerror(err);
-
-        LOG("Error: failed to unlink - %s\n", errmsg);
-
-        fprintf(stderr, "%d unlink error  - %s%c", err, errmsg, '\0');
+    if (sys_unlinkat(req->fds[0], filepath, req->header.args[0])) {
+        reply_errno(sock, req->header.id, "unlink");
     } else {
-        fprintf(stderr, "READY%c", '\0');
-    }
-
-    free(filepath);
-
-    if (receivedFd > 0) {
-        close(receivedFd);
+        reply_ok(sock, req->header.id);
     }
 }
 
-static void invoke_openat(int sock) {
-    int fdCount = -1;
-    int32_t flags = -1;
-    size_t nameLength;
-
-    if (scanf("%u %d %u ", &fdCount, &flags, &nameLength) != 3)
-        DieWithError("reading openat arguments failed");
-
-    char* filepath = read_filepath(nameLength);
+static void invoke_openat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
     if (verbose) LOG("Attempting to open %s", filepath);
 
-    int receivedFd;
-
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
-    }
+    int flags = req->header.args[0];
 
     int targetFd;
     if (filepath[0] == '/') {
         targetFd = sys_open(filepath, flags, S_IRWXU | S_IRWXG);
     } else {
-        targetFd = sys_openat(receivedFd, filepath, flags, S_IRWXU | S_IRWXG);
+        targetFd = sys_openat(req->fds[0], filepath, flags, S_IRWXU | S_IRWXG);
     }
 
-    if (targetFd > 0) {
-        if (ancil_send_fds_with_buffer(sock, targetFd))
-            DieWithError("sending file descriptor failed");
+    if (targetFd >= 0) {
+        reply_fd(sock, req->header.id, targetFd);
     } else {
-        int err = errno;
-
-        const char *errmsg = strerror(err);
-
-        LOG("Error: failed to open a file - %s\n", errmsg);
-
-        fprintf(stderr, "%d open error - %s%c", err, errmsg, '\0');
-    }
-
-    free(filepath);
-
-    if (targetFd > 0) {
-        close(targetFd);
-    }
-
-    if (receivedFd > 0) {
-        close(receivedFd);
+        reply_errno(sock, req->header.id, "open");
     }
 }
 
-static void invoke_add_watch(int sock) {
-    int fds[2];
-
-    ancil_recv_fds_with_buffer(sock, 2, fds);
-
+static void invoke_add_watch(int sock, const struct request* req) {
     char addWatchBuff[25];
 
-    sprintf(addWatchBuff, "/proc/self/fd/%d", fds[1]);
+    sprintf(addWatchBuff, "/proc/self/fd/%d", req->fds[1]);
 
     if (verbose) LOG("Resolving %s", addWatchBuff);
 
@@ -676,13 +785,7 @@ static void invoke_add_watch(int sock) {
         int rc = sys_readlink(addWatchBuff, readLinkBuf, filenameSize);
 
         if (rc == -1) {
-            int err = errno;
-
-            const char *errmsg = strerror(err);
-
-            LOG("failed to readlink - %s\n", errmsg);
-
-            fprintf(stderr, "%d readlink error - %s%c", err, errmsg, '\0');
+            reply_errno(sock, req->header.id, "readlink");
 
             free(readLinkBuf);
             readLinkBuf = NULL;
@@ -701,11 +804,13 @@ static void invoke_add_watch(int sock) {
                 if (newBuf == NULL) {
                     LOG("realloc failed");
 
-                    free(readLinkBuf);
                     readLinkBuf = NULL;
 
                     LOG("Failed to allocate new buffer of size %d", filenameSize);
 
+                    errno = ENOMEM;
+                    reply_errno(sock, req->header.id, "readlink");
+
                     break;
                 }
             }
@@ -719,25 +824,16 @@ static void invoke_add_watch(int sock) {
     }
 
     if (readLinkBuf != NULL) {
-        int addedWatch = inotify_add_watch(fds[0], readLinkBuf, INOTIFY_FLAGS);
+        int32_t addedWatch = inotify_add_watch(req->fds[0], readLinkBuf, INOTIFY_FLAGS);
 
         free(readLinkBuf);
 
         if (addedWatch == -1) {
-            int err = errno;
-
-            const char *errmsg = strerror(err);
-
-            LOG("failed to add watch - %s\n", errmsg);
-
-            fprintf(stderr, "%d inotify error - %s%c", err, errmsg, '\0');
+            reply_errno(sock, req->header.id, "inotify");
         } else {
-            fprintf(stderr, "%d%c", addedWatch, '\0');
+            send_reply(sock, req->header.id, 0, &addedWatch, sizeof(addedWatch), INVALID_FD);
         }
     }
-
-    close(fds[0]);
-    close(fds[1]);
 }
 
 const size_t RLINK_INITIAL_BUFFER_SIZE = 1000;
@@ -888,300 +984,552 @@ static const char *resolve_link(int base, const char* linkpath, size_t *stringSi
     }
 }
 
-static void invoke_readlink(int sock) {
-    int fdCount = -1;
-    size_t nameLength;
 
-    if (scanf("%u %u ", &fdCount, &nameLength) != 2)
-        DieWithError("reading readlinkat arguments failed");
-
-    char *filepath = read_filepath(nameLength);
-
-    int receivedFd;
-
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
-    }
+static void invoke_readlink(int sock, const struct request* req) {
+    const char *filepath = req->names[0];
 
     size_t stringSize;
 
-    char *resolved = (char *) resolve_link(receivedFd, filepath, &stringSize);
+    char *resolved = (char *) resolve_link(req->fds[0], filepath, &stringSize);
 
     if (resolved == NULL) {
-        int err = errno;
-
-        char *errmsg = strerror(errno);
+        reply_errno(sock, req->header.id, "symlink resolution");
+        return;
+    }
 
-        LOG("failed to resolve symlink, - %s\n", errmsg);
+    if (stringSize > MAX_FRAME - sizeof(struct reply_header)) {
+        errno = ENAMETOOLONG;
 
-        fprintf(stderr, "%d symlink resolution error, - %s%c", err, errmsg, '\0');
+        reply_errno(sock, req->header.id, "symlink resolution");
     } else {
-        resolved[stringSize] = '\0';
-
-        fprintf(stderr, "%s%c", resolved, '\0');
-
-        free(resolved);
+        send_reply(sock, req->header.id, 0, resolved, stringSize, INVALID_FD);
     }
 
-    if (filepath != resolved) {
-        free(filepath);
+    if (resolved != filepath) {
+        free(resolved);
     }
+}
 
-    if (receivedFd > 0) {
-        close(receivedFd);
+static void invoke_rename(int sock, const struct request* req) {
+    if (sys_renameat(req->fds[0], req->names[0], req->fds[1], req->names[1])) {
+        reply_errno(sock, req->header.id, "rename");
+    } else {
+        reply_ok(sock, req->header.id);
     }
 }
 
-static void invoke_rename(int sock) {
-    int fds[2] = { -1, -1 };
-
-    int fdCount = -1;
-    size_t nameLength1, nameLength2;
+static void invoke_creat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
-    if (scanf("%u %u %u ", &fdCount, &nameLength1, &nameLength2) != 3)
-        DieWithError("reading renameat arguments failed");
+    if (verbose) LOG("Attempting to creat %s", filepath);
 
-    char *filepath1 = read_filepath(nameLength1);
-    char *filepath2 = read_filepath(nameLength2);
+    int targetFd = creat(filepath, (mode_t) req->header.args[0]);
 
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, fdCount, fds);
+    if (targetFd >= 0) {
+        reply_fd(sock, req->header.id, targetFd);
+    } else {
+        reply_errno(sock, req->header.id, "creat");
     }
+}
 
-    if (sys_renameat(fds[0], filepath1, fds[1], filepath2)) {
-        int err = errno;
-
-        const char *errmsg = strerror(err);
-
-        LOG("Error: failed to rename - %s\n", errmsg);
+static void invoke_linkat(int sock, const struct request* req) {
+    if (verbose) LOG("Attempting to link %s at %s", req->names[0], req->names[1]);
 
-        fprintf(stderr, "%d rename error  - %s%c", err, errmsg, '\0');
+    if (sys_linkat(req->fds[0], req->names[0], req->fds[1], req->names[1], req->header.args[0])) {
+        reply_errno(sock, req->header.id, "link creation");
     } else {
-        fprintf(stderr, "READY%c", '\0');
+        reply_ok(sock, req->header.id);
     }
+}
 
-    free(filepath1);
-    free(filepath2);
+static void invoke_faccessat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
-    if (fds[0] > 0) {
-        close(fds[0]);
-    }
+    if (verbose) LOG("Attempting to access %s", filepath);
+
+    int32_t accessible = 1;
 
-    if (fds[1] > 0) {
-        close(fds[1]);
+    if (sys_faccessat(req->fds[0], filepath, req->header.args[0])) {
+        switch (errno) {
+            case EACCES:
+            case ELOOP:
+            case ENOENT:
+            case ENOTDIR:
+                accessible = 0;
+                break;
+            default:
+                reply_errno(sock, req->header.id, "access check");
+                return;
+        }
     }
-}
 
-static void invoke_creat(int sock) {
-    int32_t mode;
-    size_t nameLength;
+    send_reply(sock, req->header.id, 0, &accessible, sizeof(accessible), INVALID_FD);
+}
 
-    if (scanf("%d %u ", &mode, &nameLength) != 2)
-        DieWithError("reading creat arguments failed");
+// see SyscallFactory.FstatResp
+struct stat_reply {
+    int64_t st_dev;
+    int64_t st_ino;
+    int64_t st_size;
+    int32_t type;
+    int32_t blksize;
+    int64_t st_blocks;
+    // times are in milliseconds since epoch
+    int64_t st_atime_ms;
+    int64_t st_mtime_ms;
+    int64_t st_ctime_ms;
+    int32_t st_mode;
+    int32_t st_nlink;
+    int32_t st_uid;
+    int32_t st_gid;
+};
+
+static void invoke_fstatat(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
 
-    char* filepath = read_filepath(nameLength);
+    if (verbose) LOG("Attempting to stat %s", filepath);
 
-    if (verbose) LOG("Attempting to creat %s", filepath);
+    struct kernel_stat64 stat;
 
-    int targetFd = creat(filepath, *(mode_t*)&mode);
+    if (sys_fstatat64_fixed(req->fds[0], filepath, &stat, req->header.args[0])) {
+        reply_errno(sock, req->header.id, "stat");
+        return;
+    }
 
-    if (targetFd > 0) {
-        if (ancil_send_fds_with_buffer(sock, targetFd))
-            DieWithError("sending file descriptor failed");
+    struct stat_reply reply;
+
+    reply.st_dev = stat.st_dev;
+    reply.st_ino = stat.st_ino;
+    reply.st_size = stat.st_size;
+
+    if (S_ISBLK(stat.st_mode)) {
+        reply.type = 0;
+    } else if (S_ISCHR(stat.st_mode)) {
+        reply.type = 1;
+    } else if (S_ISFIFO(stat.st_mode)) {
+        reply.type = 2;
+    } else if (S_ISSOCK(stat.st_mode)) {
+        reply.type = 3;
+    } else if (S_ISLNK(stat.st_mode)) {
+        reply.type = 4;
+    } else if (S_ISREG(stat.st_mode)) {
+        reply.type = 5;
+    } else if (S_ISDIR(stat.st_mode)) {
+        reply.type = 6;
     } else {
-        int err = errno;
+        reply.type = 7;
+    }
 
-        const char *errmsg = strerror(err);
+    reply.blksize = stat.st_blksize;
+    reply.st_blocks = stat.st_blocks;
+    reply.st_atime_ms = (int64_t) stat.st_atime_ * 1000 + stat.st_atime_nsec_ / 1000000;
+    reply.st_mtime_ms = (int64_t) stat.st_mtime_ * 1000 + stat.st_mtime_nsec_ / 1000000;
+    reply.st_ctime_ms = (int64_t) stat.st_ctime_ * 1000 + stat.st_ctime_nsec_ / 1000000;
+    reply.st_mode = stat.st_mode;
+    reply.st_nlink = stat.st_nlink;
+    reply.st_uid = stat.st_uid;
+    reply.st_gid = stat.st_gid;
 
-        LOG("Error: failed to create a file - %s\n", errmsg);
+    send_reply(sock, req->header.id, 0, &reply, sizeof(reply), INVALID_FD);
+}
 
-        fprintf(stderr, "%d creat error - %s%c", err, errmsg, '\0');
+// see SyscallFactory.ListReq, each entry is followed by the name (without NUL), padded to 8 bytes
+struct list_entry {
+    int64_t d_off;
+    int64_t st_dev;
+    int64_t st_ino;
+    int64_t st_size;
+    int64_t st_mtime_ms;
+    uint32_t st_mode;
+    int32_t st_blksize;
+    int32_t error;
+    uint16_t name_length;
+    uint8_t d_type;
+    uint8_t reserved;
+};
+
+#define LIST_ENTRY_SIZE(name_length) ((sizeof(struct list_entry) + (name_length) + 7) & ~((size_t) 7))
+
+#define GETDENTS_BUFFER_SIZE (32 * 1024)
+
+// Read the whole directory and lstat() each entry. Entries are packed in as few responses as
+// possible, all but the last one have REPLY_MORE status
+static void invoke_list_stat(int sock, const struct request* req) {
+    // open a separate description, so that the offset of app's descriptor is left intact
+    int dirFd = sys_openat(req->fds[0], ".", O_RDONLY | O_DIRECTORY | O_CLOEXEC, 0);
+
+    if (dirFd < 0) {
+        reply_errno(sock, req->header.id, "opening directory");
+        return;
     }
 
-    free(filepath);
+    char* dents = malloc(GETDENTS_BUFFER_SIZE);
+    char* frame = malloc(MAX_FRAME);
 
-    if (targetFd > 0) {
-        close(targetFd);
-    }
-}
+    if (dents == NULL || frame == NULL)
+        DieWithError("failed to allocate listing buffers");
 
-static void invoke_linkat(int sock) {
-    int fds[2] = { -1 };
+    const size_t capacity = MAX_FRAME - sizeof(struct reply_header);
 
-    int flags;
-    int fdCount = -1;
-    size_t nameLength1, nameLength2;
+    size_t used = 0;
 
-    if (scanf("%u %d %u %u ", &fdCount, &flags, &nameLength1, &nameLength2) != 4)
-        DieWithError("reading linkat arguments failed");
+    while (1) {
+        if (interrupted) {
+            errno = ECANCELED;
+            reply_errno(sock, req->header.id, "listing");
+            goto done;
+        }
 
-    char *filepath1 = read_filepath(nameLength1);
-    char *filepath2 = read_filepath(nameLength2);
+        int count = sys_getdents64(dirFd, (struct kernel_dirent64*) dents, GETDENTS_BUFFER_SIZE);
 
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, fdCount, fds);
-    }
+        if (count < 0) {
+            reply_errno(sock, req->header.id, "getdents");
+            goto done;
+        }
 
-    if (verbose) LOG("Attempting to link %s at %s", filepath1, filepath2);
+        if (count == 0) {
+            break;
+        }
 
-    if (sys_linkat(fds[0], filepath1, fds[1], filepath2, flags)) {
-        int err = errno;
+        for (int position = 0; position < count; ) {
+            struct kernel_dirent64* dirent = (struct kernel_dirent64*) (dents + position);
 
-        const char *errmsg = strerror(err);
+            position += dirent->d_reclen;
 
-        LOG("Error: failed to link - %s\n", errmsg);
+            size_t nameLength = strlen(dirent->d_name);
 
-        fprintf(stderr, "%d link creation error  - %s%c", err, errmsg, '\0');
-    } else {
-        fprintf(stderr, "READY%c", '\0');
-    }
+            size_t entrySize = LIST_ENTRY_SIZE(nameLength);
 
-    free(filepath1);
-    free(filepath2);
+            if (used + entrySize > capacity) {
+                if (send_reply(sock, req->header.id, REPLY_MORE, frame, used, INVALID_FD))
+                    goto done;
 
-    if (fds[0] > 0) {
-        close(fds[0]);
-    }
+                used = 0;
+            }
+
+            struct list_entry* entry = (struct list_entry*) (frame + used);
 
-    if (fds[1] > 0) {
-        close(fds[1]);
+            memset(entry, 0, entrySize);
+
+            entry->d_off = dirent->d_off;
+            entry->d_type = dirent->d_type;
+            entry->name_length = (uint16_t) nameLength;
+
+            struct kernel_stat64 stat;
+
+            if (sys_fstatat64_fixed(dirFd, dirent->d_name, &stat, AT_SYMLINK_NOFOLLOW)) {
+                entry->st_ino = (int64_t) dirent->d_ino;
+                entry->error = errno;
+            } else {
+                entry->st_dev = stat.st_dev;
+                entry->st_ino = stat.st_ino;
+                entry->st_size = stat.st_size;
+                entry->st_mtime_ms = (int64_t) stat.st_mtime_ * 1000 + stat.st_mtime_nsec_ / 1000000;
+                entry->st_mode = stat.st_mode;
+                entry->st_blksize = stat.st_blksize;
+            }
+
+            memcpy(frame + used + sizeof(struct list_entry), dirent->d_name, nameLength);
+
+            used += entrySize;
+        }
     }
+
+    send_reply(sock, req->header.id, 0, frame, used, INVALID_FD);
+
+done:
+    free(frame);
+    free(dents);
+    close(dirFd);
 }
 
-static void invoke_faccessat(int sock) {
-    int fdCount = -1;
-    int32_t flags = -1;
-    size_t nameLength;
+// operations of batch, see SyscallFactory.Batch
+#define BATCH_MKDIR 1
+#define BATCH_UNLINK 2
+#define BATCH_RENAME 3
 
-    if (scanf("%u %d %u ", &fdCount, &flags, &nameLength) != 3)
-        DieWithError("reading faccessat arguments failed");
+// the body of batch request is an array of these, followed by two NUL-terminated names for each
+struct batch_op {
+    uint32_t op;
+    int32_t arg;
+    uint32_t name_lengths[2];
+};
 
-    char* filepath = read_filepath(nameLength);
+// Execute a sequence of operations relative to the passed directory and respond with an errno
+// of each (0 on success). When requested, operations after the failed one are skipped with
+// ECANCELED status
+static void invoke_batch(int sock, const struct request* req) {
+    uint32_t count = (uint32_t) req->header.args[0];
+    int stopOnError = req->header.args[1];
 
-    if (verbose) LOG("Attempting to access %s", filepath);
+    int dir = req->fds[0];
 
-    int receivedFd;
+    const struct batch_op* ops = (const struct batch_op*) req->body;
 
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
-    } else {
-        receivedFd = INVALID_FD;
+    if (count > req->body_length / sizeof(struct batch_op)) {
+        errno = EINVAL;
+        reply_errno(sock, req->header.id, "batch decoding");
+        return;
     }
 
-    if (sys_faccessat(receivedFd, filepath, flags)) {
-        int err = errno;
+    int32_t* results = malloc(count * sizeof(int32_t) + 1);
+    const char** opNames = malloc(count * 2 * sizeof(char*) + 1);
+    if (results == NULL || opNames == NULL)
+        DieWithError("failed to allocate batch results");
 
-        switch (err) {
-            case EACCES:
-            case ELOOP:
-            case ENOENT:
-            case ENOTDIR:
-                fprintf(stderr, "false%c", '\0');
+    const char* names = req->body + count * sizeof(struct batch_op);
+    size_t namesLength = req->body_length - count * sizeof(struct batch_op);
+
+    size_t offset = 0;
+
+    // decode all names before executing anything, so that a malformed request has no effects
+    for (uint32_t i = 0; i < count; ++i) {
+        struct batch_op op;
+
+        memcpy(&op, &ops[i], sizeof(op));
+
+        for (int j = 0; j < 2; ++j) {
+            uint32_t length = op.name_lengths[j];
+
+            if (length >= namesLength - offset || names[offset + length] != '\0') {
+                errno = EINVAL;
+                reply_errno(sock, req->header.id, "batch decoding");
+                goto done;
+            }
+
+            opNames[i * 2 + j] = names + offset;
+
+            offset += length + 1;
+        }
+    }
+
+    int failed = 0;
+
+    for (uint32_t i = 0; i < count; ++i) {
+        struct batch_op op;
+
+        memcpy(&op, &ops[i], sizeof(op));
+
+        const char* name = opNames[i * 2];
+
+        if ((failed && stopOnError) || interrupted) {
+            results[i] = ECANCELED;
+            continue;
+        }
+
+        int rc;
+
+        switch (op.op) {
+            case BATCH_MKDIR:
+                rc = sys_mkdirat(dir, name, (mode_t) op.arg);
+                break;
+            case BATCH_UNLINK:
+                rc = sys_unlinkat(dir, name, op.arg);
+                break;
+            case BATCH_RENAME:
+                rc = sys_renameat(dir, name, dir, opNames[i * 2 + 1]);
                 break;
             default:
-                fprintf(stderr, "%d %s%c", err, strerror(err), '\0');
+                errno = ENOSYS;
+                rc = -1;
+        }
+
+        if (rc) {
+            if (verbose) LOG("Batch operation %u on %s failed: %s", op.op, name, strerror(errno));
+
+            results[i] = errno;
+            failed = 1;
+        } else {
+            results[i] = 0;
         }
-    } else {
-        fprintf(stderr, "true%c", '\0');
     }
 
-    free(filepath);
+    send_reply(sock, req->header.id, 0, results, count * sizeof(int32_t), INVALID_FD);
+
+done:
+    free(opNames);
+    free(results);
+}
 
-    if (receivedFd > 0) {
-        close(receivedFd);
+// Streams are copied by dedicated threads, so that they don't occupy workers for the entire
+// time of reading. The amount of buffered data is limited by capacity of pipe, a stream blocks,
+// until the reader drains it, and ends, when the reader closes it's end
+#define MAX_STREAMS 8
+
+#define STREAM_CHUNK (64 * 1024)
+
+struct stream {
+    int source;
+    int sink;
+};
+
+static pthread_mutex_t streams_lock = PTHREAD_MUTEX_INITIALIZER;
+
+// guarded by streams_lock
+static int streams;
+
+static int copy_fully(int sink, const char* buffer, ssize_t count) {
+    while (count > 0) {
+        ssize_t written = TEMP_FAILURE_RETRY(write(sink, buffer, (size_t) count));
+
+        if (written < 0) {
+            return -1;
+        }
+
+        buffer += written;
+        count -= written;
     }
+
+    return 0;
 }
 
-struct {
-    int64_t status;
-    int64_t st_dev;
-    int64_t st_ino;
-    int64_t st_size;
-    int32_t type;
-    int32_t blksize;
-} dumbStat;
+static void* stream_main(void* arg) {
+    struct stream* stream = arg;
 
-static void invoke_fstatat(int sock) {
-    int fdCount = -1;
-    int32_t flags = -1;
-    size_t nameLength;
+    char* buffer = NULL;
 
-    if (scanf("%u %d %u ", &fdCount, &flags, &nameLength) != 3)
-        DieWithError("reading fstatat arguments failed");
+    while (1) {
+        ssize_t moved;
 
-    char* filepath = read_filepath(nameLength);
+        if (buffer == NULL) {
+            moved = TEMP_FAILURE_RETRY(sys_splice(stream->source, NULL, stream->sink, NULL, STREAM_CHUNK, SPLICE_F_MORE));
 
-    if (verbose) LOG("Attempting to stat %s", filepath);
+            if (moved < 0 && (errno == EINVAL || errno == ENOSYS)) {
+                // the filesystem does not support splice, copy through a buffer instead
+                if ((buffer = malloc(STREAM_CHUNK)) == NULL) {
+                    break;
+                }
+
+                continue;
+            }
+        } else {
+            moved = TEMP_FAILURE_RETRY(read(stream->source, buffer, STREAM_CHUNK));
 
-    int receivedFd;
+            if (moved > 0 && copy_fully(stream->sink, buffer, moved)) {
+                moved = -1;
+            }
+        }
+
+        if (moved <= 0) {
+            // EPIPE means, that the reader is gone, which is expected
+            if (moved < 0 && errno != EPIPE) {
+                LOG("Stream failed: %s", strerror(errno));
+            }
+
+            break;
+        }
+    }
+
+    free(buffer);
+
+    close(stream->source);
+    close(stream->sink);
+
+    free(stream);
 
-    if (fdCount > 0) {
-        ancil_recv_fds_with_buffer(sock, 1, &receivedFd);
+    pthread_mutex_lock(&streams_lock);
+    --streams;
+    pthread_mutex_unlock(&streams_lock);
+
+    return NULL;
+}
+
+// Open the file and reply with read end of pipe, the contents of file are copied to
+static void invoke_stream(int sock, const struct request* req) {
+    const char* filepath = req->names[0];
+
+    int source;
+    if (filepath[0] == '/') {
+        source = sys_open(filepath, O_RDONLY | O_CLOEXEC, 0);
     } else {
-        receivedFd = INVALID_FD;
+        source = sys_openat(req->fds[0], filepath, O_RDONLY | O_CLOEXEC, 0);
     }
 
-    struct kernel_stat64 stat;
+    if (source < 0) {
+        reply_errno(sock, req->header.id, "open");
+        return;
+    }
 
-    if (sys_fstatat64_fixed(receivedFd, filepath, &stat, flags)) {
-        int err = errno;
+    struct stat sourceStat;
+
+    if (fstat(source, &sourceStat)) {
+        reply_errno(sock, req->header.id, "fstat");
+        close(source);
+        return;
+    }
+
+    if (S_ISDIR(sourceStat.st_mode)) {
+        errno = EISDIR;
+        reply_errno(sock, req->header.id, "stream");
+        close(source);
+        return;
+    }
+
+    int pipeFds[2];
 
-        const char *errmsg = strerror(err);
+    if (pipe2(pipeFds, O_CLOEXEC)) {
+        reply_errno(sock, req->header.id, "pipe");
+        close(source);
+        return;
+    }
 
-        LOG("Error: failed to stat - %s\n", errmsg);
+    struct stream* stream = malloc(sizeof(struct stream));
 
-        uint64_t errState = 1;
+    int err = 0;
 
-        write(STDERR_FILENO, &errState, sizeof(errState));
+    pthread_mutex_lock(&streams_lock);
 
-        fprintf(stderr, "%d stat error  - %s%c", err, errmsg, '\0');
+    if (stream == NULL) {
+        err = ENOMEM;
+    } else if (streams >= MAX_STREAMS) {
+        err = EAGAIN;
     } else {
-        struct dumbStat;
-
-        dumbStat.status = 0;
-        dumbStat.st_dev = stat.st_dev;
-        dumbStat.st_ino = stat.st_ino;
-        dumbStat.st_size = stat.st_size;
-
-        if (S_ISBLK(stat.st_mode)) {
-            dumbStat.type = 0;
-        } else if (S_ISCHR(stat.st_mode)) {
-            dumbStat.type = 1;
-        } else if (S_ISFIFO(stat.st_mode)) {
-            dumbStat.type = 2;
-        } else if (S_ISSOCK(stat.st_mode)) {
-            dumbStat.type = 3;
-        } else if (S_ISLNK(stat.st_mode)) {
-            dumbStat.type = 4;
-        } else if (S_ISREG(stat.st_mode)) {
-            dumbStat.type = 5;
-        } else if (S_ISDIR(stat.st_mode)) {
-            dumbStat.type = 6;
-        } else {
-            dumbStat.type = 7;
-        }
+        ++streams;
+    }
+
+    pthread_mutex_unlock(&streams_lock);
 
-        dumbStat.blksize = stat.st_blksize;
+    if (!err) {
+        stream->source = source;
+        stream->sink = pipeFds[1];
 
-        write(STDERR_FILENO, &dumbStat, sizeof(dumbStat));
+        pthread_attr_t attr;
+        pthread_attr_init(&attr);
+        pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+
+        pthread_t thread;
+
+        err = pthread_create(&thread, &attr, stream_main, stream);
+
+        pthread_attr_destroy(&attr);
+
+        if (err) {
+            pthread_mutex_lock(&streams_lock);
+            --streams;
+            pthread_mutex_unlock(&streams_lock);
+        }
     }
 
-    free(filepath);
+    if (err) {
+        free(stream);
+
+        close(source);
+        close(pipeFds[0]);
+        close(pipeFds[1]);
 
-    if (receivedFd > 0) {
-        close(receivedFd);
+        errno = err;
+        reply_errno(sock, req->header.id, "stream");
+        return;
     }
+
+    // the source and write end are owned by the stream thread now
+    reply_fd(sock, req->header.id, pipeFds[0]);
 }
 
-static void invoke_cleanup(int sock) {
+static void invoke_cleanup(int sock, const struct request* req) {
     struct ucred creds;
-    socklen_t szCreds = sizeof(creds);
 
-    if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &creds, &szCreds) < 0 || szCreds == 0) {
-        DieWithError("failed to retrieve peer credentials");
-    }
+    get_peer_credentials(sock, &creds);
 
     char parentAttr[30];
 
@@ -1198,16 +1546,13 @@ static void invoke_cleanup(int sock) {
         }
     }
 
-    fprintf(stderr, "READY%c", '\0');
+    reply_ok(sock, req->header.id);
 }
 
-static void invoke_init(int sock) {
+static void invoke_init(int sock, const struct request* req) {
     struct ucred creds;
-    socklen_t szCreds = sizeof(creds);
 
-    if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &creds, &szCreds) < 0 || szCreds == 0) {
-        DieWithError("failed to retrieve peer credentials");
-    }
+    get_peer_credentials(sock, &creds);
 
     if (!access(ENC("/sys/fs/selinux"), X_OK)) {
         char parentAttrBuf[30];
@@ -1225,17 +1570,17 @@ static void invoke_init(int sock) {
                 LOG("Relaxing policy for %s", parentId);
 
                 if (fixPolicy(parentId)) {
-                    fprintf(stderr, "Failed to relax policy%c", '\0');
+                    reply_text(sock, req->header.id, REPLY_FAILED, "Failed to relax policy");
 
                     return;
                 }
             } else {
-                fprintf(stderr, "Failed to parse parent context%c", '\0');
+                reply_text(sock, req->header.id, REPLY_FAILED, "Failed to parse parent context");
 
                 return;
             }
         } else {
-            fprintf(stderr, "Failed to get parent context%c", '\0');
+            reply_text(sock, req->header.id, REPLY_FAILED, "Failed to get parent context");
 
             return;
         }
@@ -1243,17 +1588,484 @@ static void invoke_init(int sock) {
 
     int fd = open(ENC("/proc/self/oom_score_adj"), O_RDWR);
 
-    if (fd > 0) {
-        if (ancil_send_fds_with_buffer(sock, fd))
-            DieWithError("sending file descriptor failed");
+    if (fd >= 0) {
+        reply_fd(sock, req->header.id, fd);
     } else {
-        int err = errno;
+        reply_errno(sock, req->header.id, "bootstrap");
+    }
+}
 
-        const char *errmsg = strerror(err);
+static void dispatch(int sock, const struct request* req) {
+    if (verbose) LOG("Request type is %u, id %u", req->header.type, req->header.id);
 
-        LOG("Error: failed to open LMC file - %s\n", errmsg);
+    switch (req->header.type) {
+        case REQ_TYPE_OPEN:
+            invoke_openat(sock, req);
+            break;
+        case REQ_TYPE_UNLINK:
+            invoke_unlinkat(sock, req);
+            break;
+        case REQ_TYPE_ADD_WATCH:
+            invoke_add_watch(sock, req);
+            break;
+        case REQ_TYPE_MKDIR:
+            invoke_mkdirat(sock, req);
+            break;
+        case REQ_TYPE_MKNOD:
+            invoke_mknodat(sock, req);
+            break;
+        case REQ_TYPE_READLINK:
+            invoke_readlink(sock, req);
+            break;
+        case REQ_TYPE_RENAME:
+            invoke_rename(sock, req);
+            break;
+        case REQ_TYPE_CREAT:
+            invoke_creat(sock, req);
+            break;
+        case REQ_TYPE_LINKAT:
+            invoke_linkat(sock, req);
+            break;
+        case REQ_TYPE_FACCESS:
+            invoke_faccessat(sock, req);
+            break;
+        case REQ_TYPE_STAT:
+            invoke_fstatat(sock, req);
+            break;
+        case REQ_TYPE_INIT:
+            invoke_init(sock, req);
+            break;
+        case REQ_TYPE_CLEANUP:
+            invoke_cleanup(sock, req);
+            break;
+        case REQ_TYPE_LIST_STAT:
+            invoke_list_stat(sock, req);
+            break;
+        case REQ_TYPE_BATCH:
+            invoke_batch(sock, req);
+            break;
+        case REQ_TYPE_STREAM:
+            invoke_stream(sock, req);
+            break;
+        default:
+            errno = ENOSYS;
+            reply_errno(sock, req->header.id, "unknown request");
+    }
+}
+
+// Requests are executed by a pool of worker threads, so that a single slow call (open() of FIFO,
+// stat() on unresponsive network mount etc.) does not hold up the rest. The main thread receives
+// requests and queues them for workers. Workers are started on demand after initFileContext(),
+// so they inherit the filesystem UID and SELinux context of the app.
+
+// SyscallFactory keeps up to 8 requests in flight, cancelled ones may linger a bit longer
+#define MAX_JOBS 16
+#define MAX_WORKERS 8
+
+// running requests are interrupted with this signal, when cancelled
+#define CANCEL_SIGNAL SIGUSR1
+
+// how often the signal is repeated, until the worker notices cancellation
+#define CANCEL_RETRY_MS 100
+
+// how long to wait for workers to finish before accepting a new connection, see drain_jobs()
+#define DRAIN_TIMEOUT_MS 5000
+
+enum job_state { JOB_FREE, JOB_RECEIVING, JOB_QUEUED, JOB_RUNNING };
+
+struct job {
+    enum job_state state;
+    int cancelled;
+    pthread_t worker;
+    char* buffer;
+    struct request req;
+};
 
-        fprintf(stderr, "%d bootstrap error - %s%c", err, errmsg, '\0');
+// guards everything below
+static pthread_mutex_t jobs_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t jobs_queued = PTHREAD_COND_INITIALIZER;
+
+static struct job jobs[MAX_JOBS];
+
+// used to receive requests, that don't fit in the job table
+static struct job overflow_job;
+
+// FIFO of queued jobs
+static struct job* queue[MAX_JOBS];
+static int queue_head;
+static int queue_size;
+
+static int workers;
+static int idle_workers;
+
+static void on_cancel_signal(int signo) {
+    // the main point is to interrupt a blocking system call with EINTR,
+    // but lengthy requests also check the flag between calls
+    interrupted = 1;
+}
+
+static void* worker_main(void* arg) {
+    int sock = (int) (intptr_t) arg;
+
+    pthread_mutex_lock(&jobs_lock);
+
+    while (1) {
+        while (queue_size == 0) {
+            ++idle_workers;
+            pthread_cond_wait(&jobs_queued, &jobs_lock);
+            --idle_workers;
+        }
+
+        struct job* job = queue[queue_head];
+
+        queue_head = (queue_head + 1) % MAX_JOBS;
+        --queue_size;
+
+        // jobs, cancelled while queued, have already been replied to
+        if (!job->cancelled) {
+            job->state = JOB_RUNNING;
+            job->worker = pthread_self();
+
+            pthread_mutex_unlock(&jobs_lock);
+
+            interrupted = 0;
+
+            dispatch(sock, &job->req);
+
+            pthread_mutex_lock(&jobs_lock);
+        }
+
+        release_request(&job->req);
+
+        job->state = JOB_FREE;
+        job->cancelled = 0;
+    }
+
+    return NULL;
+}
+
+// Called with jobs_lock held
+static void start_worker(int sock) {
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+
+    pthread_t thread;
+
+    int err = pthread_create(&thread, &attr, worker_main, (void*) (intptr_t) sock);
+
+    pthread_attr_destroy(&attr);
+
+    if (err == 0) {
+        ++workers;
+    } else if (workers == 0) {
+        errno = err;
+        DieWithError("failed to start a worker");
+    } else {
+        LOG("Failed to start a worker: %s", strerror(err));
+    }
+}
+
+// Returns a free job for next request, or NULL if all of them are taken
+static struct job* acquire_job() {
+    struct job* found = NULL;
+
+    pthread_mutex_lock(&jobs_lock);
+
+    for (int i = 0; i < MAX_JOBS; ++i) {
+        if (jobs[i].state == JOB_FREE) {
+            found = &jobs[i];
+            found->state = JOB_RECEIVING;
+            break;
+        }
+    }
+
+    pthread_mutex_unlock(&jobs_lock);
+
+    return found;
+}
+
+static void discard_job(struct job* job) {
+    release_request(&job->req);
+
+    pthread_mutex_lock(&jobs_lock);
+
+    job->state = JOB_FREE;
+
+    pthread_mutex_unlock(&jobs_lock);
+}
+
+static void submit_job(int sock, struct job* job) {
+    pthread_mutex_lock(&jobs_lock);
+
+    job->state = JOB_QUEUED;
+
+    queue[(queue_head + queue_size) % MAX_JOBS] = job;
+    ++queue_size;
+
+    if (queue_size > idle_workers && workers < MAX_WORKERS) {
+        start_worker(sock);
+    }
+
+    pthread_cond_signal(&jobs_queued);
+
+    pthread_mutex_unlock(&jobs_lock);
+}
+
+// Cancel the request with specified id. Queued request is answered with ECANCELED right away,
+// the running one is interrupted and replies with whatever error it's system call returns
+static void cancel_job(int sock, uint32_t id) {
+    int dequeued = 0;
+
+    pthread_mutex_lock(&jobs_lock);
+
+    for (int i = 0; i < MAX_JOBS; ++i) {
+        struct job* job = &jobs[i];
+
+        if (job->cancelled || job->req.header.id != id) {
+            continue;
+        }
+
+        if (job->state == JOB_QUEUED) {
+            job->cancelled = 1;
+            dequeued = 1;
+            break;
+        }
+
+        if (job->state == JOB_RUNNING) {
+            job->cancelled = 1;
+            pthread_kill(job->worker, CANCEL_SIGNAL);
+            break;
+        }
+    }
+
+    pthread_mutex_unlock(&jobs_lock);
+
+    if (verbose) LOG("Cancelling request %u", id);
+
+    if (dequeued) {
+        errno = ECANCELED;
+        reply_errno(sock, id, "request");
+    }
+}
+
+// Repeat the signal to cancelled workers, in case it arrived right before they entered
+// a blocking call. Returns the number of such workers
+static int resignal_cancelled() {
+    int count = 0;
+
+    pthread_mutex_lock(&jobs_lock);
+
+    for (int i = 0; i < MAX_JOBS; ++i) {
+        if (jobs[i].state == JOB_RUNNING && jobs[i].cancelled) {
+            pthread_kill(jobs[i].worker, CANCEL_SIGNAL);
+            ++count;
+        }
+    }
+
+    pthread_mutex_unlock(&jobs_lock);
+
+    return count;
+}
+
+static void wait_for_request(int sock) {
+    struct pollfd pollFd;
+    pollFd.fd = sock;
+    pollFd.events = POLLIN;
+    pollFd.revents = 0;
+
+    while (1) {
+        int timeout = resignal_cancelled() ? CANCEL_RETRY_MS : -1;
+
+        int ready = poll(&pollFd, 1, timeout);
+
+        if (ready > 0) {
+            return;
+        }
+
+        if (ready < 0 && errno != EINTR)
+            DieWithError("poll() failed");
+    }
+}
+
+// Cancel all requests and wait for workers to finish them, called after the app has closed the
+// connection, so there is no one to reply to
+// Cancel all requests and wait for workers to finish them, so that their responses don't end up
+// in the next connection. Returns -1, if some workers are still busy after DRAIN_TIMEOUT_MS
+// (stuck in uninterruptible sleep on dead network mount or FUSE filesystem)
+static int drain_jobs() {
+    int waited = 0;
+
+    while (1) {
+        int busy = 0;
+
+        pthread_mutex_lock(&jobs_lock);
+
+        for (int i = 0; i < MAX_JOBS; ++i) {
+            struct job* job = &jobs[i];
+
+            if (job->state == JOB_FREE) {
+                continue;
+            }
+
+            ++busy;
+
+            if (job->state == JOB_RUNNING) {
+                pthread_kill(job->worker, CANCEL_SIGNAL);
+            }
+
+            job->cancelled = 1;
+        }
+
+        pthread_mutex_unlock(&jobs_lock);
+
+        if (!busy) {
+            return 0;
+        }
+
+        if (waited >= DRAIN_TIMEOUT_MS) {
+            LOG("%d requests are stuck, giving up", busy);
+
+            return -1;
+        }
+
+        poll(NULL, 0, CANCEL_RETRY_MS);
+
+        waited += CANCEL_RETRY_MS;
+    }
+}
+
+// Wait for the app to connect again and make the new connection take place of sock, so that
+// workers can keep using the same descriptor. Quits, if the app dies or does not come back
+// in LINGER_TIMEOUT_MS
+static void await_reconnect(int sock) {
+    if (drain_jobs()) {
+        // the stuck workers would reply to the next connection, let the app start a new helper instead;
+        // closing the listener first makes reconnection fail right away, even if exit() blocks on those workers
+        close(listener_sock);
+
+        exit(ETIMEDOUT);
+    }
+
+    struct pollfd pollFd;
+    pollFd.fd = listener_sock;
+    pollFd.events = POLLIN;
+
+    int waited = 0;
+
+    while (waited < LINGER_TIMEOUT_MS) {
+        pollFd.revents = 0;
+
+        int ready = poll(&pollFd, 1, LINGER_CHECK_MS);
+
+        if (ready < 0) {
+            if (errno == EINTR) continue;
+
+            DieWithError("poll() failed");
+        }
+
+        if (ready == 0) {
+            waited += LINGER_CHECK_MS;
+
+            if (kill(app_creds.pid, 0) && errno == ESRCH) {
+                if (verbose) LOG("The app is gone, exiting");
+
+                exit(0);
+            }
+
+            continue;
+        }
+
+        int control = TEMP_FAILURE_RETRY(accept(listener_sock, NULL, NULL));
+        if (control < 0) {
+            if (errno == ECONNABORTED) continue;
+
+            DieWithError("accept() failed");
+        }
+
+        struct ucred actual;
+
+        get_peer_credentials(control, &actual);
+
+        if (actual.pid != app_creds.pid || actual.uid != app_creds.uid) {
+            LOG("Rejected connection from %d", actual.pid);
+
+            close(control);
+
+            continue;
+        }
+
+        if (dup2(control, sock) < 0)
+            DieWithError("dup2() failed");
+
+        close(control);
+
+        if (verbose) LOG("The app has reconnected");
+
+        return;
+    }
+
+    if (verbose) LOG("The app did not reconnect, exiting");
+
+    exit(0);
+}
+
+// Receive requests and hand them over to workers. When the app closes the connection,
+// wait for it to reconnect
+static void serve(int sock) {
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    sigemptyset(&action.sa_mask);
+    // no SA_RESTART, the interrupted call must fail with EINTR
+    action.sa_flags = 0;
+    action.sa_handler = on_cancel_signal;
+
+    if (sigaction(CANCEL_SIGNAL, &action, NULL))
+        DieWithError("failed to install signal handler");
+
+    // streams learn about closed pipes from EPIPE
+    signal(SIGPIPE, SIG_IGN);
+
+    while (1) {
+        wait_for_request(sock);
+
+        struct job* job = acquire_job();
+
+        struct job* target = job == NULL ? &overflow_job : job;
+
+        if (target->buffer == NULL && (target->buffer = malloc(MAX_FRAME)) == NULL)
+            DieWithError("failed to allocate request buffer");
+
+        if (!receive_request(sock, target->buffer, &target->req)) {
+            if (verbose) LOG("The connection is closed");
+
+            if (job != NULL) {
+                discard_job(job);
+            }
+
+            await_reconnect(sock);
+
+            continue;
+        }
+
+        if (target->req.header.type == REQ_TYPE_CANCEL) {
+            cancel_job(sock, target->req.header.id);
+        } else if (target->req.header.type == REQ_TYPE_PING) {
+            // answered right away, the response time shows how busy the main thread is
+            reply_ok(sock, target->req.header.id);
+        } else if (job == NULL) {
+            errno = EAGAIN;
+            reply_errno(sock, target->req.header.id, "request");
+        } else {
+            submit_job(sock, job);
+            continue;
+        }
+
+        if (job == NULL) {
+            release_request(&target->req);
+        } else {
+            discard_job(job);
+        }
     }
 }
 
@@ -1271,66 +2083,16 @@ int main(int argc, char *argv[]) {
         LOG("Failed to adjust proc settings: %s", strerror(errno));
     }
 
-    // connect to supplied address and send the greeting message to caller
+    Daemonize();
+
+    // connect to supplied address and establish the connection for requests
     int sock = Bootstrap(argv[1]);
 
     // Use the SELinux context, UID and GID of calling app for all file manipulation (this ensures,
     // that our files are created the same context as if they were created by the calling app)
     initFileContext(sock);
 
-    // process requests infinitely (we will be killed when done)
-    while(1) {
-        int reqType;
-
-        if (scanf("%d", &reqType) != 1)
-            DieWithError("reading a request type failed");
-
-        if (verbose) LOG("Request type is %d", reqType);
-
-        switch (reqType) {
-            case REQ_TYPE_OPEN:
-                invoke_openat(sock);
-                break;
-            case REQ_TYPE_UNLINK:
-                invoke_unlinkat(sock);
-                break;
-            case REQ_TYPE_ADD_WATCH:
-                invoke_add_watch(sock);
-                break;
-            case REQ_TYPE_MKDIR:
-                invoke_mkdirat(sock);
-                break;
-            case REQ_TYPE_MKNOD:
-                invoke_mknodat(sock);
-                break;
-            case REQ_TYPE_READLINK:
-                invoke_readlink(sock);
-                break;
-            case REQ_TYPE_RENAME:
-                invoke_rename(sock);
-                break;
-            case REQ_TYPE_CREAT:
-                invoke_creat(sock);
-                break;
-            case REQ_TYPE_LINKAT:
-                invoke_linkat(sock);
-                break;
-            case REQ_TYPE_FACCESS:
-                invoke_faccessat(sock);
-                break;
-            case REQ_TYPE_STAT:
-                invoke_fstatat(sock);
-                break;
-            case REQ_TYPE_INIT:
-                invoke_init(sock);
-                break;
-            case REQ_TYPE_CLEANUP:
-                invoke_cleanup(sock);
-                break;
-            default:
-                DieWithError("Unknown request type");
-        }
-    }
+    serve(sock);
 }
 
-#pragma clang diagnostic pop
\ No newline at end of file
+#pragma clang diagnostic pop
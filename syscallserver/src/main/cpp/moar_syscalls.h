@@ -51,4 +51,8 @@ static inline int sys_capset(cap_user_header_t hdrp, cap_user_data_t datap) {
 static inline int sys_faccessat(int fd, const char *name, int mode) {
     return syscall(__NR_faccessat, fd, name, mode);
 }
+
+static inline ssize_t sys_splice(int fd_in, loff_t *off_in, int fd_out, loff_t *off_out, size_t len, unsigned int flags) {
+    return syscall(__NR_splice, fd_in, off_in, fd_out, off_out, len, flags);
+}
 #endif
\ No newline at end of file
@@ -0,0 +1,29 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.fakenames.syscallserver;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown, when the helper reported success, but the descriptor did not reach
+ * this process (for example, because SELinux policy forbids receiving it). The factory remains usable,
+ * and the contents of file can still be obtained by other means, such as {@link SyscallFactory#stream}.
+ */
+public final class DescriptorPassingException extends IOException {
+    DescriptorPassingException(String reason) {
+        super(reason);
+    }
+}
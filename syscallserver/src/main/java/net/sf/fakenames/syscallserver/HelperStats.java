@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.fakenames.syscallserver;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.carrotsearch.hppc.ObjectArrayList;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and failure counters of communication with the privileged helper, collected by all
+ * {@link SyscallFactory} instances of the process (see {@link SyscallFactory#getStats}).
+ *
+ * <p/>
+ *
+ * Each request is timed in several {@link Phase phases}, separately for each request type, which
+ * helps to tell apart the overhead of this library from the time, spent by helper and kernel. Startup
+ * of the helper is timed separately: running {@code su} and patching SELinux policy are usually
+ * the slowest steps of all.
+ *
+ * <p/>
+ *
+ * This class is thread-safe.
+ */
+public final class HelperStats {
+    public enum Phase {
+        /**
+         * From the call until the request is picked up by the sender thread, including waiting for
+         * a slot in the in-flight window.
+         */
+        QUEUE,
+
+        /**
+         * Encoding the request into a packet.
+         */
+        ENCODE,
+
+        /**
+         * From sending the request until receiving the response: helper processing, the syscall itself and
+         * delivery of packets by kernel.
+         */
+        HELPER,
+
+        /**
+         * Parsing the response.
+         */
+        DECODE,
+    }
+
+    // indexed by request type, see request types in fdhelper.c
+    private static final String[] REQUEST_NAMES = {
+            null,
+            "open",
+            "mkdir",
+            "unlink",
+            "add_watch",
+            "mknod",
+            "readlink",
+            "rename",
+            "creat",
+            "link",
+            "faccess",
+            "stat",
+            "init",
+            "cleanup",
+            "cancel",
+            "list_stat",
+            "batch",
+            "ping",
+            "stream",
+    };
+
+    private static final int PHASE_COUNT = Phase.values().length;
+
+    // created upon the first request of each type; guarded by itself
+    private final LatencyHistogram[][] latencies = new LatencyHistogram[REQUEST_NAMES.length][];
+
+    private final LatencyHistogram su = new LatencyHistogram();
+    private final LatencyHistogram init = new LatencyHistogram();
+    private final LatencyHistogram reconnect = new LatencyHistogram();
+
+    private final AtomicLong ioTimeouts = new AtomicLong();
+    private final AtomicLong helperTimeouts = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong fdPassingFailures = new AtomicLong();
+
+    HelperStats() {
+    }
+
+    void recordRequest(int type, long queue, long encode, long helper, long decode) {
+        final LatencyHistogram[] histograms = histograms(type);
+
+        if (histograms == null) {
+            return;
+        }
+
+        histograms[Phase.QUEUE.ordinal()].recordNanos(queue);
+        histograms[Phase.ENCODE.ordinal()].recordNanos(encode);
+        histograms[Phase.HELPER.ordinal()].recordNanos(helper);
+        histograms[Phase.DECODE.ordinal()].recordNanos(decode);
+    }
+
+    void recordSu(long nanos) {
+        su.recordNanos(nanos);
+    }
+
+    void recordInit(long nanos) {
+        init.recordNanos(nanos);
+    }
+
+    void recordReconnect(long nanos) {
+        reconnect.recordNanos(nanos);
+    }
+
+    void timedOut(long timeout) {
+        if (timeout == SyscallFactory.HELPER_TIMEOUT) {
+            helperTimeouts.incrementAndGet();
+        } else {
+            ioTimeouts.incrementAndGet();
+        }
+    }
+
+    void rebuilt() {
+        rebuilds.incrementAndGet();
+    }
+
+    void fdPassingFailed() {
+        fdPassingFailures.incrementAndGet();
+    }
+
+    private @Nullable LatencyHistogram[] histograms(int type) {
+        if (type <= 0 || type >= REQUEST_NAMES.length) {
+            return null;
+        }
+
+        synchronized (latencies) {
+            LatencyHistogram[] histograms = latencies[type];
+
+            if (histograms == null) {
+                histograms = new LatencyHistogram[PHASE_COUNT];
+
+                for (int i = 0; i < PHASE_COUNT; ++i) {
+                    histograms[i] = new LatencyHistogram();
+                }
+
+                latencies[type] = histograms;
+            }
+
+            return histograms;
+        }
+    }
+
+    /**
+     * @return names of request types, that have been timed so far
+     */
+    public @NonNull String[] getRequestNames() {
+        final ObjectArrayList<String> names = new ObjectArrayList<>();
+
+        synchronized (latencies) {
+            for (int i = 0; i < latencies.length; ++i) {
+                if (latencies[i] != null) {
+                    names.add(REQUEST_NAMES[i]);
+                }
+            }
+        }
+
+        return names.toArray(String.class);
+    }
+
+    /**
+     * @return latencies of specified phase of requests with specified name (see {@link #getRequestNames}),
+     * or {@code null} if no such requests have been timed
+     */
+    public @Nullable LatencyHistogram getLatency(@NonNull String request, @NonNull Phase phase) {
+        synchronized (latencies) {
+            for (int i = 1; i < REQUEST_NAMES.length; ++i) {
+                if (REQUEST_NAMES[i].equals(request)) {
+                    return latencies[i] == null ? null : latencies[i][phase.ordinal()];
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return time from starting {@code su} until the helper reports it's pid
+     */
+    public @NonNull LatencyHistogram getSuLatency() {
+        return su;
+    }
+
+    /**
+     * @return duration of initial request, which includes patching SELinux policy
+     */
+    public @NonNull LatencyHistogram getInitLatency() {
+        return init;
+    }
+
+    /**
+     * @return duration of successful reconnections to already running helper
+     */
+    public @NonNull LatencyHistogram getReconnectLatency() {
+        return reconnect;
+    }
+
+    /**
+     * @return count of requests, that weren't answered within {@link SyscallFactory#SECONDARY_TIMEOUT}
+     */
+    public long getIoTimeoutCount() {
+        return ioTimeouts.get();
+    }
+
+    /**
+     * @return count of requests, that weren't answered or couldn't be submitted within
+     * {@link SyscallFactory#PRIMARY_TIMEOUT}
+     */
+    public long getHelperTimeoutCount() {
+        return helperTimeouts.get();
+    }
+
+    /**
+     * @return count of factories, created to replace previously closed ones
+     */
+    public long getRebuildCount() {
+        return rebuilds.get();
+    }
+
+    /**
+     * @return count of failures to send a descriptor to the helper or to receive one from it
+     */
+    public long getFdPassingFailureCount() {
+        return fdPassingFailures.get();
+    }
+
+    public void reset() {
+        synchronized (latencies) {
+            for (LatencyHistogram[] histograms : latencies) {
+                if (histograms != null) {
+                    for (LatencyHistogram histogram : histograms) {
+                        histogram.reset();
+                    }
+                }
+            }
+        }
+
+        su.reset();
+        init.reset();
+        reconnect.reset();
+
+        ioTimeouts.set(0);
+        helperTimeouts.set(0);
+        rebuilds.set(0);
+        fdPassingFailures.set(0);
+    }
+
+    /**
+     * @return human-readable summary of all stats (in microseconds), suitable for logging
+     */
+    @Override
+    public String toString() {
+        final StringBuilder summary = new StringBuilder()
+                .append("su: ").append(su).append('\n')
+                .append("init: ").append(init).append('\n')
+                .append("reconnect: ").append(reconnect).append('\n');
+
+        for (String name : getRequestNames()) {
+            for (Phase phase : Phase.values()) {
+                //noinspection ConstantConditions
+                summary.append(name).append(' ').append(phase).append(": ")
+                        .append(getLatency(name, phase)).append('\n');
+            }
+        }
+
+        return summary
+                .append("io timeouts: ").append(getIoTimeoutCount())
+                .append(", helper timeouts: ").append(getHelperTimeoutCount())
+                .append(", rebuilds: ").append(getRebuildCount())
+                .append(", fd passing failures: ").append(getFdPassingFailureCount())
+                .toString();
+    }
+}
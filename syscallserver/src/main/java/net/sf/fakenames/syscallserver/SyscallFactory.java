@@ -19,6 +19,7 @@ import android.content.Context;
 import android.net.Credentials;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.*;
 import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
@@ -29,10 +30,13 @@ import android.system.Os;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.carrotsearch.hppc.ByteArrayList;
+import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.ObjectArrayList;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 
-import net.sf.xfd.CachingWriter;
 import net.sf.xfd.DirFd;
+import net.sf.xfd.DirectoryListing;
 import net.sf.xfd.ErrnoException;
 import net.sf.xfd.Fd;
 import net.sf.xfd.InotifyFd;
@@ -49,19 +53,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.Process;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -88,9 +93,20 @@ import java.util.regex.Pattern;
  * and, probably, many others. The inner workings of {@link android.content.ContentProvider} and entire Android
  * Storage Access Framework are based on them as well.
  * <p>
- * The implementation uses a helper process, run with elevated privileges, that communicates with background thread via
- * a domain socket. There is a single extra thread and single process per factory instance and a best effort is taken to
- * cleanup those when the instance is closed.
+ * The implementation uses a helper process, run with elevated privileges, that communicates with background threads via
+ * a domain socket. There are two extra threads (one sending requests and one receiving responses) and single process
+ * per factory instance and a best effort is taken to cleanup those when the instance is closed. Requests and responses
+ * are binary packets of {@code SOCK_SEQPACKET} socket, file descriptors are passed along with them.
+ * <p>
+ * Each request carries an id, which the helper includes in the response. Up to {@link #MAX_IN_FLIGHT} requests from
+ * different threads can be sent before receiving responses to earlier ones, so concurrent callers don't have to wait
+ * for each other's round trip to the helper. The helper executes requests on a small pool of threads, so a slow
+ * call, such as opening a FIFO or a file on unresponsive network mount, does not hold up the rest. When the caller
+ * stops waiting for response (due to timeout or interruption), the request is cancelled in the helper.
+ * <p>
+ * Once started, the helper outlives the instance: after the connection is closed, it waits for the app to connect
+ * again, so that a factory, created to replace the closed one, does not have to run "su" and set up the helper
+ * from scratch. The helper quits, when the app process dies or does not reconnect in a few minutes.
  * <p>
  * Note, that most of descriptor properties, including read/write access modes can not be changed after it was created.
  * All descriptor properties are retained when passed between processes, such as via AIDL/Binder or Unix domain
@@ -133,10 +149,29 @@ public final class SyscallFactory implements Closeable {
      * {@code su -c "command with arguments"} syntax (most modern ones do).
      * <p>
      * You are highly recommended to cache and reuse the returned instance.
+     * <p>
+     * If the helper of previously closed instance is still running, the new instance connects to it instead of
+     * starting another one.
      *
      * @throws IOException if creation of instance fails, such as due to absence of "su" command in {@code PATH} etc.
      */
     public static SyscallFactory create(Context context) throws IOException {
+        if (!firstCreation.compareAndSet(true, false)) {
+            STATS.rebuilt();
+        }
+
+        final HelperAddress running = lastHelper;
+
+        if (running != null) {
+            try {
+                return reconnect(running);
+            } catch (IOException e) {
+                logException("Failed to reconnect to helper " + running.pid, e);
+
+                lastHelper = null;
+            }
+        }
+
         final String command = new File(context.getApplicationInfo().nativeLibraryDir, System.mapLibraryName(EXEC_NAME)).getAbsolutePath();
 
         final String address = UUID.randomUUID().toString();
@@ -150,6 +185,8 @@ public final class SyscallFactory implements Closeable {
 
     @VisibleForTesting
     static SyscallFactory create(String address, String... cmd) throws IOException {
+        final long started = System.nanoTime();
+
         // must be created before the process
         final LocalServerSocket socket = new LocalServerSocket(address);
         try {
@@ -157,7 +194,7 @@ public final class SyscallFactory implements Closeable {
                     .redirectErrorStream(true)
                     .start();
 
-            final SyscallFactory result = new SyscallFactory(shell, socket);
+            final SyscallFactory result = new SyscallFactory(shell, socket, started);
 
             result.startServer();
 
@@ -169,21 +206,133 @@ public final class SyscallFactory implements Closeable {
         }
     }
 
+    /**
+     * Connect to the helper, started by one of previous instances, and check, that it responds.
+     */
+    private static SyscallFactory reconnect(HelperAddress helper) throws IOException {
+        final long started = System.nanoTime();
+
+        final LocalSocket control = connect(helper.address, helper.pid);
+        try {
+            final SyscallFactory result = new SyscallFactory(control);
+
+            final Frame frame = new Frame(control);
+
+            final RequestWriter writer = new RequestWriter(control);
+
+            final Server server = result.new Server(frame, writer);
+
+            // the connection is accepted by kernel even if the helper is stuck, so limit the wait for pong
+            control.setSoTimeout((int) IO_TIMEOUT);
+
+            try (FdResp pong = server.sendFdRequest(server.new PingReq(), writer, frame)) {
+                pong.check();
+            }
+
+            control.setSoTimeout(0);
+
+            STATS.recordReconnect(System.nanoTime() - started);
+
+            logTrace(Log.DEBUG, "Reconnected to helper %d", helper.pid);
+
+            result.serverThread = server;
+
+            server.start();
+
+            return result;
+        } catch (Throwable t) {
+            shut(control);
+
+            throw t;
+        }
+    }
+
+    private static LocalSocket connect(String address, int helperPid) throws IOException {
+        final LocalSocket control = new LocalSocket(LocalSocket.SOCKET_SEQPACKET);
+
+        try {
+            control.connect(new LocalSocketAddress(address));
+
+            final Credentials credentials = control.getPeerCredentials();
+
+            if (credentials.getUid() != 0 || credentials.getPid() != helperPid) {
+                throw new IOException("Unexpected process " + credentials.getPid() + " at " + address);
+            }
+
+            return control;
+        } catch (Throwable t) {
+            shut(control);
+
+            throw t;
+        }
+    }
+
+    /**
+     * The address of the helper, started by the last bootstrapped instance.
+     */
+    private static volatile HelperAddress lastHelper;
+
+    private static final AtomicBoolean firstCreation = new AtomicBoolean(true);
+
+    private static final HelperStats STATS = new HelperStats();
+
+    /**
+     * @return latencies and failure counters of all instances, created by this process
+     */
+    public static @NonNull HelperStats getStats() {
+        return STATS;
+    }
+
+    private static final class HelperAddress {
+        final String address;
+        final int pid;
+
+        HelperAddress(String address, int pid) {
+            this.address = address;
+            this.pid = pid;
+        }
+    }
+
+    /**
+     * The maximum number of requests, sent to the helper, but not answered yet.
+     */
+    public static final int MAX_IN_FLIGHT = 8;
+
+    // upper bound of request and response packet size, keep in sync with fdhelper.c
+    private static final int MAX_FRAME = 64 * 1024;
+
     private final AtomicBoolean closedStatus = new AtomicBoolean(false);
-    private final ArrayBlockingQueue<FdReq> intake = new ArrayBlockingQueue<>(1);
-    private final SynchronousQueue<FdResp> responses = new SynchronousQueue<>();
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+    // room for in-flight requests, a cancellation for each of them and STOP
+    private final ArrayBlockingQueue<FdReq> intake = new ArrayBlockingQueue<>(2 * MAX_IN_FLIGHT + 1);
+
+    // has no permits until the helper is bootstrapped
+    private final Semaphore window = new Semaphore(0);
+
+    // requests, that have been enqueued, but not answered yet, keyed by id; guarded by itself
+    private final IntObjectHashMap<FdReq> pending = new IntObjectHashMap<>();
 
     final CloseableSocket serverSocket;
     final Process clientProcess;
 
+    // when the "su" process was started
+    private final long startedAt;
+
     private volatile Server serverThread;
-    private volatile ParcelFileDescriptor terminalFd;
+    private volatile LocalSocket controlSocket;
 
-    private SyscallFactory(final Process clientProcess, final LocalServerSocket serverSocket) {
+    private SyscallFactory(final Process clientProcess, final LocalServerSocket serverSocket, long startedAt) {
         this.clientProcess = clientProcess;
         this.serverSocket = new CloseableSocket(serverSocket);
+        this.startedAt = startedAt;
+    }
 
-        intake.offer(FdReq.PLACEHOLDER);
+    // connected to already running helper, there is no process and bootstrap socket
+    private SyscallFactory(final LocalSocket controlSocket) {
+        this.clientProcess = null;
+        this.serverSocket = null;
+        this.controlSocket = controlSocket;
+        this.startedAt = 0;
     }
 
     private void startServer() throws IOException {
@@ -200,6 +349,7 @@ public final class SyscallFactory implements Closeable {
      * <b>Do not call this method from the main thread!</b>
      *
      * @throws IOException recoverable error, such as when file was not found
+     * @throws DescriptorPassingException if the file was opened, but the descriptor could not be received
      * @throws FactoryBrokenException irrecoverable error, that renders this factory instance unusable
      */
     @WorkerThread
@@ -229,6 +379,27 @@ public final class SyscallFactory implements Closeable {
         return FdCompat.adopt(openInternal(pfd, filepath, mode));
     }
 
+    /**
+     * Open the file for reading and return the read end of pipe, the helper copies contents of file to.
+     * The pipe can not be seeked, but unlike a descriptor of the file itself, it can be read by any process,
+     * regardless of it's own access to the file. The data is moved with {@code splice}, without passing
+     * through this process. The helper blocks, while the pipe is full, and stops, when the read end is closed.
+     *
+     * <p>
+     *
+     * <b>Do not call this method from the main thread!</b>
+     *
+     * @throws ErrnoException with {@link ErrnoException#EAGAIN} if the helper is serving too many streams already
+     */
+    @WorkerThread
+    public @NonNull ParcelFileDescriptor stream(@DirFd int fd, CharSequence filepath) throws IOException, FactoryBrokenException {
+        if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
+
+        final ParcelFileDescriptor pfd = fd < 0 ? null : ParcelFileDescriptor.fromFd(fd);
+
+        return FdCompat.adopt(streamInternal(pfd, filepath));
+    }
+
     @WorkerThread
     public void mkdirat(@DirFd int fd, CharSequence filepath, int mode) throws IOException, FactoryBrokenException {
         if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
@@ -333,6 +504,10 @@ public final class SyscallFactory implements Closeable {
         return readlinkInternal(pfd, name);
     }
 
+    /**
+     * Stat the file with root access. Unlike most implementations of {@code fstatat}, this fills all
+     * basic fields of {@code stat}, including mode, owner and times (see {@link Stat#STATX_BASIC_STATS}).
+     */
     @WorkerThread
     public void fstatat(@DirFd int dir, CharSequence pathname, Stat stat, int flags) throws IOException, FactoryBrokenException {
         if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
@@ -342,71 +517,43 @@ public final class SyscallFactory implements Closeable {
         fstatInternal(pfd, pathname, stat, flags);
     }
 
+    /**
+     * Read the whole directory and {@code lstat} each of it's entries with root access. The contents of large
+     * directory are transferred in few big messages instead of message per file.
+     */
     @WorkerThread
-    public @NonNull ParcelFileDescriptor creat(CharSequence filepath, @OS.OpenFlag int mode) throws IOException, FactoryBrokenException {
+    public @NonNull DirectoryListing liststat(@DirFd int dir) throws IOException, FactoryBrokenException {
         if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-        return FdCompat.adopt(creatInternal(filepath, mode));
+        final ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(dir);
+
+        return new DirectoryListing(listInternal(pfd));
     }
 
-    private static void throwException(String message) throws IOException {
-        final int idx = message.indexOf(' ');
-        if (idx < 0) {
-            throw new IOException(message);
-        }
+    /**
+     * Execute all operations of the batch relative to the specified directory in a single round trip to
+     * the helper. Errors of individual operations are recorded in the batch, see {@link Batch#errno}.
+     */
+    @WorkerThread
+    public void batch(@DirFd int dir, @NonNull Batch batch) throws IOException, FactoryBrokenException {
+        if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-        final int maybeErrno = parseErrno(message, idx);
-        if (maybeErrno < 0) {
-            throw new IOException(message);
+        if (batch.count == 0) {
+            return;
         }
 
-        throw new ErrnoException(maybeErrno, message.substring(idx + 1));
-    }
+        final ParcelFileDescriptor pfd = dir < 0 ? null : ParcelFileDescriptor.fromFd(dir);
 
-    // copy-pasted from Integer.parseInt
-    private static int parseErrno(String s, int len) {
-        final int radix = 10;
+        final int[] results = batchInternal(pfd, batch);
 
-        int result = 0;
-        boolean negative = false;
-        int i = 0;
-        int limit = -Integer.MAX_VALUE;
-        int multmin;
-        int digit;
+        System.arraycopy(results, 0, batch.errno, 0, batch.count);
+    }
 
-        if (len > 0) {
-            char firstChar = s.charAt(0);
-            if (firstChar < '0') { // Possible leading "+" or "-"
-                if (firstChar == '-') {
-                    negative = true;
-                    limit = Integer.MIN_VALUE;
-                } else if (firstChar != '+')
-                    return -1;
+    @WorkerThread
+    public @NonNull ParcelFileDescriptor creat(CharSequence filepath, @OS.OpenFlag int mode) throws IOException, FactoryBrokenException {
+        if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-                if (len == 1) // Cannot have lone "+" or "-"
-                    return -1;
-                i++;
-            }
-            multmin = limit / radix;
-            while (i < len) {
-                // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.charAt(i++),radix);
-                if (digit < 0) {
-                    return -1;
-                }
-                if (result < multmin) {
-                    return -1;
-                }
-                result *= radix;
-                if (result < limit + digit) {
-                    return -1;
-                }
-                result -= digit;
-            }
-        } else {
-            return -1;
-        }
-        return negative ? result : -result;
+        return FdCompat.adopt(creatInternal(filepath, mode));
     }
 
     /**
@@ -418,35 +565,9 @@ public final class SyscallFactory implements Closeable {
     public void init() throws IOException, FactoryBrokenException {
         if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-        final FdReq request = serverThread.new InitReq();
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                response.close();
-
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
-
-                    throwException(response.message);
-                }
-
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            throw new InterruptedIOException("Interrupted before completion");
+        try (FdResp response = exchange(serverThread.new InitReq())) {
+            response.check();
         }
-
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
     }
 
     /**
@@ -458,44 +579,70 @@ public final class SyscallFactory implements Closeable {
     public void cleanup() throws IOException, FactoryBrokenException {
         if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-        final FdReq request = serverThread.new CleanupReq();
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
+        exchange(serverThread.new CleanupReq()).check();
 
-                    throwException(response.message);
-                }
+        // the next instance should set up the helper again
+        lastHelper = null;
+    }
 
-                response.close();
+    /**
+     * Check, that the helper responds. Pings are answered right away instead of being queued behind other
+     * requests, so this takes a single round trip, unless the helper is stuck.
+     *
+     * @throws FactoryBrokenException if the helper does not respond in time, the instance is closed in that case
+     */
+    @WorkerThread
+    public void ping() throws IOException, FactoryBrokenException {
+        if (closedStatus.get()) throw new FactoryBrokenException("Already closed");
 
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
+        try {
+            exchange(serverThread.new PingReq()).check();
+        } catch (ErrnoException e) {
+            if (e.code() != ErrnoException.ETIMEDOUT) {
+                throw e;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
 
-            throw new InterruptedIOException("Interrupted before completion");
+            close();
+
+            throw new FactoryBrokenException("The helper does not respond");
         }
+    }
 
-        close();
+    private int nextRequestId() {
+        int id;
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        do {
+            // 0 is reserved for messages, that aren't responses to any request
+            id = lastRequestId.incrementAndGet() & Integer.MAX_VALUE;
+        } while (id == 0);
+
+        return id;
     }
 
     private boolean enqueue(FdReq request) throws InterruptedException {
         boolean result = false;
 
         try {
-            result = intake.offer(request, HELPER_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!window.tryAcquire(HELPER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                STATS.timedOut(HELPER_TIMEOUT);
+
+                return false;
+            }
+
+            request.id = nextRequestId();
+
+            synchronized (pending) {
+                pending.put(request.id, request);
+            }
+
+            // re-check after registering: once closed, pending requests are failed by the server thread
+            result = !closedStatus.get() && intake.offer(request);
         } finally {
             if (!result) {
+                if (request.id != 0) {
+                    forget(request.id);
+                }
+
                 request.close();
             }
         }
@@ -503,354 +650,198 @@ public final class SyscallFactory implements Closeable {
         return result;
     }
 
-    private int addWatchInternal(InotifyImpl inotify, ParcelFileDescriptor pfd, ParcelFileDescriptor pathnameFd) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new AddWatch(inotify, pfd, pathnameFd);
+    /**
+     * Remove the request from the set of pending ones, freeing it's slot in the in-flight window.
+     *
+     * @return the request with specified id or {@code null}, if it is not pending
+     */
+    private FdReq forget(int id) {
+        final FdReq request;
 
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    try {
-                        return Integer.parseInt(response.message);
-                    } catch (NumberFormatException nfe) {
-                        throwException(response.message);
-                    }
-                }
+        synchronized (pending) {
+            request = pending.remove(id);
+        }
 
-                response.close();
+        if (request != null) {
+            window.release();
+        }
 
-                LogUtil.swallowError(response.message);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        return request;
+    }
 
-            throw new InterruptedIOException("Interrupted before completion");
+    /**
+     * Ask the helper to abort the request, that the caller is no longer waiting for. The request keeps it's
+     * slot in the in-flight window until the helper responds to it.
+     */
+    private void cancel(FdReq request) {
+        synchronized (pending) {
+            if (request.id == 0 || pending.get(request.id) != request) {
+                return;
+            }
         }
 
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        if (!intake.offer(serverThread.new CancelReq(request.id))) {
+            logTrace(Log.WARN, "Failed to cancel request %d", request.id);
+        }
     }
 
-    private boolean faccessInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
-        final FdReq request = serverThread.new FaccessReq(fd, path, mode);
+    /**
+     * Send the request to helper and wait for the response to it. Other threads may send their
+     * requests, while this one is waiting.
+     *
+     * @return the response to specified request, never {@code null}
+     *
+     * @throws ErrnoException with {@link ErrnoException#ETIMEDOUT} if the helper does not respond in time
+     */
+    private FdResp exchange(FdReq request) throws IOException, FactoryBrokenException {
+        final FdResp response;
+
+        request.queuedAt = System.nanoTime();
 
-        FdResp response;
         try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    switch (response.message == null ? "" : response.message) {
-                        case "true":
-                            return true;
-                        case "false":
-                            return false;
-                        case "":
-                            throw new IOException("Unable to access " + path + ": unknown error");
-                        default:
-                            throwException(response.message);
-                    }
-                }
+            if (!enqueue(request)) {
+                // the helper hasn't answered anything for a while, it must be stuck
+                close();
 
-                if (!"true".equals(response.message) && !"false".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
+                throw new FactoryBrokenException("Failed to submit request to helper");
             }
+
+            response = request.await(request.timeout);
         } catch (InterruptedException e) {
+            cancel(request);
+
             Thread.currentThread().interrupt();
 
             throw new InterruptedIOException("Interrupted before completion");
         }
 
+        if (response == null) {
+            STATS.timedOut(request.timeout);
+
+            cancel(request);
+
+            throw new ErrnoException(ErrnoException.ETIMEDOUT, "No response from helper in " + request.timeout + " ms");
+        }
+
+        if (response.request == request) {
+            return response;
+        }
+
+        LogUtil.swallowError(response.message);
+
         close();
 
         throw new FactoryBrokenException("Failed to retrieve response from helper");
     }
 
-    private void unlinkInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
-        final FdReq request = serverThread.new UnlinkReq(fd, path, mode);
+    private int addWatchInternal(InotifyImpl inotify, ParcelFileDescriptor pfd, ParcelFileDescriptor pathnameFd) throws FactoryBrokenException, IOException {
+        final FdResp response = exchange(serverThread.new AddWatch(inotify, pfd, pathnameFd));
 
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
+        response.check();
 
-                    throwException(response.message);
-                }
+        return response.value;
+    }
 
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    private boolean faccessInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
+        final FdResp response = exchange(serverThread.new FaccessReq(fd, path, mode));
 
-            throw new InterruptedIOException("Interrupted before completion");
-        }
+        response.check();
 
-        close();
+        return response.value != 0;
+    }
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+    private void unlinkInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
+        exchange(serverThread.new UnlinkReq(fd, path, mode)).check();
     }
 
     private void renameInternal(ParcelFileDescriptor pfd1, CharSequence pathname1, ParcelFileDescriptor pfd2, CharSequence pathname2) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new RenameReq(pfd1, pathname1, pfd2, pathname2);
+        exchange(serverThread.new RenameReq(pfd1, pathname1, pfd2, pathname2)).check();
+    }
 
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
+    private void linkInternal(ParcelFileDescriptor pfd1, CharSequence pathname1, ParcelFileDescriptor pfd2, CharSequence pathname2, int flags) throws FactoryBrokenException, IOException {
+        exchange(serverThread.new LinkReq(pfd1, pathname1, pfd2, pathname2, flags)).check();
+    }
 
-                    throwException(response.message);
-                }
+    private void fstatInternal(ParcelFileDescriptor pfd, CharSequence pathname, Stat stat, int flags) throws FactoryBrokenException, IOException {
+        final FdResp response = exchange(serverThread.new FstatReq(pfd, pathname, flags));
 
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        response.check();
 
-            throw new InterruptedIOException("Interrupted before completion");
-        }
+        final FstatResp resp = (FstatResp) response;
 
-        close();
+        stat.init(resp.st_dev, resp.st_ino, resp.st_size, resp.st_blksize, resp.typeOrdinal);
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        // the helper always reports all basic fields, see OS#statx
+        stat.st_mode = resp.st_mode;
+        stat.st_nlink = resp.st_nlink;
+        stat.st_uid = resp.st_uid;
+        stat.st_gid = resp.st_gid;
+        stat.st_blocks = resp.st_blocks;
+        stat.st_atime = resp.st_atime;
+        stat.st_mtime = resp.st_mtime;
+        stat.st_ctime = resp.st_ctime;
+        stat.mask = Stat.STATX_BASIC_STATS;
     }
 
-    private void linkInternal(ParcelFileDescriptor pfd1, CharSequence pathname1, ParcelFileDescriptor pfd2, CharSequence pathname2, int flags) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new LinkReq(pfd1, pathname1, pfd2, pathname2, flags);
+    private ByteBuffer listInternal(ParcelFileDescriptor pfd) throws FactoryBrokenException, IOException {
+        final FdResp response = exchange(serverThread.new ListReq(pfd));
 
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
+        response.check();
 
-                    throwException(response.message);
-                }
+        return ((ListResp) response).records;
+    }
 
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    private int[] batchInternal(ParcelFileDescriptor pfd, Batch batch) throws FactoryBrokenException, IOException {
+        final FdResp response = exchange(serverThread.new BatchReq(pfd, batch));
 
-            throw new InterruptedIOException("Interrupted before completion");
-        }
+        response.check();
 
-        close();
+        return ((BatchResp) response).results;
+    }
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+    private void mknodInternal(ParcelFileDescriptor pfd, CharSequence pathname, int mode, int device) throws FactoryBrokenException, IOException {
+        exchange(serverThread.new MknodReq(pfd, pathname, mode, device)).check();
     }
 
-    private void fstatInternal(ParcelFileDescriptor pfd, CharSequence pathname, Stat stat, int flags) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new FstatReq(pfd, pathname, flags);
+    private void mkdirInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
+        exchange(serverThread.new MkdirReq(fd, path, mode)).check();
+    }
 
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if (response.message == null) {
-                        FstatResp resp = (FstatResp) response;
+    private FileDescriptor openInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws FactoryBrokenException, IOException {
+        // open() of FIFO may block indefinitely, such request is cancelled upon timeout or interruption
+        final FdResp response = exchange(serverThread.new OpenReq(fd, path, mode));
 
-                        stat.init(resp.st_dev, resp.st_ino, resp.st_size, resp.st_blksize, resp.typeOrdinal);
+        response.check();
 
-                        return;
-                    } else {
-                        throwException(response.message);
-                    }
-                }
-
-                if (response.message != null) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            throw new InterruptedIOException("Interrupted before completion");
-        }
-
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
-    }
-
-    private void mknodInternal(ParcelFileDescriptor pfd, CharSequence pathname, int mode, int device) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new MknodReq(pfd, pathname, mode, device);
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
-
-                    throwException(response.message);
-                }
-
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            throw new InterruptedIOException("Interrupted before completion");
-        }
-
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
-    }
-
-    private void mkdirInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws IOException, FactoryBrokenException {
-        final FdReq request = serverThread.new MkdirReq(fd, path, mode);
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.request == request) {
-                    if ("READY".equals(response.message)) {
-                        return;
-                    }
-
-                    throwException(response.message);
-                }
-
-                if (!"READY".equals(response.message)) {
-                    LogUtil.swallowError(response.message);
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            throw new InterruptedIOException("Interrupted before completion");
-        }
-
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        return response.fd;
     }
 
-    private FileDescriptor openInternal(ParcelFileDescriptor fd, CharSequence path, int mode) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new OpenReq(fd, path, mode);
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.fd != null) {
-                    if (response.request == request) {
-                        return response.fd;
-                    }
-
-                    response.close();
-                }
-
-                if (response.message != null) {
-                    if (response.request == request) {
-                        throwException(response.message);
-                    } else {
-                        LogUtil.swallowError(response.message);
-                    }
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            // open() can be blocking in case if FIFOs
-            // this means, that simply abandoning it may cause a call to hang
-            // so let's close it ASAP instead
-            // TODO: properly cancel this shit
-        }
+    private FileDescriptor streamInternal(ParcelFileDescriptor fd, CharSequence path) throws FactoryBrokenException, IOException {
+        final FdResp response = exchange(serverThread.new StreamReq(fd, path));
 
-        close();
+        response.check();
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        return response.fd;
     }
 
     private FileDescriptor creatInternal(CharSequence path, int mode) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new CreatReq(path, mode);
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.fd != null) {
-                    if (response.request == request) {
-                        return response.fd;
-                    }
-
-                    response.close();
-                }
-
-                if (response.message != null) {
-                    if (response.request == request) {
-                        throwException(response.message);
-                    } else {
-                        LogUtil.swallowError(response.message);
-                    }
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-
-            throw new InterruptedIOException("Interrupted before completion");
-        }
+        final FdResp response = exchange(serverThread.new CreatReq(path, mode));
 
-        close();
+        response.check();
 
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        return response.fd;
     }
 
     private String readlinkInternal(ParcelFileDescriptor pfd, CharSequence name) throws FactoryBrokenException, IOException {
-        final FdReq request = serverThread.new ReadLinkReq(pfd, name);
-
-        FdResp response;
-        try {
-            if (enqueue(request)
-                    && (response = responses.poll(IO_TIMEOUT, TimeUnit.MILLISECONDS)) != null) {
-                if (response.message != null) {
-                    if (response.message.startsWith("/")) {
-                        return response.message;
-                    }
+        final FdResp response = exchange(serverThread.new ReadLinkReq(pfd, name));
 
-                    if (response.request == request) {
-                        throwException(response.message);
-                    } else {
-                        LogUtil.swallowError(response.message);
-                    }
-                }
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        response.check();
 
-            throw new InterruptedIOException("Interrupted before completion");
+        if (response.message == null || !response.message.startsWith("/")) {
+            throw new IOException("Failed to resolve " + name + ", got " + response.message);
         }
 
-        close();
-
-        throw new FactoryBrokenException("Failed to retrieve response from helper");
+        return response.message;
     }
 
     /**
@@ -863,13 +854,18 @@ public final class SyscallFactory implements Closeable {
         if (closedStatus.compareAndSet(false, true)) {
             shut(clientProcess);
             shut(serverSocket);
-            shut(terminalFd);
+            shut(controlSocket);
 
             if (serverThread != null) {
-                while (!intake.offer(FdReq.STOP)) {
-                    final FdReq stale = intake.poll();
-                    stale.close();
+                FdReq stale;
+
+                // the sender thread may be draining the queue concurrently, so poll() can return null
+                do {
+                    while ((stale = intake.poll()) != null) {
+                        stale.close();
+                    }
                 }
+                while (!intake.offer(FdReq.STOP));
             }
         }
     }
@@ -904,21 +900,62 @@ public final class SyscallFactory implements Closeable {
     private final class Server extends Thread {
         private final ByteBuffer statusMsg = ByteBuffer.allocate(512).order(ByteOrder.nativeOrder());
 
+        // set, when reconnected to already running helper
+        private final Frame reconnectedFrame;
+        private final RequestWriter reconnectedWriter;
+
         int lastClientReadCount;
 
         Server() throws IOException {
+            this(null, null);
+        }
+
+        Server(Frame frame, RequestWriter writer) {
             super("fd receiver");
+
+            this.reconnectedFrame = frame;
+            this.reconnectedWriter = writer;
         }
 
         @Override
         public void run() {
             String message = null;
 
-            try (ReadableByteChannel clientOutput = Channels.newChannel(clientProcess.getInputStream());
-                 Closeable c = SyscallFactory.this)
-            {
+            try (Closeable c = SyscallFactory.this) {
+                if (clientProcess == null) {
+                    handleRequests(reconnectedWriter, reconnectedFrame);
+                } else {
+                    bootstrap();
+                }
+            } catch (Exception e) {
+                message = e.getMessage();
+
+                logException("Server thread forced to quit by error", e);
+            } finally {
+                wakeWaiters(TextUtils.isEmpty(message) ? "The privileged process quit" : message);
+
+                if (clientProcess != null) {
+                    try {
+                        setName("BUG: Waiting for su process, which won't quit");
+
+                        final int exitCode = clientProcess.waitFor();
+
+                        logTrace(Log.INFO, "Child exited, exit code: %d", exitCode);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void bootstrap() throws Exception {
+            try (ReadableByteChannel clientOutput = Channels.newChannel(clientProcess.getInputStream())) {
                 try {
-                    initializeAndHandleRequests(readHelperPid(clientOutput));
+                    final int helperPid = readHelperPid(clientOutput);
+
+                    STATS.recordSu(System.nanoTime() - startedAt);
+
+                    initializeAndHandleRequests(helperPid);
                 } finally {
                     try {
                         statusMsg.clear();
@@ -932,56 +969,36 @@ public final class SyscallFactory implements Closeable {
                     }
                     catch (IOException ignored) {}
                 }
-            } catch (Exception e) {
-                message = e.getMessage();
-
-                logException("Server thread forced to quit by error", e);
-            } finally {
-                wakeWaiters(TextUtils.isEmpty(message) ? "The privileged process quit" : message);
-
-                try {
-                    setName("BUG: Waiting for su process, which won't quit");
-
-                    final int exitCode = clientProcess.waitFor();
-
-                    logTrace(Log.INFO, "Child exited, exit code: %d", exitCode);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
             }
         }
 
         // send off any caller threads, the may be still waiting for operation to complete
         private void wakeWaiters(String message) {
-            final long leeway = TimeUnit.MILLISECONDS.toNanos(60);
-            final long started = System.nanoTime();
-            while (true) {
-                try {
-                    FdReq req = intake.poll(5, TimeUnit.MILLISECONDS);
+            FdReq stale;
+            while ((stale = intake.poll()) != null) {
+                stale.close();
+            }
 
-                    if (req != null) {
-                        req.close();
-                    }
+            // let the sender thread quit, if it is still running
+            intake.offer(FdReq.STOP);
 
-                    final FdResp error = new FdResp(FdReq.STOP, message);
+            final ObjectArrayList<FdReq> waiting = new ObjectArrayList<>();
 
-                    if (!responses.offer(error, 5, TimeUnit.MILLISECONDS)) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    // ok
+            synchronized (pending) {
+                for (ObjectCursor<FdReq> request : pending.values()) {
+                    waiting.add(request.value);
                 }
 
-                final long newTime = System.nanoTime();
-                if (newTime <= started || newTime - started >= leeway) {
-                    break;
-                }
+                pending.clear();
+            }
+
+            for (ObjectCursor<FdReq> request : waiting) {
+                request.value.complete(new FdResp(FdReq.STOP, FdResp.FAILED, message));
             }
         }
 
         private int readHelperPid(ReadableByteChannel clientOutput) throws IOException {
-            // the client forks to obtain controlling terminal for itself
-            // so we need some way of knowing it's pid
+            // the client forks to detach from su, so we need some way of knowing it's pid
             // note, that certain people are known to write linkers, spouting random bullshit during
             // executable startup, so we must be prepared to filter that out
             final String greeting = readMessage(clientOutput);
@@ -994,9 +1011,6 @@ public final class SyscallFactory implements Closeable {
             return Integer.valueOf(m.group(1));
         }
 
-        // ensure, that most filename/header packets fit completely in buffer
-        private static final int minBufferSize = 255 * 2 + 4;
-
         private void initializeAndHandleRequests(int helperPid) throws Exception {
             while (!isInterrupted()) {
                 try (LocalSocket localSocket = serverSocket.lss.accept())
@@ -1007,107 +1021,152 @@ public final class SyscallFactory implements Closeable {
                         continue;
                     }
 
-                    try (ReadableByteChannel rbc = Channels.newChannel(localSocket.getInputStream());
-                         WritableByteChannel wbc = Channels.newChannel(localSocket.getOutputStream())) {
+                    // the greeting contains an address of SOCK_SEQPACKET socket, used for everything else
+                    final Frame greeting = new Frame(localSocket);
 
-                        final String socketMsg = readMessage(rbc);
+                    greeting.readStream();
 
-                        FileDescriptor ptmxFd = getFd(localSocket);
+                    final String address = readString(greeting.payload);
 
-                        if (ptmxFd == null)
-                            throw new Exception("Can't get client tty" + (socketMsg.length() == 0 ? "" : " : " + socketMsg));
+                    if (greeting.status != 0 || address == null)
+                        throw new IOException("Can't get helper address" + (address == null ? "" : " : " + address));
 
-                        terminalFd = FdCompat.adopt(ptmxFd);
+                    logTrace(Log.DEBUG, "Connecting to helper at %s", address);
 
-                        ptmxFd = terminalFd.getFileDescriptor();
+                    try (LocalSocket control = connect(address, helperPid)) {
+                        controlSocket = control;
 
-                        logTrace(Log.DEBUG, "Response to tty request: '" + socketMsg + "', descriptor " + ptmxFd);
+                        // close() might have missed the socket
+                        if (closedStatus.get())
+                            return;
 
-                        try (CachingWriter clientTty = new CachingWriter(new FileOutputStream(ptmxFd).getChannel(), minBufferSize)) {
-                            // Indicate to the helper that it can close it's copy of it's controlling tty.
-                            // When our end is closed the kernel tty driver will send SIGHUP to the helper,
-                            // cleanly killing it's root process for us
-                            clientTty.append("GO\n").flush();
+                        final Frame frame = new Frame(control);
 
-                            // check if we truly have full access
-                            try (FdResp oomFileTestResp = sendFdRequest(new InitReq(), clientTty, rbc, wbc, localSocket)) {
-                                logTrace(Log.DEBUG, "Initial response: " + oomFileTestResp);
+                        final RequestWriter writer = new RequestWriter(control);
 
-                                if (oomFileTestResp.fd == null) {
-                                    throw new IOException("Failed to obtain test descriptor: " + oomFileTestResp.message);
-                                }
+                        final long initStarted = System.nanoTime();
 
-                                try (OutputStreamWriter oow = new OutputStreamWriter(new FileOutputStream(oomFileTestResp.fd))) {
-                                    oow.append("-1000").flush();
+                        // check if we truly have full access
+                        try (FdResp oomFileTestResp = sendFdRequest(new InitReq(), writer, frame)) {
+                            STATS.recordInit(System.nanoTime() - initStarted);
 
-                                    logTrace(Log.DEBUG, "Bootstrap successful!");
-                                }
-                            } catch (Exception e) {
-                                logException("Access test failed", e);
-                            }
+                            logTrace(Log.DEBUG, "Initial response: " + oomFileTestResp);
 
-                            if (intake.take() == FdReq.STOP)
-                                return;
+                            oomFileTestResp.check();
 
-                            processRequestsUntilStopped(localSocket, rbc, wbc, clientTty);
+                            try (OutputStreamWriter oow = new OutputStreamWriter(new FileOutputStream(oomFileTestResp.fd))) {
+                                oow.append("-1000").flush();
 
-                            break;
+                                logTrace(Log.DEBUG, "Bootstrap successful!");
+                            }
+                        } catch (Exception e) {
+                            logException("Access test failed", e);
                         }
+
+                        if (closedStatus.get())
+                            return;
+
+                        // the helper can be reused by next instances from now on
+                        lastHelper = new HelperAddress(address, helperPid);
+
+                        handleRequests(writer, frame);
+
+                        break;
                     }
                 }
             }
         }
 
-        private void processRequestsUntilStopped(LocalSocket fdrecv,
-                                                 ReadableByteChannel statusIn,
-                                                 WritableByteChannel statusOut,
-                                                 CachingWriter control) throws IOException, InterruptedException {
-            FdReq fileOps;
+        private void handleRequests(RequestWriter writer, Frame frame) throws IOException {
+            new Sender(writer).start();
 
-            while ((fileOps = intake.take()) != FdReq.STOP) {
-                FdResp response = null;
+            // let the callers in
+            window.release(MAX_IN_FLIGHT);
+
+            receiveUntilStopped(frame);
+        }
 
+        private void receiveUntilStopped(Frame frame) throws IOException {
+            while (true) {
                 try {
-                    try {
-                        response = sendFdRequest(fileOps, control, statusIn, statusOut, fdrecv);
+                    frame.read();
+                } catch (IOException ioe) {
+                    if (closedStatus.get()) {
+                        // the helper quits, when we close the connection
+                        return;
+                    }
 
-                        if (!responses.offer(response, IO_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                            // the calling thread may have been aborted or something, do the cleanup
-                            response.close();
-                        }
-                    } catch (IOException ioe) {
-                        logException("Error during data exchange", ioe);
+                    throw ioe;
+                }
+
+                if (frame.id == 0) {
+                    shut(frame.fd);
+
+                    throw new IOException("Helper failed: " + readString(frame.payload));
+                }
 
-                        responses.offer(new FdResp(fileOps, ioe.getMessage()), IO_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (frame.status == FdResp.MORE) {
+                    final FdReq request;
 
-                        throw ioe;
+                    synchronized (pending) {
+                        request = pending.get(frame.id);
                     }
-                } catch (Throwable t) {
-                    if (response != null) {
-                        response.close();
+
+                    if (request == null) {
+                        shut(frame.fd);
+                    } else {
+                        request.readPartial(frame);
                     }
 
-                    throw t;
-                } finally {
-                    // clear the refs, least the wrath of GC comes upon us
+                    continue;
+                }
+
+                final long receivedAt = System.nanoTime();
+
+                final FdReq request = forget(frame.id);
+
+                if (request == null) {
+                    // the request must have been failed during close()
+                    shut(frame.fd);
 
-                    //noinspection UnusedAssignment
-                    fileOps = null;
+                    continue;
+                }
+
+                final FdResp response = request.readResponse(frame);
+
+                if (request.queuedAt != 0 && request.encodedAt != 0) {
+                    STATS.recordRequest(request.reqType,
+                            request.dequeuedAt - request.queuedAt,
+                            request.encodedAt - request.dequeuedAt,
+                            receivedAt - request.encodedAt,
+                            System.nanoTime() - receivedAt);
+                }
 
-                    //noinspection UnusedAssignment
-                    response = null;
+                if (!request.complete(response)) {
+                    // the calling thread may have been aborted or something, do the cleanup
+                    response.close();
                 }
             }
         }
 
-        private FdResp sendFdRequest(FdReq fileOps, CachingWriter req, ReadableByteChannel rvc, WritableByteChannel wbc, LocalSocket ls) throws IOException {
+        private FdResp sendFdRequest(FdReq fileOps, RequestWriter writer, Frame frame) throws IOException {
+            fileOps.id = nextRequestId();
+
             try {
-                fileOps.writeRequest(req, wbc, ls);
+                writer.write(fileOps);
             } finally {
                 fileOps.close();
             }
 
-            return fileOps.readResponse(rvc, ls);
+            frame.read();
+
+            if (frame.id != fileOps.id) {
+                shut(frame.fd);
+
+                throw new IOException("Unexpected response from helper: " + readString(frame.payload));
+            }
+
+            return fileOps.readResponse(frame);
         }
 
         private String readMessage(ReadableByteChannel channel) throws IOException {
@@ -1162,28 +1221,59 @@ public final class SyscallFactory implements Closeable {
             return new String(result, offset, totalReadCount - 1);
         }
 
-        private FileDescriptor[] descriptors = new FileDescriptor[1];
+        /**
+         * Writes enqueued requests to the helper. Responses are received by the server thread.
+         */
+        private final class Sender extends Thread {
+            private final RequestWriter writer;
 
-        private void setFd(WritableByteChannel wbc, LocalSocket ls, ParcelFileDescriptor... pfds) throws IOException {
-            if (pfds.length == 0) {
-                return;
+            Sender(RequestWriter writer) {
+                super("fd sender");
+
+                this.writer = writer;
             }
 
-            // see https://code.google.com/p/android/issues/detail?id=231609
-            for (final ParcelFileDescriptor p : pfds) {
-                if (p == null) return;
+            @Override
+            public void run() {
+                try {
+                    FdReq fileOps;
 
-                descriptors[0] = p.getFileDescriptor();
-                ls.setFileDescriptorsForSend(descriptors);
-                statusMsg.limit(1).position(0);
-                wbc.write(statusMsg);
-            }
-        }
+                    while ((fileOps = intake.take()) != FdReq.STOP) {
+                        fileOps.dequeuedAt = System.nanoTime();
 
-        private FileDescriptor getFd(LocalSocket ls) throws IOException {
-            final FileDescriptor[] fds = ls.getAncillaryFileDescriptors();
+                        try {
+                            writer.write(fileOps);
+                        } catch (ErrnoException e) {
+                            // the request can not be encoded, nothing has been sent
+                            if (forget(fileOps.id) != null) {
+                                fileOps.complete(new FdResp(fileOps, e.code(), e.getMessage()));
+                            }
+                        } catch (IOException ioe) {
+                            if (fileOps.outboundFd != null) {
+                                STATS.fdPassingFailed();
+                            }
+
+                            if (forget(fileOps.id) != null) {
+                                fileOps.complete(new FdResp(fileOps, FdResp.FAILED, ioe.getMessage()));
+                            }
 
-            return fds != null && fds.length == 1 && fds[0] != null ? fds[0] : null;
+                            throw ioe;
+                        } finally {
+                            // clear the refs, least the wrath of GC comes upon us
+                            fileOps.close();
+
+                            //noinspection UnusedAssignment
+                            fileOps = null;
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    if (!closedStatus.get()) {
+                        logException("Error during data exchange", e);
+                    }
+                } finally {
+                    close();
+                }
+            }
         }
 
         final class OpenReq extends FdReq {
@@ -1194,33 +1284,8 @@ public final class SyscallFactory implements Closeable {
             }
 
             @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                String responseStr = readMessage(rbc);
-                final FileDescriptor fd = getFd(ls);
-
-                if (fd == null && "READY".equals(responseStr)) { // unlikely, but..
-                    responseStr = "Received no file descriptor from helper";
-                }
-
-                return new FdResp(this, responseStr, fd);
+            public FdResp readResponse(Frame frame) {
+                return readDescriptor(frame);
             }
         }
 
@@ -1230,29 +1295,6 @@ public final class SyscallFactory implements Closeable {
             public MkdirReq(ParcelFileDescriptor outboundFd, CharSequence fileName, int mode) {
                 super(TYPE_MKDIR, fileName, mode, outboundFd);
             }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
-            }
         }
 
         final class UnlinkReq extends FdReq {
@@ -1261,29 +1303,6 @@ public final class SyscallFactory implements Closeable {
             public UnlinkReq(ParcelFileDescriptor outboundFd, CharSequence fileName, int mode) {
                 super(TYPE_UNLINK, fileName, mode, outboundFd);
             }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
-            }
         }
 
         final class AddWatch extends FdReq {
@@ -1292,60 +1311,30 @@ public final class SyscallFactory implements Closeable {
             final InotifyImpl inotify;
 
             public AddWatch(InotifyImpl inotify, ParcelFileDescriptor outboundFd, ParcelFileDescriptor pathnameFd) {
-                super(TYPE_ADD_WATCH, "whatever", 0, outboundFd, pathnameFd);
+                super(TYPE_ADD_WATCH, null, 0, outboundFd, pathnameFd);
 
                 this.inotify = inotify;
             }
 
             @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
+            public FdResp readResponse(Frame frame) {
+                shut(frame.fd);
 
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
+                if (frame.status != 0) {
+                    return new FdResp(this, frame.status, readString(frame.payload));
                 }
-            }
 
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new InotifyResp(this, readMessage(rbc));
+                return new InotifyResp(this, frame.payload.getInt());
             }
         }
 
         final class MknodReq extends FdReq {
             static final int TYPE_MKNOD = 5;
 
-            final int device;
-
             public MknodReq(ParcelFileDescriptor outboundFd, CharSequence fileName, int mode, int device) {
                 super(TYPE_MKNOD, fileName, mode, outboundFd);
 
-                this.device = device;
-            }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(device)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
+                this.extra = device;
             }
         }
 
@@ -1355,63 +1344,17 @@ public final class SyscallFactory implements Closeable {
             public ReadLinkReq(ParcelFileDescriptor outboundFd, CharSequence pathname) {
                 super(TYPE_READLINK, pathname, 0, outboundFd);
             }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
-            }
         }
 
         final class RenameReq extends FdReq {
             static final int TYPE_RENAME = 7;
 
-            final CharSequence fileName2;
-
             public RenameReq(ParcelFileDescriptor fd1, CharSequence fileName1, ParcelFileDescriptor fd2, CharSequence fileName2) {
                 super(TYPE_RENAME, fileName1, 0, fd1, fd2);
 
                 this.fileName2 = fileName2;
             }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ')
-                        .append(Utf8.size(fileName2))
-                        .append(' ');
-
-                reqWriter.append(fileName).append(fileName2).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
-            }
-        }
+        }
 
         final class CreatReq extends FdReq {
             static final int TYPE_CREAT = 8;
@@ -1421,65 +1364,19 @@ public final class SyscallFactory implements Closeable {
             }
 
             @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                String responseStr = readMessage(rbc);
-                final FileDescriptor fd = getFd(ls);
-
-                if (fd == null && "READY".equals(responseStr)) { // unlikely, but..
-                    responseStr = "Received no file descriptor from helper";
-                }
-
-                return new FdResp(this, responseStr, fd);
+            public FdResp readResponse(Frame frame) {
+                return readDescriptor(frame);
             }
         }
 
         final class LinkReq extends FdReq {
             static final int TYPE_LINK = 9;
 
-            final CharSequence fileName2;
-
             public LinkReq(ParcelFileDescriptor fd1, CharSequence fileName1, ParcelFileDescriptor fd2, CharSequence fileName2, int flags) {
                 super(TYPE_LINK, fileName1, flags, fd1, fd2);
 
                 this.fileName2 = fileName2;
             }
-
-            @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
-
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ')
-                        .append(Utf8.size(fileName2))
-                        .append(' ');
-
-                reqWriter.append(fileName).append(fileName2).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
-            }
-
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
-            }
         }
 
         final class FaccessReq extends FdReq {
@@ -1490,26 +1387,14 @@ public final class SyscallFactory implements Closeable {
             }
 
             @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
+            public FdResp readResponse(Frame frame) {
+                shut(frame.fd);
 
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
-
-                reqWriter.append(fileName).append('\n').flush();
-
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
+                if (frame.status != 0) {
+                    return new FdResp(this, frame.status, readString(frame.payload));
                 }
-            }
 
-            @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc));
+                return new FdResp(this, 0, null, frame.payload.getInt(), null);
             }
         }
 
@@ -1521,99 +1406,160 @@ public final class SyscallFactory implements Closeable {
             }
 
             @Override
-            public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-                super.writeRequest(reqWriter, wbc, ls);
+            public FdResp readResponse(Frame frame) {
+                shut(frame.fd);
+
+                return new FstatResp(this, frame.status, frame.payload);
+            }
+        }
 
-                reqWriter.append(outboundFd == null ? 0 : outboundFd.length)
-                        .append(' ')
-                        .append(mode)
-                        .append(' ')
-                        .append(Utf8.size(fileName))
-                        .append(' ');
+        final class InitReq extends FdReq {
+            static final int TYPE_INIT = 12;
 
-                reqWriter.append(fileName).append('\n').flush();
+            public InitReq() {
+                super(TYPE_INIT, null, 0);
 
-                if (outboundFd != null && outboundFd.length != 0) {
-                    setFd(wbc, ls, outboundFd);
-                }
+                // patching SELinux policy takes a while
+                timeout = HELPER_TIMEOUT;
             }
 
             @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                statusMsg.clear();
+            public FdResp readResponse(Frame frame) {
+                return readDescriptor(frame);
+            }
+        }
 
-                int hdr = Long.SIZE / Byte.SIZE;
+        final class CleanupReq extends FdReq {
+            static final int TYPE_CLEANUP = 13;
 
-                int lastRead, total = 0;
-                do {
-                    lastRead = rbc.read(statusMsg);
+            public CleanupReq() {
+                super(TYPE_CLEANUP, null, 0);
 
-                    if (lastRead == -1) {
-                        throw new IOException("Disconnected before reading complete message");
-                    }
+                timeout = HELPER_TIMEOUT;
+            }
+        }
 
-                    total += lastRead;
-                } while (total < hdr);
+        /**
+         * Lists the directory and stats each entry. The helper responds with a series of frames, each containing
+         * packed entries (see struct list_entry in fdhelper.c), which are accumulated until the final one.
+         */
+        final class ListReq extends FdReq {
+            static final int TYPE_LIST_STAT = 15;
 
-                final long errIndicator = statusMsg.getLong(0);
+            private final ByteArrayList records = new ByteArrayList();
 
-                final String errorMsg;
+            public ListReq(ParcelFileDescriptor dir) {
+                super(TYPE_LIST_STAT, null, 0, dir);
 
-                if (errIndicator == 1) {
-                    byte lastByte = statusMsg.get(statusMsg.position() - 1);
+                // stat of every file in large directory can take a while
+                timeout = HELPER_TIMEOUT;
+            }
 
-                    if (lastByte == '\0') {
-                        errorMsg = new String(statusMsg.array(), statusMsg.arrayOffset() + hdr, statusMsg.position() - hdr - 1);
-                    } else {
-                        statusMsg.limit(statusMsg.position());
-                        statusMsg.position(hdr);
-                        statusMsg.compact();
+            @Override
+            void readPartial(Frame frame) {
+                super.readPartial(frame);
 
-                        errorMsg = readMessageInner(rbc, lastRead - hdr);
-                    }
+                append(frame.payload);
+            }
 
-                    statusMsg.clear();
-                } else {
-                    errorMsg = null;
+            @Override
+            public FdResp readResponse(Frame frame) {
+                shut(frame.fd);
 
-                    statusMsg.flip();
-                    statusMsg.position(hdr);
+                if (frame.status != 0) {
+                    return new FdResp(this, frame.status, readString(frame.payload));
                 }
 
-                return new FstatResp(this, errorMsg, statusMsg);
+                append(frame.payload);
+
+                final ByteBuffer result = ByteBuffer.wrap(records.buffer, 0, records.size())
+                        .order(ByteOrder.nativeOrder());
+
+                return new ListResp(this, 0, null, result);
+            }
+
+            private void append(ByteBuffer payload) {
+                records.add(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
             }
         }
 
-        final class InitReq extends FdReq {
-            static final int TYPE_INIT = 12;
+        final class BatchReq extends FdReq {
+            static final int TYPE_BATCH = 16;
 
-            public InitReq() {
-                super(TYPE_INIT, null, 0);
+            private final Batch batch;
+
+            public BatchReq(ParcelFileDescriptor dir, Batch batch) {
+                super(TYPE_BATCH, null, batch.count, dir);
+
+                this.extra = batch.stopOnError ? 1 : 0;
+                this.batch = batch;
+
+                // hundreds of operations may take a while, and the results are lost on timeout
+                timeout = HELPER_TIMEOUT;
             }
 
             @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                String responseStr = readMessage(rbc);
-                final FileDescriptor fd = getFd(ls);
+            void writeBody(RequestWriter writer) throws ErrnoException {
+                writer.writeBatch(batch);
+            }
+
+            @Override
+            public FdResp readResponse(Frame frame) {
+                shut(frame.fd);
+
+                final ByteBuffer payload = frame.payload;
+
+                if (frame.status != 0) {
+                    return new FdResp(this, frame.status, readString(payload));
+                }
+
+                // the response is the errno of each operation
+                final int[] results = new int[payload.remaining() / 4];
 
-                if (fd == null && "READY".equals(responseStr)) { // unlikely, but..
-                    responseStr = "Received no file descriptor from helper";
+                if (results.length != batch.count) {
+                    return new FdResp(this, FdResp.FAILED, "Malformed batch response, size " + payload.remaining());
                 }
 
-                return new FdResp(this, responseStr, fd);
+                for (int i = 0; i < results.length; ++i) {
+                    results[i] = payload.getInt();
+                }
+
+                return new BatchResp(this, results);
             }
         }
 
-        final class CleanupReq extends FdReq {
-            static final int TYPE_CLEANUP = 13;
+        /**
+         * Asks the helper to abort the request with the same id. Has no response of it's own: the cancelled request
+         * is answered with {@link ErrnoException#ECANCELED} or with whatever error it's interrupted call returns.
+         */
+        final class CancelReq extends FdReq {
+            static final int TYPE_CANCEL = 14;
 
-            public CleanupReq() {
-                super(TYPE_CLEANUP, null, 0);
+            public CancelReq(int target) {
+                super(TYPE_CANCEL, null, 0);
+
+                this.id = target;
+            }
+        }
+
+        final class PingReq extends FdReq {
+            static final int TYPE_PING = 17;
+
+            public PingReq() {
+                super(TYPE_PING, null, 0);
+            }
+        }
+
+        final class StreamReq extends FdReq {
+            static final int TYPE_STREAM = 18;
+
+            public StreamReq(ParcelFileDescriptor outboundFd, CharSequence fileName) {
+                super(TYPE_STREAM, fileName, 0, outboundFd);
             }
 
             @Override
-            public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-                return new FdResp(this, readMessage(rbc), null);
+            public FdResp readResponse(Frame frame) {
+                return readDescriptor(frame);
             }
         }
     }
@@ -1652,6 +1598,21 @@ public final class SyscallFactory implements Closeable {
         }
     }
 
+    private static void shut(LocalSocket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        try {
+            // wake up blocked threads and let the helper know, that we are done
+            socket.shutdownInput();
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+        }
+
+        shut((Closeable) socket);
+    }
+
     private static void shut(LocalServerSocket sock) {
         try {
             if (sock != null)
@@ -1673,11 +1634,133 @@ public final class SyscallFactory implements Closeable {
         }
     }
 
+    /**
+     * A sequence of operations on entries of single directory, executed by {@link #batch}. Each method records
+     * an operation and returns it's index. By default execution stops at first failed operation, remaining
+     * operations fail with {@link ErrnoException#ECANCELED}.
+     * <p>
+     * The whole batch is sent to the helper in one message, use {@link #hasRoom} to check, if another operation
+     * fits. Instances can be reused after {@link #clear}. This class is not thread-safe.
+     */
+    public static final class Batch {
+        // keep in sync with fdhelper.c
+        static final int OP_MKDIR = 1;
+        static final int OP_UNLINK = 2;
+        static final int OP_RENAME = 3;
+
+        // size of struct batch_op in fdhelper.c
+        static final int OP_SIZE = 16;
+
+        // the request header and two empty names precede operations
+        private static final int MAX_SIZE = MAX_FRAME - RequestWriter.HEADER_SIZE - 2;
+
+        final int[] ops;
+        final int[] args;
+        final CharSequence[] names;
+        final CharSequence[] names2;
+        final int[] errno;
+
+        int count;
+
+        boolean stopOnError = true;
+
+        // the upper bound of encoded size of operations
+        private int size;
+
+        public Batch(int capacity) {
+            ops = new int[capacity];
+            args = new int[capacity];
+            names = new CharSequence[capacity];
+            names2 = new CharSequence[capacity];
+            errno = new int[capacity];
+        }
+
+        public int mkdirat(@NonNull CharSequence name, int mode) {
+            return add(OP_MKDIR, name, null, mode);
+        }
+
+        public int unlinkat(@NonNull CharSequence name, @OS.UnlinkAtFlags int flags) {
+            return add(OP_UNLINK, name, null, flags);
+        }
+
+        public int renameat(@NonNull CharSequence name, @NonNull CharSequence name2) {
+            return add(OP_RENAME, name, name2, 0);
+        }
+
+        /**
+         * @param stopOnError whether to skip the remaining operations after failure (the default)
+         */
+        public Batch setStopOnError(boolean stopOnError) {
+            this.stopOnError = stopOnError;
+
+            return this;
+        }
+
+        /**
+         * @return {@code true}, if an operation with specified names can be added to the batch
+         */
+        public boolean hasRoom(@NonNull CharSequence name, @Nullable CharSequence name2) {
+            return count < ops.length && size + encodedSize(name, name2) <= MAX_SIZE;
+        }
+
+        public int capacity() {
+            return ops.length;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public void clear() {
+            for (int i = 0; i < count; ++i) {
+                names[i] = null;
+                names2[i] = null;
+            }
+
+            count = 0;
+            size = 0;
+        }
+
+        public boolean isOk(int op) {
+            return errno[op] == 0;
+        }
+
+        /**
+         * @return the error code of operation, or 0, if it succeeded
+         */
+        public int errno(int op) {
+            return errno[op];
+        }
+
+        private int add(int op, CharSequence name, CharSequence name2, int arg) {
+            if (!hasRoom(name, name2)) {
+                throw new IllegalStateException("Batch is full: " + count + " operations, " + size + " bytes");
+            }
+
+            final int index = count;
+
+            ops[index] = op;
+            args[index] = arg;
+            names[index] = name;
+            names2[index] = name2;
+            errno[index] = 0;
+
+            size += encodedSize(name, name2);
+
+            count = index + 1;
+
+            return index;
+        }
+
+        // each UTF-16 unit takes at most 3 bytes in UTF-8
+        private static int encodedSize(CharSequence name, @Nullable CharSequence name2) {
+            return OP_SIZE + name.length() * 3 + 1 + (name2 == null ? 0 : name2.length() * 3) + 1;
+        }
+    }
+
     private static class FdReq implements Closeable {
         static FdReq STOP = new FdReq(0, null, 0);
 
-        static FdReq PLACEHOLDER = new FdReq(0, null, 0);
-
         final AtomicBoolean done = new AtomicBoolean();
 
         final int reqType;
@@ -1685,6 +1768,25 @@ public final class SyscallFactory implements Closeable {
         final CharSequence fileName;
         final int mode;
 
+        // optional arguments of some requests
+        CharSequence fileName2;
+        int extra;
+
+        // how long the caller waits for response
+        long timeout = IO_TIMEOUT;
+
+        // assigned when the request is enqueued
+        int id;
+
+        // System.nanoTime() of submitting, dequeuing by the sender thread and encoding the request, for HelperStats
+        volatile long queuedAt;
+        volatile long dequeuedAt;
+        volatile long encodedAt;
+
+        // guarded by this
+        private FdResp response;
+        private boolean abandoned;
+
         public FdReq(int reqType, CharSequence fileName, int mode) {
             this.reqType = reqType;
             this.fileName = fileName;
@@ -1730,35 +1832,139 @@ public final class SyscallFactory implements Closeable {
             return "" + fileName + ',' + mode;
         }
 
-        public void writeRequest(CachingWriter reqWriter, WritableByteChannel wbc, LocalSocket ls) throws IOException {
-            reqWriter.append(reqType).append('\n').flush();
+        /**
+         * Write the remainder of request after names, most requests have none.
+         */
+        void writeBody(RequestWriter writer) throws ErrnoException {
         }
 
-        public FdResp readResponse(ReadableByteChannel rbc, LocalSocket ls) throws IOException {
-            return null;
+        public FdResp readResponse(Frame frame) {
+            // most requests don't expect a descriptor
+            shut(frame.fd);
+
+            return new FdResp(this, frame.status, readString(frame.payload));
+        }
+
+        /**
+         * Called on the receiving thread for each response with {@link FdResp#MORE} status, preceding
+         * the final one.
+         */
+        void readPartial(Frame frame) {
+            shut(frame.fd);
+        }
+
+        final FdResp readDescriptor(Frame frame) {
+            if (frame.status == 0 && frame.fd == null) { // unlikely, but..
+                STATS.fdPassingFailed();
+
+                return new FdResp(this, FdResp.NO_DESCRIPTOR, "Received no file descriptor from helper");
+            }
+
+            return new FdResp(this, frame.status, readString(frame.payload), 0, frame.fd);
+        }
+
+        /**
+         * @return {@code false} if the caller is no longer interested in response (it should be closed then)
+         */
+        synchronized boolean complete(FdResp response) {
+            if (abandoned || this.response != null) {
+                return false;
+            }
+
+            this.response = response;
+
+            notifyAll();
+
+            return true;
+        }
+
+        /**
+         * @return the response or {@code null}, if none arrived before timeout. In later case the request is
+         * abandoned, and the response will be discarded upon arrival
+         */
+        synchronized FdResp await(long timeoutMillis) throws InterruptedException {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            final long deadline = System.nanoTime() + remaining;
+
+            try {
+                while (response == null && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException ie) {
+                abandoned = true;
+
+                if (response != null) {
+                    response.close();
+                }
+
+                throw ie;
+            }
+
+            if (response == null) {
+                abandoned = true;
+            }
+
+            return response;
         }
     }
 
     private static class FdResp implements Closeable {
+        // status of failures, that aren't described by errno
+        static final int FAILED = -1;
+
+        // status of partial responses, followed by more responses to the same request
+        static final int MORE = -2;
+
+        // status of successful responses, whose descriptor was lost on the way
+        static final int NO_DESCRIPTOR = -3;
+
         final AtomicBoolean done = new AtomicBoolean();
 
         final FdReq request;
-        final String message;
+        final int status;
+        final int value;
+
+        // description of error or textual result of request
+        @Nullable final String message;
+
         @Nullable final FileDescriptor fd;
 
-        public FdResp(FdReq request, String message) {
-            this(request, message, null);
+        public FdResp(FdReq request, int status, @Nullable String message) {
+            this(request, status, message, 0, null);
         }
 
-        public FdResp(FdReq request, String message, @Nullable FileDescriptor fd) {
+        public FdResp(FdReq request, int status, @Nullable String message, int value, @Nullable FileDescriptor fd) {
             this.request = request;
+            this.status = status;
             this.message = message;
+            this.value = value;
             this.fd = fd;
         }
 
+        void check() throws IOException {
+            if (status == 0) {
+                return;
+            }
+
+            final String description = message == null ? "Unknown error" : message;
+
+            if (status > 0) {
+                throw new ErrnoException(status, description);
+            }
+
+            if (status == NO_DESCRIPTOR) {
+                throw new DescriptorPassingException(description);
+            }
+
+            throw new IOException(description);
+        }
+
         @Override
         public String toString() {
-            return "Request: " + request + ". Helper response: '" + message + "', descriptor: " + fd;
+            return "Request: " + request + ". Helper response: " + status + " '" + message + "', descriptor: " + fd;
         }
 
         public void close() {
@@ -1771,8 +1977,8 @@ public final class SyscallFactory implements Closeable {
     private static class InotifyResp extends FdResp {
         private final InotifyImpl inotify;
 
-        public InotifyResp(Server.AddWatch request, String message) {
-            super(request, message);
+        public InotifyResp(Server.AddWatch request, int watch) {
+            super(request, 0, null, watch, null);
 
             this.inotify = request.inotify;
         }
@@ -1780,15 +1986,10 @@ public final class SyscallFactory implements Closeable {
         @Override
         public void close() {
             if (done.compareAndSet(false, true)) {
-                shut(fd);
-
                 try {
-                    final int sub = Integer.parseInt(message);
-
-                    inotify.removeSubscriptionInternal(sub);
+                    inotify.removeSubscriptionInternal(value);
                 } catch (IOException e) {
                     logException("Failed to close watch", e);
-                } catch (NumberFormatException ignored) {
                 }
             }
         }
@@ -1805,17 +2006,318 @@ public final class SyscallFactory implements Closeable {
 
         public final int st_blksize;
 
-        public FstatResp(Server.FstatReq request, String message, ByteBuffer buffer) {
-            super(request, message);
+        public final long st_blocks;
+
+        public final long st_atime;
+
+        public final long st_mtime;
+
+        public final long st_ctime;
+
+        public final int st_mode;
+
+        public final int st_nlink;
+
+        public final int st_uid;
+
+        public final int st_gid;
+
+        // see struct stat_reply in fdhelper.c
+        public FstatResp(Server.FstatReq request, int status, ByteBuffer buffer) {
+            super(request, status, status == 0 ? null : readString(buffer));
 
-            this.st_dev = buffer.getLong();
-            this.st_ino = buffer.getLong();
-            this.st_size = buffer.getLong();
-            this.typeOrdinal = buffer.getInt();
-            this.st_blksize = buffer.getInt();
+            if (status == 0) {
+                this.st_dev = buffer.getLong();
+                this.st_ino = buffer.getLong();
+                this.st_size = buffer.getLong();
+                this.typeOrdinal = buffer.getInt();
+                this.st_blksize = buffer.getInt();
+                this.st_blocks = buffer.getLong();
+                this.st_atime = buffer.getLong();
+                this.st_mtime = buffer.getLong();
+                this.st_ctime = buffer.getLong();
+                this.st_mode = buffer.getInt();
+                this.st_nlink = buffer.getInt();
+                this.st_uid = buffer.getInt();
+                this.st_gid = buffer.getInt();
+            } else {
+                this.st_dev = 0;
+                this.st_ino = 0;
+                this.st_size = 0;
+                this.typeOrdinal = 0;
+                this.st_blksize = 0;
+                this.st_blocks = 0;
+                this.st_atime = 0;
+                this.st_mtime = 0;
+                this.st_ctime = 0;
+                this.st_mode = 0;
+                this.st_nlink = 0;
+                this.st_uid = 0;
+                this.st_gid = 0;
+            }
         }
     }
 
+    private static class ListResp extends FdResp {
+        final ByteBuffer records;
+
+        public ListResp(Server.ListReq request, int status, @Nullable String message, ByteBuffer records) {
+            super(request, status, message);
+
+            this.records = records;
+        }
+    }
+
+    private static class BatchResp extends FdResp {
+        final int[] results;
+
+        public BatchResp(Server.BatchReq request, int[] results) {
+            super(request, 0, null);
+
+            this.results = results;
+        }
+    }
+
+    /**
+     * A message from the helper: the id of request, the status (0 on success, errno or {@link FdResp#FAILED}),
+     * the length of payload and the payload itself. Responses to requests carry their ids, id 0 is used for fatal
+     * errors and the initial greeting. Each message, except for the greeting, arrives as single packet along with
+     * it's file descriptor, if any.
+     */
+    private static final class Frame {
+        private static final int HEADER_SIZE = 12;
+
+        private final InputStream input;
+        private final LocalSocket socket;
+
+        final ByteBuffer payload = ByteBuffer.allocate(MAX_FRAME).order(ByteOrder.nativeOrder());
+
+        int id;
+
+        int status;
+
+        @Nullable FileDescriptor fd;
+
+        Frame(LocalSocket socket) throws IOException {
+            this.socket = socket;
+            this.input = socket.getInputStream();
+        }
+
+        /**
+         * Receive next packet.
+         */
+        void read() throws IOException {
+            payload.clear();
+
+            final int count = input.read(payload.array(), payload.arrayOffset(), payload.capacity());
+
+            if (count == -1) {
+                throw new IOException("Disconnected before reading complete message");
+            }
+
+            parse(count);
+        }
+
+        /**
+         * Read the message from stream socket, used during bootstrap.
+         */
+        void readStream() throws IOException {
+            payload.clear();
+
+            fill(0, HEADER_SIZE);
+
+            final int length = payload.getInt(8);
+
+            if (length < 0 || length > MAX_FRAME - HEADER_SIZE) {
+                throw new IOException("Malformed message from helper, length " + length);
+            }
+
+            fill(HEADER_SIZE, length);
+
+            parse(HEADER_SIZE + length);
+        }
+
+        private void parse(int count) throws IOException {
+            final FileDescriptor[] fds = socket.getAncillaryFileDescriptors();
+
+            fd = fds != null && fds.length == 1 && fds[0] != null ? fds[0] : null;
+
+            if (count < HEADER_SIZE || payload.getInt(8) != count - HEADER_SIZE) {
+                shut(fd);
+
+                throw new IOException("Malformed message from helper, size " + count);
+            }
+
+            id = payload.getInt(0);
+            status = payload.getInt(4);
+
+            payload.limit(count);
+            payload.position(HEADER_SIZE);
+        }
+
+        private void fill(int offset, int length) throws IOException {
+            final byte[] array = payload.array();
+
+            int position = payload.arrayOffset() + offset;
+
+            final int end = position + length;
+
+            while (position < end) {
+                final int count = input.read(array, position, end - position);
+
+                if (count == -1) {
+                    throw new IOException("Disconnected before reading complete message");
+                }
+
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Encodes requests to the helper. Each request is sent as single packet: the header (see struct
+     * request_header in fdhelper.c), followed by two NUL-terminated names. The first descriptor of request
+     * is attached to that packet, each of remaining ones is sent in a separate packet, containing the id
+     * of request.
+     */
+    private static final class RequestWriter {
+        private static final int HEADER_SIZE = 28;
+
+        private static final int OFF_NAME_LENGTHS = 20;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME).order(ByteOrder.nativeOrder());
+
+        private final FileDescriptor[] descriptors = new FileDescriptor[1];
+
+        private final LocalSocket socket;
+        private final OutputStream output;
+
+        RequestWriter(LocalSocket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+        }
+
+        /**
+         * @throws ErrnoException if the request can not be encoded, nothing is sent in that case
+         */
+        void write(FdReq request) throws IOException {
+            final ParcelFileDescriptor[] fds = request.outboundFd;
+
+            final int fdCount = fds == null ? 0 : fds.length;
+
+            buffer.clear();
+
+            buffer.putInt(request.id)
+                    .putInt(request.reqType)
+                    .putInt(fdCount)
+                    .putInt(request.mode)
+                    .putInt(request.extra);
+
+            buffer.position(HEADER_SIZE);
+
+            putName(request.fileName, OFF_NAME_LENGTHS);
+            putName(request.fileName2, OFF_NAME_LENGTHS + 4);
+
+            request.writeBody(this);
+
+            request.encodedAt = System.nanoTime();
+
+            send(fdCount == 0 ? null : fds[0], buffer.position());
+
+            for (int i = 1; i < fdCount; ++i) {
+                // the id is already at the start of buffer
+                send(fds[i], 4);
+            }
+        }
+
+        /**
+         * Write the operations of batch (see struct batch_op in fdhelper.c), followed by their names.
+         */
+        void writeBatch(Batch batch) throws ErrnoException {
+            final int opsStart = buffer.position();
+            final int namesStart = opsStart + batch.count * Batch.OP_SIZE;
+
+            if (namesStart > buffer.capacity()) {
+                throw new ErrnoException(ErrnoException.ENAMETOOLONG, "The batch is too big");
+            }
+
+            buffer.position(namesStart);
+
+            for (int i = 0; i < batch.count; ++i) {
+                final int base = opsStart + i * Batch.OP_SIZE;
+
+                buffer.putInt(base, batch.ops[i]);
+                buffer.putInt(base + 4, batch.args[i]);
+
+                putName(batch.names[i], base + 8);
+                putName(batch.names2[i], base + 12);
+            }
+        }
+
+        private void putName(@Nullable CharSequence name, int lengthOffset) throws ErrnoException {
+            final int start = buffer.position();
+
+            if (name != null && name.length() != 0) {
+                final int encoded;
+
+                try {
+                    encoded = Utf8.put(name, buffer);
+                } catch (IllegalArgumentException e) {
+                    throw new ErrnoException(ErrnoException.EINVAL, "Malformed name: " + name);
+                }
+
+                if (encoded == -1) {
+                    throw new ErrnoException(ErrnoException.ENAMETOOLONG, "The name is too long");
+                }
+            }
+
+            if (!buffer.hasRemaining()) {
+                throw new ErrnoException(ErrnoException.ENAMETOOLONG, "The name is too long");
+            }
+
+            buffer.putInt(lengthOffset, buffer.position() - start);
+
+            buffer.put((byte) 0);
+        }
+
+        private void send(@Nullable ParcelFileDescriptor fd, int length) throws IOException {
+            // a single descriptor per packet, see https://code.google.com/p/android/issues/detail?id=231609
+            if (fd != null) {
+                descriptors[0] = fd.getFileDescriptor();
+
+                socket.setFileDescriptorsForSend(descriptors);
+            }
+
+            try {
+                output.write(buffer.array(), buffer.arrayOffset(), length);
+            } finally {
+                if (fd != null) {
+                    socket.setFileDescriptorsForSend(null);
+
+                    descriptors[0] = null;
+                }
+            }
+        }
+    }
+
+    private static @Nullable String readString(ByteBuffer payload) {
+        int length = payload.remaining();
+
+        if (length == 0) {
+            return null;
+        }
+
+        if (payload.get(payload.limit() - 1) == '\0') {
+            --length;
+        }
+
+        final String result = new String(payload.array(), payload.arrayOffset() + payload.position(), length);
+
+        payload.position(payload.limit());
+
+        return result;
+    }
+
     // workaround for some stupid bug in annotations extractor
     private static class CloseableSocket implements Closeable {
         final LocalServerSocket lss;
@@ -1,59 +1,91 @@
 package net.sf.xfd;
 
-import com.carrotsearch.hppc.CharArrayList;
-
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CoderResult;
-import java.nio.charset.StandardCharsets;
-
-public final class CachingWriter extends CharArrayList implements Closeable, Flushable {
-    private static final CharBuffer EMPTY_BUFFER = CharBuffer.wrap(CharArrayList.EMPTY_ARRAY);
-
-    private static final int UPPER_BOUND = 9000;
 
-    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+/**
+ * Writes text to a channel as UTF-8. Characters are encoded straight into the output buffer in a single
+ * pass (see {@link Utf8#encode}), with a fast path for ASCII, and nothing is allocated per call.
+ * The buffer is written to the channel, when it fills up or upon {@link #flush}.
+ *
+ * <p/>
+ *
+ * Surrogate pairs may be passed to {@link #append(char)} one char at time: the high surrogate is held
+ * back until the low one arrives. A surrogate without its pair results in {@link IllegalArgumentException}.
+ */
+public final class CachingWriter implements Closeable, Flushable {
+    // the longest UTF-8 sequence for a single code point
+    private static final int MAX_CHAR_BYTES = 4;
 
-    private final int charBufferBound;
     private final ByteBuffer output;
     private final WritableByteChannel channel;
 
-    private CharBuffer chars = EMPTY_BUFFER;
+    // high surrogate, passed to append(char) and waiting for it's pair, or 0
+    private char pendingHigh;
 
     public CachingWriter(WritableByteChannel channel, int byteBufferSize) {
-        this(channel, byteBufferSize, UPPER_BOUND);
+        if (byteBufferSize < MAX_CHAR_BYTES) {
+            throw new IllegalArgumentException("The buffer must fit at least " + MAX_CHAR_BYTES + " bytes");
+        }
+
+        this.channel = channel;
+
+        this.output = ByteBuffer.allocateDirect(byteBufferSize).order(ByteOrder.nativeOrder());
     }
 
+    /**
+     * @deprecated characters are no longer buffered separately, use {@link #CachingWriter(WritableByteChannel, int)}
+     */
+    @Deprecated
     public CachingWriter(WritableByteChannel channel, int byteBufferSize, int charBufferBound) {
-        super(0);
+        this(channel, byteBufferSize);
+    }
 
-        this.channel = channel;
+    public CachingWriter append(char ch) throws IOException {
+        if (pendingHigh != 0) {
+            final char high = pendingHigh;
 
-        this.charBufferBound = charBufferBound;
+            pendingHigh = 0;
 
-        this.output = ByteBuffer.allocateDirect(byteBufferSize);
-    }
+            if (!Character.isLowSurrogate(ch)) {
+                throw new IllegalArgumentException("Illegal character combination, aborting");
+            }
 
-    @Override
-    public void add(char e1) {
-        int limit = chars.limit();
+            ensureByteBufferSpace(MAX_CHAR_BYTES);
 
-        super.add(e1);
+            final int codePoint = Character.toCodePoint(high, ch);
 
-        chars.limit(limit + 1);
-    }
+            output.put((byte) (0xf0 | codePoint >> 18));
+            output.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+            output.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+            output.put((byte) (0x80 | codePoint & 0x3f));
 
-    public CachingWriter append(char ch) throws IOException {
-        if (chars.limit() != 0) {
-            add(ch);
-        } else {
-            ensureByteBufferSpace(1);
+            return this;
+        }
+
+        if (Character.isHighSurrogate(ch)) {
+            pendingHigh = ch;
+
+            return this;
+        }
+
+        ensureByteBufferSpace(3);
+
+        if (ch < 0x80) {
             output.put((byte) ch);
+        } else if (ch < 0x800) {
+            output.put((byte) (0xc0 | ch >> 6));
+            output.put((byte) (0x80 | ch & 0x3f));
+        } else if (ch < 0xd800 || ch > 0xdfff) {
+            output.put((byte) (0xe0 | ch >> 12));
+            output.put((byte) (0x80 | ch >> 6 & 0x3f));
+            output.put((byte) (0x80 | ch & 0x3f));
+        } else {
+            throw new IllegalArgumentException("Illegal character combination, aborting");
         }
 
         return this;
@@ -72,7 +104,7 @@ public final class CachingWriter extends CharArrayList implements Closeable, Flu
     }
 
     public CachingWriter append(int i) throws IOException {
-        flushToBuffer();
+        checkNoPendingSurrogate();
 
         int appendedLength = (i < 0) ? stringSize(-i) + 1 : stringSize(i);
 
@@ -87,6 +119,14 @@ public final class CachingWriter extends CharArrayList implements Closeable, Flu
         return this;
     }
 
+    private void checkNoPendingSurrogate() {
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+
+            throw new IllegalArgumentException("Illegal character combination, aborting");
+        }
+    }
+
     private void ensureByteBufferSpace(int appendedLength) throws IOException {
         if (output.position() + appendedLength > output.limit()) {
             doFlushToChannel();
@@ -95,120 +135,100 @@ public final class CachingWriter extends CharArrayList implements Closeable, Flu
 
     public CachingWriter append(CharSequence csq) throws IOException {
         if (csq.getClass() == NativeString.class) {
-            flushToBuffer();
+            checkNoPendingSurrogate();
 
             append(((NativeString) csq).getBytes());
+        } else if (pendingHigh != 0 && csq.length() != 0) {
+            // complete the pair, started by append(char)
+            append(csq.charAt(0));
+
+            encode(csq, 1);
         } else {
-            append(csq.toString());
+            checkNoPendingSurrogate();
+
+            encode(csq, 0);
         }
 
         return this;
     }
 
-    private void append(byte[] bytes) throws IOException {
-        int toPut = bytes.length;
+    /**
+     * Append the string, preceded by it's length in bytes as 4-byte integer in native byte order.
+     * The slot for length is reserved before encoding and filled afterwards, so the string is scanned
+     * only once, unless it does not fit into the buffer.
+     */
+    public CachingWriter appendWithLength(CharSequence csq) throws IOException {
+        checkNoPendingSurrogate();
 
-        do {
-            int canPut = Math.min(output.remaining(), toPut);
+        ensureByteBufferSpace(4);
 
-            output.put(bytes, bytes.length - toPut, canPut);
+        final int slot = output.position();
 
-            toPut -= canPut;
+        output.position(slot + 4);
 
-            if (output.remaining() == 0) {
-                doFlushToChannel();
-            }
-        }
-        while (toPut > 0);
-    }
+        final int encoded;
 
-    @Override
-    protected void ensureBufferSpace(int expectedAdditions) {
-        super.ensureBufferSpace(expectedAdditions);
+        try {
+            encoded = Utf8.put(csq, output);
+        } catch (IllegalArgumentException e) {
+            output.position(slot);
 
-        if (buffer != chars.array()) {
-            chars = CharBuffer.wrap(buffer);
-            chars.limit(elementsCount);
+            throw new IllegalArgumentException("Illegal character combination, aborting");
         }
-    }
 
-    private void append(String string) throws IOException {
-        int toPut = string.length();
+        if (encoded != -1) {
+            output.putInt(slot, encoded);
 
-        int i = 0;
-        do {
-            ++i;
-            final int appendCount;
-
-            int newLength = toPut + elementsCount;
+            return this;
+        }
 
-            if (newLength < charBufferBound) {
-                appendCount = toPut;
+        // the string is longer, than remaining space, measure it beforehand and write it in parts
+        output.position(slot);
 
-                ensureCapacity(newLength);
-            } else {
-                appendCount = charBufferBound - elementsCount;
+        final long length = Utf8.size(csq);
 
-                ensureCapacity(charBufferBound);
-            }
+        if (length > Integer.MAX_VALUE) {
+            bail(length);
+        }
 
-            final int limit = chars.limit();
+        output.putInt((int) length);
 
-            final int srcBegin = string.length() - toPut;
-            final int srcEnd = srcBegin + appendCount;
+        return append(csq);
+    }
 
-            string.getChars(srcBegin, srcEnd, this.buffer, elementsCount);
+    private void encode(CharSequence string, int start) throws IOException {
+        int index = start;
 
-            elementsCount += appendCount;
-            chars.limit(limit + appendCount);
+        while (true) {
+            index = Utf8.encode(string, index, output);
 
-            toPut -= appendCount;
+            if (index == -1) {
+                throw new IllegalArgumentException("Illegal character combination, aborting");
+            }
 
-            if (elementsCount == charBufferBound) {
-                doFlushToBuffer();
+            if (index == string.length()) {
+                return;
             }
+
+            doFlushToChannel();
         }
-        while (toPut > 0);
     }
 
-    private void flushToBuffer() throws IOException {
-        if (!chars.hasRemaining()) return;
+    private void append(byte[] bytes) throws IOException {
+        int toPut = bytes.length;
 
-        doFlushToBuffer();
-    }
+        do {
+            int canPut = Math.min(output.remaining(), toPut);
 
-    private void doFlushToBuffer() throws IOException {
-        try {
-            CoderResult result;
-            do {
-                result = encoder.encode(chars, output, true);
+            output.put(bytes, bytes.length - toPut, canPut);
 
-                if (result.isError()) {
-                    throw new IllegalArgumentException("Illegal character combination, aborting");
-                } else if (result.isOverflow()) {
-                    flushToChannel();
-                }
-            }
-            while (chars.hasRemaining());
+            toPut -= canPut;
 
-            do {
-                result = encoder.flush(output);
-
-                if (result.isError()) {
-                    throw new IllegalArgumentException("Illegal character combination, aborting");
-                } else if (result.isOverflow()) {
-                    flushToChannel();
-                } else {
-                    break;
-                }
+            if (output.remaining() == 0) {
+                doFlushToChannel();
             }
-            while (true);
-        } finally {
-            encoder.reset();
-            chars.rewind();
-            chars.limit(0);
-            elementsCount = 0;
         }
+        while (toPut > 0);
     }
 
     private void flushToChannel() throws IOException {
@@ -230,7 +250,6 @@ public final class CachingWriter extends CharArrayList implements Closeable, Flu
     }
 
     public void flush() throws IOException {
-        flushToBuffer();
         flushToChannel();
     }
 
@@ -325,8 +344,13 @@ public final class CachingWriter extends CharArrayList implements Closeable, Flu
 
     @Override
     public void close() throws IOException {
-        flush();
+        try {
+            // report a dangling high surrogate before the output it belongs to goes out
+            checkNoPendingSurrogate();
 
-        channel.close();
+            flush();
+        } finally {
+            channel.close();
+        }
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.carrotsearch.hppc.ObjectIntHashMap;
+
+import net.sf.fakenames.syscallserver.SyscallFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A snapshot of directory contents along with results of {@code lstat} for each entry, see
+ * {@link SyscallFactory#liststat}. Slots are stored in parallel primitive arrays, in the order of
+ * reading the directory. If {@code lstat} failed for an entry, {@link #errno} holds the error code,
+ * and only the name, {@link #ino} (as reported by {@code getdents}) and {@link #cookie} of slot are
+ * valid.
+ *
+ * <p/>
+ *
+ * Instances are immutable once created and can be shared between threads, including the lookup
+ * by name: the name index is built upfront.
+ */
+public final class DirectoryListing {
+    // layout of struct list_entry in fdhelper.c, each entry is followed by the name, padded to 8 bytes
+    private static final int NATIVE_SIZE = 56;
+
+    private static final int OFF_COOKIE = 0;
+    private static final int OFF_DEV = 8;
+    private static final int OFF_INO = 16;
+    private static final int OFF_SIZE = 24;
+    private static final int OFF_MTIME = 32;
+    private static final int OFF_MODE = 40;
+    private static final int OFF_BLKSIZE = 44;
+    private static final int OFF_ERRNO = 48;
+    private static final int OFF_NAME_LENGTH = 52;
+    private static final int OFF_TYPE = 54;
+
+    /**
+     * Opaque directory offset of the entry <strong>after</strong> the slot, see {@link Directory#getOpaqueIndex}.
+     */
+    public final long[] cookie;
+
+    public final long[] dev;
+    public final long[] ino;
+    public final long[] size;
+
+    /**
+     * Modification time in milliseconds since epoch.
+     */
+    public final long[] mtime;
+
+    public final int[] mode;
+    public final int[] blksize;
+    public final int[] errno;
+
+    public final CharSequence[] names;
+
+    private final byte[] direntTypes;
+
+    public final int count;
+
+    // built eagerly and never modified afterwards, so lookups from several threads need no locking
+    private final ObjectIntHashMap<String> positions;
+
+    public DirectoryListing(ByteBuffer records) {
+        final int limit = records.limit();
+
+        int total = 0;
+
+        for (int offset = records.position(); offset < limit; offset += entrySize(records, offset)) {
+            ++total;
+        }
+
+        count = total;
+
+        cookie = new long[total];
+        dev = new long[total];
+        ino = new long[total];
+        size = new long[total];
+        mtime = new long[total];
+        mode = new int[total];
+        blksize = new int[total];
+        errno = new int[total];
+        names = new CharSequence[total];
+        direntTypes = new byte[total];
+        positions = new ObjectIntHashMap<>(total);
+
+        final FileNameDecoder decoder = new FileNameDecoder();
+
+        final byte[] array = records.array();
+
+        int offset = records.position();
+
+        for (int slot = 0; slot < total; ++slot) {
+            cookie[slot] = records.getLong(offset + OFF_COOKIE);
+            dev[slot] = records.getLong(offset + OFF_DEV);
+            ino[slot] = records.getLong(offset + OFF_INO);
+            size[slot] = records.getLong(offset + OFF_SIZE);
+            mtime[slot] = records.getLong(offset + OFF_MTIME);
+            mode[slot] = records.getInt(offset + OFF_MODE);
+            blksize[slot] = records.getInt(offset + OFF_BLKSIZE);
+            errno[slot] = records.getInt(offset + OFF_ERRNO);
+            direntTypes[slot] = records.get(offset + OFF_TYPE);
+
+            final int nameLength = records.getShort(offset + OFF_NAME_LENGTH) & 0xffff;
+
+            final ByteBuffer name = ByteBuffer.wrap(array, records.arrayOffset() + offset + NATIVE_SIZE, nameLength);
+
+            names[slot] = decoder.fromUtf8Bytes(name.slice());
+
+            positions.put(names[slot].toString(), slot);
+
+            offset += entrySize(records, offset);
+        }
+    }
+
+    private static int entrySize(ByteBuffer records, int offset) {
+        final int nameLength = records.getShort(offset + OFF_NAME_LENGTH) & 0xffff;
+
+        return (NATIVE_SIZE + nameLength + 7) & ~7;
+    }
+
+    public boolean isOk(int slot) {
+        return errno[slot] == 0;
+    }
+
+    /**
+     * @return the type of file, as reported by {@code lstat} or, failing that, by {@code getdents}
+     */
+    public @Nullable FsType type(int slot) {
+        return errno[slot] == 0 ? FsType.forMode(mode[slot]) : FsType.forDirentType(direntTypes[slot] & 0xff);
+    }
+
+    /**
+     * @return the slot of entry with specified name or {@code -1}, if there is none
+     */
+    public int indexOf(@NonNull CharSequence name) {
+        return positions.getOrDefault(name.toString(), -1);
+    }
+
+    /**
+     * Copy the contents of slot to {@code stat}.
+     *
+     * @return {@code false} if {@code lstat} failed for that slot ({@code stat} is left untouched)
+     */
+    public boolean get(int slot, @NonNull Stat stat) {
+        if (errno[slot] != 0) {
+            return false;
+        }
+
+        // the helper reports only these fields, the rest are reset along with mask
+        stat.initExtended(Stat.STATX_TYPE | Stat.STATX_MODE | Stat.STATX_INO | Stat.STATX_SIZE | Stat.STATX_MTIME,
+                dev[slot], ino[slot], size[slot], blksize[slot], mode[slot],
+                0, 0, 0, 0L,
+                0L, mtime[slot], 0L);
+
+        return true;
+    }
+}
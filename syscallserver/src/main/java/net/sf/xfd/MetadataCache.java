@@ -0,0 +1,566 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.carrotsearch.hppc.ObjectArrayList;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of results of privileged {@code fstatat} and {@code faccessat}, keyed by device
+ * and inode of parent directory and the name within it. Using inode instead of path means, that
+ * renaming a directory does not invalidate the results for its contents. Results of
+ * {@code readlinkat} are not cached: the helper resolves them to absolute paths, which do change,
+ * when some ancestor directory is renamed.
+ *
+ * <p/>
+ *
+ * Each directory with cached entries is watched with inotify, and all entries of directory are
+ * dropped upon change within it. The changes of file contents are not reported that way, and there
+ * is a short window between fetching the result and installing the watch, so entries also expire
+ * after {@link #TTL_MS}. Only successful results are cached.
+ *
+ * <p/>
+ *
+ * This class is thread-safe.
+ */
+public final class MetadataCache implements Closeable {
+    static final int STAT = 1;
+    static final int ACCESS = 2;
+
+    static final long TTL_MS = 3000;
+
+    private static final long TTL_NANOS = TimeUnit.MILLISECONDS.toNanos(TTL_MS);
+
+    private static final int MAX_ENTRIES = 1024;
+
+    // each watched directory costs an inotify watch, which are a limited resource
+    private static final int MAX_DIRECTORIES = 64;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final OS os;
+    private final Rooted rooted;
+
+    private final LinkedHashMap<Key, Entry> entries;
+    private final LinkedHashMap<Parent, Watched> directories;
+
+    // watches of evicted directories, closed outside of lock
+    private final ObjectArrayList<InotifyWatch> retired = new ObjectArrayList<>();
+
+    // incremented by every invalidation, so that results, fetched concurrently with it, are not put in cache
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // created lazily, upon caching the first result
+    private EpollLoop loop;
+    private Inotify inotify;
+    private @InotifyFd int inotifyFd = -1;
+
+    private boolean closed;
+
+    MetadataCache(@NonNull OS os, @NonNull Rooted rooted) {
+        this.os = os;
+        this.rooted = rooted;
+
+        this.entries = new LinkedHashMap<Key, Entry>(MAX_ENTRIES * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, MetadataCache.Entry> eldest) {
+                if (size() <= MAX_ENTRIES) {
+                    return false;
+                }
+
+                ++evictions;
+
+                return true;
+            }
+        };
+
+        this.directories = new LinkedHashMap<Parent, Watched>(MAX_DIRECTORIES * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Parent, Watched> eldest) {
+                if (size() <= MAX_DIRECTORIES) {
+                    return false;
+                }
+
+                final Watched evicted = eldest.getValue();
+
+                if (evicted.watch != null) {
+                    retired.add(evicted.watch);
+                }
+
+                drop(eldest.getKey());
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the key for caching the result of operation or {@code null}, if the result can not be cached
+     * (there is no parent directory descriptor or the name does not refer to immediate child of it)
+     */
+    @Nullable Key key(@DirFd int dir, @NonNull CharSequence name, int kind, int arg) {
+        if (dir < 0 || !isChildName(name)) {
+            return null;
+        }
+
+        final Stat stat = new Stat();
+
+        try {
+            os.fstat(dir, stat);
+        } catch (IOException e) {
+            // let the helper report the error
+            return null;
+        }
+
+        return new Key(new Parent(stat.st_dev, stat.st_ino), name.toString(), kind, arg);
+    }
+
+    /**
+     * @return the cached result or {@code null} on cache miss
+     */
+    synchronized @Nullable Object get(@NonNull Key key) {
+        final Entry cached = entries.get(key);
+
+        if (cached != null) {
+            if (System.nanoTime() - cached.created < TTL_NANOS) {
+                ++hits;
+
+                return cached.value;
+            }
+
+            entries.remove(key);
+        }
+
+        ++misses;
+
+        key.generation = generation;
+
+        return null;
+    }
+
+    boolean getStat(@NonNull Key key, @NonNull Stat stat) {
+        final Stat cached = (Stat) get(key);
+
+        if (cached == null) {
+            return false;
+        }
+
+        copy(cached, stat);
+
+        return true;
+    }
+
+    void putStat(@NonNull Key key, @NonNull Stat stat, @DirFd int dir) {
+        final Stat copied = new Stat();
+
+        copy(stat, copied);
+
+        put(key, copied, dir);
+    }
+
+    /**
+     * Cache the result, fetched after a miss in {@link #get}, and start watching the parent directory,
+     * unless it is already watched.
+     */
+    void put(@NonNull Key key, @NonNull Object value, @DirFd int dir) {
+        final Watched created;
+
+        synchronized (this) {
+            if (closed || key.generation != generation) {
+                // lost a race, don't cache
+                return;
+            }
+
+            entries.put(key, new Entry(value, System.nanoTime()));
+
+            if (directories.get(key.parent) != null) {
+                created = null;
+            } else {
+                created = new Watched();
+
+                directories.put(key.parent, created);
+            }
+        }
+
+        closeRetired();
+
+        if (created != null) {
+            watch(key.parent, created, dir);
+        }
+    }
+
+    private void watch(Parent parent, Watched watched, @DirFd int dir) {
+        InotifyWatch watch = null;
+
+        try {
+            watch = getInotify().subscribe(dir, new InotifyListener(parent));
+        } catch (IOException e) {
+            // keep relying on expiration for this directory
+            LogUtil.logCautiously("Failed to watch directory", e);
+        }
+
+        if (watch == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!closed && directories.get(parent) == watched) {
+                watched.watch = watch;
+
+                return;
+            }
+        }
+
+        watch.close();
+    }
+
+    private Inotify getInotify() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The cache is closed");
+            }
+
+            if (inotify == null) {
+                final EpollLoop loop = new EpollLoop("Metadata cache watcher");
+                loop.setDaemon(true);
+                loop.start();
+
+                final @InotifyFd int fd;
+
+                try {
+                    fd = os.inotify_init();
+                } catch (IOException e) {
+                    loop.close();
+
+                    throw e;
+                }
+
+                try {
+                    // callbacks only touch the cache, so they can run on the loop thread
+                    final Inotify created = rooted.observe(fd, DIRECT);
+
+                    created.setSelector(loop);
+
+                    this.inotify = created;
+                } catch (IOException e) {
+                    loop.close();
+
+                    os.dispose(fd);
+
+                    throw e;
+                }
+
+                this.loop = loop;
+                this.inotifyFd = fd;
+            }
+
+            return inotify;
+        }
+    }
+
+    /**
+     * Drop results for contents of specified directory. Call this after changing the directory yourself,
+     * so that the change becomes visible without waiting for inotify.
+     */
+    void invalidate(@DirFd int dir) {
+        if (dir < 0) {
+            return;
+        }
+
+        final Stat stat = new Stat();
+
+        try {
+            os.fstat(dir, stat);
+        } catch (IOException e) {
+            clear();
+
+            return;
+        }
+
+        invalidate(new Parent(stat.st_dev, stat.st_ino));
+    }
+
+    private synchronized void invalidate(Parent parent) {
+        ++generation;
+
+        drop(parent);
+    }
+
+    // called with lock held
+    private void drop(Parent parent) {
+        final Iterator<Key> i = entries.keySet().iterator();
+
+        while (i.hasNext()) {
+            if (i.next().parent.equals(parent)) {
+                i.remove();
+            }
+        }
+    }
+
+    private void reset(Parent parent) {
+        final InotifyWatch watch;
+
+        synchronized (this) {
+            ++generation;
+
+            drop(parent);
+
+            final Watched watched = directories.remove(parent);
+
+            watch = watched == null ? null : watched.watch;
+        }
+
+        if (watch != null) {
+            watch.close();
+        }
+    }
+
+    public synchronized void clear() {
+        ++generation;
+
+        entries.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void closeRetired() {
+        final InotifyWatch[] watches;
+
+        synchronized (this) {
+            if (retired.isEmpty()) {
+                return;
+            }
+
+            watches = retired.toArray(InotifyWatch.class);
+
+            retired.clear();
+        }
+
+        for (InotifyWatch watch : watches) {
+            watch.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        final Inotify inotify;
+        final EpollLoop loop;
+        final @InotifyFd int fd;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            ++generation;
+
+            entries.clear();
+
+            for (ObjectCursor<InotifyWatch> watch : retired) {
+                watch.value.close();
+            }
+
+            retired.clear();
+
+            for (Watched watched : directories.values()) {
+                if (watched.watch != null) {
+                    watched.watch.close();
+                }
+            }
+
+            directories.clear();
+
+            inotify = this.inotify;
+            loop = this.loop;
+            fd = this.inotifyFd;
+
+            this.inotify = null;
+            this.loop = null;
+            this.inotifyFd = -1;
+        }
+
+        if (inotify != null) {
+            inotify.close();
+
+            loop.close();
+
+            os.dispose(fd);
+        }
+    }
+
+    private static boolean isChildName(CharSequence name) {
+        final int length = name.length();
+
+        if (length == 0 || length == 2 && name.charAt(0) == '.' && name.charAt(1) == '.') {
+            return false;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            if (name.charAt(i) == '/') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void copy(Stat from, Stat to) {
+        to.st_dev = from.st_dev;
+        to.st_ino = from.st_ino;
+        to.st_size = from.st_size;
+        to.type = from.type;
+        to.st_blksize = from.st_blksize;
+        to.mask = from.mask;
+        to.st_mode = from.st_mode;
+        to.st_nlink = from.st_nlink;
+        to.st_uid = from.st_uid;
+        to.st_gid = from.st_gid;
+        to.st_blocks = from.st_blocks;
+        to.st_atime = from.st_atime;
+        to.st_mtime = from.st_mtime;
+        to.st_ctime = from.st_ctime;
+    }
+
+    private final class InotifyListener implements Inotify.InotifyListener {
+        private final Parent parent;
+
+        InotifyListener(Parent parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void onChanges() {
+            invalidate(parent);
+        }
+
+        @Override
+        public void onReset() {
+            reset(parent);
+        }
+    }
+
+    private static final class Parent {
+        final long dev;
+        final long ino;
+
+        Parent(long dev, long ino) {
+            this.dev = dev;
+            this.ino = ino;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Parent)) return false;
+
+            final Parent other = (Parent) o;
+
+            return dev == other.dev && ino == other.ino;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (dev ^ (dev >>> 32)) + (int) (ino ^ (ino >>> 32));
+        }
+    }
+
+    static final class Key {
+        final Parent parent;
+        final String name;
+        final int kind;
+        final int arg;
+
+        // the generation of cache at the time of miss
+        long generation;
+
+        Key(Parent parent, String name, int kind, int arg) {
+            this.parent = parent;
+            this.name = name;
+            this.kind = kind;
+            this.arg = arg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            final Key other = (Key) o;
+
+            return kind == other.kind && arg == other.arg && parent.equals(other.parent) && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = parent.hashCode();
+            result = 31 * result + name.hashCode();
+            result = 31 * result + kind;
+            result = 31 * result + arg;
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long created;
+
+        Entry(Object value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+
+    private static final class Watched {
+        // null until subscribed or if subscribing has failed
+        InotifyWatch watch;
+    }
+}
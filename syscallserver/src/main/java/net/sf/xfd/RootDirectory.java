@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2017 Alexander Rvachev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.xfd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link Directory}, whose contents are read by the privileged helper in one go, along with
+ * {@code lstat} of each entry (see {@link DirectoryListing}). The listing is fetched upon the
+ * first movement of iterator and dropped, when the iterator is reset to -1 position.
+ */
+final class RootDirectory implements Directory {
+    private final Rooted os;
+    private final @DirFd int fd;
+
+    private final It iterator = new It();
+
+    private volatile DirectoryListing listing;
+
+    RootDirectory(Rooted os, @DirFd int fd) {
+        this.os = os;
+        this.fd = fd;
+    }
+
+    @DirFd int getFd() {
+        return fd;
+    }
+
+    /**
+     * @return the listing, fetched during last iteration or {@code null}, if there is none
+     */
+    @Nullable DirectoryListing getListing() {
+        return listing;
+    }
+
+    private DirectoryListing load() throws IOException {
+        DirectoryListing current = listing;
+
+        if (current == null) {
+            listing = current = os.liststat(fd);
+        }
+
+        return current;
+    }
+
+    @Override
+    public UnreliableIterator<Entry> iterator() {
+        iterator.reset();
+
+        return iterator;
+    }
+
+    @Override
+    public long getOpaqueIndex(int position) {
+        if (position == 0) {
+            return 0L;
+        }
+
+        final DirectoryListing current = listing;
+
+        // position == count is the end of directory, where iteration can be resumed as well
+        if (current == null || position < 0 || position > current.count) {
+            return -1L;
+        }
+
+        return current.cookie[position - 1];
+    }
+
+    @Override
+    public void close() {
+        listing = null;
+
+        os.forget(this);
+    }
+
+    private final class It implements UnreliableIterator<Entry> {
+        private int position = -1;
+
+        void reset() {
+            listing = null;
+
+            position = -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            final DirectoryListing current = listing;
+
+            if (current == null) {
+                return position == -1;
+            }
+
+            return position == -1 ? current.count != 0 : position < current.count;
+        }
+
+        @NonNull
+        @Override
+        public Entry next() {
+            try {
+                if (position == -1 ? !moveToFirst() : position >= load().count) {
+                    throw new NoSuchElementException("position = " + position);
+                }
+
+                final Entry entry = new Entry();
+
+                get(entry);
+
+                ++position;
+
+                return entry;
+            } catch (IOException e) {
+                throw new WrappedIOException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        @Override
+        public void get(@NonNull Entry reuse) {
+            final DirectoryListing current = listing;
+
+            if (current == null || position < 0 || position >= current.count) {
+                throw new IllegalStateException("Attempting to get element at position " + position);
+            }
+
+            reuse.ino = current.ino[position];
+            reuse.type = current.type(position);
+            reuse.name = current.names[position];
+        }
+
+        @Override
+        public boolean moveToFirst() throws IOException {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            return moveToPosition(position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() throws IOException {
+            return position > 0 && moveToPosition(position - 1);
+        }
+
+        @Override
+        public boolean moveToPosition(int target) throws IOException {
+            if (target < -1) {
+                throw new IllegalArgumentException("position must be > -1");
+            }
+
+            if (target == -1) {
+                reset();
+
+                return true;
+            }
+
+            final DirectoryListing current = load();
+
+            if (target >= current.count) {
+                // stay at the last entry, like the other implementations do
+                position = current.count - 1;
+
+                return false;
+            }
+
+            position = target;
+
+            return true;
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+    }
+}
@@ -23,12 +23,17 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 
+import com.carrotsearch.hppc.IntObjectHashMap;
+
 import net.sf.fakenames.syscallserver.FactoryBrokenException;
+import net.sf.fakenames.syscallserver.HelperStats;
 import net.sf.fakenames.syscallserver.SyscallFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
+import static net.sf.xfd.NativeBits.O_CREAT;
 import static net.sf.xfd.NativeBits.O_DIRECTORY;
 import static net.sf.xfd.NativeBits.O_NOCTTY;
 
@@ -37,6 +42,11 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
 
     private final Context context;
 
+    // directories, listed by the helper, keyed by descriptor; guarded by itself
+    private final IntObjectHashMap<RootDirectory> listings = new IntObjectHashMap<>();
+
+    private final MetadataCache cache;
+
     public static Rooted createWithChecks(Context context) throws IOException {
         final Rooted instance = new Rooted(context, getInstance());
 
@@ -50,10 +60,28 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
     private Rooted(Context context, OS delegate) {
         this.context = context;
         this.delegate = delegate;
+        this.cache = new MetadataCache(delegate, this);
+    }
+
+    /**
+     * @return the cache of results of {@link #fstatat} and {@link #faccessat}
+     */
+    public MetadataCache getMetadataCache() {
+        return cache;
+    }
+
+    /**
+     * @return latencies of requests to the privileged helper and counters of it's failures
+     */
+    public HelperStats getHelperStats() {
+        return SyscallFactory.getStats();
     }
 
     private volatile FactoryGuard factory;
 
+    // the maximum number of operations, sent to the helper in one request
+    private static final int MAX_HELPER_BATCH = 256;
+
     private SyscallFactory getFactory() throws IOException {
         FactoryGuard guard;
 
@@ -61,11 +89,16 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
 
         guard = this.factory;
 
-        if (guard == null) {
+        // a closed factory is replaced right away, which is cheap as long as it's helper is still running
+        if (guard == null || guard.guarded.isClosed()) {
             synchronized (this) {
                 guard = this.factory;
 
-                if (guard == null) {
+                if (guard == null || guard.guarded.isClosed()) {
+                    if (guard != null) {
+                        guard.close();
+                    }
+
                     factory = SyscallFactory.create(context);
 
                     this.factory = new FactoryGuard(this, factory);
@@ -80,6 +113,50 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
         return factory;
     }
 
+    /**
+     * Start the privileged helper in background, so that the first operation does not have to wait for it.
+     */
+    public void warmUp(@NonNull Executor executor) {
+        if (factory != null) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getFactory();
+                } catch (IOException e) {
+                    LogUtil.logCautiously("Failed to start privileged helper", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Check, that the privileged helper responds, reconnecting to it if the connection has broken.
+     *
+     * @return {@code true} if the helper has responded
+     */
+    @WorkerThread
+    public boolean ping() {
+        try {
+            final SyscallFactory factory = getFactory();
+
+            factory.ping();
+
+            return true;
+        } catch (FactoryBrokenException e) {
+            factory = null;
+
+            return false;
+        } catch (IOException e) {
+            LogUtil.logCautiously("Ping failed", e);
+
+            return false;
+        }
+    }
+
     @Override
     @CheckResult
     @WorkerThread
@@ -87,13 +164,15 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
         try {
             final SyscallFactory factory = getFactory();
 
+            FdTracker.beforeOpen();
+
             final ParcelFileDescriptor pfd = factory.creat(path, mode);
 
             final @Fd int fdInt = pfd.detachFd();
 
             pfd.close();
 
-            return fdInt;
+            return FdTracker.opened(fdInt);
         } catch (FactoryBrokenException e) {
             factory = null;
 
@@ -126,13 +205,46 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
         try {
             final SyscallFactory factory = getFactory();
 
+            FdTracker.beforeOpen();
+
             final ParcelFileDescriptor pfd = factory.openat(fd, pathname, flags);
 
             final @Fd int fdInt = pfd.detachFd();
 
             pfd.close();
 
-            return fdInt;
+            return FdTracker.opened(fdInt);
+        } catch (FactoryBrokenException e) {
+            factory = null;
+
+            throw new IOException("open() failed, unable to access privileged process", e);
+        } finally {
+            if ((flags & O_CREAT) != 0) {
+                cache.invalidate(fd);
+            }
+        }
+    }
+
+    /**
+     * Open the file for reading through a pipe, filled by the privileged helper. The descriptor
+     * can not be seeked, but can be read by any process, regardless of it's access to the file.
+     *
+     * @see SyscallFactory#stream
+     */
+    @WorkerThread
+    public @Fd int openStream(@DirFd int fd, @NonNull CharSequence pathname) throws IOException {
+        try {
+            final SyscallFactory factory = getFactory();
+
+            FdTracker.beforeOpen();
+
+            final ParcelFileDescriptor pfd = factory.stream(fd, pathname);
+
+            final @Fd int fdInt = pfd.detachFd();
+
+            pfd.close();
+
+            return FdTracker.opened(fdInt);
         } catch (FactoryBrokenException e) {
             factory = null;
 
@@ -144,10 +256,11 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
     @Override
     @WorkerThread
     public CharSequence readlinkat(int fd, @NonNull CharSequence pathname) throws IOException {
+        // not cached: the helper returns absolute path, built from current location of parent
         try {
             final SyscallFactory factory = getFactory();
 
-            return factory.readlinkat(fd, pathname);
+            return factory.readlinkat(fd, pathname).toString();
         } catch (FactoryBrokenException e) {
             factory = null;
 
@@ -166,6 +279,12 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             factory = null;
 
             throw new IOException("rename() failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(fd);
+
+            if (fd2 != fd) {
+                cache.invalidate(fd2);
+            }
         }
     }
 
@@ -183,7 +302,49 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
     @NonNull
     @Override
     public Directory list(@Fd int fd) {
-        return delegate.list(fd);
+        if (canList(fd)) {
+            // the app can read the directory and lstat it's entries by itself
+            return delegate.list(fd);
+        }
+
+        final RootDirectory directory = new RootDirectory(this, fd);
+
+        synchronized (listings) {
+            listings.put(fd, directory);
+        }
+
+        return directory;
+    }
+
+    private boolean canList(@Fd int fd) {
+        try {
+            return delegate.faccessat(fd, ".", R_OK | X_OK);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @WorkerThread
+    DirectoryListing liststat(@DirFd int fd) throws IOException {
+        try {
+            final SyscallFactory factory = getFactory();
+
+            return factory.liststat(fd);
+        } catch (FactoryBrokenException e) {
+            factory = null;
+
+            throw new IOException("getdents() failed, unable to access privileged process", e);
+        }
+    }
+
+    void forget(RootDirectory directory) {
+        synchronized (listings) {
+            final int fd = directory.getFd();
+
+            if (listings.get(fd) == directory) {
+                listings.remove(fd);
+            }
+        }
     }
 
     @NonNull
@@ -198,12 +359,28 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
         return new RootInotify(inotifyDescriptor, looper);
     }
 
+    @NonNull
+    @Override
+    public Inotify observe(@InotifyFd int inotifyDescriptor, @NonNull Executor executor) {
+        return new RootInotify(inotifyDescriptor, executor);
+    }
+
     @Override
     public void fstatat(@DirFd int dir, @NonNull CharSequence pathname, @NonNull Stat stat, int flags) throws IOException {
+        final MetadataCache.Key key = cache.key(dir, pathname, MetadataCache.STAT, flags);
+
+        if (key != null && cache.getStat(key, stat)) {
+            return;
+        }
+
         try {
             final SyscallFactory factory = getFactory();
 
             factory.fstatat(dir, pathname, stat, flags);
+
+            if (key != null) {
+                cache.putStat(key, stat, dir);
+            }
         } catch (FactoryBrokenException e) {
             factory = null;
 
@@ -211,6 +388,184 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
         }
     }
 
+    /**
+     * The helper reports all basic fields in response to {@code fstatat}, so this is the same as
+     * {@link #fstatat}, and the result shares the cache with it.
+     */
+    @Override
+    @WorkerThread
+    public void statx(@DirFd int dir, @NonNull CharSequence pathname, @StatAtFlags int flags, int mask, @NonNull Stat stat) throws IOException {
+        fstatat(dir, pathname, stat, flags);
+    }
+
+    /**
+     * Use the results of {@code lstat}, fetched while listing the directory, when available, instead of
+     * asking the helper about each file. Symlinks are still resolved by the helper, unless
+     * {@link #AT_SYMLINK_NOFOLLOW} is passed.
+     */
+    @Override
+    @WorkerThread
+    public void fstatatBulk(@DirFd int dir, @NonNull CharSequence[] names, int count, @NonNull StatBatch batch, int flags) throws IOException {
+        final RootDirectory directory;
+
+        synchronized (listings) {
+            directory = listings.get(dir);
+        }
+
+        final DirectoryListing listing = directory == null ? null : directory.getListing();
+
+        if (listing == null) {
+            super.fstatatBulk(dir, names, count, batch, flags);
+
+            return;
+        }
+
+        if (count > names.length || count > batch.capacity()) {
+            throw new IllegalArgumentException("Batch is too small: " + count + " names, capacity " + batch.capacity());
+        }
+
+        final boolean followLinks = (flags & AT_SYMLINK_NOFOLLOW) == 0;
+
+        final Stat stat = new Stat();
+
+        for (int i = 0; i < count; ++i) {
+            final int slot = listing.indexOf(names[i]);
+
+            if (slot != -1 && listing.get(slot, stat) && !(followLinks && stat.type == FsType.LINK)) {
+                batch.set(i, stat);
+
+                batch.mtime[i] = listing.mtime[slot];
+
+                continue;
+            }
+
+            try {
+                fstatat(dir, names[i], stat, flags);
+
+                batch.set(i, stat);
+            } catch (ErrnoException e) {
+                batch.setError(i, e.code());
+            }
+        }
+
+        batch.count = count;
+    }
+
+    /**
+     * Batches of directory creations, unlinks and renames within single directory are executed by
+     * the helper in few round trips, everything else is executed one operation at time.
+     */
+    @Override
+    @WorkerThread
+    public void execute(@NonNull OpBatch batch) throws IOException {
+        if (batch.count == 0) {
+            return;
+        }
+
+        final int dir = batch.dirs[0];
+
+        if (dir < 0) {
+            // the helper resolves relative names against the passed descriptor only
+            super.execute(batch);
+
+            return;
+        }
+
+        for (int i = 0; i < batch.count; ++i) {
+            final boolean sameDir;
+
+            switch (batch.ops[i]) {
+                case OpBatch.OP_MKDIRAT:
+                case OpBatch.OP_UNLINKAT:
+                    sameDir = batch.dirs[i] == dir;
+                    break;
+                case OpBatch.OP_RENAMEAT:
+                    sameDir = batch.dirs[i] == dir && batch.dirs2[i] == dir;
+                    break;
+                default:
+                    sameDir = false;
+            }
+
+            if (!sameDir) {
+                super.execute(batch);
+
+                return;
+            }
+        }
+
+        try {
+            final SyscallFactory factory = getFactory();
+
+            final SyscallFactory.Batch chunk = new SyscallFactory.Batch(Math.min(batch.count, MAX_HELPER_BATCH))
+                    .setStopOnError(batch.stopOnError);
+
+            int start = 0;
+
+            while (start < batch.count) {
+                int end = start;
+
+                chunk.clear();
+
+                while (end < batch.count && chunk.hasRoom(batch.names[end], batch.names2[end])) {
+                    switch (batch.ops[end]) {
+                        case OpBatch.OP_MKDIRAT:
+                            chunk.mkdirat(batch.names[end], batch.modes[end]);
+                            break;
+                        case OpBatch.OP_UNLINKAT:
+                            chunk.unlinkat(batch.names[end], batch.flags[end]);
+                            break;
+                        case OpBatch.OP_RENAMEAT:
+                            chunk.renameat(batch.names[end], batch.names2[end]);
+                            break;
+                    }
+
+                    ++end;
+                }
+
+                boolean failed = false;
+
+                if (end == start) {
+                    // a single name is too long to be sent to the helper
+                    batch.setError(start, ErrnoException.ENAMETOOLONG);
+
+                    start = end = start + 1;
+
+                    failed = true;
+                } else {
+                    factory.batch(dir, chunk);
+                }
+
+                for (int i = start; i < end; ++i) {
+                    final int code = chunk.errno(i - start);
+
+                    if (code == 0) {
+                        batch.setResult(i, 0);
+                    } else {
+                        batch.setError(i, code);
+
+                        failed = true;
+                    }
+                }
+
+                start = end;
+
+                if (failed && batch.stopOnError) {
+                    for (int i = start; i < batch.count; ++i) {
+                        batch.setError(i, ErrnoException.ECANCELED);
+                    }
+
+                    break;
+                }
+            }
+        } catch (FactoryBrokenException e) {
+            factory = null;
+
+            throw new IOException("Batch execution failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(dir);
+        }
+    }
+
     @Override
     public void fstat(int fd, @NonNull Stat stat) throws IOException {
         delegate.fstat(fd, stat);
@@ -239,7 +594,11 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
 
     @Override
     public void symlinkat(@NonNull CharSequence name, @DirFd int target, @NonNull CharSequence newpath) throws IOException {
-        delegate.symlinkat(name, target, newpath);
+        try {
+            delegate.symlinkat(name, target, newpath);
+        } finally {
+            cache.invalidate(target);
+        }
     }
 
     @Override
@@ -252,6 +611,8 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             factory = null;
 
             throw new IOException("link() failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(newDirFd);
         }
     }
 
@@ -266,6 +627,8 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             factory = null;
 
             throw new IOException("unlink() failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(target);
         }
     }
 
@@ -280,6 +643,8 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             factory = null;
 
             throw new IOException("mknod() failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(target);
         }
     }
 
@@ -294,6 +659,8 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             factory = null;
 
             throw new IOException("mkdir() failed, unable to access privileged process", e);
+        } finally {
+            cache.invalidate(target);
         }
     }
 
@@ -323,10 +690,26 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             return true;
         }
 
+        final MetadataCache.Key key = cache.key(fd, pathname, MetadataCache.ACCESS, mode);
+
+        if (key != null) {
+            final Boolean cached = (Boolean) cache.get(key);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         try {
             final SyscallFactory factory = getFactory();
 
-            return factory.faccessat(fd, pathname, mode);
+            final boolean accessible = factory.faccessat(fd, pathname, mode);
+
+            if (key != null) {
+                cache.put(key, accessible, fd);
+            }
+
+            return accessible;
         } catch (FactoryBrokenException e) {
             factory = null;
 
@@ -356,6 +739,8 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
 
     @Override
     public void close() throws IOException {
+        cache.close();
+
         synchronized(this) {
             if (factory != null) {
                 factory.close();
@@ -369,6 +754,10 @@ public final class Rooted extends net.sf.xfd.OS implements Closeable {
             super(fd, looper, createBuffer(), Rooted.this);
         }
 
+        RootInotify(@InotifyFd int fd, Executor executor) {
+            super(fd, executor, createBuffer(), Rooted.this);
+        }
+
         @Override
         @WorkerThread
         protected int addSubscription(@InotifyFd int fd, int watchedFd) throws IOException {
@@ -0,0 +1,24 @@
+// Host replacement of libsepol, just enough of it for the helper to compile. Policy patching
+// is never requested by the tests, see policy_stubs.c
+#ifndef HOST_SEPOL_POLICYDB_H
+#define HOST_SEPOL_POLICYDB_H
+
+#include <stdio.h>
+#include <string.h>
+
+#define PF_USE_MEMORY 0
+
+typedef struct policy_file {
+    unsigned type;
+    char *data;
+    size_t len;
+    size_t size;
+    FILE *fp;
+    struct sepol_handle *handle;
+} policy_file_t;
+
+static inline void policy_file_init(policy_file_t *pf) {
+    memset(pf, 0, sizeof(*pf));
+}
+
+#endif
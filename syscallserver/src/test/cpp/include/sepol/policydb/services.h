@@ -0,0 +1,2 @@
+// Host replacement of libsepol, see policydb.h
+#include "sepol/policydb/policydb.h"
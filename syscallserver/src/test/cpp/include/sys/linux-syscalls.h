@@ -0,0 +1,17 @@
+// Host replacement of Bionic header: the helper is built for 32-bit Android ABIs, map the syscalls,
+// that only exist there, to their 64-bit counterparts. The layout of stat structure differs,
+// so the tests must not rely on results of stat requests
+#ifndef HOST_LINUX_SYSCALLS_H
+#define HOST_LINUX_SYSCALLS_H
+
+#include <linux/capability.h>
+
+#ifndef __NR_lstat64
+#define __NR_lstat64 __NR_lstat
+#endif
+
+#ifndef __NR_fstatat64
+#define __NR_fstatat64 __NR_newfstatat
+#endif
+
+#endif
@@ -0,0 +1,20 @@
+// Host replacements of policy patching routines from cleanhelper.c, the tests don't
+// run on SELinux-enabled Android and never ask the helper to adjust the policy
+#include "sepol/policydb/policydb.h"
+#include "../../main/cpp/common.h"
+
+int load_policy_from_kernel(policy_file_t *pf) {
+    return -1;
+}
+
+int load_policy_into_kernel(policy_file_t *fp) {
+    return -1;
+}
+
+patch_state_t issue_indulgence(const char* type_name, policy_file_t* fp, policy_file_t* newPolicyFile) {
+    return PATCH_ERR_RO;
+}
+
+patch_state_t issue_rollback(const char* type_name, policy_file_t* fp, policy_file_t* newPolicyFile) {
+    return PATCH_ERR_RO;
+}
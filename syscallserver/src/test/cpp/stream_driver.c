@@ -0,0 +1,396 @@
+// Plays the role of SyscallFactory against a helper, started on the host, and checks the behavior
+// of stream requests. Usage: stream_driver <helper> <file> <scenario>, where the file is larger than
+// the capacity of pipe. Exits with 0 on success, prints the reason of failure otherwise.
+#define _GNU_SOURCE
+
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <poll.h>
+#include <sched.h>
+#include <signal.h>
+#include <stdarg.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mount.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/un.h>
+#include <sys/wait.h>
+
+// keep in sync with fdhelper.c
+#define REQ_TYPE_STREAM 18
+#define MAX_STREAMS 8
+
+#define TIMEOUT_MS 10000
+
+struct request_header {
+    uint32_t id;
+    uint32_t type;
+    uint32_t fd_count;
+    int32_t args[2];
+    uint32_t name_lengths[2];
+};
+
+struct reply_header {
+    uint32_t id;
+    int32_t status;
+    uint32_t length;
+};
+
+static pid_t helper_pid;
+
+static void fail(const char* format, ...) __attribute__((noreturn, format(printf, 1, 2)));
+
+static void fail(const char* format, ...) {
+    va_list args;
+    va_start(args, format);
+    vprintf(format, args);
+    va_end(args);
+
+    printf(" (errno %d)\n", errno);
+
+    if (helper_pid > 0) {
+        kill(helper_pid, SIGKILL);
+    }
+
+    exit(1);
+}
+
+static void await(int fd) {
+    struct pollfd pollFd = { .fd = fd, .events = POLLIN };
+
+    if (poll(&pollFd, 1, TIMEOUT_MS) != 1)
+        fail("timed out waiting for the helper");
+}
+
+static void read_fully(int fd, void* buffer, size_t count) {
+    while (count > 0) {
+        await(fd);
+
+        ssize_t got = read(fd, buffer, count);
+
+        if (got <= 0)
+            fail("failed to read from the helper");
+
+        buffer = (char*) buffer + got;
+        count -= got;
+    }
+}
+
+// Start the helper the same way as the app does, and connect to it. The helper remounts /proc,
+// when running as root, so it is given a mount namespace of it's own, if possible
+static int start_helper(const char* helper) {
+    char name[64];
+    snprintf(name, sizeof(name), "fdhelper-test-%d", getpid());
+
+    int server = socket(AF_UNIX, SOCK_STREAM, 0);
+
+    struct sockaddr_un addr;
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+    strcpy(addr.sun_path + 1, name);
+
+    socklen_t addrLength = (socklen_t) (offsetof(struct sockaddr_un, sun_path) + 1 + strlen(name));
+
+    if (server < 0 || bind(server, (struct sockaddr*) &addr, addrLength) || listen(server, 1))
+        fail("failed to create the server socket");
+
+    int pidPipe[2];
+
+    if (pipe(pidPipe))
+        fail("pipe() failed");
+
+    pid_t child = fork();
+
+    if (child < 0)
+        fail("fork() failed");
+
+    if (child == 0) {
+        if (!unshare(CLONE_NEWNS)) {
+            mount(NULL, "/", NULL, MS_REC | MS_PRIVATE, NULL);
+        }
+
+        dup2(pidPipe[1], 2);
+
+        execl(helper, helper, name, (char*) NULL);
+
+        _exit(127);
+    }
+
+    close(pidPipe[1]);
+
+    // the forking parent of helper reports the PID of daemon before exiting
+    char pidText[32] = {};
+
+    for (size_t i = 0; i < sizeof(pidText) - 1; ++i) {
+        await(pidPipe[0]);
+
+        if (read(pidPipe[0], pidText + i, 1) != 1 || pidText[i] == '\0')
+            break;
+    }
+
+    close(pidPipe[0]);
+
+    int status;
+    waitpid(child, &status, 0);
+
+    if (sscanf(pidText, "PID:%d", &helper_pid) != 1)
+        fail("the helper did not start: '%s'", pidText);
+
+    await(server);
+
+    int bootstrap = accept(server, NULL, NULL);
+
+    if (bootstrap < 0)
+        fail("accept() failed");
+
+    close(server);
+
+    struct reply_header greeting;
+
+    read_fully(bootstrap, &greeting, sizeof(greeting));
+
+    if (greeting.status != 0 || greeting.length == 0 || greeting.length >= sizeof(addr.sun_path))
+        fail("unexpected greeting, status %d", greeting.status);
+
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+
+    read_fully(bootstrap, addr.sun_path + 1, greeting.length);
+
+    addrLength = (socklen_t) (offsetof(struct sockaddr_un, sun_path) + 1 + greeting.length);
+
+    int sock = socket(AF_UNIX, SOCK_SEQPACKET, 0);
+
+    if (sock < 0 || connect(sock, (struct sockaddr*) &addr, addrLength))
+        fail("failed to connect to the helper");
+
+    close(bootstrap);
+
+    return sock;
+}
+
+// Send a stream request and return the read end of pipe, or -errno, reported by the helper
+static int stream(int sock, const char* path) {
+    static uint32_t lastId;
+
+    char packet[sizeof(struct request_header) + PATH_MAX + 2];
+
+    struct request_header header = {
+        .id = ++lastId,
+        .type = REQ_TYPE_STREAM,
+        .name_lengths = { (uint32_t) strlen(path), 0 },
+    };
+
+    memcpy(packet, &header, sizeof(header));
+    strcpy(packet + sizeof(header), path);
+    packet[sizeof(header) + header.name_lengths[0] + 1] = '\0';
+
+    size_t packetLength = sizeof(header) + header.name_lengths[0] + 2;
+
+    if (send(sock, packet, packetLength, 0) != (ssize_t) packetLength)
+        fail("failed to send a request");
+
+    char reply[sizeof(struct reply_header) + 1024];
+
+    struct iovec iov = { .iov_base = reply, .iov_len = sizeof(reply) };
+
+    union {
+        struct cmsghdr cmsghdr;
+        char control[CMSG_SPACE(sizeof(int))];
+    } cmsgfds;
+
+    struct msghdr msg = {
+        .msg_iov = &iov,
+        .msg_iovlen = 1,
+        .msg_control = cmsgfds.control,
+        .msg_controllen = sizeof(cmsgfds.control),
+    };
+
+    await(sock);
+
+    if (recvmsg(sock, &msg, MSG_CMSG_CLOEXEC) < (ssize_t) sizeof(struct reply_header))
+        fail("failed to receive a reply");
+
+    struct reply_header replyHeader;
+    memcpy(&replyHeader, reply, sizeof(replyHeader));
+
+    if (replyHeader.id != header.id)
+        fail("reply to %u, expected %u", replyHeader.id, header.id);
+
+    struct cmsghdr* cmsg = CMSG_FIRSTHDR(&msg);
+
+    int fd = cmsg != NULL && cmsg->cmsg_type == SCM_RIGHTS ? *((int*) CMSG_DATA(cmsg)) : -1;
+
+    if (replyHeader.status != 0) {
+        if (fd >= 0)
+            fail("descriptor attached to failed reply");
+
+        return -replyHeader.status;
+    }
+
+    if (fd < 0)
+        fail("no descriptor in successful reply");
+
+    return fd;
+}
+
+static int must_stream(int sock, const char* path) {
+    int fd = stream(sock, path);
+
+    if (fd < 0) {
+        errno = -fd;
+        fail("stream of %s failed", path);
+    }
+
+    return fd;
+}
+
+static void check_eof(int sock, const char* path) {
+    int file = open(path, O_RDONLY);
+
+    if (file < 0)
+        fail("failed to open %s", path);
+
+    int fd = must_stream(sock, path);
+
+    struct stat pipeStat;
+
+    if (fstat(fd, &pipeStat) || !S_ISFIFO(pipeStat.st_mode))
+        fail("the reply is not a pipe");
+
+    char expected[4096];
+    char actual[4096];
+
+    size_t total = 0;
+
+    while (1) {
+        ssize_t want = read(file, expected, sizeof(expected));
+
+        if (want < 0)
+            fail("failed to read %s", path);
+
+        size_t got = 0;
+
+        while (got < (size_t) want) {
+            await(fd);
+
+            ssize_t chunk = read(fd, actual + got, want - got);
+
+            if (chunk <= 0)
+                fail("premature end of stream after %zu bytes", total + got);
+
+            got += chunk;
+        }
+
+        if (memcmp(expected, actual, got))
+            fail("contents differ after %zu bytes", total);
+
+        total += got;
+
+        if (want == 0) {
+            break;
+        }
+    }
+
+    await(fd);
+
+    if (read(fd, actual, 1) != 0)
+        fail("no end of stream after %zu bytes", total);
+
+    close(fd);
+    close(file);
+
+    // directories can not be streamed
+    fd = stream(sock, "/");
+
+    if (fd != -EISDIR)
+        fail("stream of directory gave %d", fd);
+}
+
+static void check_limit(int sock, const char* path) {
+    int fds[MAX_STREAMS];
+
+    for (int i = 0; i < MAX_STREAMS; ++i) {
+        fds[i] = must_stream(sock, path);
+
+        // the pipe is filled, the stream blocks until the reader drains it
+        await(fds[i]);
+    }
+
+    int extra = stream(sock, path);
+
+    if (extra != -EAGAIN)
+        fail("stream past the limit gave %d", extra);
+
+    for (int i = 0; i < MAX_STREAMS; ++i) {
+        close(fds[i]);
+    }
+}
+
+static void check_cancel(int sock, const char* path) {
+    int fds[MAX_STREAMS];
+
+    for (int i = 0; i < MAX_STREAMS; ++i) {
+        fds[i] = must_stream(sock, path);
+
+        // the pipe is filled, the stream blocks until the reader drains it
+        await(fds[i]);
+    }
+
+    // the reader gives up early, the stream notices that and frees it's slot
+    char buffer[100];
+
+    if (read(fds[0], buffer, sizeof(buffer)) <= 0)
+        fail("failed to read from stream");
+
+    close(fds[0]);
+
+    for (int waited = 0; (fds[0] = stream(sock, path)) == -EAGAIN; waited += 10) {
+        if (waited >= TIMEOUT_MS)
+            fail("cancelled stream still occupies a slot");
+
+        usleep(10 * 1000);
+    }
+
+    if (fds[0] < 0) {
+        errno = -fds[0];
+        fail("stream after cancellation failed");
+    }
+
+    for (int i = 0; i < MAX_STREAMS; ++i) {
+        close(fds[i]);
+    }
+}
+
+int main(int argc, char* argv[]) {
+    if (argc != 4) {
+        printf("Usage: %s <helper> <file> eof|limit|cancel\n", argv[0]);
+        return 2;
+    }
+
+    setvbuf(stdout, NULL, _IONBF, 0);
+
+    int sock = start_helper(argv[1]);
+
+    if (!strcmp(argv[3], "eof")) {
+        check_eof(sock, argv[2]);
+    } else if (!strcmp(argv[3], "limit")) {
+        check_limit(sock, argv[2]);
+    } else if (!strcmp(argv[3], "cancel")) {
+        check_cancel(sock, argv[2]);
+    } else {
+        fail("unknown scenario %s", argv[3]);
+    }
+
+    close(sock);
+
+    kill(helper_pid, SIGTERM);
+
+    return 0;
+}
@@ -0,0 +1,68 @@
+package net.sf.fakenames.syscallserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HelperStatsTest {
+    private static final int TYPE_READLINK = 6;
+    private static final int TYPE_STAT = 11;
+
+    private static long micros(long value) {
+        return TimeUnit.MICROSECONDS.toNanos(value);
+    }
+
+    @Test
+    public void phasesAreRecordedPerType() {
+        final HelperStats stats = new HelperStats();
+
+        stats.recordRequest(TYPE_STAT, micros(1), micros(2), micros(3), micros(4));
+        stats.recordRequest(TYPE_STAT, micros(1), micros(2), micros(5), micros(4));
+        stats.recordRequest(TYPE_READLINK, micros(7), micros(7), micros(7), micros(7));
+
+        assertArrayEquals(new String[] { "readlink", "stat" }, stats.getRequestNames());
+
+        final LatencyHistogram helper = stats.getLatency("stat", HelperStats.Phase.HELPER);
+
+        //noinspection ConstantConditions
+        assertEquals(2, helper.getCount());
+        assertEquals(5, helper.getMax());
+
+        //noinspection ConstantConditions
+        assertEquals(4, stats.getLatency("stat", HelperStats.Phase.DECODE).getMax());
+
+        assertNull(stats.getLatency("open", HelperStats.Phase.HELPER));
+    }
+
+    @Test
+    public void unknownTypesAreIgnored() {
+        final HelperStats stats = new HelperStats();
+
+        stats.recordRequest(0, 1, 1, 1, 1);
+        stats.recordRequest(1000, 1, 1, 1, 1);
+
+        assertEquals(0, stats.getRequestNames().length);
+    }
+
+    @Test
+    public void reset() {
+        final HelperStats stats = new HelperStats();
+
+        stats.recordRequest(TYPE_STAT, 1, 1, 1, 1);
+        stats.recordSu(micros(100));
+        stats.rebuilt();
+        stats.fdPassingFailed();
+
+        stats.reset();
+
+        //noinspection ConstantConditions
+        assertEquals(0, stats.getLatency("stat", HelperStats.Phase.QUEUE).getCount());
+        assertEquals(0, stats.getSuLatency().getCount());
+        assertEquals(0, stats.getRebuildCount());
+        assertEquals(0, stats.getFdPassingFailureCount());
+    }
+}
@@ -0,0 +1,118 @@
+package net.sf.fakenames.syscallserver;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Builds fdhelper for the host and drives it's stream requests with {@code src/test/cpp/stream_driver.c},
+ * which plays the role of {@link SyscallFactory}. Skipped, unless running on Linux with a C compiler.
+ */
+public class HelperStreamTest {
+    // several times larger than capacity of pipe, so that streams block, waiting for the reader
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    @ClassRule
+    public static final TemporaryFolder dir = new TemporaryFolder();
+
+    private static File helper;
+    private static File driver;
+    private static File file;
+
+    private static void run(File workDir, String... command) throws IOException, InterruptedException {
+        final Process process = new ProcessBuilder(command)
+                .directory(workDir)
+                .redirectErrorStream(true)
+                .start();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (InputStream in = process.getInputStream()) {
+            final byte[] buffer = new byte[4096];
+
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+
+        final int status = process.waitFor();
+
+        assertEquals(Arrays.toString(command) + " failed: " + output.toString("UTF-8"), 0, status);
+    }
+
+    private static File sources() {
+        // unit tests run in the directory of module, but may be started from the root of project
+        final File inModule = new File("src");
+
+        return inModule.isDirectory() ? inModule : new File("syscallserver/src");
+    }
+
+    private static boolean hasCompiler() {
+        try {
+            return new ProcessBuilder("cc", "--version").start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    @BeforeClass
+    public static void build() throws IOException, InterruptedException {
+        assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+        assumeTrue(hasCompiler());
+
+        final File src = sources().getAbsoluteFile();
+        final File main = new File(src, "main/cpp");
+        final File test = new File(src, "test/cpp");
+
+        helper = new File(dir.getRoot(), "fdhelper");
+        driver = new File(dir.getRoot(), "stream_driver");
+
+        run(test, "cc", "-std=gnu11", "-D_GNU_SOURCE", "-pthread", "-Iinclude", "-o", helper.getPath(),
+                new File(main, "fdhelper.c").getPath(), "policy_stubs.c");
+
+        run(test, "cc", "-std=gnu11", "-o", driver.getPath(), "stream_driver.c");
+
+        file = dir.newFile("contents");
+
+        final byte[] contents = new byte[FILE_SIZE];
+
+        new Random(42).nextBytes(contents);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+    }
+
+    private static void drive(String scenario) throws IOException, InterruptedException {
+        run(dir.getRoot(), driver.getPath(), helper.getPath(), file.getPath(), scenario);
+    }
+
+    @Test(timeout = 60000)
+    public void streamEndsWithFile() throws Exception {
+        drive("eof");
+    }
+
+    @Test(timeout = 60000)
+    public void streamsPastLimitAreRejected() throws Exception {
+        drive("limit");
+    }
+
+    @Test(timeout = 60000)
+    public void closedReaderReleasesStream() throws Exception {
+        drive("cancel");
+    }
+}
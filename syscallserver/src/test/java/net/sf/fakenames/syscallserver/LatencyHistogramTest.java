@@ -0,0 +1,122 @@
+package net.sf.fakenames.syscallserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 8; ++i) {
+            histogram.record(i);
+        }
+
+        assertEquals(8, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(7, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void knownSamples() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+
+        // 50 is in bucket [48, 51], 90 in [88, 95], 99 in [96, 103], which is capped by max
+        assertEquals(51, histogram.getValueAtPercentile(50));
+        assertEquals(95, histogram.getValueAtPercentile(90));
+        assertEquals(100, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        final long[] samples = { 8, 9, 15, 16, 17, 18, 1000, 1023, 1024, 123456789, (1L << 31) - 1, 1L << 31 };
+
+        for (long value : samples) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+
+            // the second value keeps max from capping the result
+            histogram.record(value);
+            histogram.record(LatencyHistogram.MAX_MICROS);
+
+            final long reported = histogram.getValueAtPercentile(50);
+
+            assertTrue(value + " reported as " + reported, reported >= value && reported - value <= value / 8);
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(16);
+        histogram.record(17);
+        histogram.record(18);
+        histogram.record(LatencyHistogram.MAX_MICROS);
+
+        // 16 and 17 share a bucket, 18 starts the next one
+        assertEquals(17, histogram.getValueAtPercentile(25));
+        assertEquals(17, histogram.getValueAtPercentile(50));
+        assertEquals(19, histogram.getValueAtPercentile(75));
+    }
+
+    @Test
+    public void overflowIsClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.getValueAtPercentile(100));
+        assertEquals(LatencyHistogram.MAX_MICROS / 2, histogram.getMean());
+    }
+
+    @Test
+    public void nanosAreConverted() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(3) + 999);
+
+        assertEquals(3000, histogram.getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileOutOfRange() {
+        new LatencyHistogram().getValueAtPercentile(100.5);
+    }
+
+    @Test
+    public void reset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(42);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+}
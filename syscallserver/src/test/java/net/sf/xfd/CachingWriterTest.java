@@ -0,0 +1,168 @@
+package net.sf.xfd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CachingWriterTest {
+    private static final String SMILE = "😀";
+
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+    private CachingWriter writer(int bufferSize) {
+        return new CachingWriter(Channels.newChannel(sink), bufferSize);
+    }
+
+    private void assertWritten(String expected) {
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), sink.toByteArray());
+    }
+
+    @Test
+    public void charsOfAllLengths() throws IOException {
+        final String text = "aé€" + SMILE;
+
+        try (CachingWriter writer = writer(4)) {
+            for (int i = 0; i < text.length(); ++i) {
+                writer.append(text.charAt(i));
+            }
+        }
+
+        assertWritten(text);
+    }
+
+    @Test
+    public void splitPairAsChars() throws IOException {
+        try (CachingWriter writer = writer(8)) {
+            writer.append('x');
+            writer.append(SMILE.charAt(0));
+            writer.append(SMILE.charAt(1));
+            writer.append('y');
+        }
+
+        assertWritten("x" + SMILE + "y");
+    }
+
+    @Test
+    public void splitPairCompletedByString() throws IOException {
+        try (CachingWriter writer = writer(5)) {
+            writer.append(SMILE.charAt(0));
+            writer.append(SMILE.charAt(1) + "tail");
+        }
+
+        assertWritten(SMILE + "tail");
+    }
+
+    @Test
+    public void pairInsideString() throws IOException {
+        final String text = "head" + SMILE + "é" + SMILE + "tail";
+
+        try (CachingWriter writer = writer(5)) {
+            writer.append(text);
+        }
+
+        assertWritten(text);
+    }
+
+    @Test
+    public void numbers() throws IOException {
+        // numbers are not split between buffers, so it must fit the longest of them
+        try (CachingWriter writer = writer(11)) {
+            writer.append(0).append(' ').append(-123456).append(' ').append((long) Integer.MAX_VALUE);
+        }
+
+        assertWritten("0 -123456 " + Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void lengthPrefix() throws IOException {
+        final String text = "né" + SMILE;
+
+        final byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+
+        try (CachingWriter writer = writer(64)) {
+            writer.appendWithLength(text);
+        }
+
+        final byte[] written = sink.toByteArray();
+
+        assertEquals(4 + encoded.length, written.length);
+        assertEquals(encoded.length, ByteBuffer.wrap(written).order(ByteOrder.nativeOrder()).getInt());
+    }
+
+    @Test
+    public void loneLowSurrogate() throws IOException {
+        try (CachingWriter writer = writer(8)) {
+            writer.append(SMILE.charAt(1));
+
+            fail("Low surrogate without high one was accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void highSurrogateFollowedByChar() throws IOException {
+        final CachingWriter writer = writer(8);
+
+        writer.append(SMILE.charAt(0));
+
+        try {
+            writer.append('x');
+
+            fail("High surrogate without low one was accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+
+        // the writer stays usable
+        writer.append('y');
+        writer.close();
+
+        assertWritten("y");
+    }
+
+    @Test
+    public void highSurrogateFollowedByNumber() throws IOException {
+        final CachingWriter writer = writer(8);
+
+        writer.append(SMILE.charAt(0));
+
+        try {
+            writer.append(1);
+
+            fail("High surrogate without low one was accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void highSurrogateAtClose() throws IOException {
+        final CachingWriter writer = writer(8);
+
+        writer.append('a');
+        writer.append(SMILE.charAt(0));
+
+        try {
+            writer.close();
+
+            fail("Dangling high surrogate was not reported");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+
+        // reported before anything was flushed
+        assertEquals(0, sink.size());
+    }
+}
@@ -0,0 +1,321 @@
+package net.sf.xfd;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of {@link OpBatch} through the layout, shared with native code: the test plays the
+ * role of {@code nativeExecute}, reading the encoded operations and writing back results.
+ */
+public class OpBatchTest {
+    private static final int DIR = 42;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+
+    private int resultsStart;
+    private int statsStart;
+    private int namesStart;
+
+    @After
+    public void disableTracker() {
+        FdTracker.disable();
+    }
+
+    private void encode(OpBatch batch) {
+        final int count = batch.size();
+
+        resultsStart = count * OpBatch.OP_SIZE;
+        statsStart = resultsStart + count * OpBatch.RESULT_SIZE;
+        namesStart = statsStart + count * StatBatch.NATIVE_SIZE;
+
+        assertTrue(namesStart + batch.namesSize() <= buffer.capacity());
+
+        batch.write(buffer, 0, resultsStart, namesStart);
+    }
+
+    private int op(int index) {
+        return buffer.getInt(index * OpBatch.OP_SIZE);
+    }
+
+    private int dir(int index) {
+        return buffer.getInt(index * OpBatch.OP_SIZE + 4);
+    }
+
+    private int flags(int index) {
+        return buffer.getInt(index * OpBatch.OP_SIZE + 12);
+    }
+
+    private int mode(int index) {
+        return buffer.getInt(index * OpBatch.OP_SIZE + 16);
+    }
+
+    private String name(int index, int which) {
+        final int offset = buffer.getInt(index * OpBatch.OP_SIZE + 20 + which * 4);
+
+        if (offset < 0) {
+            return null;
+        }
+
+        int end = namesStart + offset;
+
+        while (buffer.get(end) != 0) {
+            ++end;
+        }
+
+        return new String(buffer.array(), namesStart + offset, end - namesStart - offset, StandardCharsets.UTF_8);
+    }
+
+    private int encodedError(int index) {
+        return buffer.getInt(resultsStart + index * OpBatch.RESULT_SIZE + 8);
+    }
+
+    private void result(int index, long value, int err) {
+        buffer.putLong(resultsStart + index * OpBatch.RESULT_SIZE, value);
+        buffer.putInt(resultsStart + index * OpBatch.RESULT_SIZE + 8, err);
+
+        if (err != 0) {
+            buffer.putInt(statsStart + index * StatBatch.NATIVE_SIZE + 40, err);
+        }
+    }
+
+    private void stat(int index, long dev, long ino, long size, long mtime, int mode, int blksize) {
+        final int base = statsStart + index * StatBatch.NATIVE_SIZE;
+
+        buffer.putLong(base, dev);
+        buffer.putLong(base + 8, ino);
+        buffer.putLong(base + 16, size);
+        buffer.putLong(base + 24, mtime);
+        buffer.putInt(base + 32, mode);
+        buffer.putInt(base + 36, blksize);
+        buffer.putInt(base + 40, 0);
+    }
+
+    @Test
+    public void encoding() {
+        final OpBatch batch = new OpBatch(4);
+
+        final int tmp = batch.openat(DIR, "file.tmp", OS.O_WRONLY, 0600);
+        batch.fsync(OpBatch.resultOf(tmp));
+        batch.close(OpBatch.resultOf(tmp));
+        batch.renameat(DIR, "file.tmp", DIR, "файл");
+
+        encode(batch);
+
+        assertEquals(OpBatch.OP_OPENAT, op(0));
+        assertEquals(DIR, dir(0));
+        assertEquals(OS.O_WRONLY, flags(0));
+        assertEquals(0600, mode(0));
+        assertEquals("file.tmp", name(0, 0));
+        assertNull(name(0, 1));
+
+        assertEquals(OpBatch.OP_FSYNC, op(1));
+        assertEquals(OpBatch.resultOf(tmp), dir(1));
+        assertNull(name(1, 0));
+
+        assertEquals(OpBatch.OP_CLOSE, op(2));
+        assertEquals(OpBatch.resultOf(tmp), dir(2));
+
+        assertEquals(OpBatch.OP_RENAMEAT, op(3));
+        assertEquals("file.tmp", name(3, 0));
+        assertEquals("файл", name(3, 1));
+
+        for (int i = 0; i < batch.size(); ++i) {
+            assertEquals(0, encodedError(i));
+        }
+    }
+
+    @Test
+    public void results() {
+        final OpBatch batch = new OpBatch(3);
+
+        final int open = batch.openat(DIR, "a", OS.O_RDONLY, 0);
+        final int stat = batch.fstatat(DIR, "b", 0);
+        final int mkdir = batch.mkdirat(DIR, "c", 0700);
+
+        encode(batch);
+
+        result(open, 77, 0);
+        result(stat, 0, 0);
+        stat(stat, 5, 6, 7, 8000, 0100644, 4096);
+        result(mkdir, 0, 0);
+
+        batch.read(buffer, resultsStart, statsStart);
+
+        assertEquals(-1, batch.firstError());
+        assertEquals(77, batch.fd(open));
+
+        final Stat result = new Stat();
+
+        assertTrue(batch.getStat(stat, result));
+        assertEquals(5, result.st_dev);
+        assertEquals(6, result.st_ino);
+        assertEquals(7, result.st_size);
+        assertEquals(4096, result.st_blksize);
+        assertEquals(FsType.FILE, result.type);
+        assertEquals(8000, batch.stats.mtime[stat]);
+    }
+
+    @Test
+    public void partialFailure() {
+        final OpBatch batch = new OpBatch(3);
+
+        batch.mkdirat(DIR, "a", 0700);
+        final int stat = batch.fstatat(DIR, "missing", 0);
+        batch.unlinkat(DIR, "c", 0);
+
+        encode(batch);
+
+        result(0, 0, 0);
+        result(1, 0, ErrnoException.ENOENT);
+        result(2, 0, ErrnoException.ECANCELED);
+
+        batch.read(buffer, resultsStart, statsStart);
+
+        assertTrue(batch.isOk(0));
+        assertEquals(1, batch.firstError());
+        assertEquals(ErrnoException.ENOENT, batch.errno(1));
+        assertEquals(ErrnoException.ECANCELED, batch.errno(2));
+
+        assertFalse(batch.getStat(stat, new Stat()));
+        assertFalse(batch.stats.isOk(stat));
+        assertNull(batch.stats.type(stat));
+    }
+
+    @Test
+    public void unencodableNames() {
+        final StringBuilder longName = new StringBuilder();
+
+        for (int i = 0; i < PathBuffer.SLOT_SIZE; ++i) {
+            longName.append('x');
+        }
+
+        final OpBatch batch = new OpBatch(3);
+
+        batch.unlinkat(DIR, longName, 0);
+        batch.unlinkat(DIR, "nul\0", 0);
+        batch.unlinkat(DIR, "ok", 0);
+
+        encode(batch);
+
+        // the error is passed to native code in place of result
+        assertEquals(ErrnoException.ENAMETOOLONG, encodedError(0));
+        assertEquals(ErrnoException.EINVAL, encodedError(1));
+        assertEquals(0, encodedError(2));
+        assertEquals("ok", name(2, 0));
+    }
+
+    @Test
+    public void invalidReferences() {
+        final OpBatch batch = new OpBatch(3);
+
+        final int mkdir = batch.mkdirat(DIR, "a", 0700);
+
+        try {
+            batch.close(OpBatch.resultOf(mkdir));
+
+            fail("Reference to operation, that does not open a descriptor, was accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+
+        try {
+            batch.close(OpBatch.resultOf(2));
+
+            fail("Forward reference was accepted");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+
+        assertEquals(1, batch.size());
+    }
+
+    @Test
+    public void capacity() {
+        final OpBatch batch = new OpBatch(1);
+
+        batch.fsync(DIR);
+
+        try {
+            batch.fsync(DIR);
+
+            fail("Operation was added past capacity");
+        } catch (IllegalStateException expected) {
+            // ok
+        }
+
+        batch.clear();
+
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.fsync(DIR));
+    }
+
+    @Test
+    public void trackerAfterFailedClose() throws ErrnoException {
+        final FdTracker tracker = FdTracker.enable(100);
+
+        FdTracker.opened(10);
+        FdTracker.opened(11);
+        FdTracker.opened(12);
+
+        final OpBatch batch = new OpBatch(5);
+
+        batch.close(10);
+        batch.close(11);
+        final int open = batch.openat(DIR, "new", OS.O_RDONLY, 0);
+        batch.close(OpBatch.resultOf(open));
+        batch.close(12);
+
+        encode(batch);
+
+        result(0, 0, 0);
+        // the descriptor is released even though close() failed
+        result(1, 0, 5 /* EIO */);
+        result(2, 20, 0);
+        result(3, 0, ErrnoException.ECANCELED);
+        // skipped, stays open
+        result(4, 0, ErrnoException.ECANCELED);
+
+        batch.read(buffer, resultsStart, statsStart);
+
+        batch.trackDescriptors();
+
+        // 12 was not closed, 20 was opened by batch, but it's close was skipped
+        assertEquals(2, tracker.getOpenCount());
+
+        final String dump = tracker.dump();
+
+        assertTrue(dump, dump.contains("Descriptor 12 "));
+        assertTrue(dump, dump.contains("Descriptor 20 "));
+    }
+
+    @Test
+    public void trackerAfterFailedOpen() throws ErrnoException {
+        final FdTracker tracker = FdTracker.enable(100);
+
+        final OpBatch batch = new OpBatch(2);
+
+        final int open = batch.openat(DIR, "missing", OS.O_RDONLY, 0);
+        batch.close(OpBatch.resultOf(open));
+
+        encode(batch);
+
+        result(0, 0, ErrnoException.ENOENT);
+        result(1, 0, ErrnoException.ECANCELED);
+
+        batch.read(buffer, resultsStart, statsStart);
+
+        batch.trackDescriptors();
+
+        assertEquals(0, tracker.getOpenCount());
+    }
+}